@@ -0,0 +1,173 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator. New user sessions arrive at a configured rate,
+ * whatever the response time of the server is, and each arrival plays
+ * exactly one session on the <code>SessionExecutor</code>.
+ * <p>
+ * The rate given by <code>workload_arrival_rate_per_second</code> is the
+ * rate of the runtime session. It is divided by the slowdown factor of the
+ * current ramp, so up and down ramps behave like in closed-loop mode.
+ * Arrivals are scheduled on an absolute time line so that the offered load
+ * does not drift when the generator itself is late.
+ *
+ * @version 1.0
+ */
+public class ArrivalGenerator implements Runnable
+{
+  public static final String POISSON  = "poisson";
+  public static final String CONSTANT = "constant";
+
+  private RUBiSProperties rubis;
+  private URLGenerator    urlGen;
+  private Stats           stats;
+  private SessionExecutor executor;
+  private boolean         poisson;
+  private double          ratePerSecond;
+  private int             maxSessions;
+  private Random          rand = new Random();
+  private volatile int    nbOfArrivals = 0;
+  private volatile int    nbOfDroppedArrivals = 0;
+
+  /**
+   * Creates a new <code>ArrivalGenerator</code> instance.
+   *
+   * @param RUBiS rubis.properties
+   * @param URLGen the URLGenerator to use
+   * @param statistics where to collect statistics
+   * @param sessionExecutor executor running the sessions
+   */
+  public ArrivalGenerator(RUBiSProperties RUBiS, URLGenerator URLGen,
+      Stats statistics, SessionExecutor sessionExecutor)
+  {
+    rubis = RUBiS;
+    urlGen = URLGen;
+    stats = statistics;
+    executor = sessionExecutor;
+    poisson = !CONSTANT.equals(rubis.getArrivalDistribution());
+    ratePerSecond = rubis.getArrivalRate();
+    maxSessions = rubis.getMaxOpenSessions();
+  }
+
+  /**
+   * Get the time to wait before the next arrival.
+   *
+   * @return interarrival time in nanoseconds
+   */
+  private long nextInterarrivalTime()
+  {
+    float slowdown = ClientEmulator.getSlowDownFactor();
+    if (slowdown <= 0)
+      slowdown = 1;
+    double rate = ratePerSecond / slowdown;
+    double seconds;
+    if (poisson)
+      seconds = -Math.log(1.0 - rand.nextDouble()) / rate;
+    else
+      seconds = 1.0 / rate;
+    return (long) (seconds * 1000000000.0);
+  }
+
+  /**
+   * Generate arrivals until the end of the simulation.
+   */
+  public void run()
+  {
+    if (ratePerSecond <= 0)
+    {
+      System.err.println("ArrivalGenerator: arrival rate must be positive, no session started.");
+      return;
+    }
+    long next = System.nanoTime();
+    while (!ClientEmulator.isEndOfSimulation())
+    {
+      next += nextInterarrivalTime();
+      // Sleep by small steps to notice the end of the simulation
+      long wait;
+      while ((wait = next - System.nanoTime()) > 0)
+      {
+        if (ClientEmulator.isEndOfSimulation())
+          return;
+        LockSupport.parkNanos(Math.min(wait, 100000000L));
+      }
+
+      int n = nbOfArrivals++;
+      if ((maxSessions > 0) && (executor.getNbOfRunningSessions() >= maxSessions))
+      {
+        nbOfDroppedArrivals++;
+        continue;
+      }
+      executor.start("UserSession" + n, newSession("UserSession" + n, next));
+    }
+  }
+
+  /**
+   * Get a task playing one session. The session itself, which reads the
+   * transition table, is built by the thread running the task so that a
+   * slow construction does not delay the following arrivals.
+   *
+   * @param name name of the session
+   * @param arrivalTime scheduled arrival time of the session
+   * @return the task to hand to the executor
+   */
+  private Runnable newSession(final String name, final long arrivalTime)
+  {
+    return new Runnable()
+      {
+        public void run()
+        {
+          UserSession session =
+            new UserSession(name, urlGen, rubis, stats, true);
+          session.setArrivalTime(arrivalTime);
+          session.run();
+        }
+      };
+  }
+
+  /**
+   * Get the number of sessions that arrived so far.
+   *
+   * @return number of arrivals
+   */
+  public int getNbOfArrivals()
+  {
+    return nbOfArrivals;
+  }
+
+  /**
+   * Get the number of arrivals that were not started because
+   * <code>workload_max_open_sessions</code> sessions were already running.
+   *
+   * @return number of dropped arrivals
+   */
+  public int getNbOfDroppedArrivals()
+  {
+    return nbOfDroppedArrivals;
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure the throughput of bids on a single hot item, with the read then
+ * update of the item that StoreBid used to do and with the single UPDATE
+ * StoreBid now does. Each thread has its own connection and stores bids
+ * like StoreBid, one transaction per bid, for the given time. The number of
+ * bids the item counted is compared with the number of bids committed to
+ * report lost updates. It must be run this way :
+ * <pre>
+ * java edu.rice.rubis.client.BidBenchmark mysql.properties itemId userId [threads [seconds]]
+ * </pre>
+ * The bids are deleted and the item restored after each run, so both runs
+ * start from the same item.
+ *
+ * @version 1.0
+ */
+public class BidBenchmark
+{
+  private static Properties dbProperties = new Properties();
+  private static int itemId;
+  private static int userId;
+  private static int initialNbOfBids;
+  private static float initialMaxBid;
+  private static int lastBid;
+
+  private static Connection connect() throws SQLException
+  {
+    Connection conn = DriverManager.getConnection(
+      dbProperties.getProperty("datasource.url"),
+      dbProperties.getProperty("datasource.username"),
+      dbProperties.getProperty("datasource.password"));
+    conn.setAutoCommit(false);
+    return conn;
+  }
+
+  /**
+   * Count a bid in the item as StoreBid used to: read the item, then
+   * write back the incremented count.
+   */
+  private static void readThenUpdate(Connection conn, float bid, float maxBid)
+    throws SQLException
+  {
+    PreparedStatement stmt =
+      conn.prepareStatement("SELECT nb_of_bids, max_bid FROM items WHERE id=?");
+    stmt.setInt(1, itemId);
+    ResultSet rs = stmt.executeQuery();
+    rs.next();
+    int nbOfBids = rs.getInt("nb_of_bids") + 1;
+    float oldMaxBid = rs.getFloat("max_bid");
+    stmt.close();
+    PreparedStatement update =
+      conn.prepareStatement("UPDATE items SET max_bid=?, nb_of_bids=? WHERE id=?");
+    update.setFloat(1, (bid > oldMaxBid) ? maxBid : oldMaxBid);
+    update.setInt(2, nbOfBids);
+    update.setInt(3, itemId);
+    update.executeUpdate();
+    update.close();
+  }
+
+  /**
+   * Count a bid in the item with a single UPDATE, the statement of
+   * <code>StoreBid.countBid</code>.
+   */
+  private static void singleUpdate(Connection conn, float bid, float maxBid)
+    throws SQLException
+  {
+    PreparedStatement update =
+      conn.prepareStatement(
+        "UPDATE items SET nb_of_bids=nb_of_bids+1, max_bid=CASE WHEN ?>max_bid THEN ? ELSE max_bid END WHERE id=?");
+    update.setFloat(1, bid);
+    update.setFloat(2, maxBid);
+    update.setInt(3, itemId);
+    update.executeUpdate();
+    update.close();
+  }
+
+  /**
+   * Store bids from several threads for some time.
+   *
+   * @param atomic true to count the bids with a single UPDATE
+   * @param nbOfThreads number of bidding threads
+   * @param seconds duration of the run
+   * @exception Exception if the item cannot be read
+   */
+  private static void run(final boolean atomic, int nbOfThreads, int seconds)
+    throws Exception
+  {
+    final AtomicLong committed = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final long end = System.currentTimeMillis() + seconds * 1000L;
+    int before = nbOfBids();
+
+    Thread[] threads = new Thread[nbOfThreads];
+    for (int i = 0; i < nbOfThreads; i++)
+    {
+      threads[i] = new Thread()
+        {
+          public void run()
+          {
+            Connection conn = null;
+            try
+            {
+              conn = connect();
+              PreparedStatement insert =
+                conn.prepareStatement(
+                  "INSERT INTO bids VALUES (NULL, ?, ?, 1, ?, ?, ?)");
+              float bid = 1;
+              while (System.currentTimeMillis() < end)
+              {
+                bid += 1;
+                try
+                {
+                  insert.setInt(1, userId);
+                  insert.setInt(2, itemId);
+                  insert.setFloat(3, bid);
+                  insert.setFloat(4, bid);
+                  insert.setString(5, TimeManagement.currentDateToString());
+                  insert.executeUpdate();
+                  if (atomic)
+                    singleUpdate(conn, bid, bid);
+                  else
+                    readThenUpdate(conn, bid, bid);
+                  conn.commit();
+                  committed.incrementAndGet();
+                }
+                catch (SQLException e)
+                { // Deadlock or lock wait timeout
+                  conn.rollback();
+                  failed.incrementAndGet();
+                }
+              }
+              insert.close();
+            }
+            catch (SQLException e)
+            {
+              System.err.println("BidBenchmark: " + e);
+            }
+            finally
+            {
+              try
+              {
+                if (conn != null)
+                  conn.close();
+              }
+              catch (SQLException ignore)
+              {
+              }
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (int i = 0; i < nbOfThreads; i++)
+      threads[i].join();
+
+    long bids = committed.get();
+    long counted = nbOfBids() - before;
+    System.out.println((atomic ? "single update   " : "read then update")
+        + ": " + nbOfThreads + " threads, " + bids + " bids in " + seconds
+        + " s (" + String.format("%.1f", (double) bids / seconds)
+        + " bids/s), " + failed.get() + " aborted, " + (bids - counted)
+        + " lost updates");
+  }
+
+  private static int nbOfBids() throws SQLException
+  {
+    Connection conn = connect();
+    try
+    {
+      PreparedStatement stmt =
+        conn.prepareStatement("SELECT nb_of_bids FROM items WHERE id=?");
+      stmt.setInt(1, itemId);
+      ResultSet rs = stmt.executeQuery();
+      if (!rs.next())
+        throw new SQLException("Item " + itemId + " does not exist");
+      return rs.getInt(1);
+    }
+    finally
+    {
+      conn.close();
+    }
+  }
+
+  /**
+   * Delete the bids stored by a run and restore the item as it was before
+   * the first run.
+   */
+  private static void restore() throws SQLException
+  {
+    Connection conn = connect();
+    try
+    {
+      PreparedStatement stmt =
+        conn.prepareStatement("DELETE FROM bids WHERE id>? AND item_id=?");
+      stmt.setInt(1, lastBid);
+      stmt.setInt(2, itemId);
+      stmt.executeUpdate();
+      stmt.close();
+      stmt =
+        conn.prepareStatement("UPDATE items SET nb_of_bids=?, max_bid=? WHERE id=?");
+      stmt.setInt(1, initialNbOfBids);
+      stmt.setFloat(2, initialMaxBid);
+      stmt.setInt(3, itemId);
+      stmt.executeUpdate();
+      stmt.close();
+      conn.commit();
+    }
+    finally
+    {
+      conn.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 3)
+    {
+      System.err.println("Usage: java edu.rice.rubis.client.BidBenchmark mysql.properties itemId userId [threads [seconds]]");
+      System.exit(1);
+    }
+    FileInputStream in = new FileInputStream(args[0]);
+    dbProperties.load(in);
+    in.close();
+    Class.forName(dbProperties.getProperty("datasource.classname"));
+    itemId = Integer.parseInt(args[1]);
+    userId = Integer.parseInt(args[2]);
+    int nbOfThreads = (args.length > 3) ? Integer.parseInt(args[3]) : 16;
+    int seconds = (args.length > 4) ? Integer.parseInt(args[4]) : 30;
+
+    // Remember the item and the last bid, to clean up
+    Connection conn = connect();
+    PreparedStatement stmt =
+      conn.prepareStatement("SELECT nb_of_bids, max_bid FROM items WHERE id=?");
+    stmt.setInt(1, itemId);
+    ResultSet rs = stmt.executeQuery();
+    if (!rs.next())
+    {
+      System.err.println("Item " + itemId + " does not exist");
+      System.exit(1);
+    }
+    initialNbOfBids = rs.getInt(1);
+    initialMaxBid = rs.getFloat(2);
+    stmt.close();
+    stmt = conn.prepareStatement("SELECT MAX(id) FROM bids");
+    rs = stmt.executeQuery();
+    lastBid = rs.next() ? rs.getInt(1) : 0;
+    stmt.close();
+    conn.commit();
+    conn.close();
+
+    try
+    {
+      run(false, nbOfThreads, seconds);
+    }
+    finally
+    {
+      restore();
+    }
+    try
+    {
+      run(true, nbOfThreads, seconds);
+    }
+    finally
+    {
+      restore();
+    }
+  }
+}
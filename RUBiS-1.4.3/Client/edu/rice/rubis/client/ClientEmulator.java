@@ -36,6 +36,7 @@ import java.net.URL;
 
 import edu.rice.rubis.client.TimeManagement;
 import edu.rice.rubis.client.RUBiSProperties;
+import edu.rice.rubis.client.SessionExecutor;
 import edu.rice.rubis.client.Stats;
 import edu.rice.rubis.client.TransitionTable;
 import edu.rice.rubis.client.URLGenerator;
@@ -510,12 +511,19 @@ public class ClientEmulator
     ClientEmulator client = new ClientEmulator(propertiesFileName);
     // Get also rubis.properties info
 
-    Stats stats = new Stats(client.rubis.getNbOfRows());
+    // Only stats is recorded by the session threads, the others get merges.
+    // Open-loop and replayed sessions are not bounded by the number of
+    // clients, their stripes only by the number of processors.
+    boolean unbounded = (rubis.getTraceReplayFile() != null)
+        || rubis.isOpenLoop();
+    Stats stats = new Stats(rubis.getNbOfRows(),
+        unbounded ? Integer.MAX_VALUE : rubis.getNbOfClients());
     Stats upRampStats = new Stats(client.rubis.getNbOfRows());
     Stats runSessionStats = new Stats(client.rubis.getNbOfRows());
     Stats downRampStats = new Stats(client.rubis.getNbOfRows());
     Stats allStats = new Stats(client.rubis.getNbOfRows());
-    UserSession[] sessions = new UserSession[client.rubis.getNbOfClients()];
+    SessionExecutor executor =
+      new SessionExecutor(rubis.getSessionExecutor());
     boolean cjdbcFlag = client.rubis.getCJDBCServerName() != null
         && !client.rubis.getCJDBCServerName().equals("");
     System.out.println("<p><hr><p>");
@@ -701,18 +709,42 @@ public class ClientEmulator
     client.setSlowDownFactor(client.rubis.getUpRampSlowdown());
     
     // Run user sessions
-    System.out.println("ClientEmulator: Starting " +
-                       client.rubis.getNbOfClients() + " session threads<br>");
-    for (int i = 0; i < client.rubis.getNbOfClients(); i++)
+    ArrivalGenerator arrivals = null;
+    TraceReplayer replayer = null;
+    TraceRecorder recorder = rubis.getTraceRecorder();
+    if (rubis.getTraceReplayFile() != null)
     {
-      sessions[i] =
-        new UserSession("UserSession" + i, client.urlGen, client.rubis, stats);
-      sessions[i].start();
-      // Delay 5 milliseconds to lessen the load on the system.
-      try {
-        Thread.sleep(5);
-      } catch (InterruptedException e) {
-        // Ignore
+      System.out.println("ClientEmulator: Replaying " +
+                         rubis.getTraceReplayFile() + " (" +
+                         executor.getKind() + ")<br>");
+      replayer =
+        new TraceReplayer(rubis, client.urlGen, stats, executor);
+      new Thread(replayer, "TraceReplayer").start();
+    }
+    else if (rubis.isOpenLoop())
+    {
+      System.out.println("ClientEmulator: Starting open-loop arrivals at " +
+                         rubis.getArrivalRate() + " sessions/s (" +
+                         executor.getKind() + ")<br>");
+      arrivals =
+        new ArrivalGenerator(rubis, client.urlGen, stats, executor);
+      new Thread(arrivals, "ArrivalGenerator").start();
+    }
+    else
+    {
+      System.out.println("ClientEmulator: Starting " +
+                         rubis.getNbOfClients() + " session threads (" +
+                         executor.getKind() + ")<br>");
+      for (int i = 0; i < rubis.getNbOfClients(); i++)
+      {
+        executor.start("UserSession" + i,
+          new UserSession("UserSession" + i, client.urlGen, rubis, stats));
+        // Delay 5 milliseconds to lessen the load on the system.
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException e) {
+          // Ignore
+        }
       }
     }
 
@@ -723,9 +755,7 @@ public class ClientEmulator
     upRampDate = new GregorianCalendar();
     waitForTimeOrXactions(client.rubis.getUpRampTime(),
                           client.rubis.upXactions);
-    upRampStats.merge(stats);
-    stats.reset();
-    // Note that as this is not atomic we may lose some stats here ...
+    upRampStats.mergeAndReset(stats);
 
     // Start runtime session
     System.out.println("<br><A NAME=\"run\"></A>");
@@ -735,9 +765,7 @@ public class ClientEmulator
     runSessionDate = new GregorianCalendar();
     waitForTimeOrXactions(client.rubis.getSessionTime(),
                           client.rubis.sessionXactions);
-    runSessionStats.merge(stats);
-    stats.reset();
-    // Note that as this is not atomic we may lose some stats here ...
+    runSessionStats.mergeAndReset(stats);
 
     // Start down-ramp
     System.out.println("<br><A NAME=\"down\"></A>");
@@ -753,19 +781,23 @@ public class ClientEmulator
     // Wait for completion
     client.setEndOfSimulation();
     System.out.println("ClientEmulator: Shutting down threads ...<br>");
-    for (int i = 0; i < client.rubis.getNbOfClients(); i++)
+    try
     {
-      try
-      {
-        sessions[i].join(2000);
-      }
-      catch (java.lang.InterruptedException ie)
-      {
-        System.err.println(
-          "ClientEmulator: Thread " + i + " has been interrupted.");
-      }
+      executor.join(2000);
+    }
+    catch (java.lang.InterruptedException ie)
+    {
+      System.err.println("ClientEmulator has been interrupted.");
     }
     System.out.println("Done\n");
+    if (arrivals != null)
+      System.out.println("<br>Open-loop arrivals: " + arrivals.getNbOfArrivals()
+        + ", dropped: " + arrivals.getNbOfDroppedArrivals() + "<br>");
+    if (replayer != null)
+      System.out.println("<br>Replayed sessions: " + replayer.getNbOfSessions()
+        + ", requests: " + replayer.getNbOfRequests() + "<br>");
+    if (recorder != null)
+      recorder.close();
     endDate = new GregorianCalendar();
     allStats.merge(stats);
     allStats.merge(runSessionStats);
@@ -0,0 +1,286 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages the HTTP connections of the emulated clients to the web servers.
+ * <p>
+ * Connections are persistent: replies are always read to the end and the
+ * streams closed without disconnecting, so that the JVM keeps the socket in
+ * its per web server keep-alive pool and reuses it for the next request to
+ * the same server. The size of this pool is set from
+ * <code>workload_max_connections_per_server</code> (the
+ * <code>http.maxConnections</code> system property) unless it was given on
+ * the command line.
+ * <p>
+ * Connect and read timeouts are configurable. When a request cannot be sent
+ * to a web server, it is retried after a backoff that doubles with each
+ * consecutive failure of that server, up to a maximum.
+ * <p>
+ * The number of requests in flight to each web server is tracked so that
+ * requests can be balanced between the servers.
+ *
+ * @version 1.0
+ */
+public class ConnectionManager
+{
+  private static final int MAX_RETRIES = 5;
+
+  private int  connectTimeout;
+  private int  readTimeout;
+  private long minBackoff;
+  private long maxBackoff;
+  private int  debugLevel;
+  private ConcurrentHashMap<String, Server> servers =
+    new ConcurrentHashMap<String, Server>();
+  private Server[] webServers; // same order as the web sites vector
+
+  /**
+   * State of one web server.
+   */
+  private static class Server
+  {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger failures = new AtomicInteger(); // consecutive failures
+  }
+
+  /**
+   * Creates a new <code>ConnectionManager</code> instance.
+   *
+   * @param webSites web servers that will be accessed
+   * @param connectTimeoutMs connect timeout in ms, 0 for none
+   * @param readTimeoutMs read timeout in ms, 0 for none
+   * @param maxConnectionsPerServer number of idle connections kept per web
+   *          server
+   * @param minBackoffMs delay before retrying a request to a failed server
+   * @param maxBackoffMs maximum delay before retrying a request
+   * @param debug debug level as in rubis.properties
+   */
+  public ConnectionManager(Vector<URL> webSites, int connectTimeoutMs,
+      int readTimeoutMs, int maxConnectionsPerServer, long minBackoffMs,
+      long maxBackoffMs, int debug)
+  {
+    connectTimeout = connectTimeoutMs;
+    readTimeout = readTimeoutMs;
+    minBackoff = minBackoffMs;
+    maxBackoff = Math.max(minBackoffMs, maxBackoffMs);
+    debugLevel = debug;
+    webServers = new Server[webSites.size()];
+    for (int i = 0; i < webSites.size(); i++)
+    {
+      String key = serverKey(webSites.get(i));
+      servers.putIfAbsent(key, new Server());
+      webServers[i] = servers.get(key);
+    }
+
+    // Must be set before the first HTTP connection is opened
+    if (System.getProperty("http.keepAlive") == null)
+      System.setProperty("http.keepAlive", "true");
+    if (System.getProperty("http.maxConnections") == null)
+      System.setProperty("http.maxConnections", Integer
+          .toString(Math.max(1, maxConnectionsPerServer)));
+  }
+
+  /**
+   * Get the key identifying the web server of an URL.
+   *
+   * @param url any URL on the web server
+   * @return host:port of the server
+   */
+  private static String serverKey(URL url)
+  {
+    int port = url.getPort();
+    if (port == -1)
+      port = url.getDefaultPort();
+    return url.getHost() + ":" + port;
+  }
+
+  /**
+   * Get the state of the web server of an URL.
+   *
+   * @param url any URL on the web server
+   * @return web server state
+   */
+  private Server getServer(URL url)
+  {
+    String key = serverKey(url);
+    Server s = servers.get(key);
+    if (s == null)
+    {
+      servers.putIfAbsent(key, new Server());
+      s = servers.get(key);
+    }
+    return s;
+  }
+
+  /**
+   * Get the number of requests currently sent to a web server and not yet
+   * completely answered.
+   *
+   * @param url any URL on the web server
+   * @return number of requests in flight
+   */
+  public int getInFlight(URL url)
+  {
+    return getServer(url).inFlight.get();
+  }
+
+  /**
+   * Get the number of requests currently sent to a web server and not yet
+   * completely answered.
+   *
+   * @param index index of the web server in the web sites given at creation
+   *          time
+   * @return number of requests in flight
+   */
+  public int getInFlight(int index)
+  {
+    return webServers[index].inFlight.get();
+  }
+
+  /**
+   * Call the HTTP server according to the given URL and scan the reply.
+   * Requests are retried up to 5 times when the connection to the server
+   * cannot be opened, or when the server answers 503 Service Unavailable
+   * without running them. Once a request is sent it is not retried, even
+   * if its reply cannot be read, since the server may have processed it
+   * already (a kept-alive connection found closed before the request is
+   * written is reopened by <code>HttpURLConnection</code> itself).
+   *
+   * @param url URL to access, null if no page applies
+   * @param reply scanner receiving the reply
+   * @param caller name of the caller for error messages
+   * @return true if a reply was received
+   */
+  public boolean get(URL url, HTMLScanner reply, String caller)
+  {
+    reply.reset();
+    if (url == null)
+    {
+      if (debugLevel > 0)
+        System.err.println("Thread " + caller + ": No URL to access<br>");
+      return false;
+    }
+    Server server = getServer(url);
+    for (int retry = 0; retry < MAX_RETRIES; retry++)
+    {
+      HttpURLConnection conn = null;
+      InputStream in = null;
+      boolean sent = false;
+      server.inFlight.incrementAndGet();
+      try
+      {
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setUseCaches(false);
+        conn.connect();
+        sent = true;
+        int status = conn.getResponseCode();
+        if (status >= 400)
+        {
+          discard(conn.getErrorStream());
+          // 503 is returned by a servlet container refusing the request
+          sent = (status != HttpURLConnection.HTTP_UNAVAILABLE);
+          throw new IOException("HTTP status " + status);
+        }
+        in = conn.getInputStream();
+        reply.scan(in); // reading the reply to the end keeps the connection
+        in.close();
+        server.failures.set(0);
+        return true;
+      }
+      catch (IOException ioe)
+      {
+        if (conn != null)
+          conn.disconnect();
+        reply.reset();
+        if (sent)
+        {
+          if (debugLevel > 0)
+            System.err.println("Thread " + caller + ": Unable to read from URL "
+                + url + " (" + ioe.getMessage() + ")<br>");
+          return false;
+        }
+        if (debugLevel > 0)
+          System.err.println("Thread " + caller + ": Unable to open URL "
+              + url + " (" + ioe.getMessage() + ")<br>");
+      }
+      finally
+      {
+        server.inFlight.decrementAndGet();
+      }
+
+      // Back off before retrying
+      int failures = server.failures.incrementAndGet();
+      long backoff = minBackoff << Math.min(failures - 1, 20);
+      if ((backoff > maxBackoff) || ((minBackoff > 0) && (backoff <= 0)))
+        backoff = maxBackoff; // Capped, or the shift overflowed
+      if (backoff <= 0)
+        continue; // No backoff configured
+      try
+      {
+        Thread.sleep(backoff);
+      }
+      catch (InterruptedException i)
+      {
+        if (debugLevel > 0)
+          System.err.println("Thread " + caller
+              + ": Interrupted in callHTTPServer()<br>");
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Read a stream to the end and close it, so that the underlying connection
+   * can be reused.
+   *
+   * @param in stream to discard, may be null
+   */
+  private static void discard(InputStream in)
+  {
+    if (in == null)
+      return;
+    byte[] buffer = new byte[512];
+    try
+    {
+      while (in.read(buffer) != -1)
+        ;
+      in.close();
+    }
+    catch (IOException ignore)
+    {
+    }
+  }
+}
@@ -0,0 +1,905 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Loads the RUBiS database directly through JDBC instead of sending one HTTP
+ * request per user, item, bid and comment. Users and items are generated with
+ * the same distributions as the HTTP path of <code>InitDB</code>, split in
+ * partitions that are loaded in parallel, each on its own connection.
+ * <p>
+ * The side effects of the servlets are reproduced: the number of bids and
+ * the maximum bid of each item, and the rating of the users who received
+ * comments. Users and items get explicit ids, so the tables must be empty.
+ * <p>
+ * With PostgreSQL, rows are streamed with <code>COPY</code> when the JDBC
+ * driver offers it (looked up by reflection, the driver is not needed to
+ * build the client), the secondary indexes of the loaded tables are dropped
+ * before loading and rebuilt in parallel afterwards, the tables are
+ * analyzed and their sequences are moved past the loaded ids. With other
+ * databases, rows are inserted with JDBC batches.
+ *
+ * @version 1.0
+ */
+public class DBLoader
+{
+  private static final int    COPY_BUFFER_SIZE = 4 * 1024 * 1024;
+  private static final String STATIC_DESCRIPTION = "This incredible item is exactly what you need !<br>It has a lot of very nice features including "+
+      "a coffee option.<p>It comes with a free license for the free RUBiS software, that's really cool. But RUBiS even if it "+
+      "is free, is <B>(C) Rice University/INRIA 2001</B>. It is really hard to write an interesting generic description for "+
+      "automatically generated items, but who will really read this ?<p>You can also check some cool software available on "+
+      "http://sci-serv.inrialpes.fr. There is a very cool DSM system called SciFS for SCI clusters, but you will need some "+
+      "SCI adapters to be able to run it ! Else you can still try CART, the amazing 'Cluster Administration and Reservation "+
+      "Tool'. All those software are open source, so don't hesitate ! If you have a SCI Cluster you can also try the Whoops! "+
+      "clustered web server. Actually Whoops! stands for something ! Yes, it is a Web cache with tcp Handoff, On the fly "+
+      "cOmpression, parallel Pull-based lru for Sci clusters !! Ok, that was a lot of fun but now it is starting to be quite late "+
+      "and I'll have to go to bed very soon, so I think if you need more information, just go on <h1>http://sci-serv.inrialpes.fr</h1> "+
+      "or you can even try http://www.cs.rice.edu and try to find where Emmanuel Cecchet or Julie Marguerite are and you will "+
+      "maybe get fresh news about all that !!<p>";
+  private static final String[] STATIC_COMMENT = { "This is a very bad comment. Stay away from this seller !!<p>",
+      "This is a comment below average. I don't recommend this user !!<p>",
+      "This is a neutral comment. It is neither a good or a bad seller !!<p>",
+      "This is a comment above average. You can trust this seller even if it is not the best deal !!<p>",
+      "This is an excellent comment. You can make really great deals with this seller !!<p>" };
+  private static final int[]  RATING_VALUE = { -5, -3, 0, 3, 5 };
+
+  private static final String USERS_COLUMNS =
+    "users (id, firstname, lastname, nickname, password, email, rating, balance, creation_date, region)";
+  private static final String ITEMS_COLUMNS =
+    "items (id, name, description, initial_price, quantity, reserve_price, buy_now, nb_of_bids, max_bid, start_date, end_date, seller, category)";
+  private static final String BIDS_COLUMNS =
+    "bids (user_id, item_id, qty, bid, max_bid, date)";
+  private static final String COMMENTS_COLUMNS =
+    "comments (from_user_id, to_user_id, item_id, rating, date, comment)";
+
+  private RUBiSProperties    rubis;
+  private boolean            postgres;
+  private int                nbOfThreads;
+  private int                batchSize;
+  private long               seed = System.currentTimeMillis();
+  private int[]              regionIds;
+  private AtomicIntegerArray ratings; // rating of each user, from the comments
+  private volatile boolean   failed = false;
+
+  /**
+   * Destination of the rows of one table.
+   */
+  private interface RowWriter
+  {
+    void add(Object[] row) throws SQLException;
+
+    void close() throws SQLException;
+  }
+
+  /**
+   * Inserts rows with JDBC batches, committing after each batch.
+   */
+  private class BatchWriter implements RowWriter
+  {
+    private Connection        conn;
+    private PreparedStatement stmt;
+    private int               count = 0;
+
+    BatchWriter(Connection connection, String columns, int nbOfColumns)
+      throws SQLException
+    {
+      conn = connection;
+      StringBuffer sql = new StringBuffer("INSERT INTO ").append(columns).append(" VALUES (?");
+      for (int i = 1; i < nbOfColumns; i++)
+        sql.append(",?");
+      stmt = conn.prepareStatement(sql.append(")").toString());
+    }
+
+    public void add(Object[] row) throws SQLException
+    {
+      for (int i = 0; i < row.length; i++)
+        stmt.setObject(i + 1, row[i]);
+      stmt.addBatch();
+      if (++count >= batchSize)
+        flush();
+    }
+
+    private void flush() throws SQLException
+    {
+      if (count == 0)
+        return;
+      stmt.executeBatch();
+      conn.commit();
+      count = 0;
+    }
+
+    public void close() throws SQLException
+    {
+      flush();
+      stmt.close();
+    }
+  }
+
+  /**
+   * Streams rows in the text format of the PostgreSQL <code>COPY</code>
+   * command, committing after each buffer.
+   */
+  private class CopyWriter implements RowWriter
+  {
+    private Connection       conn;
+    private Object           copyManager;
+    private Method           copyIn;
+    private String           sql;
+    private StringBuilder    buffer = new StringBuilder(COPY_BUFFER_SIZE);
+    private int              count = 0;
+    private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    CopyWriter(Connection connection, Object manager, String columns)
+      throws SQLException
+    {
+      conn = connection;
+      copyManager = manager;
+      sql = "COPY " + columns + " FROM STDIN";
+      try
+      {
+        copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+      }
+      catch (NoSuchMethodException e)
+      {
+        throw new SQLException("COPY is not supported by this driver");
+      }
+    }
+
+    public void add(Object[] row) throws SQLException
+    {
+      for (int i = 0; i < row.length; i++)
+      {
+        if (i > 0)
+          buffer.append('\t');
+        Object value = row[i];
+        if (value == null)
+          buffer.append("\\N");
+        else if (value instanceof Timestamp)
+          buffer.append(dateFormat.format((Timestamp) value));
+        else if (value instanceof String)
+          escape((String) value);
+        else
+          buffer.append(value);
+      }
+      buffer.append('\n');
+      if ((++count >= batchSize) || (buffer.length() >= COPY_BUFFER_SIZE))
+        flush();
+    }
+
+    private void escape(String s)
+    {
+      for (int i = 0; i < s.length(); i++)
+      {
+        char c = s.charAt(i);
+        switch (c)
+        {
+          case '\\' : buffer.append("\\\\"); break;
+          case '\t' : buffer.append("\\t"); break;
+          case '\n' : buffer.append("\\n"); break;
+          case '\r' : buffer.append("\\r"); break;
+          default : buffer.append(c);
+        }
+      }
+    }
+
+    private void flush() throws SQLException
+    {
+      if (count == 0)
+        return;
+      try
+      {
+        copyIn.invoke(copyManager, sql, new StringReader(buffer.toString()));
+      }
+      catch (java.lang.reflect.InvocationTargetException e)
+      {
+        Throwable cause = e.getCause();
+        if (cause instanceof SQLException)
+          throw (SQLException) cause;
+        throw new SQLException("COPY failed: " + cause);
+      }
+      catch (IllegalAccessException e)
+      {
+        throw new SQLException("COPY failed: " + e);
+      }
+      conn.commit();
+      buffer.setLength(0);
+      count = 0;
+    }
+
+    public void close() throws SQLException
+    {
+      flush();
+    }
+  }
+
+
+  /**
+   * Creates a new <code>DBLoader</code> instance.
+   *
+   * @param RUBiS rubis.properties, already checked
+   */
+  public DBLoader(RUBiSProperties RUBiS)
+  {
+    rubis = RUBiS;
+    nbOfThreads = rubis.getLoaderThreads();
+    batchSize = rubis.getLoaderBatchSize();
+    postgres = rubis.getLoaderURL().startsWith("jdbc:postgresql:");
+  }
+
+  /**
+   * Open a new connection to the database, with auto-commit disabled.
+   *
+   * @return the connection
+   * @exception SQLException if the connection fails
+   */
+  private Connection getConnection() throws SQLException
+  {
+    Connection conn;
+    if (rubis.getLoaderUser() == null)
+      conn = DriverManager.getConnection(rubis.getLoaderURL());
+    else
+      conn = DriverManager.getConnection(rubis.getLoaderURL(),
+          rubis.getLoaderUser(), rubis.getLoaderPassword());
+    conn.setAutoCommit(false);
+    return conn;
+  }
+
+  /**
+   * Get the PostgreSQL <code>CopyManager</code> of a connection.
+   *
+   * @param conn connection to the database
+   * @return the copy manager or null if COPY is not available
+   */
+  private Object getCopyManager(Connection conn)
+  {
+    if (!postgres)
+      return null;
+    try
+    {
+      Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+      Object pg = conn.unwrap(pgConnection);
+      return pgConnection.getMethod("getCopyAPI").invoke(pg);
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Get a writer for a table, using COPY when possible.
+   *
+   * @param conn connection of the calling partition
+   * @param columns table and column list
+   * @param nbOfColumns number of columns
+   * @return the writer
+   * @exception SQLException if an error occurs
+   */
+  private RowWriter getWriter(Connection conn, String columns, int nbOfColumns)
+    throws SQLException
+  {
+    Object copyManager = getCopyManager(conn);
+    if (copyManager != null)
+      return new CopyWriter(conn, copyManager, columns);
+    return new BatchWriter(conn, columns, nbOfColumns);
+  }
+
+  /**
+   * Load the requested tables.
+   *
+   * @param generateUsers true to generate the users
+   * @param generateItems true to generate the items
+   * @param generateBids true to generate bids with the items
+   * @param generateComments true to generate comments with the items
+   * @return true on success
+   */
+  public boolean load(boolean generateUsers, boolean generateItems,
+      boolean generateBids, boolean generateComments)
+  {
+    long start = System.currentTimeMillis();
+    Vector<String> tables = new Vector<String>();
+    if (generateUsers)
+      tables.add("users");
+    if (generateItems)
+      tables.add("items");
+    if (generateBids)
+      tables.add("bids");
+    if (generateComments)
+      tables.add("comments");
+
+    try
+    {
+      if (rubis.getLoaderDriver() != null)
+        Class.forName(rubis.getLoaderDriver());
+    }
+    catch (ClassNotFoundException e)
+    {
+      System.err.println("JDBC driver "+rubis.getLoaderDriver()+" not found in the classpath.");
+      return false;
+    }
+
+    Vector<String> indexes = null;
+    try
+    {
+      Connection conn = getConnection();
+      if (generateUsers)
+        readRegions(conn);
+      System.out.println("Loading with "+nbOfThreads+" threads using "
+          + ((getCopyManager(conn) != null) ? "COPY" : "JDBC batches"));
+      indexes = dropIndexes(conn, tables);
+      conn.close();
+    }
+    catch (SQLException e)
+    {
+      System.err.println("Unable to prepare the database for loading: "+e.getMessage());
+      return false;
+    }
+
+    // When users and comments are generated together, the items come first
+    // so that the users are inserted with their final rating
+    if (generateComments || generateUsers)
+      ratings = new AtomicIntegerArray(rubis.getNbOfUsers() + 1);
+    if (generateItems && !(generateUsers && generateComments))
+    {
+      if (generateUsers)
+        loadUsers();
+      loadItems(generateBids, generateComments);
+      if (generateComments)
+        updateRatings();
+    }
+    else
+    {
+      if (generateItems)
+        loadItems(generateBids, generateComments);
+      if (generateUsers)
+        loadUsers();
+    }
+
+    // The indexes are rebuilt even if the load failed
+    rebuildIndexes(indexes);
+    try
+    {
+      Connection conn = getConnection();
+      finish(conn, tables);
+      conn.close();
+    }
+    catch (SQLException e)
+    {
+      System.err.println("Unable to update the statistics: "+e.getMessage());
+      failed = true;
+    }
+    System.out.println((failed ? "Failed" : "Done")+" in "
+        + (System.currentTimeMillis() - start) / 1000 + " s");
+    return !failed;
+  }
+
+  /**
+   * Map the regions of the regions file to their id in the database.
+   *
+   * @param conn connection to the database
+   * @exception SQLException if a region does not exist in the database
+   */
+  private void readRegions(Connection conn) throws SQLException
+  {
+    HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    Statement stmt = conn.createStatement();
+    ResultSet rs = stmt.executeQuery("SELECT id, name FROM regions");
+    while (rs.next())
+      ids.put(rs.getString("name"), rs.getInt("id"));
+    rs.close();
+    stmt.close();
+    conn.commit();
+    Vector<?> regions = rubis.getRegions();
+    regionIds = new int[regions.size()];
+    for (int i = 0; i < regionIds.length; i++)
+    {
+      Integer id = ids.get(regions.elementAt(i));
+      if (id == null)
+        throw new SQLException("Region "+regions.elementAt(i)+" does not exist");
+      regionIds[i] = id.intValue();
+    }
+  }
+
+  /**
+   * Drop the secondary indexes of the loaded tables. Only supported with
+   * PostgreSQL, other databases keep their indexes.
+   *
+   * @param conn connection to the database
+   * @param tables loaded tables
+   * @return the definitions of the dropped indexes
+   * @exception SQLException if an error occurs
+   */
+  private Vector<String> dropIndexes(Connection conn, Vector<String> tables)
+    throws SQLException
+  {
+    Vector<String> definitions = new Vector<String>();
+    if (!postgres)
+      return definitions;
+    Vector<String> names = new Vector<String>();
+    PreparedStatement stmt = conn.prepareStatement(
+        "SELECT indexname, indexdef FROM pg_indexes WHERE tablename=? AND indexdef NOT LIKE 'CREATE UNIQUE%'");
+    for (String table : tables)
+    {
+      stmt.setString(1, table);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next())
+      {
+        names.add(rs.getString("indexname"));
+        definitions.add(rs.getString("indexdef"));
+      }
+      rs.close();
+    }
+    stmt.close();
+    Statement drop = conn.createStatement();
+    for (String name : names)
+      drop.executeUpdate("DROP INDEX " + name);
+    drop.close();
+    conn.commit();
+    if (names.size() > 0)
+      System.out.println("Dropped indexes "+names+" until the end of the load");
+    return definitions;
+  }
+
+  /**
+   * Create the dropped indexes again, in parallel. Every index is tried,
+   * whether the load failed or not; the indexes that could not be created
+   * are printed so that they can be created by hand.
+   *
+   * @param definitions index definitions
+   */
+  private void rebuildIndexes(final Vector<String> definitions)
+  {
+    if (definitions.isEmpty())
+      return;
+    final boolean[] rebuilt = new boolean[definitions.size()];
+    System.out.print("Rebuilding "+definitions.size()+" indexes ");
+    boolean ok = runPartitions(definitions.size(), new Partition()
+      {
+        public void load(Connection conn, int index, Random rand)
+          throws SQLException
+        {
+          Statement stmt = conn.createStatement();
+          stmt.executeUpdate(definitions.elementAt(index));
+          stmt.close();
+          conn.commit();
+          rebuilt[index] = true;
+          System.out.print(".");
+        }
+      }, true);
+    for (int i = 0; i < rebuilt.length; i++)
+      ok &= rebuilt[i];
+    if (ok)
+    {
+      System.out.println(" Done!");
+      return;
+    }
+    failed = true;
+    System.out.println(" Failed!");
+    for (int i = 0; i < rebuilt.length; i++)
+      if (!rebuilt[i])
+        System.err.println("Index not rebuilt: "+definitions.elementAt(i));
+  }
+
+  /**
+   * Update the statistics and sequences of the loaded tables.
+   *
+   * @param conn connection to the database
+   * @param tables loaded tables
+   * @exception SQLException if an error occurs
+   */
+  private void finish(Connection conn, Vector<String> tables)
+    throws SQLException
+  {
+    if (!postgres)
+      return;
+    conn.setAutoCommit(true);
+    Statement stmt = conn.createStatement();
+    for (String table : tables)
+    {
+      stmt.execute("SELECT setval(pg_get_serial_sequence('"+table+"', 'id'), "
+          + "(SELECT COALESCE(MAX(id), 0) + 1 FROM "+table+"), false)");
+      stmt.execute("ANALYZE "+table);
+    }
+    stmt.close();
+  }
+
+  /**
+   * Work done by one partition.
+   */
+  private interface Partition
+  {
+    void load(Connection conn, int index, Random rand) throws SQLException;
+  }
+
+  /**
+   * Run partitions in parallel, at most one per loader thread at a time.
+   * The load stops at the first failure.
+   *
+   * @param nbOfPartitions number of partitions
+   * @param partition work of each partition
+   */
+  private void runPartitions(int nbOfPartitions, Partition partition)
+  {
+    runPartitions(nbOfPartitions, partition, false);
+  }
+
+  /**
+   * Run partitions in parallel, at most one per loader thread at a time.
+   *
+   * @param nbOfPartitions number of partitions
+   * @param partition work of each partition
+   * @param independent true to run every partition even if the load or
+   *          another partition failed, without failing the load
+   * @return true if every partition succeeded
+   */
+  private boolean runPartitions(final int nbOfPartitions,
+      final Partition partition, final boolean independent)
+  {
+    final java.util.concurrent.atomic.AtomicInteger next =
+      new java.util.concurrent.atomic.AtomicInteger();
+    final java.util.concurrent.atomic.AtomicBoolean ok =
+      new java.util.concurrent.atomic.AtomicBoolean(true);
+    Thread[] threads = new Thread[Math.min(nbOfThreads, nbOfPartitions)];
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t] = new Thread("DBLoader" + t)
+        {
+          public void run()
+          {
+            Connection conn = null;
+            int index = -1;
+            try
+            {
+              conn = getConnection();
+              while ((independent || !failed)
+                  && ((index = next.getAndIncrement()) < nbOfPartitions))
+              {
+                try
+                {
+                  partition.load(conn, index, new Random(seed + index));
+                }
+                catch (SQLException e)
+                {
+                  if (!independent)
+                    throw e;
+                  ok.set(false);
+                  report(index, e);
+                  conn.rollback();
+                }
+              }
+            }
+            catch (SQLException e)
+            {
+              ok.set(false);
+              if (!independent)
+                failed = true;
+              report(index, e);
+            }
+            finally
+            {
+              try
+              {
+                if (conn != null)
+                  conn.close();
+              }
+              catch (SQLException ignore)
+              {
+              }
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++)
+    {
+      try
+      {
+        threads[t].join();
+      }
+      catch (InterruptedException e)
+      {
+        ok.set(false);
+        if (!independent)
+          failed = true;
+      }
+    }
+    return ok.get();
+  }
+
+  /**
+   * Print the failure of a partition.
+   *
+   * @param index partition index
+   * @param e the error
+   */
+  private static void report(int index, SQLException e)
+  {
+    System.err.println("Partition "+index+" failed: "+e.getMessage());
+    for (SQLException n = e.getNextException(); n != null; n = n.getNextException())
+      System.err.println(n.getMessage());
+  }
+
+  /**
+   * Split a range of ids into one partition per batch, so that the load is
+   * balanced between the threads.
+   *
+   * @param total number of ids
+   * @return number of partitions
+   */
+  private int getNbOfPartitions(int total)
+  {
+    return Math.max(1, Math.min((total + batchSize - 1) / batchSize,
+        Integer.MAX_VALUE / 2));
+  }
+
+  /**
+   * Get the first id of a partition.
+   *
+   * @param total number of ids
+   * @param nbOfPartitions number of partitions
+   * @param index partition index, up to nbOfPartitions included
+   * @return first index of the partition
+   */
+  private static int partitionStart(int total, int nbOfPartitions, int index)
+  {
+    return (int) ((long) total * index / nbOfPartitions);
+  }
+
+  /**
+   * Load the users, with the same values as <code>InitDB.generateUsers</code>.
+   */
+  private void loadUsers()
+  {
+    final int  nbOfUsers = rubis.getNbOfUsers();
+    final int  partitions = getNbOfPartitions(nbOfUsers);
+    final Timestamp now = new Timestamp(System.currentTimeMillis());
+    System.out.print("Loading "+nbOfUsers+" users ");
+    runPartitions(partitions, new Partition()
+      {
+        public void load(Connection conn, int index, Random rand)
+          throws SQLException
+        {
+          RowWriter users = getWriter(conn, USERS_COLUMNS, 10);
+          int end = partitionStart(nbOfUsers, partitions, index + 1);
+          for (int i = partitionStart(nbOfUsers, partitions, index); i < end; i++)
+          {
+            String firstname = "Great"+(i+1);
+            String lastname = "User"+(i+1);
+            users.add(new Object[] {Integer.valueOf(i+1), firstname, lastname,
+                "user"+(i+1), "password"+(i+1), firstname+"."+lastname+"@rubis.com",
+                Integer.valueOf(ratings.get(i+1)), Float.valueOf(0f), now,
+                Integer.valueOf(regionIds[i % regionIds.length])});
+          }
+          users.close();
+          System.out.print(".");
+        }
+      });
+    System.out.println(" Done!");
+  }
+
+  /**
+   * Add the ratings given by the comments to users that were already in the
+   * database.
+   */
+  private void updateRatings()
+  {
+    final int nbOfUsers = rubis.getNbOfUsers();
+    final int partitions = getNbOfPartitions(nbOfUsers);
+    System.out.print("Updating user ratings ");
+    runPartitions(partitions, new Partition()
+      {
+        public void load(Connection conn, int index, Random rand)
+          throws SQLException
+        {
+          PreparedStatement stmt = conn.prepareStatement(
+              "UPDATE users SET rating=rating+? WHERE id=?");
+          int end = partitionStart(nbOfUsers, partitions, index + 1);
+          for (int i = partitionStart(nbOfUsers, partitions, index); i < end; i++)
+          {
+            int rating = ratings.get(i+1);
+            if (rating == 0)
+              continue;
+            stmt.setInt(1, rating);
+            stmt.setInt(2, i+1);
+            stmt.addBatch();
+          }
+          stmt.executeBatch();
+          stmt.close();
+          conn.commit();
+          System.out.print(".");
+        }
+      });
+    System.out.println(" Done!");
+  }
+
+  /**
+   * Build a text of the given length by repeating a static text.
+   *
+   * @param text static text
+   * @param length length of the result
+   * @return the text
+   */
+  private static String repeat(String text, int length)
+  {
+    StringBuilder s = new StringBuilder(length);
+    while (text.length() < length)
+    {
+      s.append(text);
+      length -= text.length();
+    }
+    return s.append(text, 0, length).toString();
+  }
+
+  /**
+   * Load the items with their bids and comments, with the same distributions
+   * as <code>InitDB.generateItems</code>.
+   *
+   * @param generateBids true to generate bids
+   * @param generateComments true to generate comments
+   */
+  private void loadItems(final boolean generateBids,
+      final boolean generateComments)
+  {
+    final int   oldItems = rubis.getNbOfOldItems();
+    final int   activeItems = rubis.getTotalActiveItems();
+    final int   totalItems = oldItems + activeItems;
+    final int   partitions = getNbOfPartitions(totalItems);
+    final int   getItemDescriptionLength = rubis.getItemDescriptionLength();
+    final float getPercentReservePrice = rubis.getPercentReservePrice();
+    final float getPercentBuyNow = rubis.getPercentBuyNow();
+    final float getPercentUniqueItems = rubis.getPercentUniqueItems();
+    final int   getMaxItemQty = rubis.getMaxItemQty();
+    final int   getCommentMaxLength = rubis.getCommentMaxLength();
+    final int   getNbOfUsers = rubis.getNbOfUsers();
+    final int   getMaxBidsPerItem = rubis.getMaxBidsPerItem();
+    final long  now = System.currentTimeMillis();
+
+    // Categories are assigned in sequence as in InitDB
+    final int[] categories = new int[totalItems];
+    int[]       itemsPerCategory = rubis.getItemsPerCategory().clone();
+    int         getNbOfCategories = rubis.getNbOfCategories();
+    for (int i = 0 ; i < totalItems ; i++)
+    {
+      int categoryId = i % getNbOfCategories;
+      while (itemsPerCategory[categoryId] == 0)
+        categoryId = (categoryId + 1) % getNbOfCategories;
+      if (i >= oldItems)
+        itemsPerCategory[categoryId]--;
+      categories[i] = categoryId;
+    }
+
+    System.out.print("Loading "+oldItems+" old items and "+activeItems+" active items");
+    if (generateBids)
+      System.out.print(" with up to "+getMaxBidsPerItem+" bids");
+    if (generateComments)
+      System.out.print(" and 1 comment");
+    System.out.print(" per item ");
+    runPartitions(partitions, new Partition()
+      {
+        public void load(Connection conn, int index, Random rand)
+          throws SQLException
+        {
+          RowWriter items = getWriter(conn, ITEMS_COLUMNS, 13);
+          RowWriter bids = generateBids ? getWriter(conn, BIDS_COLUMNS, 6) : null;
+          RowWriter comments = generateComments ? getWriter(conn, COMMENTS_COLUMNS, 6) : null;
+          Timestamp startDate = new Timestamp(now);
+          GregorianCalendar endDate = new GregorianCalendar();
+          int end = partitionStart(totalItems, partitions, index + 1);
+          for (int i = partitionStart(totalItems, partitions, index); i < end; i++)
+          {
+            float reservePrice;
+            float buyNow;
+            int   quantity;
+            int   itemsInPeriod = (i < oldItems) ? oldItems : activeItems;
+            String description = repeat(STATIC_DESCRIPTION,
+                rand.nextInt(getItemDescriptionLength)+1);
+            float initialPrice = rand.nextInt(5000)+1;
+            int   duration = rand.nextInt(7)+1;
+            if (i < oldItems)
+              duration = -duration; // auction is over
+            if (i < getPercentReservePrice*itemsInPeriod/100)
+              reservePrice = rand.nextInt(1000)+initialPrice;
+            else
+              reservePrice = 0;
+            if (i < getPercentBuyNow*itemsInPeriod/100)
+              buyNow = rand.nextInt(1000)+initialPrice+reservePrice;
+            else
+              buyNow = 0;
+            if (i < getPercentUniqueItems*itemsInPeriod/100)
+              quantity = 1;
+            else
+              quantity = rand.nextInt(getMaxItemQty)+1;
+            int sellerId = rand.nextInt(getNbOfUsers) + 1;
+
+            // Bids, updating the item like StoreBid does
+            int   nbBids = 0;
+            float maxBid = 0;
+            if (generateBids)
+            {
+              float minBid = initialPrice;
+              nbBids = rand.nextInt(getMaxBidsPerItem);
+              for (int j = 0 ; j < nbBids ; j++)
+              {
+                int   addBid = rand.nextInt(10)+1;
+                float bid = minBid+addBid;
+                float bidMax = minBid+addBid*2;
+                bids.add(new Object[] {Integer.valueOf(rand.nextInt(getNbOfUsers)+1),
+                    Integer.valueOf(i+1), Integer.valueOf(rand.nextInt(quantity)+1),
+                    Float.valueOf(bid), Float.valueOf(bidMax), startDate});
+                if (bid > maxBid)
+                  maxBid = bidMax;
+                minBid += addBid;
+              }
+            }
+
+            endDate.setTimeInMillis(now);
+            endDate.add(GregorianCalendar.DAY_OF_MONTH, duration);
+            items.add(new Object[] {Integer.valueOf(i+1),
+                "RUBiS automatically generated item #"+(i+1), description,
+                Float.valueOf(initialPrice), Integer.valueOf(quantity),
+                Float.valueOf(reservePrice), Float.valueOf(buyNow),
+                Integer.valueOf(nbBids), Float.valueOf(maxBid), startDate,
+                new Timestamp(endDate.getTimeInMillis()), Integer.valueOf(sellerId),
+                Integer.valueOf(categories[i]+1)});
+
+            // Comment, updating the rating of the seller like StoreComment does
+            if (generateComments)
+            {
+              int rating = rand.nextInt(5);
+              String comment = repeat(STATIC_COMMENT[rating],
+                  rand.nextInt(getCommentMaxLength)+1);
+              comments.add(new Object[] {Integer.valueOf(rand.nextInt(getNbOfUsers)+1),
+                  Integer.valueOf(sellerId), Integer.valueOf(i+1),
+                  Integer.valueOf(RATING_VALUE[rating]), startDate, comment});
+              ratings.addAndGet(sellerId, RATING_VALUE[rating]);
+            }
+          }
+          items.close();
+          if (bids != null)
+            bids.close();
+          if (comments != null)
+            comments.close();
+          System.out.print(".");
+        }
+      });
+    System.out.println(" Done!");
+  }
+}
@@ -0,0 +1,336 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Single-pass scanner of HTML replies. The reply is read once from the
+ * input stream and all the keys needed by <code>UserSession</code> are
+ * matched at the same time, without building the reply as a
+ * <code>String</code>. A value follows a key up to the first <code>"</code>,
+ * <code>?</code>, <code>&amp;</code> or <code>&gt;</code>, like in the
+ * original <code>indexOf</code> based extraction. All buffers are reused
+ * from one reply to the next.
+ * <pre>
+ * ITEM_ID              : all the values of itemId= are kept
+ * PAGE                 : the first 2 values of &amp;page= are kept
+ * USER_ID, TO, NAME_TO,
+ * MAX_QTY, MIN_BID     : the first value of the key is kept
+ * ERROR, FATAL_ERROR,
+ * WARNING, SORRY       : only the presence of the key is recorded
+ * </pre>
+ *
+ * @version 1.0
+ */
+public class HTMLScanner
+{
+  public static final int ITEM_ID     = 0;
+  public static final int PAGE        = 1;
+  public static final int USER_ID     = 2;
+  public static final int TO          = 3;
+  public static final int NAME_TO     = 4;
+  public static final int MAX_QTY     = 5;
+  public static final int MIN_BID     = 6;
+  public static final int ERROR       = 7;
+  public static final int FATAL_ERROR = 8;
+  public static final int WARNING     = 9;
+  public static final int SORRY       = 10;
+
+  private static final String[] keyNames = {"itemId=", "&page=", "userId=",
+      "to=", "name=to value=", "name=maxQty value=", "name=minBid value=",
+      "ERROR", "Fatal error", "Warning", "Sorry"};
+  private static final int[]    maxValues = {Integer.MAX_VALUE, 2, 1, 1, 1,
+      1, 1, 0, 0, 0, 0};
+  private static final int      MAX_VALUE_LENGTH = 32;
+
+  private static final byte[][] keys = new byte[keyNames.length][];
+  private static final int[][]  failure = new int[keyNames.length][];
+  static
+  {
+    // Knuth-Morris-Pratt failure function of each key
+    for (int k = 0; k < keyNames.length; k++)
+    {
+      byte[] key = keyNames[k].getBytes();
+      int[] f = new int[key.length + 1];
+      f[0] = -1;
+      for (int i = 1, j = -1; i <= key.length; i++)
+      {
+        while ((j >= 0) && (key[j] != key[i - 1]))
+          j = f[j];
+        j++;
+        f[i] = j;
+      }
+      keys[k] = key;
+      failure[k] = f;
+    }
+  }
+
+  private byte[]   buffer = new byte[4096];
+  private int[]    matched = new int[keyNames.length];    // KMP progress
+  private boolean[] found = new boolean[keyNames.length];
+  private boolean[] capturing = new boolean[keyNames.length];
+  private byte[][] value = new byte[keyNames.length][MAX_VALUE_LENGTH];
+  private int[]    valueLength = new int[keyNames.length];
+  private int[][]  values = new int[keyNames.length][];   // parsed int values
+  private int[]    nbOfValues = new int[keyNames.length];
+  private float    minBid;
+  private boolean  hasReply = false;
+  private long     length;
+  private ByteArrayOutputStream text = null;
+
+  /**
+   * Creates a new <code>HTMLScanner</code> instance.
+   *
+   * @param keepText true to also keep the whole reply for debugging
+   */
+  public HTMLScanner(boolean keepText)
+  {
+    for (int k = 0; k < keyNames.length; k++)
+      values[k] = new int[Math.min(maxValues[k], 16)];
+    if (keepText)
+      text = new ByteArrayOutputStream(16384);
+  }
+
+  /**
+   * Get the text of a key.
+   *
+   * @param key key identifier
+   * @return the pattern looked for
+   */
+  public static String getKeyName(int key)
+  {
+    return keyNames[key];
+  }
+
+  /**
+   * Forget the last reply.
+   */
+  public void reset()
+  {
+    for (int k = 0; k < keyNames.length; k++)
+    {
+      matched[k] = 0;
+      found[k] = false;
+      capturing[k] = false;
+      nbOfValues[k] = 0;
+    }
+    hasReply = false;
+    length = 0;
+    if (text != null)
+      text.reset();
+  }
+
+  /**
+   * Read and scan a whole reply. The previous reply is forgotten.
+   *
+   * @param in stream to read the reply from
+   * @exception IOException if an error occurs while reading the reply
+   */
+  public void scan(InputStream in) throws IOException
+  {
+    reset();
+    int read;
+    while ((read = in.read(buffer, 0, buffer.length)) != -1)
+    {
+      for (int i = 0; i < read; i++)
+        scanByte(buffer[i]);
+      length += read;
+      if (text != null)
+        text.write(buffer, 0, read);
+    }
+    for (int k = 0; k < keyNames.length; k++)
+      if (capturing[k])
+        endValue(k);
+    hasReply = true;
+  }
+
+  /**
+   * Feed one byte of the reply to the matchers of all keys.
+   *
+   * @param b next byte of the reply
+   */
+  private void scanByte(byte b)
+  {
+    boolean terminator = (b == '"') || (b == '?') || (b == '&') || (b == '>');
+    for (int k = 0; k < keyNames.length; k++)
+    {
+      if (capturing[k])
+      {
+        if (terminator)
+          endValue(k);
+        else if (valueLength[k] < MAX_VALUE_LENGTH)
+          value[k][valueLength[k]++] = b;
+      }
+      byte[] key = keys[k];
+      int j = matched[k];
+      while ((j >= 0) && (key[j] != b))
+        j = failure[k][j];
+      j++;
+      if (j == key.length)
+      {
+        found[k] = true;
+        if (nbOfValues[k] < maxValues[k])
+        {
+          capturing[k] = true;
+          valueLength[k] = 0;
+        }
+        j = failure[k][j];
+      }
+      matched[k] = j;
+    }
+  }
+
+  /**
+   * Parse the value captured for a key.
+   *
+   * @param k key identifier
+   */
+  private void endValue(int k)
+  {
+    capturing[k] = false;
+    if (k == MIN_BID)
+    {
+      try
+      {
+        minBid = Float.parseFloat(new String(value[k], 0, valueLength[k]));
+        nbOfValues[k]++;
+      }
+      catch (NumberFormatException e)
+      { // Ignore values that are not numbers
+      }
+      return;
+    }
+    int len = valueLength[k];
+    if ((len == 0) || (len > 10))
+      return;
+    long v = 0;
+    int i = 0;
+    boolean negative = value[k][0] == '-';
+    if (negative)
+      i++;
+    if (i == len)
+      return;
+    for (; i < len; i++)
+    {
+      int digit = value[k][i] - '0';
+      if ((digit < 0) || (digit > 9))
+        return;
+      v = v * 10 + digit;
+    }
+    if (negative)
+      v = -v;
+    if ((v > Integer.MAX_VALUE) || (v < Integer.MIN_VALUE))
+      return;
+    if (nbOfValues[k] == values[k].length)
+    {
+      int[] grown = new int[values[k].length * 2];
+      System.arraycopy(values[k], 0, grown, 0, nbOfValues[k]);
+      values[k] = grown;
+    }
+    values[k][nbOfValues[k]++] = (int) v;
+  }
+
+  /**
+   * True if a reply has been scanned since the last reset.
+   *
+   * @return true if a reply is available
+   */
+  public boolean hasReply()
+  {
+    return hasReply;
+  }
+
+  /**
+   * True if the key was found in the last reply.
+   *
+   * @param key key identifier
+   * @return true if the key was found
+   */
+  public boolean contains(int key)
+  {
+    return found[key];
+  }
+
+  /**
+   * Get the number of valid values found for a key.
+   *
+   * @param key key identifier
+   * @return number of values
+   */
+  public int getNbOfValues(int key)
+  {
+    return nbOfValues[key];
+  }
+
+  /**
+   * Get an int value of a key.
+   *
+   * @param key key identifier
+   * @param index index of the value, between 0 and
+   *          <code>getNbOfValues(key)-1</code>
+   * @return the value
+   */
+  public int getIntValue(int key, int index)
+  {
+    return values[key][index];
+  }
+
+  /**
+   * Get the value of <code>name=minBid value=</code>.
+   *
+   * @return the minimum bid or -1 if it was not found
+   */
+  public float getMinBid()
+  {
+    if (nbOfValues[MIN_BID] == 0)
+      return -1;
+    return minBid;
+  }
+
+  /**
+   * Get the size of the last reply.
+   *
+   * @return number of bytes read
+   */
+  public long getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Get the whole last reply. This is only available if the scanner was
+   * created with <code>keepText</code> set.
+   *
+   * @return the reply or null if it was not kept
+   */
+  public String getText()
+  {
+    if ((text == null) || !hasReply)
+      return null;
+    return text.toString();
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * High dynamic range histogram of positive values. Buckets are log-linear:
+ * values below 2^precision are counted exactly, larger values are counted in
+ * buckets whose width is at most 1/2^(precision-1) of the value. Recording a
+ * value is a single atomic increment, so a histogram can be shared by several
+ * threads without locking.
+ * <p>
+ * Values larger than the highest trackable value are counted as the highest
+ * trackable value.
+ *
+ * @version 1.0
+ */
+public class Histogram
+{
+  private int             precision;     // number of significant bits
+  private int             subBucketCount;
+  private int             subBucketHalfCount;
+  private long            highestTrackableValue;
+  private AtomicLongArray counts;
+
+  /**
+   * Creates a new <code>Histogram</code> instance.
+   *
+   * @param highestValue highest value that can be recorded
+   * @param significantBits number of significant bits kept for each value
+   *          (7 gives better than 1% precision)
+   */
+  public Histogram(long highestValue, int significantBits)
+  {
+    precision = significantBits;
+    subBucketCount = 1 << precision;
+    subBucketHalfCount = subBucketCount / 2;
+    highestTrackableValue = highestValue;
+    counts = new AtomicLongArray(indexOf(highestValue) + 1);
+  }
+
+  /**
+   * Get the bucket index of a value.
+   *
+   * @param value a value between 0 and the highest trackable value
+   * @return bucket index
+   */
+  private int indexOf(long value)
+  {
+    if (value < subBucketCount)
+      return (int) value;
+    int shift = 64 - Long.numberOfLeadingZeros(value) - precision;
+    int subBucket = (int) (value >>> shift);
+    return subBucketCount + (shift - 1) * subBucketHalfCount
+        + (subBucket - subBucketHalfCount);
+  }
+
+  /**
+   * Get the highest value counted in a bucket.
+   *
+   * @param index bucket index
+   * @return highest value of the bucket
+   */
+  private long highestValueAt(int index)
+  {
+    if (index < subBucketCount)
+      return index;
+    int k = index - subBucketCount;
+    int shift = k / subBucketHalfCount + 1;
+    long subBucket = k % subBucketHalfCount + subBucketHalfCount;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Record a value.
+   *
+   * @param value value to record, negative values are ignored
+   */
+  public void recordValue(long value)
+  {
+    recordValues(value, 1);
+  }
+
+  /**
+   * Record a value several times.
+   *
+   * @param value value to record, negative values are ignored
+   * @param count number of times the value is recorded
+   */
+  public void recordValues(long value, long count)
+  {
+    if (value < 0)
+      return;
+    if (value > highestTrackableValue)
+      value = highestTrackableValue;
+    counts.addAndGet(indexOf(value), count);
+  }
+
+  /**
+   * Adds the counts of another histogram to this one.
+   *
+   * @param other histogram with the same highest value and precision
+   */
+  public void add(Histogram other)
+  {
+    for (int i = 0; i < counts.length(); i++)
+    {
+      long c = other.counts.get(i);
+      if (c != 0)
+        counts.addAndGet(i, c);
+    }
+  }
+
+  /**
+   * Moves the counts of another histogram to this one. Values recorded in
+   * <code>other</code> concurrently are never lost: they end up either in
+   * this histogram or in <code>other</code>.
+   *
+   * @param other histogram with the same highest value and precision
+   */
+  public void addAndReset(Histogram other)
+  {
+    for (int i = 0; i < counts.length(); i++)
+    {
+      long c = other.counts.getAndSet(i, 0);
+      if (c != 0)
+        counts.addAndGet(i, c);
+    }
+  }
+
+  /**
+   * Resets all counts to 0.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < counts.length(); i++)
+      counts.set(i, 0);
+  }
+
+  /**
+   * Get the number of recorded values.
+   *
+   * @return total count
+   */
+  public long getTotalCount()
+  {
+    long total = 0;
+    for (int i = 0; i < counts.length(); i++)
+      total += counts.get(i);
+    return total;
+  }
+
+  /**
+   * Get the value below which a given percentage of the recorded values
+   * fall.
+   *
+   * @param percentile percentile between 0 and 100
+   * @return highest value of the bucket holding the percentile, or 0 if no
+   *         value was recorded
+   */
+  public long getValueAtPercentile(double percentile)
+  {
+    long total = getTotalCount();
+    if (total == 0)
+      return 0;
+    long target = (long) Math.ceil(percentile / 100.0 * total);
+    if (target < 1)
+      target = 1;
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++)
+    {
+      seen += counts.get(i);
+      if (seen >= target)
+        return Math.min(highestValueAt(i), highestTrackableValue);
+    }
+    return highestTrackableValue;
+  }
+}
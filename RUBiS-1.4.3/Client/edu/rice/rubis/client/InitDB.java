@@ -24,8 +24,6 @@
  package edu.rice.rubis.client;
 
 import java.io.File;
-import java.io.BufferedInputStream;
-import java.io.IOException;
 import java.lang.Thread;
 import java.lang.reflect.Array;
 import java.net.URL;
@@ -45,6 +43,7 @@ public class InitDB
   private Random          rand = new Random();
   private RUBiSProperties rubis = null;
   private int[]           itemsPerCategory;
+  private HTMLScanner     reply = new HTMLScanner(true);
 
 
   /**
@@ -68,8 +67,9 @@ public class InitDB
    * items: generate only items
    * bids: generate bids and items (it is not possible to create bids without creating the related items)
    * comments: generate comments and items (it is not possible to create comments without creating the related items)
+   * direct: load the database directly through JDBC (database_loader_url) instead of the web server
    *
-   * @param args all|users|items|bids|comments
+   * @param args all|users|items|bids|comments [direct]
    */
   public static void main(String[] args)
   {
@@ -89,11 +89,30 @@ public class InitDB
       System.out.println(" items: generate only items");
       System.out.println(" bids: generate bids and items (it is not possible to create bids without creating the related items)");
       System.out.println(" comments: generate comments and items (it is not possible to create comments without creating the related items)");
+      System.out.println(" direct: load the database directly through JDBC (database_loader_url) instead of the web server");
       Runtime.getRuntime().exit(1);
     }    
 
     for (int i = 0 ; i < argc ; i++)
      params = params +" "+ args[i];
+
+    if (params.indexOf("direct") != -1)
+    {
+      if (initDB.rubis.getLoaderURL() == null)
+      {
+        System.err.println("database_loader_url must be set in rubis.properties to load the database directly.");
+        Runtime.getRuntime().exit(1);
+      }
+      boolean all = params.indexOf("all") != -1;
+      boolean bids = all || (params.indexOf("bids") != -1);
+      boolean comments = all || (params.indexOf("comments") != -1);
+      DBLoader loader = new DBLoader(initDB.rubis);
+      if (!loader.load(all || (params.indexOf("users") != -1),
+                       all || bids || comments || (params.indexOf("items") != -1),
+                       bids, comments))
+        Runtime.getRuntime().exit(1);
+      return;
+    }
     
     if ((params.indexOf("users") != -1) || (params.indexOf("all") != -1))
       initDB.generateUsers();
@@ -137,7 +156,7 @@ public class InitDB
       // Call the HTTP server to register this user
       url = urlGen.registerUser(firstname, lastname, nickname, email, password, regionName);
       HTTPreply = callHTTPServer(url);
-      if (HTTPreply.indexOf("ERROR") != -1)
+      if ((HTTPreply == null) || (HTTPreply.indexOf("ERROR") != -1))
       {
         System.err.println("Failed to add user "+firstname+"|"+lastname+"|"+nickname+"|"+email+"|"+password+"|"+regionName);
         System.err.println(HTTPreply);
@@ -275,7 +294,7 @@ public class InitDB
       // Call the HTTP server to register this item
       url = urlGen.registerItem(name, description, initialPrice, reservePrice, buyNow, duration, quantity, sellerId, categoryId+1);
       HTTPreply = callHTTPServer(url);
-      if (HTTPreply.indexOf("ERROR") != -1)
+      if ((HTTPreply == null) || (HTTPreply.indexOf("ERROR") != -1))
       {
         System.err.println("Failed to add item "+name+" ("+url+")");
         System.err.println(HTTPreply);
@@ -289,7 +308,7 @@ public class InitDB
           int addBid = rand.nextInt(10)+1;
           url = urlGen.storeBid(i+1, rand.nextInt(getNbOfUsers)+1, initialPrice, initialPrice+addBid, initialPrice+addBid*2, rand.nextInt(quantity)+1, quantity);
           HTTPreply = callHTTPServer(url);
-          if (HTTPreply.indexOf("ERROR") != -1)
+          if ((HTTPreply == null) || (HTTPreply.indexOf("ERROR") != -1))
           {
             System.err.println("Failed to bid #"+j+" on item "+name+" ("+url+")");
             System.err.println(HTTPreply);
@@ -313,7 +332,7 @@ public class InitDB
         // Call the HTTP server to store this comment
         url = urlGen.storeComment(i+1, sellerId, rand.nextInt(getNbOfUsers)+1, ratingValue[rating], comment);
         HTTPreply = callHTTPServer(url);
-        if (HTTPreply.indexOf("ERROR") != -1)
+        if ((HTTPreply == null) || (HTTPreply.indexOf("ERROR") != -1))
         {
           System.err.println("Failed to add comment for item #"+(i+1)+" ("+url+")");
           System.err.println(HTTPreply);
@@ -333,68 +352,13 @@ public class InitDB
    *
    * @param url URL to access
    * @return <code>String</code> containing the web server reply (HTML file)
+   *         or null if no reply was received
    */
   private String callHTTPServer(URL url)
   {
-    String              HTMLReply = "";
-    BufferedInputStream in = null;
-    int                 retry = 0;
-        
-    while (retry < 5)
-    {
-      // Open the connexion
-      try
-      {
-        in = new BufferedInputStream(url.openStream(), 4096);
-      }
-      catch (IOException ioe) 
-      {
-        System.err.println("Unable to open URL "+url+" ("+ioe.getMessage()+")");
-        retry++;
-        try
-        {
-          Thread.currentThread().sleep(1000L);
-        }
-        catch (InterruptedException i) 
-        {
-          System.err.println("Interrupted in callHTTPServer()");
-          return null;
-        }
-        continue;
-      }
-
-      // Get the data
-      try 
-      {
-        byte[] buffer = new byte[4096];
-        int    read;
-
-        while ((read = in.read(buffer, 0, buffer.length)) != -1)
-        {
-          if (read > 0) 
-            HTMLReply = HTMLReply + new String(buffer, 0, read);
-        }
-      }
-      catch (IOException ioe) 
-      {
-        System.err.println("Unable to read from URL "+url+" ("+ioe.getMessage()+")");
-        return null;
-      }
-
-      // No retry at this point
-      break;
-    }        
-        
-    try
-    {
-      if (in != null)
-        in.close();
-    } 
-    catch (IOException ioe) 
-    {
-        System.err.println("Unable to close URL "+url+" ("+ioe.getMessage()+")");
-    }
-    return HTMLReply;
+    if (!rubis.getConnectionManager().get(url, reply, "InitDB"))
+      return null;
+    return reply.getText();
   }
 
 }
@@ -25,6 +25,7 @@
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ResourceBundle;
 import java.util.StringTokenizer;
 import java.util.Vector;
@@ -42,6 +43,7 @@ public class RUBiSProperties
 {
   private static ResourceBundle configuration = null;
   private URLGenerator          urlGen = null;
+  private ConnectionManager     connections = null;
 
   // Information about web server
   private Vector<URL> webSites;
@@ -72,6 +74,28 @@ public class RUBiSProperties
   private int     sessionTime;
   private int     downTime;
   private float   downSlowdown;
+  private String  sessionExecutor;
+  private boolean openLoop;
+  private float   arrivalRate;
+  private String  arrivalDistribution;
+  private int     maxOpenSessions;
+  private int     connectTimeout;
+  private int     readTimeout;
+  private int     maxConnectionsPerServer;
+  private int     retryBackoff;
+  private int     maxRetryBackoff;
+  private URLGenerator.LoadBalancing loadBalancing;
+  private String  randomSeed;
+  private String  traceRecordFile;
+  private String  traceReplayFile;
+  private float   traceTimeCompression;
+  private TraceRecorder traceRecorder = null;
+  private String  loaderURL;
+  private String  loaderDriver;
+  private String  loaderUser;
+  private String  loaderPassword;
+  private int     loaderThreads;
+  private int     loaderBatchSize;
     // Austin
     public int upXactions, sessionXactions, downXactions;
 
@@ -165,6 +189,21 @@ public class RUBiSProperties
     return s;
   }
 
+  /**
+   * Returns the value corresponding to an optional property in the
+   * rubis.properties file.
+   *
+   * @param property the property name
+   * @param defaultValue value to return if the property is not defined
+   * @return a <code>String</code> value
+   */
+  protected String getProperty(String property, String defaultValue)
+  {
+    if (!configuration.containsKey(property))
+      return defaultValue;
+    return configuration.getString(property).trim();
+  }
+
 
   /**
    * Check for all needed fields in rubis.properties and inialize corresponding values.
@@ -319,6 +358,75 @@ public class RUBiSProperties
       floo = new Float(getProperty("workload_down_ramp_slowdown_factor"));
       downSlowdown = floo.intValue();
       System.out.println(downSlowdown+"<br>");
+      System.out.print("Session executor               : ");
+      sessionExecutor = getProperty("workload_session_executor", SessionExecutor.THREADS);
+      System.out.println(sessionExecutor+"<br>");
+      System.out.print("Arrival mode                   : ");
+      openLoop = getProperty("workload_arrival_mode", "closed").compareTo("open") == 0;
+      if (openLoop)
+      {
+        System.out.println("Open loop<br>");
+        System.out.print("Arrival rate per second        : ");
+        floo = new Float(getProperty("workload_arrival_rate_per_second"));
+        arrivalRate = floo.floatValue()/(remoteClients.size()+1);
+        System.out.println(arrivalRate+"<br>");
+        System.out.print("Arrival distribution           : ");
+        arrivalDistribution = getProperty("workload_arrival_distribution", ArrivalGenerator.POISSON);
+        System.out.println(arrivalDistribution+"<br>");
+        System.out.print("Maximum number of open sessions: ");
+        foo = new Integer(getProperty("workload_max_open_sessions", "0"));
+        maxOpenSessions = foo.intValue();
+        System.out.println(maxOpenSessions+"<br>");
+      }
+      else
+        System.out.println("Closed loop<br>");
+      System.out.print("Connect timeout in ms          : ");
+      foo = new Integer(getProperty("workload_connect_timeout_in_ms", "0"));
+      connectTimeout = foo.intValue();
+      System.out.println(connectTimeout+"<br>");
+      System.out.print("Read timeout in ms             : ");
+      foo = new Integer(getProperty("workload_read_timeout_in_ms", "0"));
+      readTimeout = foo.intValue();
+      System.out.println(readTimeout+"<br>");
+      System.out.print("Max connections per server     : ");
+      foo = new Integer(getProperty("workload_max_connections_per_server", Integer.toString(nbOfClients)));
+      maxConnectionsPerServer = foo.intValue();
+      System.out.println(maxConnectionsPerServer+"<br>");
+      System.out.print("Retry backoff in ms            : ");
+      foo = new Integer(getProperty("workload_retry_backoff_in_ms", "1000"));
+      retryBackoff = foo.intValue();
+      foo = new Integer(getProperty("workload_max_retry_backoff_in_ms", "8000"));
+      maxRetryBackoff = foo.intValue();
+      System.out.println(retryBackoff+" to "+maxRetryBackoff+"<br>");
+      System.out.print("Web server load balancing      : ");
+      String balancing = getProperty("workload_load_balancing", "random");
+      loadBalancing = URLGenerator.LoadBalancing.parse(balancing);
+      if (loadBalancing == null)
+      {
+        System.out.print("unknown '"+balancing+"', using ");
+        loadBalancing = URLGenerator.LoadBalancing.RANDOM;
+      }
+      System.out.println(loadBalancing+"<br>");
+      System.out.print("Random seed                    : ");
+      randomSeed = getProperty("workload_random_seed", null);
+      if (randomSeed != null)
+      {
+        TransitionTable.setRandomSeed(new Long(randomSeed).longValue());
+        System.out.println(randomSeed+"<br>");
+      }
+      else
+        System.out.println("none<br>");
+      System.out.print("Trace                          : ");
+      traceRecordFile = getProperty("workload_trace_record", null);
+      traceReplayFile = getProperty("workload_trace_replay", null);
+      floo = new Float(getProperty("workload_trace_time_compression", "1"));
+      traceTimeCompression = floo.floatValue();
+      if (traceReplayFile != null)
+        System.out.println("replay "+traceReplayFile+" with time compression "+traceTimeCompression+"<br>");
+      else if (traceRecordFile != null)
+        System.out.println("record to "+traceRecordFile+"<br>");
+      else
+        System.out.println("none<br>");
 
       System.out.print("Up ramp transactions           : ");
       foo = new Integer(getProperty("workload_up_ramp_transactions"));
@@ -347,6 +455,24 @@ public class RUBiSProperties
           System.out.print(", ");
       }
       System.out.println("<br>");
+      loaderURL = getProperty("database_loader_url", null);
+      if (loaderURL != null)
+      {
+        System.out.print("Direct loader JDBC URL                 : ");
+        System.out.println(loaderURL+"<br>");
+        loaderDriver = getProperty("database_loader_driver", null);
+        loaderUser = getProperty("database_loader_user", null);
+        loaderPassword = getProperty("database_loader_password", "");
+        System.out.print("Direct loader threads                  : ");
+        foo = new Integer(getProperty("database_loader_threads",
+          Integer.toString(Runtime.getRuntime().availableProcessors())));
+        loaderThreads = Math.max(1, foo.intValue());
+        System.out.println(loaderThreads+"<br>");
+        System.out.print("Direct loader batch size               : ");
+        foo = new Integer(getProperty("database_loader_batch_size", "10000"));
+        loaderBatchSize = Math.max(1, foo.intValue());
+        System.out.println(loaderBatchSize+"<br>");
+      }
 
       // # Users policy
       System.out.println("\n<h3><br>### Users policy ###</h3>");
@@ -476,6 +602,9 @@ public class RUBiSProperties
         return null;
       }
       System.out.println("Using "+useVersion+" version.<br>");
+      connections = new ConnectionManager(webSites, connectTimeout, readTimeout,
+        maxConnectionsPerServer, retryBackoff, maxRetryBackoff, monitoringDebug.intValue());
+      urlGen.setLoadBalancing(loadBalancing, connections);
     }
     catch (Exception e)
     {
@@ -487,6 +616,135 @@ public class RUBiSProperties
   }
 
 
+  /**
+   * Get the recorder of the requests sent by the user sessions. The trace
+   * file is created on the first call.
+   *
+   * @return the recorder or null if no trace is recorded
+   */
+  public synchronized TraceRecorder getTraceRecorder()
+  {
+    if ((traceRecorder == null) && (traceRecordFile != null)
+        && (traceReplayFile == null))
+    {
+      try
+      {
+        traceRecorder = new TraceRecorder(traceRecordFile, urlGen);
+      }
+      catch (IOException e)
+      {
+        System.err.println("Unable to create trace file "+traceRecordFile+" ("+e.getMessage()+")");
+        traceRecordFile = null;
+      }
+    }
+    return traceRecorder;
+  }
+
+
+  /**
+   * Get the JDBC URL used by <code>InitDB</code> to load the database
+   * directly instead of going through the web server.
+   *
+   * @return JDBC URL or null if direct loading is not configured
+   */
+  public String getLoaderURL()
+  {
+    return loaderURL;
+  }
+
+
+  /**
+   * Get the JDBC driver class to load before connecting to the database.
+   *
+   * @return driver class name or null to rely on the drivers found in the
+   *         classpath
+   */
+  public String getLoaderDriver()
+  {
+    return loaderDriver;
+  }
+
+
+  /**
+   * Get the database user of the direct loader.
+   *
+   * @return user name or null
+   */
+  public String getLoaderUser()
+  {
+    return loaderUser;
+  }
+
+
+  /**
+   * Get the database password of the direct loader.
+   *
+   * @return password
+   */
+  public String getLoaderPassword()
+  {
+    return loaderPassword;
+  }
+
+
+  /**
+   * Get the number of partitions loaded in parallel by the direct loader,
+   * each with its own database connection.
+   *
+   * @return number of loader threads
+   */
+  public int getLoaderThreads()
+  {
+    return loaderThreads;
+  }
+
+
+  /**
+   * Get the number of rows sent to the database at once by the direct
+   * loader.
+   *
+   * @return batch size
+   */
+  public int getLoaderBatchSize()
+  {
+    return loaderBatchSize;
+  }
+
+
+  /**
+   * Get the trace to replay instead of generating user sessions.
+   *
+   * @return trace file name or null if sessions are generated
+   */
+  public String getTraceReplayFile()
+  {
+    return traceReplayFile;
+  }
+
+
+  /**
+   * Get the factor by which the times of a replayed trace are divided.
+   *
+   * @return time compression factor, 0 to replay as fast as possible
+   */
+  public float getTraceTimeCompression()
+  {
+    return traceTimeCompression;
+  }
+
+
+  /**
+   * Get the manager of the HTTP connections to the web servers.
+   *
+   * @return the connection manager or null if the properties have not been
+   *         checked yet
+   */
+  public ConnectionManager getConnectionManager()
+  {
+    return connections;
+  }
+
+
   /**
    * Get the web server name
    *
@@ -869,6 +1127,66 @@ public class RUBiSProperties
   }
 
 
+  /**
+   * Get the kind of executor used to run the user sessions
+   * (<code>threads</code> or <code>virtual</code>).
+   *
+   * @return session executor kind
+   */
+  public String getSessionExecutor()
+  {
+    return sessionExecutor;
+  }
+
+
+  /**
+   * True if new user sessions arrive at a fixed rate (open loop) instead
+   * of being played in loop by a fixed number of clients (closed loop).
+   *
+   * @return true if open-loop mode is used
+   */
+  public boolean isOpenLoop()
+  {
+    return openLoop;
+  }
+
+
+  /**
+   * Get the number of new user sessions per second during the runtime
+   * session in open-loop mode.
+   *
+   * @return arrival rate for this client node
+   */
+  public float getArrivalRate()
+  {
+    return arrivalRate;
+  }
+
+
+  /**
+   * Get the distribution of interarrival times in open-loop mode
+   * (<code>poisson</code> or <code>constant</code>).
+   *
+   * @return arrival distribution
+   */
+  public String getArrivalDistribution()
+  {
+    return arrivalDistribution;
+  }
+
+
+  /**
+   * Get the maximum number of sessions that can run at the same time in
+   * open-loop mode. Arrivals beyond that limit are dropped and counted.
+   *
+   * @return maximum number of open sessions, 0 means unlimited
+   */
+  public int getMaxOpenSessions()
+  {
+    return maxOpenSessions;
+  }
+
+
   /**
    * Get the monitoring debug level. Level is defined as follow: <pre>
    * 0 = no debug message
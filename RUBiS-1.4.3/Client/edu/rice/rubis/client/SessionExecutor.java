@@ -0,0 +1,169 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs emulated user sessions. The engine is chosen with the
+ * <code>workload_session_executor</code> property:
+ * <pre>
+ * threads = one platform thread per session (default)
+ * virtual = one virtual thread per session, so that tens of thousands of
+ *           emulated browsers blocked in HTTP calls or think time cost
+ *           almost nothing on the client node
+ * </pre>
+ * Virtual threads are looked up by reflection so that the client still
+ * builds and runs on older JVMs; if they are not available we fall back
+ * to platform threads.
+ *
+ * @version 1.0
+ */
+public class SessionExecutor
+{
+  public static final String THREADS = "threads";
+  public static final String VIRTUAL = "virtual";
+
+  private String        kind;
+  private ThreadFactory factory = null; // null means platform threads
+  private Set<Thread>   running = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates a new <code>SessionExecutor</code> instance.
+   *
+   * @param executorKind one of <code>threads</code> or <code>virtual</code>
+   */
+  public SessionExecutor(String executorKind)
+  {
+    kind = THREADS;
+    if (VIRTUAL.equals(executorKind))
+    {
+      factory = virtualThreadFactory();
+      if (factory != null)
+        kind = VIRTUAL;
+      else
+        System.err.println("SessionExecutor: virtual threads are not supported by this JVM, using platform threads instead.");
+    }
+    else if (!THREADS.equals(executorKind))
+      System.err.println("SessionExecutor: unknown executor '" + executorKind + "', using platform threads instead.");
+  }
+
+  /**
+   * Get the virtual thread factory of the running JVM.
+   *
+   * @return the factory or null if virtual threads are not supported
+   */
+  private static ThreadFactory virtualThreadFactory()
+  {
+    try
+    {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Object builder = ofVirtual.invoke(null);
+      Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Get the kind of threads actually used to run the sessions.
+   *
+   * @return <code>threads</code> or <code>virtual</code>
+   */
+  public String getKind()
+  {
+    return kind;
+  }
+
+  /**
+   * Start running a session.
+   *
+   * @param name name of the session, used in trace messages
+   * @param session the session to run
+   * @return the thread running the session
+   */
+  public Thread start(String name, final Runnable session)
+  {
+    Runnable wrapper = new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            session.run();
+          }
+          finally
+          {
+            running.remove(Thread.currentThread());
+          }
+        }
+      };
+    Thread t;
+    if (factory == null)
+      t = new Thread(wrapper);
+    else
+      t = factory.newThread(wrapper);
+    t.setName(name);
+    running.add(t);
+    t.start();
+    return t;
+  }
+
+  /**
+   * Get the number of sessions that are still running.
+   *
+   * @return number of running sessions
+   */
+  public int getNbOfRunningSessions()
+  {
+    return running.size();
+  }
+
+  /**
+   * Wait for all sessions to complete. Sessions still running after the
+   * timeout are left alone.
+   *
+   * @param timeout maximum time to wait in milliseconds
+   * @exception InterruptedException if the calling thread is interrupted
+   */
+  public void join(long timeout) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeout;
+    Iterator<Thread> it = running.iterator();
+    while (it.hasNext())
+    {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0)
+        break;
+      it.next().join(left);
+    }
+  }
+}
@@ -22,6 +22,12 @@
  * Contributor(s): 
  */
  package edu.rice.rubis.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
  
 /**
  * This class provides thread-safe statistics. Each statistic entry is composed as follow:
@@ -31,7 +37,18 @@
  * minTime   : minimum time for this entry (automatically computed)
  * maxTime   : maximum time for this entry (automatically computed)
  * totalTime : total time for this entry
+ * times     : histogram of the times for this entry
+ * corrected : histogram of the times for this entry measured from the time
+ *             the request was intended to be sent, with samples added for
+ *             the requests that a stalled server prevented from being sent
+ *             (coordinated omission correction)
  * </pre>
+ * Times are recorded in microseconds and displayed in milliseconds.
+ * Samples are recorded without locking in a few striped recorders, the
+ * stripe being chosen from the recording thread. There are no more
+ * stripes than recording threads or processors, and a stripe is only
+ * allocated when a sample is first recorded in it. The stripes are summed
+ * when the statistics are read, merged or displayed.
  *
  * @author <a href="mailto:cecchet@rice.edu">Emmanuel Cecchet</a> and <a href="mailto:julie.marguerite@inrialpes.fr">Julie Marguerite</a>
  * @version 1.0
@@ -39,51 +56,124 @@
 
 public class Stats
 {
+  /** Highest time that can be recorded in the histograms (1 hour in us) */
+  public static final long HISTOGRAM_MAX_TIME = 3600L * 1000L * 1000L;
+  /** Number of significant bits kept in the histograms */
+  public static final int  HISTOGRAM_PRECISION = 7;
+
+  /** Maximum number of stripes */
+  private static final int MAX_STRIPES = 64;
+
   private int nbOfStats;
-  private int count[];
-  private int error[];
-  private long minTime[];
-  private long maxTime[];
-  private long totalTime[];
-  private int  nbSessions;   // Number of sessions succesfully ended
-  private long sessionsTime; // Sessions total duration
+  private AtomicReferenceArray<Recorder> stripes;
+
+  /**
+   * Lock-free recorder holding one stripe of the statistics.
+   */
+  private static class Recorder
+  {
+    AtomicIntegerArray count;
+    AtomicIntegerArray error;
+    AtomicLongArray    minTime;
+    AtomicLongArray    maxTime;
+    AtomicLongArray    totalTime;
+    Histogram[]        times;
+    Histogram[]        corrected;
+    AtomicInteger      nbSessions = new AtomicInteger();   // Number of sessions succesfully ended
+    AtomicLong         sessionsTime = new AtomicLong();    // Sessions total duration
+
+    Recorder(int nbOfStats)
+    {
+      count = new AtomicIntegerArray(nbOfStats);
+      error = new AtomicIntegerArray(nbOfStats);
+      minTime = new AtomicLongArray(nbOfStats);
+      maxTime = new AtomicLongArray(nbOfStats);
+      totalTime = new AtomicLongArray(nbOfStats);
+      times = new Histogram[nbOfStats];
+      corrected = new Histogram[nbOfStats];
+      for (int i = 0 ; i < nbOfStats ; i++)
+      {
+        minTime.set(i, Long.MAX_VALUE);
+        times[i] = new Histogram(HISTOGRAM_MAX_TIME, HISTOGRAM_PRECISION);
+        corrected[i] = new Histogram(HISTOGRAM_MAX_TIME, HISTOGRAM_PRECISION);
+      }
+    }
+
+    void updateMin(int index, long time)
+    {
+      long min;
+      while (time < (min = minTime.get(index)))
+        if (minTime.compareAndSet(index, min, time))
+          return;
+    }
+
+    void updateMax(int index, long time)
+    {
+      long max;
+      while (time > (max = maxTime.get(index)))
+        if (maxTime.compareAndSet(index, max, time))
+          return;
+    }
+  }
 
 
   /**
-   * Creates a new <code>Stats</code> instance.
+   * Creates a new <code>Stats</code> instance recorded by a single thread,
+   * for example to merge other statistics.
    * The entries are reset to 0.
    *
    * @param NbOfStats number of entries to create
    */
   public Stats(int NbOfStats)
   {
-    nbOfStats = NbOfStats;
-    count = new int[nbOfStats];
-    error = new int[nbOfStats];
-    minTime = new long[nbOfStats];
-    maxTime = new long[nbOfStats];
-    totalTime = new long[nbOfStats];
-    reset();
+    this(NbOfStats, 1);
   }
 
 
   /**
-   * Resets all entries to 0
+   * Creates a new <code>Stats</code> instance.
+   * The entries are reset to 0.
+   *
+   * @param NbOfStats number of entries to create
+   * @param nbOfThreads number of threads recording samples
    */
-  public synchronized void reset()
+  public Stats(int NbOfStats, int nbOfThreads)
   {
-    int i;
+    nbOfStats = NbOfStats;
+    int max = Math.min(Math.min(nbOfThreads,
+        Runtime.getRuntime().availableProcessors()), MAX_STRIPES);
+    int n = 1;
+    while (n < max)
+      n <<= 1;
+    stripes = new AtomicReferenceArray<Recorder>(n);
+  }
+
 
-    for (i = 0 ; i < nbOfStats ; i++)
+  /**
+   * Get the recorder of the current thread, creating it if needed.
+   *
+   * @return recorder to use for the current thread
+   */
+  private Recorder recorder()
+  {
+    int stripe = (int) Thread.currentThread().getId() & (stripes.length() - 1);
+    Recorder r = stripes.get(stripe);
+    if (r == null)
     {
-      count[i] = 0;
-      error[i] = 0;
-      minTime[i] = Long.MAX_VALUE;
-      maxTime[i] = 0;
-      totalTime[i] = 0;
+      stripes.compareAndSet(stripe, null, new Recorder(nbOfStats));
+      r = stripes.get(stripe);
     }
-    nbSessions = 0;
-    sessionsTime = 0;
+    return r;
+  }
+
+
+  /**
+   * Resets all entries to 0
+   */
+  public void reset()
+  {
+    for (int s = 0 ; s < stripes.length() ; s++)
+      stripes.set(s, null);
   }
 
   /**
@@ -92,23 +182,24 @@ public class Stats
    *
    * @param time duration of the session
    */
-  public synchronized void addSessionTime(long time)
+  public void addSessionTime(long time)
   {
-    nbSessions++;
+    Recorder r = recorder();
+    r.nbSessions.incrementAndGet();
     if (time < 0)
     {
       System.err.println("Negative time received in Stats.addSessionTime("+time+")<br>\n");
       return ;
     }
-    sessionsTime = sessionsTime + time;
+    r.sessionsTime.addAndGet(time);
   }
 
  /**
    * Increment the number of succesfully ended sessions.
    */
-  public synchronized void addSession()
+  public void addSession()
   {
-    nbSessions++;
+    recorder().nbSessions.incrementAndGet();
   }
 
 
@@ -117,9 +208,9 @@ public class Stats
    *
    * @param index index of the entry
    */
-  public synchronized void incrementCount(int index)
+  public void incrementCount(int index)
   {
-    count[index]++;
+    recorder().count.incrementAndGet(index);
   }
 
 
@@ -128,31 +219,60 @@ public class Stats
    *
    * @param index index of the entry
    */
-  public synchronized void incrementError(int index)
+  public void incrementError(int index)
   {
-    error[index]++;
+    recorder().error.incrementAndGet(index);
   }
 
 
   /**
    * Add a new time sample for this entry. <code>time</code> is added to total time
-   * and both minTime and maxTime are updated if needed.
+   * and to the entry histogram, and both minTime and maxTime are updated if needed.
    *
    * @param index index of the entry
-   * @param time time to add to this entry
+   * @param time time to add to this entry in microseconds
    */
-  public synchronized void updateTime(int index, long time)
+  public void updateTime(int index, long time)
   {
     if (time < 0)
     {
       System.err.println("Negative time received in Stats.updateTime("+time+")<br>\n");
       return ;
     }
-    totalTime[index] += time;
-    if (time > maxTime[index])
-      maxTime[index] = time;
-    if (time < minTime[index])
-      minTime[index] = time;
+    Recorder r = recorder();
+    r.totalTime.addAndGet(index, time);
+    r.updateMax(index, time);
+    r.updateMin(index, time);
+    r.times[index].recordValue(time);
+  }
+
+
+  /**
+   * Add a new corrected time sample for this entry. <code>time</code> is
+   * measured from the intended start of the request. If it is longer than
+   * the interval at which the session would have sent requests to an
+   * instantaneous server, the requests that were not sent during the stall
+   * are accounted for with decreasing times, like a fixed-rate client would
+   * have seen them.
+   *
+   * @param index index of the entry
+   * @param time time from the intended start of the request in microseconds
+   * @param expectedInterval expected interval between two requests in
+   *          microseconds, 0 or less if unknown
+   */
+  public void updateCorrectedTime(int index, long time, long expectedInterval)
+  {
+    if (time < 0)
+    {
+      System.err.println("Negative time received in Stats.updateCorrectedTime("+time+")<br>\n");
+      return ;
+    }
+    Histogram h = recorder().corrected[index];
+    h.recordValue(time);
+    if (expectedInterval <= 0)
+      return;
+    for (long missing = time - expectedInterval ; missing >= expectedInterval ; missing -= expectedInterval)
+      h.recordValue(missing);
   }
 
 
@@ -163,9 +283,16 @@ public class Stats
    *
    * @return entry count value
    */
-  public synchronized int getCount(int index)
+  public int getCount(int index)
   {
-    return count[index];
+    int c = 0;
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        c += r.count.get(index);
+    }
+    return c;
   }
 
 
@@ -176,9 +303,16 @@ public class Stats
    *
    * @return entry error value
    */
-  public synchronized int getError(int index)
+  public int getError(int index)
   {
-    return error[index];
+    int e = 0;
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        e += r.error.get(index);
+    }
+    return e;
   }
 
 
@@ -189,9 +323,16 @@ public class Stats
    *
    * @return entry minimum time
    */
-  public synchronized long getMinTime(int index)
+  public long getMinTime(int index)
   {
-    return minTime[index];
+    long min = Long.MAX_VALUE;
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        min = Math.min(min, r.minTime.get(index));
+    }
+    return min;
   }
 
 
@@ -202,9 +343,16 @@ public class Stats
    *
    * @return entry maximum time
    */
-  public synchronized long getMaxTime(int index)
+  public long getMaxTime(int index)
   {
-    return maxTime[index];
+    long max = 0;
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        max = Math.max(max, r.maxTime.get(index));
+    }
+    return max;
   }
 
 
@@ -215,9 +363,94 @@ public class Stats
    *
    * @return entry total time
    */
-  public synchronized long getTotalTime(int index)
+  public long getTotalTime(int index)
+  {
+    long t = 0;
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        t += r.totalTime.get(index);
+    }
+    return t;
+  }
+
+
+  /**
+   * Get the histogram of the times of an entry. The returned histogram is a
+   * copy that is not updated anymore.
+   *
+   * @param index index of the entry
+   *
+   * @return entry time distribution
+   */
+  public Histogram getHistogram(int index)
   {
-    return totalTime[index];
+    Histogram h = new Histogram(HISTOGRAM_MAX_TIME, HISTOGRAM_PRECISION);
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        h.add(r.times[index]);
+    }
+    return h;
+  }
+
+
+  /**
+   * Get the histogram of the coordinated omission corrected times of an
+   * entry. The returned histogram is a copy that is not updated anymore.
+   *
+   * @param index index of the entry
+   *
+   * @return entry corrected time distribution
+   */
+  public Histogram getCorrectedHistogram(int index)
+  {
+    Histogram h = new Histogram(HISTOGRAM_MAX_TIME, HISTOGRAM_PRECISION);
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        h.add(r.corrected[index]);
+    }
+    return h;
+  }
+
+
+  /**
+   * Get the number of succesfully ended sessions
+   *
+   * @return number of sessions
+   */
+  public int getNbOfSessions()
+  {
+    int n = 0;
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        n += r.nbSessions.get();
+    }
+    return n;
+  }
+
+
+  /**
+   * Get the total duration of the succesfully ended sessions
+   *
+   * @return sessions total time
+   */
+  public long getSessionsTime()
+  {
+    long t = 0;
+    for (int s = 0 ; s < stripes.length() ; s++)
+    {
+      Recorder r = stripes.get(s);
+      if (r != null)
+        t += r.sessionsTime.get();
+    }
+    return t;
   }
 
 
@@ -237,30 +470,85 @@ public class Stats
    *
    * @param anotherStat stat to merge with current stat
    */
-  public synchronized void merge(Stats anotherStat)
+  public void merge(Stats anotherStat)
+  {
+    if (!canMerge(anotherStat))
+      return;
+    Recorder to = recorder();
+    for (int s = 0 ; s < anotherStat.stripes.length() ; s++)
+    {
+      Recorder from = anotherStat.stripes.get(s);
+      if (from == null)
+        continue;
+      for (int i = 0 ; i < nbOfStats ; i++)
+      {
+        to.count.addAndGet(i, from.count.get(i));
+        to.error.addAndGet(i, from.error.get(i));
+        to.updateMin(i, from.minTime.get(i));
+        to.updateMax(i, from.maxTime.get(i));
+        to.totalTime.addAndGet(i, from.totalTime.get(i));
+        to.times[i].add(from.times[i]);
+        to.corrected[i].add(from.corrected[i]);
+      }
+      to.nbSessions.addAndGet(from.nbSessions.get());
+      to.sessionsTime.addAndGet(from.sessionsTime.get());
+    }
+  }
+
+
+  /**
+   * Moves the entries of another Stats object to this one and resets them
+   * in the other Stats. This is used at phase boundaries while sessions keep
+   * recording in <code>anotherStat</code>: every sample is accounted for in
+   * exactly one of the two phases.
+   *
+   * @param anotherStat stat to move to current stat
+   */
+  public void mergeAndReset(Stats anotherStat)
+  {
+    if (!canMerge(anotherStat))
+      return;
+    Recorder to = recorder();
+    for (int s = 0 ; s < anotherStat.stripes.length() ; s++)
+    {
+      Recorder from = anotherStat.stripes.get(s);
+      if (from == null)
+        continue;
+      for (int i = 0 ; i < nbOfStats ; i++)
+      {
+        to.count.addAndGet(i, from.count.getAndSet(i, 0));
+        to.error.addAndGet(i, from.error.getAndSet(i, 0));
+        to.updateMin(i, from.minTime.getAndSet(i, Long.MAX_VALUE));
+        to.updateMax(i, from.maxTime.getAndSet(i, 0));
+        to.totalTime.addAndGet(i, from.totalTime.getAndSet(i, 0));
+        to.times[i].addAndReset(from.times[i]);
+        to.corrected[i].addAndReset(from.corrected[i]);
+      }
+      to.nbSessions.addAndGet(from.nbSessions.getAndSet(0));
+      to.sessionsTime.addAndGet(from.sessionsTime.getAndSet(0));
+    }
+  }
+
+
+  /**
+   * Check that another Stats object can be merged with this one.
+   *
+   * @param anotherStat stat to merge with current stat
+   * @return true if the stats can be merged
+   */
+  private boolean canMerge(Stats anotherStat)
   {
     if (this == anotherStat)
     {
       System.out.println("You cannot merge a stats with itself");
-      return;
+      return false;
     }
     if (nbOfStats != anotherStat.getNbOfStats())
     {
       System.out.println("Cannot merge stats of differents sizes.");
-      return;
-    }
-    for (int i = 0 ; i < nbOfStats ; i++)
-    {
-      count[i] += anotherStat.getCount(i);
-      error[i] += anotherStat.getError(i);
-      if (minTime[i] > anotherStat.getMinTime(i))
-        minTime[i] = anotherStat.getMinTime(i);
-      if (maxTime[i] < anotherStat.getMaxTime(i))
-        maxTime[i] = anotherStat.getMaxTime(i);
-      totalTime[i] += anotherStat.getTotalTime(i);
+      return false;
     }
-    nbSessions   += anotherStat.nbSessions;
-    sessionsTime += anotherStat.sessionsTime;
+    return true;
   }
 
 
@@ -277,6 +565,22 @@ public class Stats
     int counts = 0;
     int errors = 0;
     long time = 0;
+    int count[] = new int[nbOfStats];
+    int error[] = new int[nbOfStats];
+    long minTime[] = new long[nbOfStats];
+    long maxTime[] = new long[nbOfStats];
+    long totalTime[] = new long[nbOfStats];
+    int nbSessions = getNbOfSessions();
+    long sessionsTime = getSessionsTime();
+
+    for (int i = 0 ; i < nbOfStats ; i++)
+    {
+      count[i] = getCount(i);
+      error[i] = getError(i);
+      minTime[i] = getMinTime(i);
+      maxTime[i] = getMaxTime(i);
+      totalTime[i] = getTotalTime(i);
+    }
 
     System.out.println("<br><h3>"+title+" statistics</h3><p>");
     System.out.println("<TABLE BORDER=1>");
@@ -305,12 +609,12 @@ public class Stats
           System.out.print(error[i]);
         System.out.print("</div><TD><div align=right>");
         if (minTime[i] != Long.MAX_VALUE)
-          System.out.print(minTime[i]);
+          System.out.print(minTime[i]/1000L);
         else
           System.out.print("0");
-        System.out.print(" ms</div><TD><div align=right>"+maxTime[i]+" ms</div><TD><div align=right>");
+        System.out.print(" ms</div><TD><div align=right>"+maxTime[i]/1000L+" ms</div><TD><div align=right>");
         if (count[i] != 0)
-          System.out.println(totalTime[i]/count[i]+" ms</div>");
+          System.out.println(totalTime[i]/count[i]/1000L+" ms</div>");
         else
            System.out.println("0 ms</div>");
       }
@@ -322,7 +626,7 @@ public class Stats
       System.out.print("<TR><TD><div align=left><B>Total</B></div><TD><div align=right><B>100 %</B></div><TD><div align=right><B>"+counts+
                        "</B></div><TD><div align=right><B>"+errors+ "</B></div><TD><div align=center>-</div><TD><div align=center>-</div><TD><div align=right><B>");
       counts += errors;
-      System.out.println(time/counts+" ms</B></div>");
+      System.out.println(time/counts/1000L+" ms</B></div>");
       // Display stats about sessions
       System.out.println("<TR><TD><div align=left><B>Average throughput</div></B><TD colspan=6><div align=center><B>"+1000*counts/sessionTime+" req/s</B></div>");
       System.out.println("<TR><TD><div align=left>Completed sessions</div><TD colspan=6><div align=left>"+nbSessions+"</div>");
@@ -335,6 +639,55 @@ public class Stats
       System.out.println("</B></div>");
     }
     System.out.println("</TABLE><p>");
+
+    // Display the time distribution of each state in separate tables so
+    // that the table above keeps the format expected by
+    // compute_global_stats.awk
+    display_percentiles(title+" response time percentiles", false, exclude0Stat, count);
+    display_percentiles(title+" corrected response time percentiles", true, exclude0Stat, count);
+  }
+
+
+  /**
+   * Display an HTML table containing the time percentiles for each state.
+   *
+   * @param title table title
+   * @param corrected true to display the coordinated omission corrected times
+   * @param exclude0Stat true if you want to exclude the stat with a 0 value from the output
+   * @param count count of each state
+   */
+  private void display_percentiles(String title, boolean corrected, boolean exclude0Stat, int count[])
+  {
+    System.out.println("<br><h3>"+title+"</h3><p>");
+    System.out.println("<TABLE BORDER=1>");
+    System.out.println("<THEAD><TR><TH>State<TH>Samples<TH>50%<TH>90%<TH>99%<TH>99.9%<TH>99.99%<TBODY>");
+    for (int i = 0 ; i < getNbOfStats() ; i++)
+    {
+      if ((exclude0Stat && count[i] != 0) || (!exclude0Stat))
+      {
+        Histogram h = corrected ? getCorrectedHistogram(i) : getHistogram(i);
+        System.out.println("<TR><TD ALIGN=LEFT>"+TransitionTable.getStateName(i)+
+                           "<TD ALIGN=RIGHT>"+h.getTotalCount()+
+                           "<TD ALIGN=RIGHT>"+toMs(h.getValueAtPercentile(50))+
+                           "<TD ALIGN=RIGHT>"+toMs(h.getValueAtPercentile(90))+
+                           "<TD ALIGN=RIGHT>"+toMs(h.getValueAtPercentile(99))+
+                           "<TD ALIGN=RIGHT>"+toMs(h.getValueAtPercentile(99.9))+
+                           "<TD ALIGN=RIGHT>"+toMs(h.getValueAtPercentile(99.99)));
+      }
+    }
+    System.out.println("</TABLE><p>");
+  }
+
+
+  /**
+   * Format a time in microseconds as milliseconds.
+   *
+   * @param time time in microseconds
+   * @return time in milliseconds with 3 decimals
+   */
+  private static String toMs(long time)
+  {
+    return String.format("%.3f ms", time/1000.0);
   }
 
 
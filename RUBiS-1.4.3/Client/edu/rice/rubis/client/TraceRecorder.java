@@ -0,0 +1,241 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the requests emitted by the user sessions into a binary trace
+ * file, so that the exact same sequence of requests can be replayed later
+ * with <code>TraceReplayer</code>, for example against a cache-enabled and a
+ * bypass configuration.
+ * <p>
+ * The file starts with the 8 bytes <code>RUBiSTRC</code> and an int version
+ * number, followed by records. All numbers are big-endian. Each record
+ * starts with a type byte, the int identifier of the session and the long
+ * time of the event in nanoseconds since the start of the recording:
+ * <pre>
+ * 'S' session start    : no other field
+ * 'R' request          : short state, short length, length bytes of the
+ *                        file and query string of the URL, without the web
+ *                        server and the extra query string
+ * 'W' think time       : int think time in ms before the next request
+ * 'E' session end      : byte 1 if the session completed, 0 if aborted
+ * </pre>
+ * Records of concurrent sessions are interleaved in time order.
+ *
+ * @version 1.0
+ */
+public class TraceRecorder
+{
+  public static final byte[] MAGIC   = {'R', 'U', 'B', 'i', 'S', 'T', 'R', 'C'};
+  public static final int    VERSION = 1;
+
+  public static final byte SESSION_START = 'S';
+  public static final byte REQUEST       = 'R';
+  public static final byte THINK_TIME    = 'W';
+  public static final byte SESSION_END   = 'E';
+
+  private String           fileName;
+  private URLGenerator     urlGen;
+  private DataOutputStream out;
+  private long             startTime;
+  private AtomicInteger    nbOfSessions = new AtomicInteger();
+  private long             nbOfRequests = 0;
+  private boolean          failed = false;
+
+  /**
+   * Creates a new <code>TraceRecorder</code> instance and writes the header
+   * of the trace file.
+   *
+   * @param traceFileName name of the trace file, overwritten if it exists
+   * @param URLGen the URLGenerator generating the recorded URLs
+   * @exception IOException if the file cannot be created
+   */
+  public TraceRecorder(String traceFileName, URLGenerator URLGen)
+    throws IOException
+  {
+    fileName = traceFileName;
+    urlGen = URLGen;
+    out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(traceFileName), 65536));
+    out.write(MAGIC);
+    out.writeInt(VERSION);
+    startTime = System.nanoTime();
+  }
+
+  /**
+   * Write the common part of a record.
+   *
+   * @param type record type
+   * @param session session identifier
+   * @exception IOException if an error occurs
+   */
+  private void writeHeader(byte type, int session) throws IOException
+  {
+    out.writeByte(type);
+    out.writeInt(session);
+    out.writeLong(System.nanoTime() - startTime);
+  }
+
+  /**
+   * Report an error once and stop recording.
+   *
+   * @param e the error
+   */
+  private void error(IOException e)
+  {
+    if (!failed)
+      System.err.println("TraceRecorder: Unable to write to " + fileName
+          + " (" + e.getMessage() + "), recording stopped.<br>");
+    failed = true;
+  }
+
+  /**
+   * Record the start of a new session.
+   *
+   * @return identifier of the session in the trace
+   */
+  public int sessionStart()
+  {
+    int session = nbOfSessions.getAndIncrement();
+    synchronized (this)
+    {
+      if (failed)
+        return session;
+      try
+      {
+        writeHeader(SESSION_START, session);
+      }
+      catch (IOException e)
+      {
+        error(e);
+      }
+    }
+    return session;
+  }
+
+  /**
+   * Record a request about to be sent.
+   *
+   * @param session session identifier
+   * @param state state of the transition table emitting the request
+   * @param url URL of the request
+   */
+  public void request(int session, int state, URL url)
+  {
+    byte[] file = urlGen.getFileFromURL(url).getBytes(StandardCharsets.ISO_8859_1);
+    if (file.length > 0xffff)
+    { // The length is written as an unsigned short
+      System.err.println("TraceRecorder: URL of " + file.length
+          + " bytes not recorded (at most 65535 bytes)<br>");
+      return;
+    }
+    synchronized (this)
+    {
+      if (failed)
+        return;
+      try
+      {
+        writeHeader(REQUEST, session);
+        out.writeShort(state);
+        out.writeShort(file.length);
+        out.write(file);
+        nbOfRequests++;
+      }
+      catch (IOException e)
+      {
+        error(e);
+      }
+    }
+  }
+
+  /**
+   * Record the think time before the next request of a session.
+   *
+   * @param session session identifier
+   * @param thinkTime think time in ms
+   */
+  public synchronized void thinkTime(int session, long thinkTime)
+  {
+    if (failed)
+      return;
+    try
+    {
+      writeHeader(THINK_TIME, session);
+      out.writeInt((int) Math.min(thinkTime, Integer.MAX_VALUE));
+    }
+    catch (IOException e)
+    {
+      error(e);
+    }
+  }
+
+  /**
+   * Record the end of a session.
+   *
+   * @param session session identifier
+   * @param completed true if the session completed, false if it was aborted
+   */
+  public synchronized void sessionEnd(int session, boolean completed)
+  {
+    if (failed)
+      return;
+    try
+    {
+      writeHeader(SESSION_END, session);
+      out.writeByte(completed ? 1 : 0);
+    }
+    catch (IOException e)
+    {
+      error(e);
+    }
+  }
+
+  /**
+   * Flush and close the trace file. Events recorded afterwards are ignored.
+   */
+  public synchronized void close()
+  {
+    if (failed)
+      return;
+    try
+    {
+      out.close();
+      System.out.println("TraceRecorder: " + nbOfSessions.get() + " sessions and "
+          + nbOfRequests + " requests recorded in " + fileName + "<br>");
+    }
+    catch (IOException e)
+    {
+      error(e);
+    }
+    failed = true;
+  }
+}
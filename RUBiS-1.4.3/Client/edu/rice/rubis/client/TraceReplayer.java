@@ -0,0 +1,360 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.client;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace written by <code>TraceRecorder</code>. The trace is
+ * memory-mapped and streamed by a single dispatcher thread that starts one
+ * replay session per recorded session on the <code>SessionExecutor</code>
+ * and hands it its requests shortly before they are due.
+ * <p>
+ * Each request is sent at its recorded time divided by the time compression
+ * factor (<code>workload_trace_time_compression</code>): 1 replays at the
+ * original rate, 10 ten times faster, and 0 sends the requests of each
+ * session back to back as fast as possible. Requests are sent whatever the
+ * content of the replies, so that two configurations receive exactly the
+ * same requests. Corrected response times are measured from the time a
+ * request was due, like for open-loop arrivals.
+ *
+ * @version 1.0
+ */
+public class TraceReplayer implements Runnable
+{
+  private static final long WINDOW_SIZE = 1L << 30; // bytes mapped at a time
+  private static final int  MAX_RECORD_SIZE = 1 + 4 + 8 + 2 + 2 + 65535;
+  private static final long LOOKAHEAD = 1000000000L; // ns
+
+  private String          fileName;
+  private URLGenerator    urlGen;
+  private Stats           stats;
+  private SessionExecutor executor;
+  private ConnectionManager connections;
+  private double          compression;
+  private int             debugLevel;
+
+  private FileChannel      channel;
+  private long             fileSize;
+  private long             mapOffset;
+  private MappedByteBuffer map;
+  private long             replayStart;
+  private volatile int     nbOfSessions = 0;
+  private AtomicLong       nbOfRequests = new AtomicLong();
+
+  /**
+   * A request or event of the trace, queued to its replay session.
+   */
+  private static class Event
+  {
+    byte   type;
+    long   time;   // ns since the start of the trace
+    int    state;
+    String file;
+    int    value;  // think time or completion flag
+
+    Event(byte type, long time)
+    {
+      this.type = type;
+      this.time = time;
+    }
+  }
+
+  /**
+   * Creates a new <code>TraceReplayer</code> instance.
+   *
+   * @param RUBiS rubis.properties
+   * @param URLGen the URLGenerator to use
+   * @param statistics where to collect statistics
+   * @param sessionExecutor executor running the replay sessions
+   */
+  public TraceReplayer(RUBiSProperties RUBiS, URLGenerator URLGen,
+      Stats statistics, SessionExecutor sessionExecutor)
+  {
+    fileName = RUBiS.getTraceReplayFile();
+    compression = RUBiS.getTraceTimeCompression();
+    debugLevel = RUBiS.getMonitoringDebug();
+    connections = RUBiS.getConnectionManager();
+    urlGen = URLGen;
+    stats = statistics;
+    executor = sessionExecutor;
+  }
+
+  /**
+   * Open the trace file and check its header.
+   *
+   * @exception IOException if the file cannot be read or is not a trace
+   */
+  private void open() throws IOException
+  {
+    channel = new RandomAccessFile(fileName, "r").getChannel();
+    fileSize = channel.size();
+    mapOffset = 0;
+    map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+        Math.min(WINDOW_SIZE, fileSize));
+    byte[] magic = new byte[TraceRecorder.MAGIC.length];
+    if (map.remaining() < magic.length + 4)
+      throw new IOException("file too short");
+    map.get(magic);
+    if (!Arrays.equals(magic, TraceRecorder.MAGIC))
+      throw new IOException("not a RUBiS trace");
+    int version = map.getInt();
+    if (version != TraceRecorder.VERSION)
+      throw new IOException("unsupported trace version " + version);
+  }
+
+  /**
+   * Make sure that a whole record can be read from the mapped window,
+   * mapping the next part of the file if needed.
+   *
+   * @return false at the end of the file
+   * @exception IOException if the file cannot be mapped
+   */
+  private boolean nextRecord() throws IOException
+  {
+    long position = mapOffset + map.position();
+    if (position >= fileSize)
+      return false;
+    if ((map.remaining() < MAX_RECORD_SIZE)
+        && (mapOffset + map.limit() < fileSize))
+    {
+      mapOffset = position;
+      map = channel.map(FileChannel.MapMode.READ_ONLY, mapOffset,
+          Math.min(WINDOW_SIZE, fileSize - mapOffset));
+    }
+    return true;
+  }
+
+  /**
+   * Get the time at which an event of the trace is due.
+   *
+   * @param time time of the event in the trace
+   * @return due time as returned by <code>System.nanoTime()</code>
+   */
+  private long dueTime(long time)
+  {
+    if (compression <= 0)
+      return replayStart;
+    return replayStart + (long) (time / compression);
+  }
+
+  /**
+   * Wait until a given time or the end of the simulation.
+   *
+   * @param due time as returned by <code>System.nanoTime()</code>
+   * @return false if the simulation ended
+   */
+  private static boolean waitUntil(long due)
+  {
+    long wait;
+    while ((wait = due - System.nanoTime()) > 0)
+    {
+      if (ClientEmulator.isEndOfSimulation())
+        return false;
+      LockSupport.parkNanos(Math.min(wait, 100000000L));
+    }
+    return !ClientEmulator.isEndOfSimulation();
+  }
+
+  /**
+   * Stream the trace to the replay sessions until its end or the end of the
+   * simulation.
+   */
+  public void run()
+  {
+    HashMap<Integer, LinkedBlockingQueue<Event>> sessions =
+      new HashMap<Integer, LinkedBlockingQueue<Event>>();
+    try
+    {
+      open();
+      replayStart = System.nanoTime();
+      while (nextRecord())
+      {
+        byte type = map.get();
+        int session = map.getInt();
+        Event e = new Event(type, map.getLong());
+        switch (type)
+        {
+          case TraceRecorder.SESSION_START :
+            break;
+          case TraceRecorder.REQUEST :
+            e.state = map.getShort();
+            byte[] file = new byte[map.getShort() & 0xffff];
+            map.get(file);
+            e.file = new String(file, StandardCharsets.ISO_8859_1);
+            break;
+          case TraceRecorder.THINK_TIME :
+            e.value = map.getInt();
+            break;
+          case TraceRecorder.SESSION_END :
+            e.value = map.get();
+            break;
+          default :
+            throw new IOException("unknown record type " + type + " at offset "
+                + (mapOffset + map.position() - 13));
+        }
+        // Do not read too far ahead of the replay
+        if ((compression > 0) && !waitUntil(dueTime(e.time) - LOOKAHEAD))
+          break;
+        if (ClientEmulator.isEndOfSimulation())
+          break;
+
+        if (type == TraceRecorder.SESSION_START)
+        {
+          final LinkedBlockingQueue<Event> queue = new LinkedBlockingQueue<Event>();
+          final String name = "ReplaySession" + session;
+          sessions.put(session, queue);
+          nbOfSessions++;
+          executor.start(name, new Runnable()
+            {
+              public void run()
+              {
+                replaySession(name, queue);
+              }
+            });
+          continue;
+        }
+        LinkedBlockingQueue<Event> queue = sessions.get(session);
+        if (queue == null)
+          continue; // session started before the recording
+        queue.add(e);
+        if (type == TraceRecorder.SESSION_END)
+          sessions.remove(session);
+      }
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("TraceReplayer: Error while reading " + fileName + " ("
+          + ioe.getMessage() + ")<br>");
+    }
+    finally
+    {
+      // Let the sessions cut by the end of the trace terminate
+      for (LinkedBlockingQueue<Event> queue : sessions.values())
+        queue.add(new Event(TraceRecorder.SESSION_END, 0));
+      try
+      {
+        if (channel != null)
+          channel.close();
+      }
+      catch (IOException ignore)
+      {
+      }
+    }
+  }
+
+  /**
+   * Replay the requests of one session.
+   *
+   * @param name name of the session for error messages
+   * @param queue events of the session
+   */
+  private void replaySession(String name, LinkedBlockingQueue<Event> queue)
+  {
+    HTMLScanner reply = new HTMLScanner(debugLevel > 1);
+    long expectedInterval = 0;
+    long startSession = System.nanoTime();
+    try
+    {
+      while (!ClientEmulator.isEndOfSimulation())
+      {
+        Event e = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (e == null)
+          continue;
+        if (e.type == TraceRecorder.THINK_TIME)
+        {
+          // in microseconds, like the intervals given to Stats
+          expectedInterval = (compression > 0)
+            ? (long) (e.value * 1000L / compression) : 0;
+          continue;
+        }
+        if (e.type == TraceRecorder.SESSION_END)
+        {
+          if (e.value == 1)
+            stats.addSessionTime((System.nanoTime() - startSession) / 1000000L);
+          return;
+        }
+
+        long due = dueTime(e.time);
+        if (!waitUntil(due))
+          return;
+        URL url = urlGen.genericHTMLFile(e.file);
+        long start = System.nanoTime();
+        boolean replied = (url != null) && connections.get(url, reply, name);
+        long end = System.nanoTime();
+        stats.incrementCount(e.state);
+        stats.updateTime(e.state, (end - start) / 1000L);
+        stats.updateCorrectedTime(e.state, (end - Math.min(due, start)) / 1000L,
+            expectedInterval);
+        ClientEmulator.transactionComplete();
+        nbOfRequests.incrementAndGet();
+        if (!replied || reply.contains(HTMLScanner.ERROR)
+            || reply.contains(HTMLScanner.FATAL_ERROR))
+        {
+          stats.incrementError(e.state);
+          if (debugLevel > 0)
+            System.out.println("Thread " + name
+                + ": Error returned from access to " + url + "<br>");
+        }
+        expectedInterval = 0;
+      }
+    }
+    catch (InterruptedException ie)
+    {
+      if (debugLevel > 0)
+        System.err.println("Thread " + name + ": Interrupted while replaying<br>");
+    }
+  }
+
+  /**
+   * Get the number of sessions started so far.
+   *
+   * @return number of replayed sessions
+   */
+  public int getNbOfSessions()
+  {
+    return nbOfSessions;
+  }
+
+  /**
+   * Get the number of requests sent so far.
+   *
+   * @return number of replayed requests
+   */
+  public long getNbOfRequests()
+  {
+    return nbOfRequests.get();
+  }
+}
@@ -27,13 +27,11 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.lang.NumberFormatException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Random;
-import java.util.Stack;
+import java.util.SplittableRandom;
 import java.util.StringTokenizer;
 
 /**
@@ -93,20 +91,45 @@ import java.util.StringTokenizer;
 
 public class TransitionTable
 {
+  private static final int HISTORY_SIZE = 128; // must be a power of 2
+
   private int    nbColumns;
   private int    nbRows;
+  private Matrix matrix;
   private float  transitions[][];
   private int    transitionsTime[];
   private String tableName = null;
-  private Random rand = new Random();
-  private Stack  previousStates = new Stack();
+  private SplittableRandom rand;
+  private int[]  previousStates = new int[HISTORY_SIZE]; // ring buffer
+  private int    historyTop = 0;    // index of the next free slot
+  private int    historySize = 0;   // number of states in the history
   private int    currentState = 0;
+  private long   lastThinkTime = 0;
   private Stats  stats;
   private boolean useTPCWThinkTime;
   private static String[] stateNames;
-  private static Map<String,String> excelTextFiles =
-    new HashMap<String,String>();
-  
+  private static Map<String,Matrix> matrices =
+    new HashMap<String,Matrix>();
+  private static SplittableRandom seeds = new SplittableRandom();
+
+  /**
+   * Transition matrix read from a file and compiled into alias tables
+   * (Walker/Vose method): for each current state, the next state is drawn
+   * in constant time with a single random number. Rows are interpreted
+   * like the cumulative walk did: the probability left when a row sums to
+   * less than 1 is given to the current state and transitions beyond a total
+   * of 1 are never taken. Matrices are immutable and shared by all the
+   * sessions using the same file.
+   */
+  private static class Matrix
+  {
+    String  tableName;
+    float   transitions[][];
+    int     transitionsTime[];
+    double  aliasProbability[][];
+    int     alias[][];
+  }
+
 
   /**
    * Creates a new <code>TransitionTable</code> instance.
@@ -116,9 +139,36 @@ public class TransitionTable
     nbColumns = columns;
     nbRows = rows;
     stats = statistics;
-    transitions = new float[nbColumns][nbRows];
-    transitionsTime = new int[nbRows];
     useTPCWThinkTime = UseTPCWThinkTime;
+    synchronized (TransitionTable.class)
+    {
+      rand = seeds.split();
+    }
+  }
+
+
+  /**
+   * Set the seed from which the random generators of all the transition
+   * tables created afterwards are derived. Tables created in the same order
+   * then produce the same sequence of states.
+   *
+   * @param seed the seed
+   */
+  public static synchronized void setRandomSeed(long seed)
+  {
+    seeds = new SplittableRandom(seed);
+  }
+
+
+  /**
+   * Get a seed derived from the random generator of this table, to seed
+   * other generators of the same session reproducibly.
+   *
+   * @return a new seed
+   */
+  public long nextSeed()
+  {
+    return rand.nextLong();
   }
 
 
@@ -139,6 +189,7 @@ public class TransitionTable
   public void resetToInitialState()
   {
     currentState = 0;
+    lastThinkTime = 0;
     stats.incrementCount(currentState);
   }
 
@@ -161,13 +212,38 @@ public class TransitionTable
    */
   public int getPreviousState()
   {
-    if (previousStates.empty())
+    if (historySize == 0)
       return -1;
     else
-    {
-      Integer state = (Integer)previousStates.peek();
-      return state.intValue();
-    }
+      return previousStates[(historyTop - 1) & (HISTORY_SIZE - 1)];
+  }
+
+
+  /**
+   * Add a state to the history. The oldest state is forgotten when the
+   * history is full.
+   *
+   * @param state state to push
+   */
+  private void pushPreviousState(int state)
+  {
+    previousStates[historyTop] = state;
+    historyTop = (historyTop + 1) & (HISTORY_SIZE - 1);
+    if (historySize < HISTORY_SIZE)
+      historySize++;
+  }
+
+
+  /**
+   * Remove the last state from the history.
+   *
+   * @return the last state pushed
+   */
+  private int popPreviousState()
+  {
+    historyTop = (historyTop - 1) & (HISTORY_SIZE - 1);
+    historySize--;
+    return previousStates[historyTop];
   }
 
 
@@ -178,12 +254,11 @@ public class TransitionTable
    */
   public int backToPreviousState()
   {
-    if (previousStates.empty())
+    if (historySize == 0)
       return -1;
     else
     {
-      Integer state = (Integer)previousStates.pop();
-      currentState = state.intValue();
+      currentState = popPreviousState();
       return currentState;
     }
   }
@@ -229,42 +304,26 @@ public class TransitionTable
    */
   public int nextState()
   {
-    int   beforeStep = currentState;
-    float step = rand.nextFloat();
-    float cumul = 0;
-    int   i;
+    int    beforeStep = currentState;
+    double step = rand.nextDouble() * nbRows;
+    int    i = (int) step;
 
-    for (i = 0 ; i < nbRows ; i++)
-    {
-      cumul = cumul + transitions[currentState][i];
-      if (step < cumul)
-      {
-        currentState = i;
-        break;
-      }
-    }
+    // Alias method: keep the drawn column or take its alias
+    if (step - i < matrix.aliasProbability[currentState][i])
+      currentState = i;
+    else
+      currentState = matrix.alias[currentState][i];
     // Deal with Back to previous state
     if (currentState == nbRows-2)
     { 
-      if (previousStates.empty())
+      if (historySize == 0)
         System.out.println("Error detected: Trying to go back but no previous state is available (currentState:"+currentState+", beforeStep:"+beforeStep);
       else
       { // Back adds both stats of back and new state but only sleep "back waiting time"
         // and return the new state (after back).
         stats.incrementCount(currentState); // Add back state stat
-        try
-        {
-          if (useTPCWThinkTime)
-            Thread.currentThread().sleep((long)((float)TPCWthinkTime()*ClientEmulator.getSlowDownFactor()));
-          else
-            Thread.currentThread().sleep((long)((float)transitionsTime[currentState]*ClientEmulator.getSlowDownFactor()));
-        }
-        catch (java.lang.InterruptedException ie)
-        {
-          System.err.println("Thread "+Thread.currentThread().getName()+" has been interrupted.");
-        }
-        Integer previous = (Integer)previousStates.pop();
-        currentState = previous.intValue();
+        thinkTime();
+        currentState = popPreviousState();
 //        System.out.println("Thread "+Thread.currentThread().getName()+": Going back from "+stateNames[beforeStep]+" to "+stateNames[currentState]+"<br>\n");
         stats.incrementCount(currentState); // Add new state stat
         return currentState;
@@ -275,25 +334,48 @@ public class TransitionTable
       if (!isEndOfSession())
       { // If there is no probability to go back from this state, just empty the stack
         if (transitions[currentState][nbRows-2] == 0)
-          previousStates.removeAllElements();
+          historySize = 0;
         else // else add the previous state to the history just in case we go back !
-          previousStates.push(new Integer(beforeStep));
+          pushPreviousState(beforeStep);
 //        System.out.println("Thread "+Thread.currentThread().getName()+": "+stateNames[beforeStep]+" -> "+stateNames[currentState]+"<br>\n");
       }
     }
     stats.incrementCount(currentState);
+    thinkTime();
+    return currentState;
+  }
+
+
+  /**
+   * Sleep for the think time of the current state, scaled by the slowdown
+   * factor of the current ramp.
+   */
+  private void thinkTime()
+  {
+    if (useTPCWThinkTime)
+      lastThinkTime = (long)((float)TPCWthinkTime()*ClientEmulator.getSlowDownFactor());
+    else
+      lastThinkTime = (long)((float)transitionsTime[currentState]*ClientEmulator.getSlowDownFactor());
     try
     {
-      if (useTPCWThinkTime)
-        Thread.currentThread().sleep((long)((float)TPCWthinkTime()*ClientEmulator.getSlowDownFactor()));
-      else
-        Thread.currentThread().sleep((long)((float)transitionsTime[currentState]*ClientEmulator.getSlowDownFactor()));
+      Thread.sleep(lastThinkTime);
     }
     catch (java.lang.InterruptedException ie)
     {
       System.err.println("Thread "+Thread.currentThread().getName()+" has been interrupted.");
     }
-    return currentState;
+  }
+
+
+  /**
+   * Return the think time of the last call to <code>nextState()</code>,
+   * that is the delay the user intended to wait before the next request.
+   *
+   * @return last think time in milliseconds
+   */
+  public long getLastThinkTime()
+  {
+    return lastThinkTime;
   }
 
   
@@ -306,43 +388,52 @@ public class TransitionTable
    */
   public boolean ReadExcelTextFile(String filename)
   { 
+    synchronized (matrices)
+    {
+      matrix = matrices.get(filename);
+      if ((matrix == null) || (matrix.transitions.length != nbColumns)
+          || (matrix.transitionsTime.length != nbRows))
+      {
+        matrix = readMatrix(filename);
+        if (matrix == null)
+          return false;
+        matrices.put(filename, matrix);
+      }
+    }
+    tableName = matrix.tableName;
+    transitions = matrix.transitions;
+    transitionsTime = matrix.transitionsTime;
+    return true;
+  }
+
+
+  /**
+   * Read the matrix transition from a file and compile it.
+   *
+   * @param filename name of the file to read the matrix from
+   * @return the matrix or null on error
+   */
+  private Matrix readMatrix(String filename)
+  {
     BufferedReader reader;
     int            i = 0;
     int            j = 0;
-    String         contents;
+    Matrix         m = new Matrix();
+
+    m.transitions = new float[nbColumns][nbRows];
+    m.transitionsTime = new int[nbRows];
 
     // Try to open the file
-    contents = excelTextFiles.get(filename);
-    if (contents == null) {      
-      try
-        {
-          reader = new BufferedReader(new FileReader(filename));
-          StringBuffer buf = new StringBuffer(1024);
-          char[] chars = new char[1024];
-          int numRead;
-
-          while ((numRead = reader.read(chars)) > -1) {
-            buf.append(String.valueOf(chars));
-          }
-          reader.close();
-          contents = buf.toString();
-          excelTextFiles.put(filename, contents);
-        }
-      catch (FileNotFoundException f)
-        {
-          System.err.println("File "+filename+" not found.");
-          f.printStackTrace();
-          return false;
-        }
-      catch (IOException f)
-        {
-          System.err.println("IO exception reading " + filename);
-          f.printStackTrace();
-          return false;
-        }
+    try
+    {
+      reader = new BufferedReader(new FileReader(filename));
+    }
+    catch (FileNotFoundException f)
+    {
+      System.err.println("File "+filename+" not found.");
+      f.printStackTrace();
+      return null;
     }
-    reader = new BufferedReader(new StringReader(contents));
-
 
     // Now read the file using tab (\t) as field delimiter
     try
@@ -350,8 +441,8 @@ public class TransitionTable
       // Header
       StringTokenizer st = new StringTokenizer(reader.readLine(), "\t");
       String s = st.nextToken(); // Should be 'RUBiS Transition Table'
-      tableName = st.nextToken();
-//      System.out.println("Reading "+tableName+" from "+filename);
+      m.tableName = st.nextToken();
+//      System.out.println("Reading "+m.tableName+" from "+filename);
       reader.readLine(); // Empty line
       reader.readLine(); // To >>>
       reader.readLine(); // Column headers
@@ -365,31 +456,101 @@ public class TransitionTable
         for (j = 0 ; j < nbColumns ; j++)
         {
           Float f = new Float(st.nextToken());
-          transitions[j][i] = f.floatValue();
+          m.transitions[j][i] = f.floatValue();
         }
         // Last column is transition_waiting_time
         Integer t = new Integer(st.nextToken());
-        transitionsTime[i] = t.intValue();
+        m.transitionsTime[i] = t.intValue();
       }
       reader.close();
     }
     catch (IOException ioe)
     {
       System.err.println("An error occured while reading "+filename+". ("+ioe.getMessage()+")");
-      return false;
+      return null;
     }
     catch (NoSuchElementException nsu)
     {
       System.err.println("File format error in file "+filename+" when reading line "+i+", column "+j+". ("+nsu.getMessage()+")");
-      return false;
+      return null;
     }
     catch (NumberFormatException ne)
     {
       System.err.println("Number format error in file "+filename+" when reading line "+i+", column "+j+". ("+ne.getMessage()+")");
-      return false;
+      return null;
+    }
+    catch (NullPointerException npe)
+    {
+      System.err.println("Unexpected end of file "+filename+" when reading line "+i+".");
+      return null;
     }
+
+    // Compile each row into an alias table
+    m.aliasProbability = new double[nbColumns][];
+    m.alias = new int[nbColumns][];
+    for (i = 0 ; i < nbColumns ; i++)
+      compileRow(m, i);
 //    System.out.println("Transition matrix successfully build.");
-    return true;
+    return m;
+  }
+
+
+  /**
+   * Build the alias table of the transitions from a state, using Vose's
+   * algorithm.
+   *
+   * @param m matrix being compiled
+   * @param from state whose transitions are compiled
+   */
+  private void compileRow(Matrix m, int from)
+  {
+    int      n = nbRows;
+    double[] scaled = new double[n];
+    double[] prob = new double[n];
+    int[]    alias = new int[n];
+    int[]    small = new int[n];
+    int[]    large = new int[n];
+    int      nbSmall = 0;
+    int      nbLarge = 0;
+    double   sum = 0;
+
+    // Like a cumulative walk, transitions beyond a total probability of 1
+    // are never taken
+    for (int i = 0 ; i < n ; i++)
+    {
+      scaled[i] = Math.min(Math.max(0, m.transitions[from][i]), 1 - sum);
+      sum += scaled[i];
+    }
+    // Residual probability means staying in the same state
+    scaled[from] += 1 - sum;
+    for (int i = 0 ; i < n ; i++)
+    {
+      scaled[i] = scaled[i] * n;
+      alias[i] = i;
+      if (scaled[i] < 1)
+        small[nbSmall++] = i;
+      else
+        large[nbLarge++] = i;
+    }
+    while ((nbSmall > 0) && (nbLarge > 0))
+    {
+      int l = small[--nbSmall];
+      int g = large[--nbLarge];
+      prob[l] = scaled[l];
+      alias[l] = g;
+      scaled[g] = (scaled[g] + scaled[l]) - 1;
+      if (scaled[g] < 1)
+        small[nbSmall++] = g;
+      else
+        large[nbLarge++] = g;
+    }
+    // Remaining entries are 1 up to rounding errors
+    while (nbLarge > 0)
+      prob[large[--nbLarge]] = 1;
+    while (nbSmall > 0)
+      prob[small[--nbSmall]] = 1;
+    m.aliasProbability[from] = prob;
+    m.alias[from] = alias;
   }
 
 
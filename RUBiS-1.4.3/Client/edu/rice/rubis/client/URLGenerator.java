@@ -26,7 +26,7 @@
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.Vector;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This abstract class provides the needed URLs to access all features of RUBiS.
@@ -40,7 +40,54 @@ import java.util.Random;
 public abstract class URLGenerator
 {
   private static final String protocol = "http";
+
+  /**
+   * How requests are balanced between the web servers.
+   */
+  public enum LoadBalancing
+  {
+    /** Pick a web server at random */
+    RANDOM("random"),
+    /** Pick the web server with the least requests in flight */
+    LEAST_OUTSTANDING("least_outstanding"),
+    /** Pick the least loaded of two web servers chosen at random */
+    TWO_CHOICES("two_choices"),
+    /** Always send the requests of an emulated client to the same web server */
+    AFFINITY("affinity");
+
+    private final String name;
+
+    LoadBalancing(String propertyName)
+    {
+      name = propertyName;
+    }
+
+    /**
+     * Get the strategy of a <code>workload_load_balancing</code> value.
+     *
+     * @param value name of the strategy, case and surrounding blanks
+     *          ignored
+     * @return the strategy, or null if the name is unknown
+     */
+    public static LoadBalancing parse(String value)
+    {
+      String v = value.trim();
+      for (LoadBalancing b : values())
+        if (b.name.equalsIgnoreCase(v))
+          return b;
+      return null;
+    }
+
+    public String toString()
+    {
+      return name;
+    }
+  }
+
   private Vector<URL> webSites;
+  private URL[] webSitesArray;
+  private LoadBalancing balancing = LoadBalancing.RANDOM;
+  private ConnectionManager connections = null;
   private String HTMLPath;
   private String scriptPath;
   private String extraQueryString;
@@ -199,6 +246,7 @@ public abstract class URLGenerator
   public URLGenerator(Vector<URL> hosts, String HTMLFilesPath, String ScriptFilesPath, String ExtraQueryString)
   {
     webSites    = hosts;
+    webSitesArray = hosts.toArray(new URL[hosts.size()]);
     HTMLPath    = HTMLFilesPath;
     scriptPath  = ScriptFilesPath;
     extraQueryString = ExtraQueryString;
@@ -277,12 +325,59 @@ public abstract class URLGenerator
     return result;
   }
 
-  private static Random r = new Random();
+  /**
+   * Set how requests are balanced between the web servers. Balancing on the
+   * number of requests in flight needs the connection manager that sends the
+   * requests; without it, web servers are picked at random.
+   *
+   * @param strategy the strategy
+   * @param manager connection manager used to send the requests
+   */
+  public void setLoadBalancing(LoadBalancing strategy, ConnectionManager manager)
+  {
+    balancing = strategy;
+    connections = manager;
+  }
+
+  /**
+   * Choose the web server to send the next request to, according to the
+   * load balancing strategy. No lock is taken.
+   *
+   * @return base URL of the web server
+   */
   protected URL getBaseURL()
   {
-    synchronized (r) {
-      return webSites.get(r.nextInt(webSites.size()));
+    int n = webSitesArray.length;
+    if (n == 1)
+      return webSitesArray[0];
+    if (balancing == LoadBalancing.AFFINITY)
+      return webSitesArray[(int) (Thread.currentThread().getId() % n)];
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    if ((connections == null) || (balancing == LoadBalancing.RANDOM))
+      return webSitesArray[r.nextInt(n)];
+    if (balancing == LoadBalancing.TWO_CHOICES)
+    {
+      int a = r.nextInt(n);
+      int b = r.nextInt(n - 1);
+      if (b >= a)
+        b++;
+      return webSitesArray[connections.getInFlight(a) <= connections.getInFlight(b) ? a : b];
     }
+    // Least outstanding requests, ties are broken starting at a random server
+    int start = r.nextInt(n);
+    int best = start;
+    int bestInFlight = connections.getInFlight(start);
+    for (int i = 1; (i < n) && (bestInFlight > 0); i++)
+    {
+      int s = (start + i) % n;
+      int inFlight = connections.getInFlight(s);
+      if (inFlight < bestInFlight)
+      {
+        best = s;
+        bestInFlight = inFlight;
+      }
+    }
+    return webSitesArray[best];
   }
 
   // ===========================================================
@@ -299,6 +394,25 @@ public abstract class URLGenerator
       return filename + "&" + extraQueryString;
   }
 
+  /**
+   * Get the file and query string of an URL generated by this generator,
+   * without the web server and the extra query string. This is the inverse
+   * of <code>genericHTMLFile</code>.
+   *
+   * @param url URL generated by this generator
+   * @return the file name to give to <code>genericHTMLFile</code>
+   */
+  public String getFileFromURL(URL url)
+  {
+    String file = url.getFile();
+    if (extraQueryString.isEmpty() || !file.endsWith(extraQueryString))
+      return file;
+    int end = file.length() - extraQueryString.length() - 1;
+    if ((end >= 0) && ((file.charAt(end) == '?') || (file.charAt(end) == '&')))
+      return file.substring(0, end);
+    return file;
+  }
+
   /** URL to the page corresponding to the file.
    *
    * @param filename file name
@@ -38,19 +38,23 @@ import java.util.Vector;
  *         href="mailto:julie.marguerite@inrialpes.fr">Julie Marguerite </a>
  * @version 1.0
  */
-public class UserSession extends Thread
+public class UserSession implements Runnable
 {
+  private String          sessionName;                 // name used in trace
+  // messages
   private RUBiSProperties rubis         = null;        // access to
   // rubis.properties file
+  private ConnectionManager connections = null;      // HTTP connections
+  // to the web servers
   private URLGenerator    urlGen        = null;        // URL generator
   // corresponding to the
   // version to be used
   // (PHP, EJB or Servlets)
   private TransitionTable transition    = null;        // transition table user
   // for this session
-  private String          lastHTMLReply = null;        // last HTML reply
+  private HTMLScanner     lastHTMLReply = null;        // last HTML reply
   // received from
-  private Random          rand          = new Random(); // random number
+  private Random          rand          = null;        // random number
   // generator
   private int             userId;                      // User id for the
   // current session
@@ -71,6 +75,10 @@ public class UserSession extends Thread
   // current page
   private Stats           stats;                       // Statistics to collect
   // errors, time, ...
+  private boolean         singleSession = false;       // true to play only
+  // one session (open-loop mode)
+  private long            arrivalTime   = 0;           // System.nanoTime()
+  // at which the session was intended to start (open-loop mode)
   private int             debugLevel    = 0;           // 0 = no debug message,
 
   // 1 = just error
@@ -89,7 +97,7 @@ public class UserSession extends Thread
   public UserSession(String threadId, URLGenerator URLGen,
       RUBiSProperties RUBiS, Stats statistics)
   {
-    super(threadId);
+    sessionName = threadId;
     urlGen = URLGen;
     rubis = RUBiS;
     stats = statistics;
@@ -98,116 +106,68 @@ public class UserSession extends Thread
     // messages, 2 = error
     // messages+HTML pages, 3 =
     // everything!
+    lastHTMLReply = new HTMLScanner(debugLevel > 1);
+    connections = rubis.getConnectionManager();
 
     transition = new TransitionTable(rubis.getNbOfColumns(), rubis
         .getNbOfRows(), statistics, rubis.useTPCWThinkTime());
     if (!transition.ReadExcelTextFile(rubis.getTransitionTable()))
       Runtime.getRuntime().exit(1);
+    rand = new Random(transition.nextSeed());
   }
 
   /**
-   * Call the HTTP Server according to the given URL and get the reply
+   * Creates a new <code>UserSession</code> instance.
    * 
-   * @param url URL to access
-   * @return <code>String</code> containing the web server reply (HTML file)
+   * @param threadId a thread identifier
+   * @param URLGen the URLGenerator to use
+   * @param RUBiS rubis.properties
+   * @param statistics where to collect statistics
+   * @param playOneSession true to play a single user session and return
+   *          (open-loop mode) instead of looping until the end of the
+   *          simulation
    */
-  private String callHTTPServer(URL url)
+  public UserSession(String threadId, URLGenerator URLGen,
+      RUBiSProperties RUBiS, Stats statistics, boolean playOneSession)
   {
-    String HTMLReply = "";
-    BufferedInputStream in = null;
-    InputStream urlStream = null;
-    int retry = 0;
-
-    try
-    {
-      while (retry < 5)
-      {
-        // Open the connexion
-        try
-        {
-          urlStream = url.openStream();
-          in = new BufferedInputStream(urlStream, 4096);
-          //System.out.println("Thread "+this.getName()+": "+url);
-        }
-        catch (IOException ioe)
-        {
-          if (debugLevel > 0)
-            System.err.println("Thread " + this.getName()
-                + ": Unable to open URL " + url + " (" + ioe.getMessage()
-                + ")<br>");
-          retry++;
-          try
-          {
-            Thread.sleep(1000L);
-          }
-          catch (InterruptedException i)
-          {
-            if (debugLevel > 0)
-              System.err.println("Thread " + this.getName()
-                  + ": Interrupted in callHTTPServer()<br>");
-            return null;
-          }
-          continue;
-        }
-
-        // Get the data
-        try
-        {
-          byte[] buffer = new byte[4096];
-          int read;
+    this(threadId, URLGen, RUBiS, statistics);
+    singleSession = playOneSession;
+  }
 
-          while ((read = in.read(buffer, 0, buffer.length)) != -1)
-          {
-            if (read > 0)
-              HTMLReply = HTMLReply + new String(buffer, 0, read);
-          }
-        }
-        catch (IOException ioe)
-        {
-          if (debugLevel > 0)
-            System.err.println("Thread " + this.getName()
-                + ": Unable to read from URL " + url + " (" + ioe.getMessage()
-                + ")<br>");
-          return null;
-        }
+  /**
+   * Set the time at which this session was intended to start. In open-loop
+   * mode, this is the scheduled arrival time so that the delay to actually
+   * start the session is accounted for in the corrected response time of
+   * its first request.
+   * 
+   * @param nanoTime intended start time as returned by
+   *          <code>System.nanoTime()</code>
+   */
+  public void setArrivalTime(long nanoTime)
+  {
+    arrivalTime = nanoTime;
+  }
 
-        // No retry at this point
-        break;
-      }
-    }
-    catch (Exception ignore)
-    {
-    }
-    finally
-    {
-      try
-      {
-        if (in != null)
-          in.close();
-      }
-      catch (IOException ioe)
-      {
-        if (debugLevel > 0)
-          System.err.println("Thread " + this.getName()
-              + ": Unable to close URL " + url + " (" + ioe.getMessage()
-              + ")<br>");
-      }
-      try
-      {
-        if (urlStream != null)
-          urlStream.close();
-      }
-      catch (IOException ioe)
-      {
-        if (debugLevel > 0)
-          System.err.println("Thread " + this.getName()
-              + ": Unable to close URL " + url + " (" + ioe.getMessage()
-              + ")<br>");
-      }
+  /**
+   * Get the name of this session.
+   * 
+   * @return the thread identifier given at creation time
+   */
+  public String getName()
+  {
+    return sessionName;
+  }
 
-    }
-    if (retry == 5)
-      return null;
+  /**
+   * Call the HTTP Server according to the given URL and scan the reply into
+   * <code>lastHTMLReply</code>.
+   * 
+   * @param url URL to access
+   * @return true if a reply was received
+   */
+  private boolean callHTTPServer(URL url)
+  {
+    boolean replied = connections.get(url, lastHTMLReply, this.getName());
 
     // // Look for any image to download
     // Vector images = new Vector();
@@ -244,25 +204,7 @@ public class UserSession extends Thread
     //   images.removeElementAt(0);
     // }
 
-    return HTMLReply;
-  }
-
-  /**
-   * Internal method that returns the min between last_index and x if x is not
-   * equal to -1.
-   * 
-   * @param last_index last_index value
-   * @param x value to compare with last_index
-   * @return x if (x <last_index and x!=-1) else last_index
-   */
-  private int isMin(int last_index, int x)
-  {
-    if (x == -1)
-      return last_index;
-    if (last_index <= x)
-      return last_index;
-    else
-      return x;
+    return replied;
   }
 
   /**
@@ -273,7 +215,7 @@ public class UserSession extends Thread
    */
   private int extractItemIdFromHTML()
   {
-    if (lastHTMLReply == null)
+    if (!lastHTMLReply.hasReply())
     {
       if (debugLevel > 0)
         System.err.println("Thread " + this.getName()
@@ -281,15 +223,7 @@ public class UserSession extends Thread
       return -1;
     }
 
-    // Count number of itemId
-    int count = 0;
-    int keyIndex = lastHTMLReply.indexOf("itemId=");
-    while (keyIndex != -1)
-    {
-      count++;
-      keyIndex = lastHTMLReply.indexOf("itemId=", keyIndex + 7); // 7 equals to
-      // itemId=
-    }
+    int count = lastHTMLReply.getNbOfValues(HTMLScanner.ITEM_ID);
     if (count == 0)
     {
       if (lastItemId >= 0)
@@ -299,26 +233,13 @@ public class UserSession extends Thread
             + ": Cannot found item id in last HTML reply<br>");
       if (debugLevel > 1)
         System.err.println("Thread " + this.getName()
-            + ": Last HTML reply is: " + lastHTMLReply + "<br>");
+            + ": Last HTML reply is: " + lastHTMLReply.getText() + "<br>");
       return -1;
     }
 
     // Choose randomly an item
-    count = rand.nextInt(count) + 1;
-    keyIndex = -7;
-    while (count > 0)
-    {
-      keyIndex = lastHTMLReply.indexOf("itemId=", keyIndex + 7); // 7 equals to
-      // itemId=
-      count--;
-    }
-    int lastIndex = isMin(Integer.MAX_VALUE, lastHTMLReply.indexOf('\"',
-        keyIndex + 7));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('?', keyIndex + 7));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('&', keyIndex + 7));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('>', keyIndex + 7));
-    Integer foo = new Integer(lastHTMLReply.substring(keyIndex + 7, lastIndex));
-    lastItemId = foo.intValue();
+    lastItemId = lastHTMLReply.getIntValue(HTMLScanner.ITEM_ID, rand
+        .nextInt(count));
     return lastItemId;
   }
 
@@ -330,35 +251,17 @@ public class UserSession extends Thread
    */
   private int extractPageFromHTML()
   {
-    if (lastHTMLReply == null)
-      return 0;
-
-    int firstPageIndex = lastHTMLReply.indexOf("&page=");
-    if (firstPageIndex == -1)
+    int count = lastHTMLReply.getNbOfValues(HTMLScanner.PAGE);
+    if (count == 0)
       return 0;
-    int secondPageIndex = lastHTMLReply.indexOf("&page=", firstPageIndex + 6); // 6
-    // equals
-    // to
-    // &page=
-    int chosenIndex = 0;
-    if (secondPageIndex == -1)
-      chosenIndex = firstPageIndex; // First or last page => go to next or
-    // previous page
+    if (count == 1)
+      return lastHTMLReply.getIntValue(HTMLScanner.PAGE, 0); // First or last
+    // page => go to next or previous page
+    // Choose randomly a page (previous or next)
+    if (rand.nextInt(100000) < 50000)
+      return lastHTMLReply.getIntValue(HTMLScanner.PAGE, 0);
     else
-    { // Choose randomly a page (previous or next)
-      if (rand.nextInt(100000) < 50000)
-        chosenIndex = firstPageIndex;
-      else
-        chosenIndex = secondPageIndex;
-    }
-    int lastIndex = isMin(Integer.MAX_VALUE, lastHTMLReply.indexOf('\"',
-        chosenIndex + 6));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('?', chosenIndex + 6));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('&', chosenIndex + 6));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('>', chosenIndex + 6));
-    Integer foo = new Integer(lastHTMLReply.substring(chosenIndex + 6,
-        lastIndex));
-    return foo.intValue();
+      return lastHTMLReply.getIntValue(HTMLScanner.PAGE, 1);
   }
 
   /**
@@ -366,21 +269,15 @@ public class UserSession extends Thread
    * reply. Example :
    * 
    * <pre>
-   * 
-   *  
-   *   
-   *    int userId = extractIdFromHTML(&quot;&amp;userId=&quot;)
-   *    
-   *   
-   *  
+   * int userId = extractIntFromHTML(HTMLScanner.USER_ID)
    * </pre>
    * 
-   * @param key the pattern to look for
+   * @param key the <code>HTMLScanner</code> key to look for
    * @return the <code>int</code> value or -1 on error.
    */
-  private int extractIntFromHTML(String key)
+  private int extractIntFromHTML(int key)
   {
-    if (lastHTMLReply == null)
+    if (!lastHTMLReply.hasReply())
     {
       if (debugLevel > 0)
         System.err.println("Thread " + this.getName()
@@ -389,56 +286,35 @@ public class UserSession extends Thread
     }
 
     // Look for the key
-    int keyIndex = lastHTMLReply.indexOf(key);
-    if (keyIndex == -1)
+    if (lastHTMLReply.getNbOfValues(key) == 0)
     {
       // Dirty hack here, ugly but convenient
-      if ((key.compareTo("userId=") == 0) && (lastUserId >= 0))
+      if ((key == HTMLScanner.USER_ID) && (lastUserId >= 0))
         return lastUserId;
       if (debugLevel > 0)
-        System.err.println("Thread " + this.getName() + ": Cannot found " + key
-            + " in last HTML reply<br>");
+        System.err.println("Thread " + this.getName() + ": Cannot found "
+            + HTMLScanner.getKeyName(key) + " in last HTML reply<br>");
       if (debugLevel > 1)
         System.err.println("Thread " + this.getName()
-            + ": Last HTML reply is: " + lastHTMLReply + "<br>");
+            + ": Last HTML reply is: " + lastHTMLReply.getText() + "<br>");
       return -1;
     }
-    int lastIndex = isMin(Integer.MAX_VALUE, lastHTMLReply.indexOf('\"',
-        keyIndex + key.length()));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('?', keyIndex
-        + key.length()));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('&', keyIndex
-        + key.length()));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('>', keyIndex
-        + key.length()));
-    Integer foo = new Integer(lastHTMLReply.substring(keyIndex + key.length(),
-        lastIndex));
+    int value = lastHTMLReply.getIntValue(key, 0);
     // Dirty hack again here, ugly but convenient
-    if (key.compareTo("userId=") == 0)
-      lastUserId = foo.intValue();
-    return foo.intValue();
+    if (key == HTMLScanner.USER_ID)
+      lastUserId = value;
+    return value;
   }
 
   /**
-   * Extract a float value corresponding to the given key from the last HTML
-   * reply. Example :
-   * 
-   * <pre>
-   * 
-   *  
-   *   
-   *    float minBid = extractFloatFromHTML(&quot;name=minBid value=&quot;)
-   *    
-   *   
-   *  
-   * </pre>
+   * Extract the minimum bid from the last HTML reply
+   * (<code>name=minBid value=</code>).
    * 
-   * @param key the pattern to look for
    * @return the <code>float</code> value or -1 on error.
    */
-  private float extractFloatFromHTML(String key)
+  private float extractMinBidFromHTML()
   {
-    if (lastHTMLReply == null)
+    if (!lastHTMLReply.hasReply())
     {
       if (debugLevel > 0)
         System.err.println("Thread " + this.getName()
@@ -446,29 +322,18 @@ public class UserSession extends Thread
       return -1;
     }
 
-    // Look for the key
-    int keyIndex = lastHTMLReply.indexOf(key);
-    if (keyIndex == -1)
+    float minBid = lastHTMLReply.getMinBid();
+    if (minBid == -1)
     {
       if (debugLevel > 0)
-        System.err.println("Thread " + this.getName() + ": Cannot found " + key
+        System.err.println("Thread " + this.getName() + ": Cannot found "
+            + HTMLScanner.getKeyName(HTMLScanner.MIN_BID)
             + " in last HTML reply<br>");
       if (debugLevel > 1)
         System.err.println("Thread " + this.getName()
-            + ": Last HTML reply is: " + lastHTMLReply + "<br>");
-      return -1;
+            + ": Last HTML reply is: " + lastHTMLReply.getText() + "<br>");
     }
-    int lastIndex = isMin(Integer.MAX_VALUE, lastHTMLReply.indexOf('\"',
-        keyIndex + key.length()));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('?', keyIndex
-        + key.length()));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('&', keyIndex
-        + key.length()));
-    lastIndex = isMin(lastIndex, lastHTMLReply.indexOf('>', keyIndex
-        + key.length()));
-    Float foo = new Float(lastHTMLReply.substring(keyIndex + key.length(),
-        lastIndex));
-    return foo.floatValue();
+    return minBid;
   }
 
   /**
@@ -480,9 +345,9 @@ public class UserSession extends Thread
    */
   public URL computeURLFromState(int state)
   {
-    if (lastHTMLReply != null)
+    if (lastHTMLReply.hasReply())
     {
-      if (lastHTMLReply.indexOf("Sorry") != -1) // Nothing matched the request,
+      if (lastHTMLReply.contains(HTMLScanner.SORRY)) // Nothing matched the request,
         // we have to go back
         state = transition.backToPreviousState();
     }
@@ -561,7 +426,7 @@ public class UserSession extends Thread
       case 10 :
         // View user information
         {
-	  int userId = extractIntFromHTML("userId=");
+	  int userId = extractIntFromHTML(HTMLScanner.USER_ID);
           if (userId == -1)
             return computeURLFromState(transition.backToPreviousState()); // Nothing
           // then go
@@ -581,7 +446,7 @@ public class UserSession extends Thread
       case 14 :
         // Store Buy Now in the database
         {
-          int maxQty = extractIntFromHTML("name=maxQty value=");
+          int maxQty = extractIntFromHTML(HTMLScanner.MAX_QTY);
           if (maxQty < 1)
             maxQty = 1;
           int qty = rand.nextInt(maxQty) + 1;
@@ -608,11 +473,11 @@ public class UserSession extends Thread
            * Generate randomly the bid, maxBid and quantity values, all other
            * values are retrieved from the last HTML reply
            */
-          int maxQty = extractIntFromHTML("name=maxQty value=");
+          int maxQty = extractIntFromHTML(HTMLScanner.MAX_QTY);
           if (maxQty < 1)
             maxQty = 1;
           int qty = rand.nextInt(maxQty) + 1;
-          float minBid = extractFloatFromHTML("name=minBid value=");
+          float minBid = extractMinBidFromHTML();
           float addBid = rand.nextInt(10) + 1;
           float bid = minBid + addBid;
           float maxBid = minBid + addBid * 2;
@@ -622,11 +487,11 @@ public class UserSession extends Thread
       case 18 :
         // Comment Authentication page
         return urlGen.putCommentAuth(extractItemIdFromHTML(),
-            extractIntFromHTML("to="));
+            extractIntFromHTML(HTMLScanner.TO));
       case 19 :
         // Comment confirmation page
         return urlGen.putComment(extractItemIdFromHTML(),
-            extractIntFromHTML("to="), username, password);
+            extractIntFromHTML(HTMLScanner.TO), username, password);
       case 20 :
         // Store Comment in the database
         { // Generate a random comment and rating
@@ -654,7 +519,7 @@ public class UserSession extends Thread
           comment = staticComment[rating].substring(0, commentLength);
 
           return urlGen.storeComment(extractItemIdFromHTML(),
-              extractIntFromHTML("name=to value="), userId,
+              extractIntFromHTML(HTMLScanner.NAME_TO), userId,
               ratingValue[rating], comment);
         }
       case 21 :
@@ -742,88 +607,138 @@ public class UserSession extends Thread
   }
 
   /**
-   * Emulate a user session using the current transition table.
+   * Emulate user sessions using the current transition table until the end
+   * of the simulation. In open-loop mode, only one session is played.
    */
   public void run()
   {
-    int nbOfTransitions = -1;
-    int next = 0;
-    long time = 0;
-    long startSession = 0;
-    long endSession = 0;
+    boolean firstSession = true;
 
     while (!ClientEmulator.isEndOfSimulation())
     {
-      // Select a random user for this session
-      userId = rand.nextInt(rubis.getNbOfUsers());
-      username = "user" + (userId + 1);
-      password = "password" + (userId + 1);
       // XXX(Austin) For the first session, randomly limit the maximum
       // number of transactions to stagger the sessions.
-      if (nbOfTransitions == -1)
-          nbOfTransitions = rand.nextInt(20) + 1;
+      if (firstSession && !singleSession)
+        playSession(rand.nextInt(20) + 1);
       else
-          nbOfTransitions = rubis.getMaxNbOfTransitions();
-      if (debugLevel > 2)
-        System.out.println("Thread " + this.getName()
-            + ": Starting a new user session for " + username + " ...<br>");
-      startSession = System.currentTimeMillis();
-      // Start from Home Page
-      transition.resetToInitialState();
-      next = transition.getCurrentState();
-      while (!ClientEmulator.isEndOfSimulation()
-          && !transition.isEndOfSession() && (nbOfTransitions > 0))
-      {
-        // Compute next step and call HTTP server (also measure time spend in
-        // server call)
-        lastURL = computeURLFromState(next);
-        time = System.currentTimeMillis();
-        lastHTMLReply = callHTTPServer(lastURL);
-        stats.updateTime(next, System.currentTimeMillis() - time);
-        ClientEmulator.transactionComplete();
+        playSession(rubis.getMaxNbOfTransitions());
+      if (singleSession)
+        break;
+      firstSession = false;
+    }
+  }
 
-        // If an error occured, reset to Home page
-        if ((lastHTMLReply == null) ||
-            (lastHTMLReply.indexOf("ERROR") != -1) ||
-            (lastHTMLReply.indexOf("Fatal error") != -1))
-        {
-          if (debugLevel > 0)
-            System.out.println("Thread " + this.getName()
-                + ": Error returned from access to " + lastURL + "<br>");
-          stats.incrementError(next);
-          if (debugLevel > 1)
-            System.out.println("Thread " + this.getName()
-                + ": HTML reply was: " + lastHTMLReply + "<br>");
-          transition.resetToInitialState();
-          next = transition.getCurrentState();
-        }
-        else if (debugLevel > 1 && lastHTMLReply.indexOf("Warning") != -1)
-        {
+  /**
+   * Play one user session for a random user.
+   * 
+   * @param maxNbOfTransitions maximum number of transitions of this session
+   */
+  private void playSession(int maxNbOfTransitions)
+  {
+    int nbOfTransitions = maxNbOfTransitions;
+    int next = 0;
+    long start = 0;
+    long end = 0;
+    long intendedStart = 0;
+    long expectedInterval = 0;
+    long startSession = 0;
+    long endSession = 0;
+    TraceRecorder trace = rubis.getTraceRecorder();
+    int traceId = 0;
+
+    // Select a random user for this session
+    userId = rand.nextInt(rubis.getNbOfUsers());
+    username = "user" + (userId + 1);
+    password = "password" + (userId + 1);
+    if (debugLevel > 2)
+      System.out.println("Thread " + this.getName()
+          + ": Starting a new user session for " + username + " ...<br>");
+    startSession = System.nanoTime();
+    if (trace != null)
+      traceId = trace.sessionStart();
+    if (arrivalTime != 0)
+    {
+      intendedStart = arrivalTime;
+      arrivalTime = 0;
+    }
+    else
+      intendedStart = startSession;
+    // Start from Home Page
+    transition.resetToInitialState();
+    next = transition.getCurrentState();
+    while (!ClientEmulator.isEndOfSimulation()
+        && !transition.isEndOfSession() && (nbOfTransitions > 0))
+    {
+      // Compute next step and call HTTP server (also measure time spend in
+      // server call). The corrected time is measured from the time the
+      // request should have been sent: the end of the previous request plus
+      // the think time, so that client-side delays and server stalls are
+      // not hidden by the closed loop.
+      lastURL = computeURLFromState(next);
+      if ((trace != null) && (lastURL != null))
+        trace.request(traceId, next, lastURL);
+      start = System.nanoTime();
+      if (intendedStart > start)
+        intendedStart = start;
+      boolean replied = callHTTPServer(lastURL);
+      end = System.nanoTime();
+      stats.updateTime(next, (end - start) / 1000L);
+      stats.updateCorrectedTime(next, (end - intendedStart) / 1000L,
+          expectedInterval);
+      ClientEmulator.transactionComplete();
+
+      // If an error occured, reset to Home page
+      if (!replied ||
+          lastHTMLReply.contains(HTMLScanner.ERROR) ||
+          lastHTMLReply.contains(HTMLScanner.FATAL_ERROR))
+      {
+        if (debugLevel > 0)
           System.out.println("Thread " + this.getName()
-                + ": Warning returned from access to " + lastURL + "<br>");
+              + ": Error returned from access to " + lastURL + "<br>");
+        stats.incrementError(next);
+        if (debugLevel > 1)
           System.out.println("Thread " + this.getName()
-                + ": HTML reply was: " + lastHTMLReply + "<br>");
-          next = transition.nextState();
-        }
-        else
-          next = transition.nextState();
+              + ": HTML reply was: " + lastHTMLReply.getText() + "<br>");
+        transition.resetToInitialState();
+        next = transition.getCurrentState();
+        intendedStart = end;
+        expectedInterval = 0;
         nbOfTransitions--;
+        continue;
       }
-      if ((transition.isEndOfSession()) || (nbOfTransitions == 0))
+      else if (debugLevel > 1 && lastHTMLReply.contains(HTMLScanner.WARNING))
       {
-        if (debugLevel > 2)
-          System.out.println("Thread " + this.getName() + ": Session of "
-              + username + " successfully ended<br>");
-        endSession = System.currentTimeMillis();
-        long sessionTime = endSession - startSession;
-        stats.addSessionTime(sessionTime);
+        System.out.println("Thread " + this.getName()
+              + ": Warning returned from access to " + lastURL + "<br>");
+        System.out.println("Thread " + this.getName()
+              + ": HTML reply was: " + lastHTMLReply.getText() + "<br>");
+        next = transition.nextState();
       }
       else
-      {
-        if (debugLevel > 2)
-          System.out.println("Thread " + this.getName() + ": Session of "
-              + username + " aborted<br>");
-      }
+        next = transition.nextState();
+      expectedInterval = transition.getLastThinkTime() * 1000L;
+      if (trace != null)
+        trace.thinkTime(traceId, transition.getLastThinkTime());
+      intendedStart = end + expectedInterval * 1000L;
+      nbOfTransitions--;
+    }
+    boolean completed = (transition.isEndOfSession()) || (nbOfTransitions == 0);
+    if (trace != null)
+      trace.sessionEnd(traceId, completed);
+    if (completed)
+    {
+      if (debugLevel > 2)
+        System.out.println("Thread " + this.getName() + ": Session of "
+            + username + " successfully ended<br>");
+      endSession = System.nanoTime();
+      long sessionTime = (endSession - startSession) / 1000000L;
+      stats.addSessionTime(sessionTime);
+    }
+    else
+    {
+      if (debugLevel > 2)
+        System.out.println("Thread " + this.getName() + ": Session of "
+            + username + " aborted<br>");
     }
   }
 
@@ -11,7 +11,6 @@ import javax.rmi.PortableRemoteObject;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.io.Serializable;
 import javax.transaction.UserTransaction;
@@ -76,7 +75,6 @@ public class MDB_StoreBid implements MessageDrivenBean, MessageListener
   public void createBid(int userId, int itemId, float bid, float maxBid, int qty) throws RemoteException
   {
     PreparedStatement stmt = null;
-    ResultSet rs           = null;
     Connection conn        = null;
 
     //    utx = messageDrivenContext.getUserTransaction();
@@ -100,41 +98,19 @@ public class MDB_StoreBid implements MessageDrivenBean, MessageListener
         try { conn.close(); } catch (Exception ignore) {}
         throw new RemoteException("Error while storing the bid (got exception: " +e+")<br>");
       }
-      // update the number of bids and the current price for the item
-      PreparedStatement update = null;
+      // update the number of bids and the current price for the item, in a
+      // single statement so that concurrent bids do not lose an update
       try
       {
-        stmt = conn.prepareStatement("SELECT nb_of_bids, max_bid FROM items WHERE id=?");
-        stmt.setInt(1, itemId);
-        rs = stmt.executeQuery();
-        if (rs.first())
-        {
-          int nbOfBids = rs.getInt("nb_of_bids");
-          nbOfBids++;
-          float oldMaxBid = rs.getFloat("max_bid");
-          if (bid > oldMaxBid)
-          {
-            oldMaxBid = bid;
-            update = conn.prepareStatement("UPDATE items SET max_bid=?,nb_of_bids=? WHERE id=?"); // AND replaced by ","
-            update.setFloat(1, oldMaxBid);
-            update.setInt(2, nbOfBids);
-            update.setInt(3, itemId);
-            update.executeUpdate();
-          }
-          else
-          {
-            update = conn.prepareStatement("UPDATE items SET nb_of_bids=? WHERE id=?");
-            update.setInt(1, nbOfBids);
-            update.setInt(2, itemId);
-            update.executeUpdate();
-          }
-          update.close();
-        }
+        stmt = conn.prepareStatement("UPDATE items SET nb_of_bids=nb_of_bids+1, max_bid=CASE WHEN ?>max_bid THEN ? ELSE max_bid END WHERE id=?");
+        stmt.setFloat(1, bid);
+        stmt.setFloat(2, bid);
+        stmt.setInt(3, itemId);
+        stmt.executeUpdate();
         stmt.close();
       }
       catch (Exception ex) 
       {
-        try { update.close(); } catch (Exception ignore) {}
         try { stmt.close(); } catch (Exception ignore) {}
         try { conn.close(); } catch (Exception ignore) {}
         throw new RemoteException("Failed to update nb of bids and max bid: " + ex);
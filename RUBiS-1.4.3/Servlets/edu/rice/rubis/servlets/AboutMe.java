@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.SQLException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -237,7 +236,7 @@ public class AboutMe extends RubisHttpServlet
     {
       stmt =
         conn.prepareStatement(
-          "SELECT * FROM buy_now WHERE buy_now.buyer_id=? AND TO_DAYS(NOW()) - TO_DAYS(buy_now.date)<=30");
+          "SELECT buy_now.item_id, buy_now.qty, items.name, items.seller, items.buy_now, users.nickname FROM buy_now, items, users WHERE buy_now.buyer_id=? AND buy_now.item_id=items.id AND items.seller=users.id AND TO_DAYS(NOW()) - TO_DAYS(buy_now.date)<=30");
       stmt.setInt(1, userId.intValue());
       buy = stmt.executeQuery();
       if (!buy.first())
@@ -263,66 +262,15 @@ public class AboutMe extends RubisHttpServlet
     {
       do
       {
-        itemId = buy.getInt("item_id");
-        quantity = buy.getInt("qty");
-        // Get the name of the items
+        // The item and its seller come with the purchase
         try
         {
-          PreparedStatement itemStmt = null;
-          try
-          {
-            ResultSet itemRS = null;
-            itemStmt =
-              conn.prepareStatement("SELECT * FROM items WHERE id=?");
-            itemStmt.setInt(1, itemId);
-            itemRS = itemStmt.executeQuery();
-            if (!itemRS.first())
-            {
-              sp.printHTML("Couldn't find bought item.<br>");
-              itemStmt.close();
-              return true;
-            }
-            itemName = itemRS.getString("name");
-            sellerId = itemRS.getInt("seller");
-            buyNow = itemRS.getFloat("buy_now");
-            itemStmt.close();
-          }
-          catch (SQLException e)
-          {
-            sp.printHTML("Failed to execute Query for item (buy now): " + e);
-            if (itemStmt != null) 
-             itemStmt.close();
-            closeConnection(stmt, conn);
-            return false;
-          }
-          PreparedStatement sellerStmt = null;
-          try
-          {
-            sellerStmt =
-              conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-            sellerStmt.setInt(1, sellerId);
-            ResultSet sellerResult = sellerStmt.executeQuery();
-            // Get the seller's name		 
-            if (sellerResult.first())
-              sellerName = sellerResult.getString("nickname");
-            else
-            {
-              sp.printHTML("Unknown seller");
-              sellerStmt.close();
-              closeConnection(stmt, conn);
-              return false;
-            }
-            sellerStmt.close();
-
-          }
-          catch (SQLException e)
-          {
-            sp.printHTML("Failed to execute Query for seller (buy now): " + e);
-            if (sellerStmt != null) 
-             sellerStmt.close();
-            closeConnection(stmt, conn);
-            return false;
-          }
+          itemId = buy.getInt("item_id");
+          quantity = buy.getInt("qty");
+          itemName = buy.getString("name");
+          sellerId = buy.getInt("seller");
+          buyNow = buy.getFloat("buy_now");
+          sellerName = buy.getString("nickname");
         }
         catch (Exception e)
         {
@@ -366,7 +314,7 @@ public class AboutMe extends RubisHttpServlet
     {
       stmt =
         conn.prepareStatement(
-          "SELECT item_id FROM bids, items WHERE bids.user_id=? AND bids.item_id=items.id AND TO_DAYS(NOW()) - TO_DAYS(items.end_date) < 30 GROUP BY item_id");
+          "SELECT DISTINCT items.id, items.name, items.seller, items.initial_price, items.max_bid, users.nickname FROM bids, items, users WHERE bids.user_id=? AND bids.item_id=items.id AND items.seller=users.id AND TO_DAYS(NOW()) - TO_DAYS(items.end_date) < 30");
       stmt.setInt(1, userId.intValue());
       won = stmt.executeQuery();
       if (!won.first())
@@ -391,91 +339,19 @@ public class AboutMe extends RubisHttpServlet
     {
       do
       {
-        itemId = won.getInt("item_id");
-        // Get the name of the items
+        // The item and its seller come with the bid
         try
         {
-          PreparedStatement itemStmt = null;
-          try
-          {
-            ResultSet itemRS = null;
-            itemStmt =
-              conn.prepareStatement("SELECT * FROM items WHERE id=?");
-            itemStmt.setInt(1, itemId);
-            itemRS = itemStmt.executeQuery();
-            if (!itemRS.first())
-            {
-              sp.printHTML("Couldn't find won item.<br>");
-              itemStmt.close();          
-              return true;
-            }
-            itemName = itemRS.getString("name");
-            sellerId = itemRS.getInt("seller");
-            initialPrice = itemRS.getFloat("initial_price");
-
-            currentPrice = itemRS.getFloat("max_bid");
-            if (currentPrice < initialPrice)
-              currentPrice = initialPrice;
-             
-            itemStmt.close();
-          }
-          catch (SQLException e)
-          {
-            sp.printHTML("Failed to execute Query for item (won items): " + e);
-            if (itemStmt != null) 
-             itemStmt.close();
-            closeConnection(stmt, conn);
-            return false;
-          }
-          PreparedStatement sellerStmt = null;
-          try
-          {
-            sellerStmt =
-              conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-            sellerStmt.setInt(1, sellerId);
-            ResultSet sellerResult = sellerStmt.executeQuery();
-            // Get the seller's name		 
-            if (sellerResult.first())
-              sellerName = sellerResult.getString("nickname");
-            else
-            {
-              sp.printHTML("Unknown seller");
-              sellerStmt.close();
-              closeConnection(stmt, conn);
-              return false;
-            }
-            sellerStmt.close();
+          itemId = won.getInt("id");
+          itemName = won.getString("name");
+          sellerId = won.getInt("seller");
+          initialPrice = won.getFloat("initial_price");
 
-          }
-          catch (SQLException e)
-          {
-            sp.printHTML(
-              "Failed to execute Query for seller (won items): " + e);
-              if (sellerStmt != null) 
-             sellerStmt.close();
-            closeConnection(stmt, conn);
-            sellerStmt = null;
-            return false;
-          }
-          // 	  PreparedStatement currentPriceStmt = null;
-          // 	  try 
-          // 	      {
-          // 		  currentPriceStmt = conn.prepareStatement("SELECT MAX(bid) AS bid FROM bids WHERE item_id=?");
-          // 		  currentPriceStmt.setInt(1, itemId);
-          // 		  ResultSet currentPriceResult = currentPriceStmt.executeQuery();
-          // 		  // Get the current price (max bid)		 
-          // 		  if (currentPriceResult.first()) 
-          // 		      currentPrice = currentPriceResult.getFloat("bid");
-          // 		  else
-          // 		      currentPrice = initialPrice;
-          // 	      }
-          // 	  catch (SQLException e)
-          // 	      {
-          // 		  sp.printHTML("Failed to executeQuery for current price: " +e);
-          // 		  closeConnection();
-          // 		  if (currentPriceStmt!=null) currentPriceStmt.close();
-          // 		  return;
-          // 	      }
+          currentPrice = won.getFloat("max_bid");
+          if (currentPrice < initialPrice)
+            currentPrice = initialPrice;
+
+          sellerName = won.getString("nickname");
         }
         catch (Exception e)
         {
@@ -507,93 +383,15 @@ public class AboutMe extends RubisHttpServlet
   /** List comments about the user */
   private boolean listComment(Integer userId, PreparedStatement stmt, Connection conn, ServletPrinter sp)
   {
-    ResultSet rs = null;
-    String date, comment;
-    int authorId;
-
     try
     {
-      conn.setAutoCommit(false); // faster if made inside a Tx
-
-      // Try to find the comment corresponding to the user
-      try
-      {
-        stmt =
-          conn.prepareStatement("SELECT * FROM comments WHERE to_user_id=?");
-        stmt.setInt(1, userId.intValue());
-        rs = stmt.executeQuery();
-      }
-      catch (Exception e)
-      {
-        sp.printHTML("Failed to execute Query for list of comments: " + e);
-        conn.rollback();
-        closeConnection(stmt, conn);
-        return false;
-      }
-      if (!rs.first())
-      {
-        sp.printHTML("<br>");
-        sp.printHTMLHighlighted(
-          "<h3>There is no comment yet for this user.</h3>");
-        sp.printHTML("<br>");
-        conn.commit();
-        stmt.close();        
-        return true;
-      }
-      else
-        sp.printHTML("<br><hr><br><h3>Comments for this user</h3><br>");
-
-      sp.printCommentHeader();
-      // Display each comment and the name of its author
-      do
-      {
-        comment = rs.getString("comment");
-        date = rs.getString("date");
-        authorId = rs.getInt("from_user_id");
-
-        String authorName = "none";
-        ResultSet authorRS = null;
-        PreparedStatement authorStmt = null;
-        try
-        {
-          authorStmt = conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-          authorStmt.setInt(1, authorId);
-          authorRS = authorStmt.executeQuery();
-          if (authorRS.first())
-            authorName = authorRS.getString("nickname");
-          authorStmt.close();
-        }
-        catch (Exception e)
-        {
-          sp.printHTML("Failed to execute Query for the comment author: " + e);
-          conn.rollback();
-          if (authorStmt != null)
-             authorStmt.close();
-          closeConnection(stmt, conn);
-          return false;
-        }
-        sp.printComment(authorName, authorId, date, comment);
-      }
-      while (rs.next());      
-      sp.printCommentFooter();
-      conn.commit();
-      stmt.close();
+      printCommentTable(conn, sp, userId.intValue());
     }
     catch (Exception e)
     {
       sp.printHTML("Exception getting comment list: " + e + "<br>");
-      try
-      {
-        conn.rollback();
-        closeConnection(stmt, conn);
-        return false;
-      }
-      catch (Exception se)
-      {
-        sp.printHTML("Transaction rollback failed: " + e + "<br>");
-        closeConnection(stmt, conn);
-        return false;
-      }
+      closeConnection(stmt, conn);
+      return false;
     }
     return true;
   }
@@ -612,7 +410,7 @@ public class AboutMe extends RubisHttpServlet
     {
       stmt =
         conn.prepareStatement(
-          "SELECT item_id, bids.max_bid FROM bids, items WHERE bids.user_id=? AND bids.item_id=items.id AND items.end_date>=NOW() GROUP BY item_id");
+          "SELECT items.id, items.name, items.initial_price, items.quantity, items.start_date, items.end_date, items.seller, items.max_bid, users.nickname, MAX(bids.max_bid) AS user_max_bid FROM bids, items, users WHERE bids.user_id=? AND bids.item_id=items.id AND items.seller=users.id AND items.end_date>=NOW() GROUP BY items.id, items.name, items.initial_price, items.quantity, items.start_date, items.end_date, items.seller, items.max_bid, users.nickname");
       stmt.setInt(1, userId.intValue());
       bid = stmt.executeQuery();
       if (!bid.first())
@@ -631,84 +429,27 @@ public class AboutMe extends RubisHttpServlet
     }
 
     sp.printUserBidsHeader();
-    ResultSet rs = null;
-    PreparedStatement itemStmt = null;
     try
     {
       do
       {
-        itemId = bid.getInt("item_id");
-        maxBid = bid.getFloat("max_bid");
-        try
-        {
-          itemStmt = conn.prepareStatement("SELECT * FROM items WHERE id=?");
-          itemStmt.setInt(1, itemId);
-          rs = itemStmt.executeQuery();
-        }
-        catch (Exception e)
-        {
-          sp.printHTML(
-            "Failed to execute Query for item the user has bid on: " + e);
-          if (itemStmt != null)
-            itemStmt.close();
-          closeConnection(stmt, conn);
-          return false;
-        }
-
-        // Get the name of the items
+        // The item and its seller come with the bids
         try
         {
-          if (!rs.first())
-          {
-            sp.printHTML("<h3>Failed to get items.</h3><br>");
-            itemStmt.close();
-            closeConnection(stmt, conn);
-            return false;
-          }
-          itemName = rs.getString("name");
-          initialPrice = rs.getFloat("initial_price");
-          quantity = rs.getInt("quantity");
-          startDate = rs.getString("start_date");
-          endDate = rs.getString("end_date");
-          sellerId = rs.getInt("seller");
-
-          currentPrice = rs.getFloat("max_bid");
+          itemId = bid.getInt("id");
+          maxBid = bid.getFloat("user_max_bid");
+          itemName = bid.getString("name");
+          initialPrice = bid.getFloat("initial_price");
+          quantity = bid.getInt("quantity");
+          startDate = bid.getString("start_date");
+          endDate = bid.getString("end_date");
+          sellerId = bid.getInt("seller");
+
+          currentPrice = bid.getFloat("max_bid");
           if (currentPrice < initialPrice)
             currentPrice = initialPrice;
-            
-          itemStmt.close();
 
-          PreparedStatement sellerStmt = null;
-          try
-          {
-            sellerStmt =
-              conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-            sellerStmt.setInt(1, sellerId);
-            ResultSet sellerResult = sellerStmt.executeQuery();
-            // Get the seller's name		 
-            if (sellerResult.first())
-              sellerName = sellerResult.getString("nickname");
-            else
-            {
-              sp.printHTML("Unknown seller");
-              closeConnection(stmt, conn);
-              if (sellerStmt != null)
-                sellerStmt.close();
-              return false;
-            }
-             sellerStmt.close();
-
-          }
-          catch (Exception e)
-          {
-            sp.printHTML("Failed to execute Query for seller (bids): " + e);          
-            if (itemStmt != null)
-            itemStmt.close();
-            if (sellerStmt != null)
-              sellerStmt.close();
-            closeConnection(stmt, conn);
-            return false;
-          }
+          sellerName = bid.getString("nickname");
         }
         catch (Exception e)
         {
@@ -772,7 +513,6 @@ public class AboutMe extends RubisHttpServlet
   {
     String password = null, username = null;
     Integer userId = null;
-    ResultSet rs = null;
     PreparedStatement stmt = null;
     Connection conn = null;
     ServletPrinter sp = null;
@@ -781,7 +521,7 @@ public class AboutMe extends RubisHttpServlet
 
     username = request.getParameter("nickname");
     password = request.getParameter("password");
-    conn = getConnection();
+    conn = getReadOnlyConnection();
     // Authenticate the user
     if ((username != null && username != "")
       || (password != null && password != ""))
@@ -791,7 +531,7 @@ public class AboutMe extends RubisHttpServlet
       if (id == -1)
       {
         printError("You don't have an account on RUBiS!<br>You have to register first.<br>", sp);
-        closeConnection(conn);
+        closeConnection(stmt, conn);
         return;
       }
       userId = new Integer(id);
@@ -799,38 +539,26 @@ public class AboutMe extends RubisHttpServlet
     else
     {
       printError(" You must provide valid username and password.", sp);
-      return;
-    }
-    // Try to find the user corresponding to the userId
-    try
-    {
-      stmt = conn.prepareStatement("SELECT * FROM users WHERE id=?");
-      stmt.setInt(1, userId.intValue());
-      rs = stmt.executeQuery();
-    }
-    catch (Exception e)
-    {
-      sp.printHTML("Failed to execute Query for user: " + e);
       closeConnection(stmt, conn);
-      sp.printHTMLfooter();
       return;
     }
+    // Try to find the user corresponding to the userId
     try
     {
-      if (!rs.first())
+      Row user = getUser(conn, userId.intValue());
+      if (user == null)
       {
         sp.printHTML("<h2>This user does not exist!</h2>");
         closeConnection(stmt, conn);
         sp.printHTMLfooter();
         return;
       }
-      String firstname = rs.getString("firstname");
-      String lastname = rs.getString("lastname");
-      String nickname = rs.getString("nickname");
-      String email = rs.getString("email");
-      String date = rs.getString("creation_date");
-      int rating = rs.getInt("rating");
-      stmt.close();
+      String firstname = user.getString("firstname");
+      String lastname = user.getString("lastname");
+      String nickname = user.getString("nickname");
+      String email = user.getString("email");
+      String date = user.getString("creation_date");
+      int rating = user.getInt("rating");
 
       String result = new String();
 
@@ -844,7 +572,7 @@ public class AboutMe extends RubisHttpServlet
       sp.printHTML(result);
 
     }
-    catch (SQLException s)
+    catch (Exception s)
     {
       sp.printHTML("Failed to get general information about the user: " + s);
       closeConnection(stmt, conn);
@@ -868,6 +596,9 @@ public class AboutMe extends RubisHttpServlet
         connAlive = listComment(userId, stmt, conn, sp);
     }
 
+    if (connAlive) {
+        sp.printHTML("<!-- " + getNbOfQueries(conn) + " queries -->");
+    }
     sp.printHTMLfooter();
     if (connAlive) {
         closeConnection(stmt, conn);
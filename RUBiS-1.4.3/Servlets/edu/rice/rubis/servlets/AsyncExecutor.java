@@ -0,0 +1,158 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads running the requests of a servlet in asynchronous mode, so that
+ * the container threads are not held while the servlet waits for the
+ * database. There are as many threads as the servlet has connections in
+ * its pool size, and a bounded queue in front of them: a request that
+ * finds the queue full is refused, and the servlet answers that it is
+ * overloaded instead of letting the requests pile up. The time requests
+ * spend in the queue is recorded and printed when the executor is shut
+ * down.
+ *
+ * @version 1.0
+ */
+public class AsyncExecutor
+{
+  private String             name;
+  private ThreadPoolExecutor executor;
+
+  // Statistics
+  private AtomicLong nbOfRequests = new AtomicLong();
+  private AtomicLong nbOfRejected = new AtomicLong();
+  private AtomicLong totalQueueTime = new AtomicLong(); // ns
+  private AtomicLong maxQueueTime = new AtomicLong();   // ns
+
+  /**
+   * Creates a new <code>AsyncExecutor</code> instance.
+   *
+   * @param servletName name of the servlet, used to name the threads
+   * @param nbOfThreads number of threads
+   * @param queueSize number of requests that can wait for a thread
+   */
+  public AsyncExecutor(String servletName, int nbOfThreads, int queueSize)
+  {
+    name = servletName;
+    final AtomicInteger n = new AtomicInteger();
+    executor = new ThreadPoolExecutor(nbOfThreads, nbOfThreads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(
+            queueSize, 1)), new ThreadFactory()
+          {
+            public Thread newThread(Runnable r)
+            {
+              Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue a request.
+   *
+   * @param request the work of the request
+   * @return false if the queue is full and the request was refused
+   */
+  public boolean submit(final Runnable request)
+  {
+    nbOfRequests.incrementAndGet();
+    final long queued = System.nanoTime();
+    try
+    {
+      executor.execute(new Runnable()
+        {
+          public void run()
+          {
+            long wait = System.nanoTime() - queued;
+            totalQueueTime.addAndGet(wait);
+            long max;
+            while (wait > (max = maxQueueTime.get()))
+              if (maxQueueTime.compareAndSet(max, wait))
+                break;
+            request.run();
+          }
+        });
+      return true;
+    }
+    catch (RejectedExecutionException e)
+    {
+      nbOfRejected.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Get the number of requests waiting for a thread.
+   *
+   * @return length of the queue
+   */
+  public int getQueueLength()
+  {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Let the queued requests finish and stop the threads.
+   */
+  public void shutdown()
+  {
+    executor.shutdown();
+    try
+    {
+      executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    System.out.println(this);
+  }
+
+  /**
+   * Summary of the executor statistics.
+   *
+   * @return statistics
+   */
+  public String toString()
+  {
+    long accepted = nbOfRequests.get() - nbOfRejected.get();
+    return "AsyncExecutor " + name + ": " + nbOfRequests.get()
+        + " requests, " + nbOfRejected.get() + " refused, queued "
+        + String.format("%.3f", (accepted == 0) ? 0.0
+            : totalQueueTime.get() / 1000000.0 / accepted)
+        + " ms on average (max "
+        + String.format("%.3f", maxQueueTime.get() / 1000000.0) + " ms)";
+  }
+}
@@ -114,7 +114,7 @@ public class BrowseCategories extends RubisHttpServlet
     username = request.getParameter("nickname");
     password = request.getParameter("password");
 
-    conn = getConnection();
+    conn = getReadOnlyConnection();
 
     // Authenticate the user who want to sell items
     if ((username != null && username != "")
@@ -50,7 +50,7 @@ public class BrowseRegions extends RubisHttpServlet
     // get the list of regions
     try
     {
-      conn = getConnection();
+      conn = getReadOnlyConnection();
 
       stmt = conn.prepareStatement("SELECT name, id FROM regions");
       rs = stmt.executeQuery();
@@ -128,16 +128,13 @@ public class BuyNow extends RubisHttpServlet
       String sellerName = null;
       try
       {
-        stmt = conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-        stmt.setInt(1, sellerId);
-        ResultSet srs = stmt.executeQuery();
-        if (!srs.first())
+        sellerName = getNickname(conn, sellerId);
+        if (sellerName == null)
         {
           printError("This user does not exist in the database.", sp);
           closeConnection(stmt, conn);
           return;
         }
-        sellerName = srs.getString("nickname");
       }
       catch (SQLException s)
       {
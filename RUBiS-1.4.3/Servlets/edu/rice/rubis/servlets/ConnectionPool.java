@@ -0,0 +1,729 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of JDBC connections shared by all the servlets accessing the same
+ * database. Each servlet adds its own pool size from <code>Config</code> to
+ * the capacity of the pool when it is initialized, so that the pool holds
+ * at most as many connections as the servlets used to have in total.
+ * <p>
+ * Idle connections are kept in a lock-free stack, the most recently used
+ * first. The capacity is enforced with a fair semaphore: a servlet finding
+ * no free slot waits in FIFO order up to <code>jdbc.connexcltimeout</code>
+ * seconds. The following properties of the database properties file are
+ * used:
+ * <pre>
+ * jdbc.connchecklevel  : 0 = no check, 1 = check that the connection is
+ *                        still open, 2 = run jdbc.connteststmt before
+ *                        reusing a connection
+ * jdbc.connmaxage      : minutes a connection is kept before being replaced
+ * jdbc.connexcltimeout : seconds to wait for a connection
+ * jdbc.stmtcachesize   : prepared statements cached per connection, 0 to
+ *                        disable the cache
+ * </pre>
+ * Connections are handed back with auto-commit enabled and any transaction
+ * left open rolled back.
+ * <p>
+ * Each connection keeps the prepared statements of the last SQL texts it
+ * executed, so that the servlets, which prepare the same statements on
+ * every request, do not make the database parse and plan them again.
+ * Servlets see a wrapper of the connection whose
+ * <code>prepareStatement(String)</code> returns a cached statement, and
+ * closing that statement only closes its result set and gives it back to
+ * the cache. Statements left open by a servlet are given back when the
+ * connection is released. The time spent waiting for a connection is
+ * recorded and printed when the pool is closed, and the number of
+ * statements a servlet prepared on its connection can be read with
+ * <code>getNbOfQueries</code>.
+ *
+ * @version 1.0
+ */
+public class ConnectionPool
+{
+  private static HashMap<String, ConnectionPool> pools =
+    new HashMap<String, ConnectionPool>();
+
+  private String url;
+  private String username;
+  private String password;
+  private String key;
+  private int    checkLevel;
+  private String testStatement;
+  private long   maxAge;      // ns
+  private long   waitTimeout; // ms
+  private int    statementCacheSize;
+  private int    capacity = 0;
+
+  private Permits permits = new Permits();
+  private ConcurrentLinkedDeque<PooledConnection> idle =
+    new ConcurrentLinkedDeque<PooledConnection>();
+  private ConcurrentHashMap<Connection, PooledConnection> inUse =
+    new ConcurrentHashMap<Connection, PooledConnection>();
+
+  // Statistics
+  private AtomicLong nbOfRequests = new AtomicLong();
+  private AtomicLong nbOfWaits = new AtomicLong();
+  private AtomicLong nbOfTimeouts = new AtomicLong();
+  private AtomicLong totalWaitTime = new AtomicLong(); // ns
+  private AtomicLong maxWaitTime = new AtomicLong();   // ns
+  private AtomicLong nbOfOpened = new AtomicLong();
+  private AtomicLong nbOfDiscarded = new AtomicLong();
+  private AtomicLong nbOfPrepared = new AtomicLong();
+  private AtomicLong nbOfCacheHits = new AtomicLong();
+
+  /**
+   * Fair semaphore whose number of permits can also be reduced.
+   */
+  private static class Permits extends Semaphore
+  {
+    private static final long serialVersionUID = 1L;
+
+    Permits()
+    {
+      super(0, true);
+    }
+
+    void reduce(int n)
+    {
+      reducePermits(n);
+    }
+  }
+
+  /**
+   * A physical connection, its age and its statement cache. The connection
+   * handed to the servlets is <code>proxy</code>.
+   */
+  private static class PooledConnection implements InvocationHandler
+  {
+    Connection connection;
+    Connection proxy;
+    long       creationTime;
+    ConnectionPool pool;
+    LinkedHashMap<String, CachedStatement> statements;
+    ArrayList<CachedStatement> borrowed = new ArrayList<CachedStatement>();
+    /** Statements prepared since the connection was borrowed */
+    int        nbOfQueries;
+    /** Whether the proxy was released, so that closing it twice is a no-op */
+    volatile boolean closed = true;
+
+    PooledConnection(Connection c, ConnectionPool owner)
+    {
+      connection = c;
+      creationTime = System.nanoTime();
+      pool = owner;
+      proxy = (Connection) Proxy.newProxyInstance(
+          Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, this);
+      if (pool.statementCacheSize <= 0)
+        return;
+      final int cacheSize = pool.statementCacheSize;
+      statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true)
+        {
+          protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest)
+          {
+            if (size() <= cacheSize)
+              return false;
+            CachedStatement s = eldest.getValue();
+            s.evicted = true;
+            if (!s.inUse)
+              s.closePhysical();
+            return true;
+          }
+        };
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable
+    {
+      String name = method.getName();
+      if (name.equals("prepareStatement") && (args.length == 1))
+        return prepareStatement((String) args[0]);
+      if (name.equals("close"))
+      {
+        if (!closed)
+          pool.releaseConnection((Connection) proxy);
+        return null;
+      }
+      if (name.equals("isClosed") && closed)
+        return Boolean.TRUE;
+      if (name.equals("equals"))
+        return Boolean.valueOf(proxy == args[0]);
+      if (name.equals("hashCode"))
+        return Integer.valueOf(System.identityHashCode(proxy));
+      return invokePhysical(connection, method, args);
+    }
+
+    /**
+     * Get a statement from the cache, preparing it if needed. A statement
+     * already in use, for example by a nested query, is not shared: a new
+     * uncached statement is prepared instead.
+     */
+    private PreparedStatement prepareStatement(String sql) throws SQLException
+    {
+      nbOfQueries++;
+      if (statements == null)
+        return connection.prepareStatement(sql);
+      CachedStatement s = statements.get(sql);
+      if (s == null)
+      {
+        s = new CachedStatement(sql, connection.prepareStatement(sql), this);
+        statements.put(sql, s);
+        pool.nbOfPrepared.incrementAndGet();
+      }
+      else if (s.inUse)
+        return connection.prepareStatement(sql);
+      else
+        pool.nbOfCacheHits.incrementAndGet();
+      s.inUse = true;
+      borrowed.add(s);
+      return s.proxy;
+    }
+
+    /**
+     * Give back to the cache the statements that were not closed.
+     */
+    void releaseStatements()
+    {
+      for (int i = 0; i < borrowed.size(); i++)
+        borrowed.get(i).release();
+      borrowed.clear();
+    }
+  }
+
+  /**
+   * A prepared statement kept open in the cache of a connection.
+   */
+  private static class CachedStatement implements InvocationHandler
+  {
+    String            sql;
+    PreparedStatement statement;
+    PreparedStatement proxy;
+    PooledConnection  owner;
+    ResultSet         resultSet = null;
+    boolean           inUse = false;
+    boolean           evicted = false;
+
+    CachedStatement(String text, PreparedStatement s, PooledConnection connection)
+    {
+      sql = text;
+      statement = s;
+      owner = connection;
+      proxy = (PreparedStatement) Proxy.newProxyInstance(
+          PreparedStatement.class.getClassLoader(),
+          new Class<?>[] {PreparedStatement.class}, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable
+    {
+      String name = method.getName();
+      if (name.equals("close"))
+      {
+        release();
+        return null;
+      }
+      if (name.equals("isClosed"))
+        return Boolean.valueOf(!inUse);
+      if (!inUse)
+        throw new SQLException("Statement is closed");
+      if (name.equals("getConnection"))
+        return owner.proxy;
+      if (name.equals("equals"))
+        return Boolean.valueOf(proxy == args[0]);
+      if (name.equals("hashCode"))
+        return Integer.valueOf(System.identityHashCode(proxy));
+      Object result = invokePhysical(statement, method, args);
+      if (result instanceof ResultSet)
+        resultSet = (ResultSet) result;
+      return result;
+    }
+
+    /**
+     * Close the result set and make the statement available again.
+     */
+    void release()
+    {
+      if (!inUse)
+        return;
+      inUse = false;
+      try
+      {
+        if (resultSet != null)
+          resultSet.close();
+        statement.clearParameters();
+      }
+      catch (SQLException e)
+      { // Do not reuse a statement in an unknown state
+        if (owner.statements.get(sql) == this)
+          owner.statements.remove(sql);
+        evicted = true;
+      }
+      resultSet = null;
+      if (evicted)
+        closePhysical();
+    }
+
+    void closePhysical()
+    {
+      try
+      {
+        statement.close();
+      }
+      catch (SQLException ignore)
+      {
+      }
+    }
+  }
+
+  /**
+   * Call a method of a JDBC object, throwing the exceptions of the method
+   * itself.
+   *
+   * @param target JDBC object
+   * @param method method to call
+   * @param args arguments
+   * @return the result of the method
+   * @exception Throwable exception thrown by the method
+   */
+  private static Object invokePhysical(Object target, Method method,
+      Object[] args) throws Throwable
+  {
+    try
+    {
+      return method.invoke(target, args);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Creates a new <code>ConnectionPool</code> instance.
+   *
+   * @param dbProperties database properties
+   * @param poolKey key of the pool in the registry
+   */
+  private ConnectionPool(Properties dbProperties, String poolKey)
+  {
+    key = poolKey;
+    url = dbProperties.getProperty("datasource.url");
+    username = dbProperties.getProperty("datasource.username");
+    password = dbProperties.getProperty("datasource.password");
+    checkLevel = Integer.parseInt(dbProperties.getProperty("jdbc.connchecklevel", "1").trim());
+    testStatement = dbProperties.getProperty("jdbc.connteststmt", "select 1").trim();
+    maxAge = TimeUnit.MINUTES.toNanos(
+        Long.parseLong(dbProperties.getProperty("jdbc.connmaxage", "30").trim()));
+    waitTimeout = TimeUnit.SECONDS.toMillis(
+        Long.parseLong(dbProperties.getProperty("jdbc.connexcltimeout", "30").trim()));
+    statementCacheSize = Integer.parseInt(dbProperties.getProperty("jdbc.stmtcachesize", "64").trim());
+  }
+
+  /**
+   * Get the pool of the database described by the given properties and add
+   * capacity to it. The pool is created on the first call.
+   *
+   * @param dbProperties database properties
+   * @param size number of connections added to the capacity of the pool
+   * @return the pool
+   */
+  public static synchronized ConnectionPool getPool(Properties dbProperties,
+      int size)
+  {
+    String key = dbProperties.getProperty("datasource.url") + "|"
+        + dbProperties.getProperty("datasource.username");
+    ConnectionPool pool = pools.get(key);
+    if (pool == null)
+    {
+      pool = new ConnectionPool(dbProperties, key);
+      pools.put(key, pool);
+    }
+    pool.addCapacity(size);
+    return pool;
+  }
+
+  /**
+   * Add capacity to the pool.
+   *
+   * @param size number of connections to add
+   */
+  private synchronized void addCapacity(int size)
+  {
+    capacity += size;
+    permits.release(size);
+  }
+
+  /**
+   * Remove capacity from the pool, for example when a servlet is destroyed.
+   * When no capacity is left, the idle connections are closed and the
+   * statistics of the pool are printed.
+   *
+   * @param size number of connections to remove
+   */
+  public void release(int size)
+  {
+    synchronized (ConnectionPool.class)
+    {
+      synchronized (this)
+      {
+        capacity -= size;
+        permits.reduce(size);
+        if (capacity > 0)
+          return;
+        pools.remove(key);
+      }
+    }
+    PooledConnection p;
+    while ((p = idle.pollFirst()) != null)
+      close(p);
+    System.out.println(this);
+  }
+
+  /**
+   * Open a new physical connection.
+   *
+   * @return the connection
+   * @exception SQLException if the database cannot be reached
+   */
+  private PooledConnection open() throws SQLException
+  {
+    PooledConnection p = new PooledConnection(
+        DriverManager.getConnection(url, username, password), this);
+    nbOfOpened.incrementAndGet();
+    return p;
+  }
+
+  /**
+   * Close a physical connection.
+   *
+   * @param p the connection
+   */
+  private void close(PooledConnection p)
+  {
+    nbOfDiscarded.incrementAndGet();
+    try
+    {
+      p.connection.close();
+    }
+    catch (Exception ignore)
+    {
+    }
+  }
+
+  /**
+   * Check whether an idle connection can be reused.
+   *
+   * @param p the connection
+   * @return true if the connection is usable
+   */
+  private boolean isValid(PooledConnection p)
+  {
+    if (System.nanoTime() - p.creationTime > maxAge)
+      return false;
+    try
+    {
+      if (checkLevel == 0)
+        return true;
+      if (p.connection.isClosed())
+        return false;
+      if (checkLevel == 1)
+        return true;
+      Statement stmt = p.connection.createStatement();
+      ResultSet rs = stmt.executeQuery(testStatement);
+      rs.close();
+      stmt.close();
+      return true;
+    }
+    catch (SQLException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Get a connection, waiting for one to be released if the pool is
+   * exhausted.
+   *
+   * @return a connection
+   * @exception SQLException if no connection was available before the
+   *              timeout or a new connection could not be opened
+   */
+  public Connection getConnection() throws SQLException
+  {
+    nbOfRequests.incrementAndGet();
+    boolean free = false;
+    try
+    {
+      // Unlike tryAcquire(), this does not overtake the servlets waiting
+      free = permits.tryAcquire(0, TimeUnit.NANOSECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    if (!free)
+    {
+      long start = System.nanoTime();
+      boolean acquired = false;
+      try
+      {
+        acquired = permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      long wait = System.nanoTime() - start;
+      nbOfWaits.incrementAndGet();
+      totalWaitTime.addAndGet(wait);
+      long max;
+      while (wait > (max = maxWaitTime.get()))
+        if (maxWaitTime.compareAndSet(max, wait))
+          break;
+      if (!acquired)
+      {
+        nbOfTimeouts.incrementAndGet();
+        throw new SQLException("No database connection available after "
+            + waitTimeout + " ms (" + capacity + " connections in use)");
+      }
+    }
+
+    PooledConnection p;
+    try
+    {
+      while ((p = idle.pollFirst()) != null)
+      {
+        if (isValid(p))
+          break;
+        close(p);
+      }
+      if (p == null)
+        p = open();
+    }
+    catch (SQLException e)
+    {
+      permits.release();
+      throw e;
+    }
+    p.nbOfQueries = 0;
+    p.closed = false;
+    inUse.put(p.proxy, p);
+    return p.proxy;
+  }
+
+  /**
+   * Give a connection back to the pool.
+   *
+   * @param c a connection obtained from <code>getConnection</code>
+   */
+  public void releaseConnection(Connection c)
+  {
+    PooledConnection p = inUse.remove(c);
+    if (p == null)
+    {
+      if (Proxy.isProxyClass(c.getClass()))
+      {
+        Object h = Proxy.getInvocationHandler(c);
+        if ((h instanceof PooledConnection)
+            && (((PooledConnection) h).pool == this))
+          return; // Already released
+      }
+      // Not from this pool
+      try
+      {
+        c.close();
+      }
+      catch (Exception ignore)
+      {
+      }
+      return;
+    }
+    p.closed = true;
+    boolean reusable = System.nanoTime() - p.creationTime <= maxAge;
+    if (p.statements != null)
+      p.releaseStatements();
+    try
+    {
+      if (reusable && !p.connection.getAutoCommit())
+      {
+        p.connection.rollback();
+        p.connection.setAutoCommit(true);
+      }
+    }
+    catch (SQLException e)
+    {
+      reusable = false;
+    }
+    if (reusable)
+      idle.offerFirst(p);
+    else
+      close(p);
+    permits.release();
+  }
+
+  /**
+   * Get the number of statements prepared on a connection since it was
+   * borrowed from the pool. The servlets prepare one statement per query,
+   * so this is the number of queries the page sent to the database.
+   *
+   * @param c a connection obtained from <code>getConnection</code>
+   * @return number of statements prepared, -1 if the connection is not
+   *         from this pool
+   */
+  public int getNbOfQueries(Connection c)
+  {
+    PooledConnection p = inUse.get(c);
+    return (p == null) ? -1 : p.nbOfQueries;
+  }
+
+  /**
+   * Get the number of connection requests.
+   *
+   * @return number of calls to <code>getConnection</code>
+   */
+  public long getNbOfRequests()
+  {
+    return nbOfRequests.get();
+  }
+
+  /**
+   * Get the number of requests that had to wait for a connection.
+   *
+   * @return number of waits
+   */
+  public long getNbOfWaits()
+  {
+    return nbOfWaits.get();
+  }
+
+  /**
+   * Get the number of requests that got no connection.
+   *
+   * @return number of timeouts
+   */
+  public long getNbOfTimeouts()
+  {
+    return nbOfTimeouts.get();
+  }
+
+  /**
+   * Get the total time spent waiting for a connection.
+   *
+   * @return wait time in ms
+   */
+  public double getTotalWaitTime()
+  {
+    return totalWaitTime.get() / 1000000.0;
+  }
+
+  /**
+   * Get the longest time spent waiting for a connection.
+   *
+   * @return wait time in ms
+   */
+  public double getMaxWaitTime()
+  {
+    return maxWaitTime.get() / 1000000.0;
+  }
+
+  /**
+   * Get the number of statements prepared by the statement caches.
+   *
+   * @return number of statements prepared
+   */
+  public long getNbOfPreparedStatements()
+  {
+    return nbOfPrepared.get();
+  }
+
+  /**
+   * Get the number of statements taken from the statement caches without
+   * being prepared again.
+   *
+   * @return number of cache hits
+   */
+  public long getNbOfStatementCacheHits()
+  {
+    return nbOfCacheHits.get();
+  }
+
+  /**
+   * Get the number of connections currently used by the servlets.
+   *
+   * @return number of borrowed connections
+   */
+  public int getNbOfActiveConnections()
+  {
+    return inUse.size();
+  }
+
+  /**
+   * Get the number of idle connections.
+   *
+   * @return number of connections in the pool
+   */
+  public int getNbOfIdleConnections()
+  {
+    return idle.size();
+  }
+
+  /**
+   * Summary of the pool statistics.
+   *
+   * @return statistics
+   */
+  public String toString()
+  {
+    long waits = nbOfWaits.get();
+    return "ConnectionPool " + url + ": " + nbOfRequests.get() + " requests, "
+        + waits + " waited (average " + String.format("%.3f",
+        (waits == 0) ? 0.0 : getTotalWaitTime() / waits) + " ms, max "
+        + String.format("%.3f", getMaxWaitTime()) + " ms), "
+        + nbOfTimeouts.get() + " timeouts, " + nbOfOpened.get()
+        + " connections opened, " + nbOfDiscarded.get() + " closed, "
+        + nbOfPrepared.get() + " statements prepared, " + nbOfCacheHits.get()
+        + " reused";
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable byte buffer in which <code>ServletPrinter</code> renders HTML.
+ * Static parts of a page are precompiled UTF-8 segments; values are
+ * formatted straight into the buffer, in the same form as string
+ * concatenation gives them, so that rendering a row allocates nothing.
+ * A buffer is reused by the requests of a thread.
+ *
+ * @version 1.0
+ */
+class HTMLBuffer
+{
+  private static final byte[] HEX = segment("0123456789ABCDEF");
+  private static final byte[] NULL = segment("null");
+
+  private byte[] buf = new byte[4096];
+  private int    count = 0;
+
+  /**
+   * Precompile a static segment of HTML.
+   *
+   * @param html the HTML
+   * @return the segment, to give to <code>append</code>
+   */
+  static byte[] segment(String html)
+  {
+    return html.getBytes(StandardCharsets.UTF_8);
+  }
+
+  HTMLBuffer reset()
+  {
+    count = 0;
+    return this;
+  }
+
+  private void ensure(int n)
+  {
+    if (count + n > buf.length)
+    {
+      byte[] b = new byte[Math.max(buf.length * 2, count + n)];
+      System.arraycopy(buf, 0, b, 0, count);
+      buf = b;
+    }
+  }
+
+  HTMLBuffer append(byte[] segment)
+  {
+    ensure(segment.length);
+    System.arraycopy(segment, 0, buf, count, segment.length);
+    count += segment.length;
+    return this;
+  }
+
+  /** Append a string encoded in UTF-8 */
+  HTMLBuffer append(String s)
+  {
+    if (s == null)
+      return append(NULL);
+    int len = s.length();
+    ensure(len * 3);
+    for (int i = 0; i < len; i++)
+    {
+      char c = s.charAt(i);
+      if (c < 0x80)
+        buf[count++] = (byte) c;
+      else if (c < 0x800)
+      {
+        buf[count++] = (byte) (0xc0 | (c >> 6));
+        buf[count++] = (byte) (0x80 | (c & 0x3f));
+      }
+      else if (Character.isSurrogate(c))
+      {
+        if (Character.isHighSurrogate(c) && (i + 1 < len)
+            && Character.isLowSurrogate(s.charAt(i + 1)))
+        {
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          buf[count++] = (byte) (0xf0 | (cp >> 18));
+          buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+          buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+          buf[count++] = (byte) (0x80 | (cp & 0x3f));
+        }
+        else
+          buf[count++] = '?';
+      }
+      else
+      {
+        buf[count++] = (byte) (0xe0 | (c >> 12));
+        buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[count++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return this;
+  }
+
+  HTMLBuffer append(int i)
+  {
+    return append((long) i);
+  }
+
+  HTMLBuffer append(long l)
+  {
+    ensure(20);
+    if (l < 0)
+    {
+      if (l == Long.MIN_VALUE)
+        return append(Long.toString(l));
+      buf[count++] = '-';
+      l = -l;
+    }
+    int start = count;
+    do
+    {
+      buf[count++] = (byte) ('0' + (l % 10));
+      l /= 10;
+    }
+    while (l > 0);
+    for (int i = start, j = count - 1; i < j; i++, j--)
+    {
+      byte b = buf[i];
+      buf[i] = buf[j];
+      buf[j] = b;
+    }
+    return this;
+  }
+
+  /**
+   * Append a float as <code>Float.toString</code> does. Prices, which have
+   * at most 2 decimals, are formatted without allocation.
+   */
+  HTMLBuffer append(float f)
+  {
+    // Below 1e5 the floats of two different prices are more than one ulp
+    // apart, so the price is the shortest decimal giving back the float.
+    if ((Float.floatToRawIntBits(f) >= 0) && (f < 100000f))
+    {
+      long cents = Math.round(f * 100.0);
+      if ((float) (cents / 100.0) == f)
+      {
+        append(cents / 100);
+        ensure(3);
+        buf[count++] = '.';
+        int c = (int) (cents % 100);
+        if (c % 10 == 0)
+          buf[count++] = (byte) ('0' + c / 10);
+        else
+        {
+          buf[count++] = (byte) ('0' + c / 10);
+          buf[count++] = (byte) ('0' + c % 10);
+        }
+        return this;
+      }
+    }
+    return append(Float.toString(f));
+  }
+
+  /**
+   * Append a string encoded as <code>URLEncoder</code> does with UTF-8.
+   */
+  HTMLBuffer appendURLEncoded(String s)
+  {
+    int len = s.length();
+    for (int i = 0; i < len; i++)
+    {
+      char c = s.charAt(i);
+      if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+          || ((c >= '0') && (c <= '9')) || (c == '.') || (c == '-')
+          || (c == '*') || (c == '_'))
+      {
+        ensure(1);
+        buf[count++] = (byte) c;
+      }
+      else if (c == ' ')
+      {
+        ensure(1);
+        buf[count++] = '+';
+      }
+      else
+      {
+        // Encode the character in UTF-8 at the end of the buffer, then
+        // escape its bytes in place from the end
+        int start = count;
+        if (Character.isHighSurrogate(c) && (i + 1 < len)
+            && Character.isLowSurrogate(s.charAt(i + 1)))
+          append(s.substring(i, i + 2));
+        else
+          append(s.substring(i, i + 1));
+        if (Character.isHighSurrogate(c) && (count - start == 4))
+          i++;
+        int n = count - start;
+        ensure(2 * n);
+        for (int j = n - 1; j >= 0; j--)
+        {
+          int b = buf[start + j] & 0xff;
+          buf[start + 3 * j] = '%';
+          buf[start + 3 * j + 1] = HEX[b >> 4];
+          buf[start + 3 * j + 2] = HEX[b & 0xf];
+        }
+        count = start + 3 * n;
+      }
+    }
+    return this;
+  }
+
+  void writeTo(OutputStream out) throws IOException
+  {
+    out.write(buf, 0, count);
+  }
+
+  byte[] toByteArray()
+  {
+    byte[] b = new byte[count];
+    System.arraycopy(buf, 0, b, 0, count);
+    return b;
+  }
+
+  public String toString()
+  {
+    return new String(buf, 0, count, StandardCharsets.UTF_8);
+  }
+}
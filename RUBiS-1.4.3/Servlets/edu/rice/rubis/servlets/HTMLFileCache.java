@@ -0,0 +1,88 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Static HTML files printed by the servlets, read once and kept in memory
+ * encoded in UTF-8, ready to be written to the response.
+ * A file is read again when it changes on disk, which is checked at most
+ * once per second.
+ *
+ * @version 1.0
+ */
+class HTMLFileCache
+{
+  /** Time between two checks of a file, in milliseconds */
+  private static final long CHECK_INTERVAL = 1000;
+
+  private static ConcurrentHashMap<String, HTMLFileCache> files =
+    new ConcurrentHashMap<String, HTMLFileCache>();
+
+  /** The file encoded in UTF-8 */
+  final byte[]  bytes;
+  private final long    modified;
+  private volatile long checked;
+
+  private HTMLFileCache(String text, long modified, long checked)
+  {
+    this.bytes = text.getBytes(StandardCharsets.UTF_8);
+    this.modified = modified;
+    this.checked = checked;
+  }
+
+  /**
+   * Get a file, reading it if it is not cached or has changed.
+   *
+   * @param filename path of the file
+   * @return the file
+   * @exception IOException if the file cannot be read
+   */
+  static HTMLFileCache get(String filename) throws IOException
+  {
+    HTMLFileCache f = files.get(filename);
+    long now = System.currentTimeMillis();
+    if (f != null)
+    {
+      if (now - f.checked < CHECK_INTERVAL)
+        return f;
+      f.checked = now;
+      if (new File(filename).lastModified() == f.modified)
+        return f;
+    }
+    File file = new File(filename);
+    long modified = file.lastModified();
+    // Decode the file as FileReader does
+    f = new HTMLFileCache(new String(Files.readAllBytes(file.toPath()),
+        Charset.defaultCharset()), modified, now);
+    files.put(filename, f);
+    return f;
+  }
+}
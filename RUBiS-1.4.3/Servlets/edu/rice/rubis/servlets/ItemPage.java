@@ -0,0 +1,229 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A page of the items listed by the search servlets, in end date order.
+ * The links to the next and previous pages carry the key
+ * <code>(end_date, id)</code> of the last or first item shown, and the page
+ * is fetched by seeking past that key instead of skipping
+ * <code>page * nbOfItems</code> rows, so a deep page costs as much as the
+ * first one. URLs with only <code>page=</code>, as the client emulator
+ * builds them, still use an offset.
+ *
+ * @version 1.0
+ */
+class ItemPage
+{
+  /** Columns read by <code>read</code> */
+  static final String COLUMNS =
+    "items.name, items.id, items.end_date, items.max_bid, items.nb_of_bids, items.initial_price";
+
+  private static final String FORWARD =
+    " AND (items.end_date>? OR (items.end_date=? AND items.id>?)) ORDER BY items.end_date ASC, items.id ASC LIMIT ?";
+  private static final String BACKWARD =
+    " AND (items.end_date<? OR (items.end_date=? AND items.id<?)) ORDER BY items.end_date DESC, items.id DESC LIMIT ?";
+  private static final String OFFSET =
+    " ORDER BY items.end_date ASC, items.id ASC LIMIT ?,?";
+
+  private static final byte[] PAGE = HTMLBuffer.segment("&page=");
+  private static final byte[] NB_OF_ITEMS = HTMLBuffer.segment("&nbOfItems=");
+  private static final byte[] AFTER = HTMLBuffer.segment("&after=");
+  private static final byte[] AFTER_ID = HTMLBuffer.segment("&afterId=");
+  private static final byte[] BEFORE = HTMLBuffer.segment("&before=");
+  private static final byte[] BEFORE_ID = HTMLBuffer.segment("&beforeId=");
+
+  final int    page;
+  final int    nbOfItems;
+  /** Key the page starts after, or null */
+  final String after;
+  final int    afterId;
+  /** Key the page ends before, or null */
+  final String before;
+  final int    beforeId;
+
+  // Items of the page
+  int              count;
+  private String[] names;
+  private int[]    ids;
+  private String[] endDates;
+  private float[]  maxBids;
+  private int[]    nbOfBids;
+
+  /**
+   * Read the page to show from the request parameters.
+   *
+   * @param request the request
+   * @exception NumberFormatException if a parameter is not a number
+   */
+  ItemPage(HttpServletRequest request)
+  {
+    String value = request.getParameter("page");
+    if ((value == null) || (value.equals("")))
+      page = 0;
+    else
+      page = Integer.parseInt(value);
+
+    value = request.getParameter("nbOfItems");
+    if ((value == null) || (value.equals("")))
+      nbOfItems = 25;
+    else
+      nbOfItems = Integer.parseInt(value);
+
+    value = request.getParameter("afterId");
+    after = (value == null) ? null : request.getParameter("after");
+    afterId = (after == null) ? 0 : Integer.parseInt(value);
+    value = request.getParameter("beforeId");
+    before = ((value == null) || (after != null)) ? null : request
+        .getParameter("before");
+    beforeId = (before == null) ? 0 : Integer.parseInt(value);
+  }
+
+  /**
+   * Get the end of the query selecting the items of the page, to append to
+   * its WHERE clause.
+   *
+   * @return the ORDER BY and LIMIT clauses, after the key condition if any
+   */
+  String seek()
+  {
+    if (after != null)
+      return FORWARD;
+    if (before != null)
+      return BACKWARD;
+    return OFFSET;
+  }
+
+  /**
+   * Set the parameters of the clauses returned by <code>seek</code>.
+   *
+   * @param stmt the statement
+   * @param index index of the first parameter of the clauses
+   * @exception SQLException if an error occurs
+   */
+  void bind(PreparedStatement stmt, int index) throws SQLException
+  {
+    if ((after != null) || (before != null))
+    {
+      String date = (after != null) ? after : before;
+      stmt.setString(index++, date);
+      stmt.setString(index++, date);
+      stmt.setInt(index++, (after != null) ? afterId : beforeId);
+    }
+    else
+      stmt.setInt(index++, page * nbOfItems);
+    stmt.setInt(index, nbOfItems);
+  }
+
+  /**
+   * Read the items of the page, selected with <code>COLUMNS</code>.
+   *
+   * @param rs the result of the query
+   * @exception SQLException if an error occurs
+   */
+  void read(ResultSet rs) throws SQLException
+  {
+    names = new String[nbOfItems];
+    ids = new int[nbOfItems];
+    endDates = new String[nbOfItems];
+    maxBids = new float[nbOfItems];
+    nbOfBids = new int[nbOfItems];
+    count = 0;
+    while ((count < nbOfItems) && rs.next())
+    {
+      // A page before a key is read backwards
+      int i = (before != null) ? nbOfItems - 1 - count : count;
+      names[i] = rs.getString("name");
+      ids[i] = rs.getInt("id");
+      endDates[i] = rs.getString("end_date");
+      maxBids[i] = rs.getFloat("max_bid");
+      nbOfBids[i] = rs.getInt("nb_of_bids");
+      float initialPrice = rs.getFloat("initial_price");
+      if (maxBids[i] < initialPrice)
+        maxBids[i] = initialPrice;
+      count++;
+    }
+    if ((before != null) && (count < nbOfItems))
+    {
+      int first = nbOfItems - count;
+      System.arraycopy(names, first, names, 0, count);
+      System.arraycopy(ids, first, ids, 0, count);
+      System.arraycopy(endDates, first, endDates, 0, count);
+      System.arraycopy(maxBids, first, maxBids, 0, count);
+      System.arraycopy(nbOfBids, first, nbOfBids, 0, count);
+    }
+  }
+
+  /**
+   * Print the items of the page.
+   *
+   * @param sp the printer
+   */
+  void print(ServletPrinter sp)
+  {
+    for (int i = 0; i < count; i++)
+      sp.printItem(names[i], ids[i], maxBids[i], nbOfBids[i], endDates[i]);
+  }
+
+  /**
+   * Append the parameters of the link to the previous page.
+   *
+   * @param b the buffer
+   */
+  void appendPrevious(HTMLBuffer b)
+  {
+    b.append(PAGE).append(page - 1).append(NB_OF_ITEMS).append(nbOfItems);
+    if (page == 1)
+      return; // The first page has a single URL
+    if (count > 0)
+      appendKey(b, BEFORE, endDates[0], BEFORE_ID, ids[0]);
+    else if (after != null)
+      // Nothing is left after the key, the previous page ends with it
+      appendKey(b, BEFORE, after, BEFORE_ID, afterId + 1);
+  }
+
+  /**
+   * Append the parameters of the link to the next page.
+   *
+   * @param b the buffer
+   */
+  void appendNext(HTMLBuffer b)
+  {
+    b.append(PAGE).append(page + 1).append(NB_OF_ITEMS).append(nbOfItems);
+    if (count > 0)
+      appendKey(b, AFTER, endDates[count - 1], AFTER_ID, ids[count - 1]);
+  }
+
+  private static void appendKey(HTMLBuffer b, byte[] date, String endDate,
+      byte[] id, int itemId)
+  {
+    b.append(date).appendURLEncoded(endDate).append(id).append(itemId);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of the nicknames of the users, shared by all the servlets
+ * accessing the same database. Most pages show the nickname of a seller or
+ * a bidder, and a few hot sellers account for most of them.
+ * <p>
+ * The cache is a fixed array of <code>jdbc.nicknamecachesize</code> slots
+ * (rounded up to a power of two) indexed by a hash of the user id, so it
+ * never grows and a new nickname simply evicts the one in its slot. Slots
+ * hold immutable entries and are read and written without locking. A
+ * nickname never changes once the user is registered; RegisterUser still
+ * invalidates the id it creates, in case the database was reloaded under
+ * the servlets. The hits and misses are printed when the cache is closed.
+ *
+ * @version 1.0
+ */
+public class NicknameCache
+{
+  private static HashMap<String, NicknameCache> caches =
+    new HashMap<String, NicknameCache>();
+
+  private String key;
+  private int    users = 0;
+  private AtomicReferenceArray<Entry> slots;
+  private int    shift;
+
+  // Statistics
+  private AtomicLong nbOfHits = new AtomicLong();
+  private AtomicLong nbOfMisses = new AtomicLong();
+  private AtomicLong nbOfInvalidations = new AtomicLong();
+
+  /** A user id and its nickname */
+  private static class Entry
+  {
+    final int    userId;
+    final String nickname;
+
+    Entry(int id, String name)
+    {
+      userId = id;
+      nickname = name;
+    }
+  }
+
+  private NicknameCache(String cacheKey, int size)
+  {
+    key = cacheKey;
+    int n = 2;
+    while (n < size)
+      n <<= 1;
+    slots = new AtomicReferenceArray<Entry>(n);
+    shift = 32 - Integer.numberOfTrailingZeros(n);
+  }
+
+  /**
+   * Get the cache of the database described by the given properties. The
+   * cache is created on the first call and closed when every caller has
+   * released it.
+   *
+   * @param dbProperties database properties
+   * @return the cache, or null if <code>jdbc.nicknamecachesize</code> is 0
+   */
+  public static synchronized NicknameCache getCache(Properties dbProperties)
+  {
+    int size = Integer.parseInt(dbProperties.getProperty(
+        "jdbc.nicknamecachesize", "4096").trim());
+    if (size <= 0)
+      return null;
+    String key = dbProperties.getProperty("datasource.url") + "|"
+        + dbProperties.getProperty("datasource.username");
+    NicknameCache cache = caches.get(key);
+    if (cache == null)
+    {
+      cache = new NicknameCache(key, size);
+      caches.put(key, cache);
+    }
+    cache.users++;
+    return cache;
+  }
+
+  /**
+   * Release the cache. The last caller closes it and prints its
+   * statistics.
+   */
+  public void release()
+  {
+    synchronized (NicknameCache.class)
+    {
+      if (--users > 0)
+        return;
+      caches.remove(key);
+    }
+    System.out.println(this);
+  }
+
+  private int slot(int userId)
+  {
+    return (userId * 0x9E3779B9) >>> shift;
+  }
+
+  /**
+   * Get the nickname of a user.
+   *
+   * @param userId id of the user
+   * @return the nickname, or null if it is not in the cache
+   */
+  public String get(int userId)
+  {
+    Entry e = slots.get(slot(userId));
+    if ((e != null) && (e.userId == userId))
+    {
+      nbOfHits.incrementAndGet();
+      return e.nickname;
+    }
+    nbOfMisses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Add the nickname of a user, evicting the one in its slot.
+   *
+   * @param userId id of the user
+   * @param nickname nickname read from the database
+   */
+  public void put(int userId, String nickname)
+  {
+    slots.set(slot(userId), new Entry(userId, nickname));
+  }
+
+  /**
+   * Forget the nickname of a user.
+   *
+   * @param userId id of the user
+   */
+  public void invalidate(int userId)
+  {
+    int i = slot(userId);
+    Entry e = slots.get(i);
+    if ((e != null) && (e.userId == userId) && slots.compareAndSet(i, e, null))
+      nbOfInvalidations.incrementAndGet();
+  }
+
+  /**
+   * Get the number of nicknames found in the cache.
+   *
+   * @return number of hits
+   */
+  public long getNbOfHits()
+  {
+    return nbOfHits.get();
+  }
+
+  /**
+   * Get the number of nicknames that had to be read from the database.
+   *
+   * @return number of misses
+   */
+  public long getNbOfMisses()
+  {
+    return nbOfMisses.get();
+  }
+
+  /**
+   * Summary of the cache statistics.
+   *
+   * @return statistics
+   */
+  public String toString()
+  {
+    long hits = nbOfHits.get();
+    long lookups = hits + nbOfMisses.get();
+    return "NicknameCache " + key + ": " + slots.length() + " slots, "
+        + lookups + " lookups, " + hits + " hits ("
+        + String.format("%.1f", (lookups == 0) ? 0.0 : 100.0 * hits / lookups)
+        + "%), " + nbOfInvalidations.get() + " invalidations";
+  }
+}
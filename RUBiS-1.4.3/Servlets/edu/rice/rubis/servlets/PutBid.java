@@ -134,30 +134,20 @@ public class PutBid extends RubisHttpServlet
       quantity = rs.getInt("quantity");
       sellerId = rs.getInt("seller");
       
-      PreparedStatement sellerStmt = null;
       try
       {
-        sellerStmt =
-          conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-        sellerStmt.setInt(1, sellerId);
-        ResultSet sellerResult = sellerStmt.executeQuery();
-        // Get the seller's name		 
-        if (sellerResult.first())
-          sellerName = sellerResult.getString("nickname");       
-        else
+        // Get the seller's name
+        sellerName = getNickname(conn, sellerId);
+        if (sellerName == null)
         {
           printError("Unknown seller", sp);
-          sellerStmt.close();
           closeConnection(stmt, conn);
           return;
         }
-        sellerStmt.close();
-
       }
       catch (SQLException e)
       {
         printError("Failed to executeQuery for seller: " + e, sp);
-        sellerStmt.close();
         closeConnection(stmt, conn);
         return;
       }
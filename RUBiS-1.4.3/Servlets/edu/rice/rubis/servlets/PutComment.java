@@ -104,16 +104,11 @@ public class PutComment extends RubisHttpServlet
     {
       Integer toId = new Integer(toStr);
       Integer itemId = new Integer(itemStr);
-      ResultSet urs, irs;
+      ResultSet irs;
       String toName = null, itemName = null;
       try
       {
-        stmt = conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-        stmt.setInt(1, toId.intValue());
-        urs = stmt.executeQuery();
-        if (urs.first())
-          toName = urs.getString("nickname");
-        stmt.close();
+        toName = getNickname(conn, toId.intValue());
       }
       catch (Exception e)
       {
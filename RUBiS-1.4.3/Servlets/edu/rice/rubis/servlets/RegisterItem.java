@@ -25,23 +25,6 @@ public class RegisterItem extends RubisHttpServlet
     return Config.RegisterItemPoolSize;
   }
 
-/**
- * Close both statement and connection.
- */
-  private void closeConnection(PreparedStatement stmt, Connection conn)
-  {
-    try
-    {
-      if (stmt != null)
-        stmt.close(); // close statement
-      if (conn != null)
-        releaseConnection(conn);
-    }
-    catch (Exception ignore)
-    {
-    }
-  }
-
 /**
  * Display an error message.
  * @param errorMsg the error message value
@@ -155,114 +138,91 @@ public class RegisterItem extends RubisHttpServlet
     userId = new Integer(request.getParameter("userId"));
     categoryId = new Integer(request.getParameter("categoryId"));
 
-     PreparedStatement stmt = null;
-     Connection conn = null;
+    final String itemName = name, itemDescription = description;
+    final float itemInitialPrice = initialPrice;
+    final float itemReservePrice = reservePrice, itemBuyNow = buyNow;
+    final int itemQuantity = quantity;
+    final String itemStartDate = startDate, itemEndDate = endDate;
+    final int seller = userId.intValue(), category = categoryId.intValue();
     try
     {
-      
-      conn = getConnection();
-      conn.setAutoCommit(false); // faster if made inside a Tx
-
-      // Try to create a new item
-      try
-      {
-        stmt =
-          conn.prepareStatement(
-            "INSERT INTO items VALUES (NULL, \""
-              + name
-              + "\", \""
-              + description
-              + "\", \""
-              + initialPrice
-              + "\", \""
-              + quantity
-              + "\", \""
-              + reservePrice
-              + "\", \""
-              + buyNow
-              + "\", 0, 0, \""
-              + startDate
-              + "\", \""
-              + endDate
-              + "\", \""
-              + userId
-              + "\", "
-              + categoryId
-              + ")");
-        stmt.executeUpdate();
-        stmt.close();
-      }
-      catch (SQLException e)
-      {
-        conn.rollback();
-        printError(
-          "RUBiS internal error: Item registration failed (got exception: "
-            + e
-            + ")<br>", sp);
-        closeConnection(stmt, conn);
-        return;
-      }
-      // To test if the item was correctly added in the database
-      try
-      {
-        stmt = conn.prepareStatement("SELECT id FROM items WHERE name=?");
-        stmt.setString(1, name);
-        ResultSet irs = stmt.executeQuery();
-        if (!irs.first())
+      itemId = ((Integer) runTransaction(new WritePipeline.Transaction()
         {
-          conn.rollback();
-          printError("This item does not exist in the database.", sp);
-          closeConnection(stmt, conn);
-          return;
-        }
-        itemId = irs.getInt("id");
-        
-      }
-      catch (SQLException e)
-      {
-        conn.rollback();
-        printError("Failed to execute Query for the new item: " + e, sp);
-        closeConnection(stmt, conn);
-        return;
-      }
-
-      sp.printHTMLheader("RUBiS: Item to sell " + name);
-      sp.printHTML("<h2>Your Item has been successfully registered.</h2><br>");
-      sp.printHTML(
-        "RUBiS has stored the following information about your item:<br>");
-      sp.printHTML("Name         : " + name + "<br>");
-      sp.printHTML("Description  : " + description + "<br>");
-      sp.printHTML("Initial price: " + initialPrice + "<br>");
-      sp.printHTML("ReservePrice : " + reservePrice + "<br>");
-      sp.printHTML("Buy Now      : " + buyNow + "<br>");
-      sp.printHTML("Quantity     : " + quantity + "<br>");
-      sp.printHTML("User id      :" + userId + "<br>");
-      sp.printHTML("Category id  :" + categoryId + "<br>");
-      sp.printHTML("Duration     : " + duration + "<br>");
-      sp.printHTML(
-        "<br>The following information has been automatically generated by RUBiS:<br>");
-      sp.printHTML("Start date   :" + startDate + "<br>");
-      sp.printHTML("End date     :" + endDate + "<br>");
-      sp.printHTML("item id      :" + itemId + "<br>");
-
-      conn.commit();
-      sp.printHTMLfooter();
-      closeConnection(stmt, conn);
+          public Object run(Connection conn) throws SQLException
+          {
+            // Try to create a new item
+            PreparedStatement stmt =
+              conn.prepareStatement(
+                "INSERT INTO items VALUES (NULL, ?, ?, ?, ?, ?, ?, 0, 0, ?, ?, ?, ?)");
+            try
+            {
+              stmt.setString(1, itemName);
+              stmt.setString(2, itemDescription);
+              stmt.setFloat(3, itemInitialPrice);
+              stmt.setInt(4, itemQuantity);
+              stmt.setFloat(5, itemReservePrice);
+              stmt.setFloat(6, itemBuyNow);
+              stmt.setString(7, itemStartDate);
+              stmt.setString(8, itemEndDate);
+              stmt.setInt(9, seller);
+              stmt.setInt(10, category);
+              stmt.executeUpdate();
+            }
+            finally
+            {
+              stmt.close();
+            }
+            // To test if the item was correctly added in the database
+            stmt = conn.prepareStatement("SELECT id FROM items WHERE name=?");
+            try
+            {
+              stmt.setString(1, itemName);
+              ResultSet irs = stmt.executeQuery();
+              if (!irs.first())
+                throw new WritePipeline.Abort(
+                  "This item does not exist in the database.");
+              return Integer.valueOf(irs.getInt("id"));
+            }
+            finally
+            {
+              stmt.close();
+            }
+          }
+        })).intValue();
+    }
+    catch (WritePipeline.Abort a)
+    {
+      printError(a.getMessage(), sp);
+      return;
     }
-    catch (Exception e)
+    catch (SQLException e)
     {
-      sp.printHTML("Exception getting comment list: " + e + "<br>");
-      try
-      {
-        conn.rollback();
-        closeConnection(stmt, conn);
-      }
-      catch (Exception se)
-      {
-        sp.printHTML("Transaction rollback failed: " + e + "<br>");
-        closeConnection(stmt, conn);
-      }
+      printError(
+        "RUBiS internal error: Item registration failed (got exception: "
+          + e
+          + ")<br>", sp);
+      return;
     }
+
+    sp.printHTMLheader("RUBiS: Item to sell " + name);
+    sp.printHTML("<h2>Your Item has been successfully registered.</h2><br>");
+    sp.printHTML(
+      "RUBiS has stored the following information about your item:<br>");
+    sp.printHTML("Name         : " + name + "<br>");
+    sp.printHTML("Description  : " + description + "<br>");
+    sp.printHTML("Initial price: " + initialPrice + "<br>");
+    sp.printHTML("ReservePrice : " + reservePrice + "<br>");
+    sp.printHTML("Buy Now      : " + buyNow + "<br>");
+    sp.printHTML("Quantity     : " + quantity + "<br>");
+    sp.printHTML("User id      :" + userId + "<br>");
+    sp.printHTML("Category id  :" + categoryId + "<br>");
+    sp.printHTML("Duration     : " + duration + "<br>");
+    sp.printHTML(
+      "<br>The following information has been automatically generated by RUBiS:<br>");
+    sp.printHTML("Start date   :" + startDate + "<br>");
+    sp.printHTML("End date     :" + endDate + "<br>");
+    sp.printHTML("item id      :" + itemId + "<br>");
+    sp.printHTMLfooter();
   }
 
   /** 
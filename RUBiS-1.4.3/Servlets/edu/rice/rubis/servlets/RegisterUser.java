@@ -154,82 +154,86 @@ public class RegisterUser extends RubisHttpServlet
         return;
       }
     }
+    closeConnection(stmt, conn);
     // Try to create a new user
+    final String userFirstname = firstname, userLastname = lastname;
+    final String userNickname = nickname, userPassword = password;
+    final String userEmail = email;
+    final int userRegion = regionId;
     try
     {
-      stmt =
-        conn.prepareStatement("SELECT nickname FROM users WHERE nickname=?");
-      stmt.setString(1, nickname);
-      ResultSet rs = stmt.executeQuery();
-      if (rs.first())
-      {
-        printError("The nickname you have choosen is already taken by someone else. Please choose a new nickname.<br>", sp);
-        closeConnection(stmt, conn);
-        return;
-      }
-      stmt.close();
+      Object[] user = (Object[]) runTransaction(new WritePipeline.Transaction()
+        {
+          public Object run(Connection conn) throws SQLException
+          {
+            PreparedStatement stmt =
+              conn.prepareStatement("SELECT nickname FROM users WHERE nickname=?");
+            try
+            {
+              stmt.setString(1, userNickname);
+              if (stmt.executeQuery().first())
+                throw new WritePipeline.Abort(
+                  "The nickname you have choosen is already taken by someone else. Please choose a new nickname.<br>");
+            }
+            finally
+            {
+              stmt.close();
+            }
+            String now = TimeManagement.currentDateToString();
+            stmt =
+              conn.prepareStatement(
+                "INSERT INTO users VALUES (NULL, ?, ?, ?, ?, ?, 0, 0, ?, ?)");
+            try
+            {
+              stmt.setString(1, userFirstname);
+              stmt.setString(2, userLastname);
+              stmt.setString(3, userNickname);
+              stmt.setString(4, userPassword);
+              stmt.setString(5, userEmail);
+              stmt.setString(6, now);
+              stmt.setInt(7, userRegion);
+              stmt.executeUpdate();
+            }
+            finally
+            {
+              stmt.close();
+            }
+            stmt =
+              conn.prepareStatement(
+                "SELECT id, creation_date FROM users WHERE nickname=?");
+            try
+            {
+              stmt.setString(1, userNickname);
+              ResultSet urs = stmt.executeQuery();
+              if (!urs.first())
+                throw new WritePipeline.Abort(
+                  "This user does not exist in the database.");
+              return new Object[] {Integer.valueOf(urs.getInt("id")),
+                  urs.getString("creation_date")};
+            }
+            finally
+            {
+              stmt.close();
+            }
+          }
+        });
+      userId = ((Integer) user[0]).intValue();
+      creationDate = (String) user[1];
     }
-    catch (SQLException e)
+    catch (WritePipeline.Abort a)
     {
-      printError("Failed to execute Query to check the nickname: " + e, sp);
-      closeConnection(stmt, conn);
+      printError(a.getMessage(), sp);
       return;
     }
-    try
-    {
-      String now = TimeManagement.currentDateToString();
-      stmt =
-        conn.prepareStatement(
-          "INSERT INTO users VALUES (NULL, \""
-            + firstname
-            + "\", \""
-            + lastname
-            + "\", \""
-            + nickname
-            + "\", \""
-            + password
-            + "\", \""
-            + email
-            + "\", 0, 0,\""
-            + now
-            + "\", "
-            + regionId
-            + ")");
-      stmt.executeUpdate();
-      stmt.close();
-    }
     catch (SQLException e)
     {
       printError(
         "RUBiS internal error: User registration failed (got exception: "
           + e
           + ")<br>", sp);
-      closeConnection(stmt, conn);
-      return;
-    }
-    try
-    {
-      stmt =
-        conn.prepareStatement(
-          "SELECT id, creation_date FROM users WHERE nickname=?");
-      stmt.setString(1, nickname);
-      ResultSet urs = stmt.executeQuery();
-      if (!urs.first())
-      {
-        printError("This user does not exist in the database.", sp);
-        closeConnection(stmt, conn);
-        return;
-      }
-      userId = urs.getInt("id");
-      creationDate = urs.getString("creation_date");
-    }
-    catch (SQLException e)
-    {
-      printError("Failed to execute Query for user: " + e, sp);
-      closeConnection(stmt, conn);
       return;
     }
-
+    invalidateNickname(userId);
 
     sp.printHTMLheader("RUBiS: Welcome to " + nickname);
     sp.printHTML(
@@ -248,7 +252,6 @@ public class RegisterUser extends RubisHttpServlet
     sp.printHTML("Creation date :" + creationDate + "<br>");
 
     sp.printHTMLfooter();
-    closeConnection(stmt, conn);
   }
 
   public void doPost(HttpServletRequest request, HttpServletResponse response)
@@ -0,0 +1,371 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes the connections of the pages that only read the database to the
+ * replicas listed in <code>datasource.replicas</code>, shared by all the
+ * servlets accessing the same primary database. Each replica has its own
+ * <code>ConnectionPool</code>, with the same capacity as the primary pool.
+ * <p>
+ * A replica is chosen in turn (<code>replica.policy</code> set to
+ * <code>roundrobin</code>) or as the one with the fewest borrowed
+ * connections (<code>leastloaded</code>). Every
+ * <code>replica.lagcheck</code> seconds, the page that borrows a connection
+ * of a replica first runs <code>replica.lagquery</code> on it; a replica
+ * more than <code>replica.maxlag</code> seconds behind the primary, or
+ * whose connection failed, is skipped until the next check. When no
+ * replica can be used, <code>getConnection</code> returns null and the
+ * servlet reads the primary instead.
+ *
+ * @version 1.0
+ */
+public class ReplicaRouter
+{
+  private static HashMap<String, ReplicaRouter> routers =
+    new HashMap<String, ReplicaRouter>();
+
+  private String    key;
+  private int       users = 0;
+  private Replica[] replicas;
+  private boolean   leastLoaded;
+  private long      maxLag;        // s, negative to never check
+  private long      checkInterval; // ns
+  private String    lagQuery;
+  private String    lagColumn;     // null for the first column
+  private AtomicInteger next = new AtomicInteger();
+  private ConcurrentHashMap<Connection, Replica> borrowed =
+    new ConcurrentHashMap<Connection, Replica>();
+
+  // Statistics
+  private AtomicLong nbOfFallbacks = new AtomicLong();
+
+  /** A replica, its pool and its last known lag */
+  private class Replica
+  {
+    final int        index;
+    final Properties properties;
+    final ConnectionPool pool;
+    volatile long    lag = 0;       // s, Long.MAX_VALUE if unusable
+    volatile long    nextCheck;     // ns
+    AtomicBoolean    checking = new AtomicBoolean();
+
+    // Statistics
+    AtomicLong nbOfConnections = new AtomicLong();
+    AtomicLong nbOfLagging = new AtomicLong();
+    AtomicLong nbOfFailures = new AtomicLong();
+
+    Replica(int i, Properties p, int size)
+    {
+      index = i;
+      properties = p;
+      pool = ConnectionPool.getPool(p, size);
+      nextCheck = System.nanoTime();
+    }
+
+    /**
+     * Whether the replica may be used: it was fresh at its last check, or
+     * it is time to check it again.
+     */
+    boolean isUsable(long now)
+    {
+      return (lag <= Math.max(maxLag, 0)) || (now - nextCheck >= 0);
+    }
+
+    /**
+     * Borrow a connection of the replica, checking its lag first if it is
+     * time to.
+     *
+     * @return the connection, or null if the replica failed or lags
+     */
+    Connection borrow(long now)
+    {
+      Connection c;
+      try
+      {
+        c = pool.getConnection();
+      }
+      catch (SQLException e)
+      {
+        nbOfFailures.incrementAndGet();
+        lag = Long.MAX_VALUE;
+        nextCheck = now + checkInterval;
+        return null;
+      }
+      if ((now - nextCheck >= 0) && checking.compareAndSet(false, true))
+      {
+        try
+        {
+          lag = (maxLag < 0) ? 0 : readLag(c);
+        }
+        catch (SQLException e)
+        {
+          nbOfFailures.incrementAndGet();
+          lag = Long.MAX_VALUE;
+        }
+        finally
+        {
+          nextCheck = now + checkInterval;
+          checking.set(false);
+        }
+      }
+      if (lag > Math.max(maxLag, 0))
+      {
+        nbOfLagging.incrementAndGet();
+        pool.releaseConnection(c);
+        return null;
+      }
+      nbOfConnections.incrementAndGet();
+      return c;
+    }
+
+    public String toString()
+    {
+      return properties.getProperty("datasource.url") + " "
+          + nbOfConnections.get() + " connections, " + nbOfLagging.get()
+          + " skipped lagging, " + nbOfFailures.get() + " failures";
+    }
+  }
+
+  private ReplicaRouter(Properties dbProperties, String routerKey,
+      String[] urls, int size)
+  {
+    key = routerKey;
+    leastLoaded = "leastloaded".equalsIgnoreCase(dbProperties.getProperty(
+      "replica.policy", "roundrobin").trim());
+    maxLag = Long.parseLong(dbProperties.getProperty("replica.maxlag", "10").trim());
+    checkInterval = TimeUnit.SECONDS.toNanos(
+        Long.parseLong(dbProperties.getProperty("replica.lagcheck", "5").trim()));
+    lagQuery = dbProperties.getProperty("replica.lagquery", "SHOW SLAVE STATUS").trim();
+    lagColumn = dbProperties.getProperty("replica.lagcolumn",
+      "Seconds_Behind_Master").trim();
+    if (lagColumn.length() == 0)
+      lagColumn = null;
+    replicas = new Replica[urls.length];
+    for (int i = 0; i < urls.length; i++)
+    {
+      Properties p = new Properties();
+      p.putAll(dbProperties);
+      p.setProperty("datasource.url", urls[i].trim());
+      replicas[i] = new Replica(i, p, size);
+    }
+  }
+
+  /**
+   * Get the router of the database described by the given properties and
+   * add capacity to the pools of its replicas. The router is created on the
+   * first call.
+   *
+   * @param dbProperties database properties
+   * @param size number of connections added to the capacity of each pool
+   * @return the router, or null if <code>datasource.replicas</code> is empty
+   */
+  public static synchronized ReplicaRouter getRouter(Properties dbProperties,
+      int size)
+  {
+    String list = dbProperties.getProperty("datasource.replicas", "").trim();
+    if (list.length() == 0)
+      return null;
+    String key = dbProperties.getProperty("datasource.url") + "|"
+        + dbProperties.getProperty("datasource.username");
+    ReplicaRouter router = routers.get(key);
+    if (router == null)
+    {
+      router = new ReplicaRouter(dbProperties, key, list.split("[,\\s]+"),
+          size);
+      routers.put(key, router);
+    }
+    else
+    {
+      for (int i = 0; i < router.replicas.length; i++)
+        ConnectionPool.getPool(router.replicas[i].properties, size);
+    }
+    router.users++;
+    return router;
+  }
+
+  /**
+   * Remove capacity from the pools of the replicas. The last caller closes
+   * the router and prints its statistics.
+   *
+   * @param size number of connections to remove from each pool
+   */
+  public void release(int size)
+  {
+    boolean last;
+    synchronized (ReplicaRouter.class)
+    {
+      last = (--users == 0);
+      if (last)
+        routers.remove(key);
+    }
+    for (int i = 0; i < replicas.length; i++)
+      replicas[i].pool.release(size);
+    if (last)
+      System.out.println(this);
+  }
+
+  /**
+   * Read the lag of a replica, in seconds.
+   *
+   * @param c a connection to the replica
+   * @return the lag, Long.MAX_VALUE if the replication is stopped
+   * @exception SQLException if the query fails
+   */
+  private long readLag(Connection c) throws SQLException
+  {
+    Statement stmt = c.createStatement();
+    try
+    {
+      ResultSet rs = stmt.executeQuery(lagQuery);
+      if (!rs.next())
+        return 0; // Not replicating: the primary itself
+      long l = (lagColumn == null) ? rs.getLong(1) : rs.getLong(lagColumn);
+      return rs.wasNull() ? Long.MAX_VALUE : l;
+    }
+    finally
+    {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Choose a replica that was not tried yet.
+   *
+   * @param start replica to start from
+   * @param tried replicas already tried
+   * @param now current time
+   * @return the replica, or null if none is left
+   */
+  private Replica select(int start, boolean[] tried, long now)
+  {
+    Replica best = null;
+    int bestLoad = Integer.MAX_VALUE;
+    for (int i = 0; i < replicas.length; i++)
+    {
+      Replica r = replicas[(start + i) % replicas.length];
+      if (tried[r.index] || !r.isUsable(now))
+        continue;
+      if (!leastLoaded)
+        return r;
+      int load = r.pool.getNbOfActiveConnections();
+      if (load < bestLoad)
+      {
+        best = r;
+        bestLoad = load;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Get a connection to a replica that is not too far behind the primary.
+   *
+   * @return a <code>Connection</code>, or null if the primary must be used
+   */
+  public Connection getConnection()
+  {
+    long now = System.nanoTime();
+    int start = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+    boolean[] tried = new boolean[replicas.length];
+    Replica r;
+    while ((r = select(start, tried, now)) != null)
+    {
+      tried[r.index] = true;
+      Connection c = r.borrow(now);
+      if (c != null)
+      {
+        borrowed.put(c, r);
+        return c;
+      }
+    }
+    nbOfFallbacks.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Give a connection back to the pool of its replica.
+   *
+   * @param c a connection
+   * @return false if the connection was not obtained from this router
+   */
+  public boolean releaseConnection(Connection c)
+  {
+    Replica r = borrowed.remove(c);
+    if (r == null)
+      return false;
+    r.pool.releaseConnection(c);
+    return true;
+  }
+
+  /**
+   * Get the pool a connection was borrowed from.
+   *
+   * @param c a connection
+   * @return the pool of its replica, or null if the connection was not
+   *         obtained from this router
+   */
+  public ConnectionPool getPool(Connection c)
+  {
+    Replica r = borrowed.get(c);
+    return (r == null) ? null : r.pool;
+  }
+
+  /**
+   * Get the number of read-only pages sent to the primary because no
+   * replica could be used.
+   *
+   * @return number of fallbacks
+   */
+  public long getNbOfFallbacks()
+  {
+    return nbOfFallbacks.get();
+  }
+
+  /**
+   * Summary of the router statistics.
+   *
+   * @return statistics
+   */
+  public String toString()
+  {
+    StringBuffer sb = new StringBuffer("ReplicaRouter " + key + ": "
+        + nbOfFallbacks.get() + " fallbacks to the primary");
+    for (int i = 0; i < replicas.length; i++)
+      sb.append("; ").append(replicas[i]);
+    return sb.toString();
+  }
+}
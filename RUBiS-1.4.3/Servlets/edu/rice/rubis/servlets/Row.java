@@ -0,0 +1,79 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+/**
+ * A row of a query result detached from its <code>ResultSet</code>, so
+ * that it can be cached by TxCache. The columns are kept as strings under
+ * their lower case names and read back like with a <code>ResultSet</code>.
+ *
+ * @version 1.0
+ */
+public class Row extends HashMap<String, String>
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Copy the current row of a result set.
+   *
+   * @param rs the result set, positioned on a row
+   * @exception SQLException if the row cannot be read
+   */
+  public Row(ResultSet rs) throws SQLException
+  {
+    ResultSetMetaData meta = rs.getMetaData();
+    for (int i = 1; i <= meta.getColumnCount(); i++)
+      put(meta.getColumnLabel(i).toLowerCase(), rs.getString(i));
+  }
+
+  public String getString(String column)
+  {
+    return get(column);
+  }
+
+  /**
+   * @param column name of the column
+   * @return the value of the column, 0 if it is null
+   */
+  public int getInt(String column)
+  {
+    String v = get(column);
+    return (v == null) ? 0 : Integer.parseInt(v.trim());
+  }
+
+  /**
+   * @param column name of the column
+   * @return the value of the column, 0 if it is null
+   */
+  public float getFloat(String column)
+  {
+    String v = get(column);
+    return (v == null) ? 0 : Float.parseFloat(v.trim());
+  }
+}
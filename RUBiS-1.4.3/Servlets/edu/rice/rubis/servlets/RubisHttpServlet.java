@@ -29,27 +29,82 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.EmptyStackException;
 import java.util.Properties;
-import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.UnavailableException;
 import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import edu.rice.rubis.txcache.Cacheable;
+import edu.rice.rubis.txcache.Client;
+import edu.rice.rubis.txcache.TxCache;
 
 /**
  * Provides the method to initialize connection to the database. All the
- * servlets inherit from this class
+ * servlets inherit from this class. Unless <code>jdbc.connpooling</code> is
+ * set to <code>no</code> in the database properties, connections come from a
+ * <code>ConnectionPool</code> shared by all the servlets. The nicknames of
+ * the users are kept in a <code>NicknameCache</code>, also shared. The
+ * servlets that write the database run their transactions with
+ * <code>runTransaction</code>, through a <code>WritePipeline</code> that
+ * groups their commits if <code>jdbc.writepipeline</code> is set to
+ * <code>yes</code>.
+ * <p>
+ * If <code>datasource.replicas</code> lists replicas of the database, the
+ * pages that only read it get their connection from a
+ * <code>ReplicaRouter</code>, and from the primary only when no replica is
+ * fresh enough. The pages that write always use the primary.
+ * <p>
+ * If <code>servlet.async</code> is set to <code>yes</code> and the
+ * container supports it (Servlet 3.0, with the servlet declared
+ * <code>async-supported</code>), requests are handed to an
+ * <code>AsyncExecutor</code> of the servlet with as many threads as its
+ * pool size in <code>Config</code>, and the container thread is released
+ * at once. When more than <code>servlet.asyncqueue</code> requests are
+ * waiting, new ones are answered with 503 Service Unavailable, as are
+ * the requests that waited more than <code>servlet.asyncmaxwait</code>
+ * seconds for a thread if it is set.
+ * <p>
+ * If <code>txcache.enabled</code> is set to <code>yes</code>, the pages
+ * that only read the database run as TxCache read-only transactions: they
+ * get their connection with <code>getReadOnlyConnection</code> and the
+ * results of the functions called through <code>wrap</code> or
+ * <code>printCached</code> are cached, like the functions wrapped with
+ * <code>txcache_wrap</code> in the PHP version. Each transaction may read
+ * a snapshot as old as the staleness configured for the servlet
+ * (<code>txcache.freshness.</code> followed by its class name, or
+ * <code>txcache.freshness</code>), drawn at random for each request if
+ * <code>txcache.freshnessfactor</code> is lower than 1.
  */
 public abstract class RubisHttpServlet extends HttpServlet
 {
-  /** Controls connection pooling */
-  private static final boolean enablePooling = false;
-  /** Stack of available connections (pool) */
-  private Stack      freeConnections = null;
-  private int        poolSize;
-  private Properties dbProperties    = null;
+  /** Pool of connections, null if pooling is disabled */
+  private ConnectionPool pool         = null;
+  /** Replicas for the read-only pages, null if there are none */
+  private ReplicaRouter  replicas     = null;
+  private int            poolSize;
+  private Properties     dbProperties = null;
+  /** Nicknames of the users, null if the cache is disabled */
+  private NicknameCache  nicknames    = null;
+  /** Group commit of the writes, null if it is disabled */
+  private WritePipeline  writes       = null;
+  /** Threads of the asynchronous mode, null if it is disabled */
+  private AsyncExecutor  executor     = null;
+  private long           asyncMaxWait; // ns, 0 for no limit
+  /** TxCache configuration, null if TxCache is disabled */
+  private TxCache        txcache      = null;
+  /** Staleness allowed to the read-only transactions of this servlet */
+  private double         freshness;
 
   public abstract int getPoolSize(); // Get the pool size for this class
 
@@ -67,8 +122,32 @@ public abstract class RubisHttpServlet extends HttpServlet
       // load the driver
       Class.forName(dbProperties.getProperty("datasource.classname"));
 
-      freeConnections = new Stack();
       initializeConnections();
+      nicknames = NicknameCache.getCache(dbProperties);
+      writes = WritePipeline.getPipeline(dbProperties);
+      String name = getClass().getName();
+      name = name.substring(name.lastIndexOf('.') + 1);
+      if ("yes".equalsIgnoreCase(dbProperties.getProperty("servlet.async", "no").trim()))
+      {
+        executor = new AsyncExecutor(name, Math.max(poolSize, 1),
+            Integer.parseInt(dbProperties.getProperty("servlet.asyncqueue",
+                "50").trim()));
+        asyncMaxWait = TimeUnit.SECONDS.toNanos(Long.parseLong(
+          dbProperties.getProperty("servlet.asyncmaxwait", "0").trim()));
+      }
+      if ("yes".equalsIgnoreCase(dbProperties.getProperty("txcache.enabled", "no").trim()))
+      {
+        try
+        {
+          txcache = TxCache.getInstance(dbProperties);
+          freshness = txcache.getFreshness(name);
+        }
+        catch (IOException io)
+        {
+          throw new UnavailableException("Couldn't initialize TxCache: " + io
+              + "<br>");
+        }
+      }
     }
     catch (FileNotFoundException f)
     {
@@ -104,24 +183,147 @@ public abstract class RubisHttpServlet extends HttpServlet
   }
 
   /**
-   * Initialize the pool of connections to the database. The caller must ensure
-   * that the driver has already been loaded else an exception will be thrown.
+   * Run the request on the threads of the servlet in asynchronous mode, or
+   * on the container thread otherwise.
+   * 
+   * @param request the request
+   * @param response the response
+   * @exception ServletException if the request fails
+   * @exception IOException if the response cannot be written
+   */
+  protected void service(HttpServletRequest request,
+      HttpServletResponse response) throws ServletException, IOException
+  {
+    if ((executor == null) || !request.isAsyncSupported())
+    {
+      super.service(request, response);
+      return;
+    }
+    AsyncContext async = request.startAsync();
+    async.setTimeout(0); // Only the servlet thread completes a running request
+    AsyncRequest task = new AsyncRequest(async, request, response);
+    async.addListener(task);
+    if (!executor.submit(task))
+      task.refuse("Too many requests waiting for " + getServletName());
+  }
+
+  /**
+   * A request run in asynchronous mode. Once a servlet thread has taken
+   * it, only that thread completes it. A request that waited more than
+   * <code>servlet.asyncmaxwait</code> seconds in the queue is answered 503
+   * Service Unavailable instead of being run.
+   */
+  private class AsyncRequest implements Runnable, AsyncListener
+  {
+    private static final int QUEUED  = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE    = 2;
+
+    private final AsyncContext        async;
+    private final HttpServletRequest  request;
+    private final HttpServletResponse response;
+    private final long                queued = System.nanoTime();
+    private final AtomicInteger       state = new AtomicInteger(QUEUED);
+
+    AsyncRequest(AsyncContext context, HttpServletRequest req,
+        HttpServletResponse resp)
+    {
+      async = context;
+      request = req;
+      response = resp;
+    }
+
+    public void run()
+    {
+      if (!state.compareAndSet(QUEUED, RUNNING))
+        return; // Ended by the container while waiting
+      try
+      {
+        if ((asyncMaxWait > 0) && (System.nanoTime() - queued > asyncMaxWait))
+          sendUnavailable("Request waited too long for " + getServletName());
+        else
+          RubisHttpServlet.super.service(request, response);
+      }
+      catch (Exception e)
+      {
+        System.err.println(getServletName() + ": " + e);
+        try
+        {
+          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            e.toString());
+        }
+        catch (Exception ignore)
+        { // Part of the page was already sent
+        }
+      }
+      finally
+      {
+        state.set(DONE);
+        async.complete();
+      }
+    }
+
+    /**
+     * Answer 503 Service Unavailable to a request that was not queued.
+     *
+     * @param message message of the error page
+     * @exception IOException if the error page cannot be sent
+     */
+    void refuse(String message) throws IOException
+    {
+      if (!state.compareAndSet(QUEUED, DONE))
+        return;
+      try
+      {
+        sendUnavailable(message);
+      }
+      finally
+      {
+        async.complete();
+      }
+    }
+
+    private void sendUnavailable(String message) throws IOException
+    {
+      response.setHeader("Retry-After", "1");
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+    }
+
+    public void onTimeout(AsyncEvent event) throws IOException
+    {
+      refuse("Request timed out waiting for " + getServletName());
+    }
+
+    public void onError(AsyncEvent event)
+    {
+      // A running request is completed by its servlet thread
+      if (state.compareAndSet(QUEUED, DONE))
+        async.complete();
+    }
+
+    public void onComplete(AsyncEvent event)
+    {
+    }
+
+    public void onStartAsync(AsyncEvent event)
+    {
+    }
+  }
+
+  /**
+   * Initialize the pool of connections to the database, adding the pool size
+   * of this servlet to the shared pool. The caller must ensure that the
+   * driver has already been loaded else an exception will be thrown.
    * 
    * @exception SQLException if an error occurs
    */
   public synchronized void initializeConnections() throws SQLException
   {
-    if (enablePooling)
-    for (int i = 0; i < poolSize; i++)
+    if (!"no".equalsIgnoreCase(dbProperties.getProperty("jdbc.connpooling", "yes").trim()))
     {
-      // Get connections to the database
-      freeConnections.push(
-      DriverManager.getConnection(
-      dbProperties.getProperty("datasource.url"),
-      dbProperties.getProperty("datasource.username"),
-      dbProperties.getProperty("datasource.password")));
+      pool = ConnectionPool.getPool(dbProperties, poolSize);
+      replicas = ReplicaRouter.getRouter(dbProperties, poolSize);
     }
-    
   }
 
   /**
@@ -142,93 +344,399 @@ public abstract class RubisHttpServlet extends HttpServlet
   }
 
   /**
-   * Gets a connection from the pool (round-robin)
+   * Gets a connection from the pool, waiting for one to be released if all
+   * the connections are in use.
    * 
    * @return a <code>Connection</code> or null if no connection is available
    */
-  public synchronized Connection getConnection()
+  public Connection getConnection()
   {
-    if (enablePooling)
+    if (pool != null)
     {
       try
       {
-        // Wait for a connection to be available
-        while (freeConnections.isEmpty())
-        {
-          try
-          {
-            wait();
-          }
-          catch (InterruptedException e)
-          {
-           System.out.println("Connection pool wait interrupted.");
-          }
-         }
-      
-
-        Connection c = (Connection) freeConnections.pop();
-        return c;
+        return pool.getConnection();
       }
-      catch (EmptyStackException e)
+      catch (SQLException e)
       {
-       System.out.println("Out of connections.");
+        System.out.println("Out of connections: " + e.getMessage());
         return null;
       }
     }
-     else
-     {
-       try
-       {
+    else
+    {
+      try
+      {
         return DriverManager.getConnection(
-        dbProperties.getProperty("datasource.url"),
-        dbProperties.getProperty("datasource.username"),
-        dbProperties.getProperty("datasource.password"));
-       } 
-       catch (SQLException ex) 
-       {
-        return null; 
-       }
-     }
+          dbProperties.getProperty("datasource.url"),
+          dbProperties.getProperty("datasource.username"),
+          dbProperties.getProperty("datasource.password"));
+      }
+      catch (SQLException ex)
+      {
+        return null;
+      }
+    }
   }
 
   /**
-   * Releases a connection to the pool.
+   * Gets a connection for a page that only reads the database. If TxCache
+   * is enabled, a read-only transaction is started and the connection
+   * returned is the one of its client; <code>releaseConnection</code>
+   * commits the transaction; its snapshot is chosen among the pins at most
+   * the staleness of the servlet old. Otherwise the connection is taken from a
+   * replica if possible. TxCache transactions stay on the primary, where
+   * their snapshots are pinned.
+   * 
+   * @return a <code>Connection</code> or null if no connection is available
+   */
+  public Connection getReadOnlyConnection()
+  {
+    if ((txcache == null) && (replicas != null))
+    {
+      Connection c = replicas.getConnection();
+      if (c != null)
+        return c;
+    }
+    Connection c = getConnection();
+    if ((txcache == null) || (c == null))
+      return c;
+    Client client = txcache.newClient(c);
+    if (!client.beginRO(txcache.randomizeFreshness(freshness)))
+      return c;
+    return client.getConnection();
+  }
+
+  /**
+   * Releases a connection to its pool, ending its TxCache read-only
+   * transaction if any.
    * 
    * @param c the connection to release
    */
-  public synchronized void releaseConnection(Connection c)
-  {  
-    if (enablePooling)
+  public void releaseConnection(Connection c)
+  {
+    Client client = Client.getClient(c);
+    if (client != null)
     {
-      boolean mustNotify = freeConnections.isEmpty();
-      freeConnections.push(c);
-      // Wake up one servlet waiting for a connection (if any)
-      if (mustNotify)
-      notifyAll();
+      client.finish();
+      c = client.getRawConnection();
     }
+    if ((replicas != null) && replicas.releaseConnection(c))
+      return;
+    if (pool != null)
+      pool.releaseConnection(c);
     else
-    {
       closeConnection(c);
+  }
+
+  /**
+   * Run a transaction that writes the database and commit it, through the
+   * write pipeline if it is enabled. The transaction is rolled back if it
+   * throws an exception.
+   * 
+   * @param t the transaction
+   * @return the result of the transaction
+   * @exception SQLException if the transaction or its commit failed
+   */
+  public Object runTransaction(WritePipeline.Transaction t)
+    throws SQLException
+  {
+    if (writes != null)
+      return writes.execute(t);
+    Connection conn = getConnection();
+    if (conn == null)
+      throw new SQLException("No database connection available");
+    try
+    {
+      conn.setAutoCommit(false);
+      Object result = t.run(conn);
+      conn.commit();
+      return result;
+    }
+    catch (SQLException e)
+    {
+      try
+      {
+        conn.rollback();
+      }
+      catch (SQLException ignore)
+      {
+      }
+      throw e;
     }
-    
+    finally
+    {
+      releaseConnection(conn);
+    }
+  }
+
+  /**
+   * Get the number of queries sent on a connection since it was taken from
+   * the pool. Calls answered by TxCache send no query.
+   * 
+   * @param c a connection obtained from this servlet
+   * @return the number of queries, -1 if they are not counted
+   */
+  public int getNbOfQueries(Connection c)
+  {
+    Client client = Client.getClient(c);
+    if (client != null)
+      c = client.getRawConnection();
+    ConnectionPool p = (replicas == null) ? null : replicas.getPool(c);
+    if (p == null)
+      p = pool;
+    if (p == null)
+      return -1;
+    return p.getNbOfQueries(c);
+  }
+
+  /**
+   * Call a cacheable function, through TxCache if the connection runs a
+   * read-only transaction. The key of the call is made of the name of the
+   * function and of its arguments.
+   * 
+   * @param conn connection given to the function
+   * @param name name of the function
+   * @param args arguments of the function
+   * @param fn the function
+   * @return the result of the function
+   * @exception Exception if the function fails
+   */
+  public Object wrap(Connection conn, String name, Object[] args, Cacheable fn)
+    throws Exception
+  {
+    Client client = Client.getClient(conn);
+    if (client == null)
+      return fn.call();
+    return client.wrap(true, name, args, fn);
   }
 
   /**
-   * Release all the connections to the database.
+   * Print the output of a cacheable function, like a PHP function wrapped
+   * by <code>txcache_wrap</code>: the HTML the function prints is cached.
+   * If the function fails, what it printed is still sent but not cached.
+   * 
+   * @param conn connection given to the function
+   * @param sp printer the function prints to
+   * @param name name of the function
+   * @param args arguments of the function
+   * @param fn the function
+   * @exception Exception if the function fails
+   */
+  public void printCached(Connection conn, final ServletPrinter sp,
+      String name, Object[] args, final Cacheable fn) throws Exception
+  {
+    byte[] html = (byte[]) wrap(conn, name, args, new Cacheable()
+      {
+        public Object call() throws Exception
+        {
+          ServletPrinter.Capture capture = sp.startCapture();
+          try
+          {
+            fn.call();
+          }
+          catch (Exception e)
+          {
+            sp.printCaptured(sp.endCapture(capture));
+            throw e;
+          }
+          return sp.endCapture(capture);
+        }
+      });
+    sp.printCaptured(html);
+  }
+
+  /**
+   * Get a row of a table by id, cached by TxCache.
+   * 
+   * @param conn connection to the database
+   * @param table table to read
+   * @param id id of the row
+   * @return the row, or null if there is no such row
+   * @exception Exception if the query fails
+   */
+  private Row getRow(final Connection conn,
+      final String table, final int id) throws Exception
+  {
+    return (Row) wrap(conn, "getRow", new Object[] {table,
+        Integer.valueOf(id)}, new Cacheable()
+      {
+        public Object call() throws Exception
+        {
+          PreparedStatement stmt = conn.prepareStatement("SELECT * FROM "
+              + table + " WHERE id=?");
+          try
+          {
+            stmt.setInt(1, id);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+              return null;
+            return new Row(rs);
+          }
+          finally
+          {
+            stmt.close();
+          }
+        }
+      });
+  }
+
+  /**
+   * Get a user by id, cached by TxCache.
+   * 
+   * @param conn connection to the database
+   * @param userId id of the user
+   * @return the user, or null if there is no such user
+   * @exception Exception if the query fails
+   */
+  public Row getUser(Connection conn, int userId)
+    throws Exception
+  {
+    return getRow(conn, "users", userId);
+  }
+
+  /**
+   * Get an item by id, cached by TxCache.
+   * 
+   * @param conn connection to the database
+   * @param itemId id of the item
+   * @return the item, or null if there is no such item
+   * @exception Exception if the query fails
+   */
+  public Row getItem(Connection conn, int itemId)
+    throws Exception
+  {
+    return getRow(conn, "items", itemId);
+  }
+
+  /**
+   * Get the nickname of a user, from the nickname cache if possible.
+   * 
+   * @param conn connection to the database
+   * @param userId id of the user
+   * @return the nickname, or null if there is no such user
+   * @exception SQLException if the query fails
+   */
+  public String getNickname(Connection conn, int userId) throws SQLException
+  {
+    String nickname = (nicknames == null) ? null : nicknames.get(userId);
+    if (nickname != null)
+      return nickname;
+    PreparedStatement stmt = conn
+        .prepareStatement("SELECT nickname FROM users WHERE id=?");
+    try
+    {
+      stmt.setInt(1, userId);
+      ResultSet rs = stmt.executeQuery();
+      if (!rs.next())
+        return null;
+      nickname = rs.getString("nickname");
+    }
+    finally
+    {
+      stmt.close();
+    }
+    if ((nicknames != null) && (nickname != null))
+      nicknames.put(userId, nickname);
+    return nickname;
+  }
+
+  /**
+   * Remove a user from the nickname cache, after a user is registered.
+   * 
+   * @param userId id of the user
+   */
+  public void invalidateNickname(int userId)
+  {
+    if (nicknames != null)
+      nicknames.invalidate(userId);
+  }
+
+  /**
+   * Print the comments about a user, cached by TxCache.
+   * 
+   * @param conn connection to the database
+   * @param sp printer to print to
+   * @param userId id of the user
+   * @exception Exception if a query fails
+   */
+  public void printCommentTable(final Connection conn, final ServletPrinter sp,
+      final int userId) throws Exception
+  {
+    printCached(conn, sp, "printCommentTable", new Object[] {Integer.valueOf(
+        userId)}, new Cacheable()
+      {
+        public Object call() throws Exception
+        {
+          PreparedStatement stmt = conn
+              .prepareStatement("SELECT comments.*, users.nickname FROM comments LEFT JOIN users ON comments.from_user_id=users.id WHERE comments.to_user_id=?");
+          try
+          {
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+            {
+              sp.printHTML("<br>");
+              sp.printHTMLHighlighted(
+                "<h3>There is no comment yet for this user.</h3>");
+              sp.printHTML("<br>");
+              return null;
+            }
+            sp.printHTML("<br><hr><br><h3>Comments for this user</h3><br>");
+            sp.printCommentHeader();
+            // Display each comment and the name of its author
+            do
+            {
+              String author = rs.getString("nickname");
+              sp.printComment((author == null) ? "none" : author,
+                rs.getInt("from_user_id"), rs.getString("date"),
+                rs.getString("comment"));
+            }
+            while (rs.next());
+            sp.printCommentFooter();
+            return null;
+          }
+          finally
+          {
+            stmt.close();
+          }
+        }
+      });
+  }
+
+  /**
+   * Remove the connections of this servlet from the pool. The pool closes
+   * its connections when no servlet uses it anymore.
    * 
    * @exception SQLException if an error occurs
    */
   public synchronized void finalizeConnections() throws SQLException
   {
-    if (enablePooling)
+    if (pool != null)
     {
-      Connection c = null;
-      while (!freeConnections.isEmpty())
-      {
-      c = (Connection) freeConnections.pop();
-      c.close();
-      }
-    }   
+      pool.release(poolSize);
+      pool = null;
+    }
+    if (replicas != null)
+    {
+      replicas.release(poolSize);
+      replicas = null;
+    }
+    if (nicknames != null)
+    {
+      nicknames.release();
+      nicknames = null;
+    }
+    if (writes != null)
+    {
+      writes.release();
+      writes = null;
+    }
+    if (txcache != null)
+    {
+      txcache.release();
+      txcache = null;
+    }
   }
 
   /**
@@ -236,6 +744,11 @@ public abstract class RubisHttpServlet extends HttpServlet
    */
   public void destroy()
   {
+    if (executor != null)
+    {
+      executor.shutdown();
+      executor = null;
+    }
     try
     {
       finalizeConnections();
@@ -1,7 +1,6 @@
 package edu.rice.rubis.servlets;
 
 import java.io.IOException;
-import java.net.URLEncoder;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -10,6 +9,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import edu.rice.rubis.txcache.Cacheable;
+
 /** This servlets displays a list of items belonging to a specific category.
  * It must be called this way :
  * <pre>
@@ -31,16 +32,14 @@ public class SearchItemsByCategory extends RubisHttpServlet
   }
 
 /**
- * Close both statement and connection.
+ * Close the statement.
  */
-  private void closeConnection(PreparedStatement stmt, Connection conn)
+  private void closeStatement(PreparedStatement stmt)
   {
     try
     {
       if (stmt != null)
         stmt.close(); // close statement
-      if (conn != null)
-        releaseConnection(conn);
     }
     catch (Exception ignore)
     {
@@ -62,47 +61,40 @@ public class SearchItemsByCategory extends RubisHttpServlet
   }
 
   private void itemList(
+    Connection conn,
     Integer categoryId,
     String categoryName,
-    int page,
-    int nbOfItems,
+    ItemPage items,
     ServletPrinter sp)
+    throws Exception
   {
     
     PreparedStatement stmt = null;
-    Connection conn = null;
-    
-    String itemName, endDate;
-    int itemId;
-    float maxBid;
-    int nbOfBids = 0;
     ResultSet rs = null;
 
     // get the list of items
     try
     {
-      conn = getConnection();
-      //conn.setAutoCommit(false);
-
       stmt =
         conn.prepareStatement(
-          "SELECT items.name, items.id, items.end_date, items.max_bid, items.nb_of_bids, items.initial_price FROM items WHERE items.category=? AND end_date>=NOW() ORDER BY items.end_date ASC LIMIT ?,?");
+          "SELECT " + ItemPage.COLUMNS + " FROM items WHERE items.category=? AND end_date>=NOW()"
+            + items.seek());
       stmt.setInt(1, categoryId.intValue());
-      stmt.setInt(2, page * nbOfItems);
-      stmt.setInt(3, nbOfItems);
+      items.bind(stmt, 2);
       rs = stmt.executeQuery();
     }
     catch (Exception e)
     {
       sp.printHTML("Failed to executeQuery for item: " + e);
-      closeConnection(stmt, conn);
-      return;
+      closeStatement(stmt);
+      throw e;
     }
     try
     {
-      if (!rs.first())
+      items.read(rs);
+      if (items.count == 0)
       {
-        if (page == 0)
+        if (items.page == 0)
         {
           sp.printHTML(
             "<h2>Sorry, but there are no items available in this category !</h2>");
@@ -112,74 +104,17 @@ public class SearchItemsByCategory extends RubisHttpServlet
           sp.printHTML(
             "<h2>Sorry, but there are no more items available in this category !</h2>");
           sp.printItemHeader();
-          sp.printItemFooter(
-            "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByCategory?category="
-              + categoryId
-              + "&categoryName="
-              + URLEncoder.encode(categoryName)
-              + "&page="
-              + (page - 1)
-              + "&nbOfItems="
-              + nbOfItems
-              + "\">Previous page</a>",
-            "");
+          sp.printCategoryItemsFooter(categoryId, categoryName, items);
         }
-        closeConnection(stmt, conn);
+        closeStatement(stmt);
         return;
       }
 
       sp.printItemHeader();
-      do
-      {
-        itemName = rs.getString("name");
-        itemId = rs.getInt("id");
-        endDate = rs.getString("end_date");
-        maxBid = rs.getFloat("max_bid");
-        nbOfBids = rs.getInt("nb_of_bids");
-        float initialPrice = rs.getFloat("initial_price");
-        if (maxBid < initialPrice)
-          maxBid = initialPrice;
-        sp.printItem(itemName, itemId, maxBid, nbOfBids, endDate);
-      }
-      while (rs.next());
-      if (page == 0)
-      {
-        sp.printItemFooter(
-          "",
-          "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByCategory?category="
-            + categoryId
-            + "&categoryName="
-            + URLEncoder.encode(categoryName)
-            + "&page="
-            + (page + 1)
-            + "&nbOfItems="
-            + nbOfItems
-            + "\">Next page</a>");
-      }
-      else
-      {
-        sp.printItemFooter(
-          "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByCategory?category="
-            + categoryId
-            + "&categoryName="
-            + URLEncoder.encode(categoryName)
-            + "&page="
-            + (page - 1)
-            + "&nbOfItems="
-            + nbOfItems
-            + "\">Previous page</a>",
-          "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByCategory?category="
-            + categoryId
-            + "&categoryName="
-            + URLEncoder.encode(categoryName)
-            + "&page="
-            + (page + 1)
-            + "&nbOfItems="
-            + nbOfItems
-            + "\">Next page</a>");
-      }
+      items.print(sp);
+      sp.printCategoryItemsFooter(categoryId, categoryName, items);
       //conn.commit();
-      closeConnection(stmt, conn);
+      closeStatement(stmt);
     }
     catch (Exception e)
     {
@@ -192,22 +127,20 @@ public class SearchItemsByCategory extends RubisHttpServlet
       //       {
       //         printError("Transaction rollback failed: " + e +"<br>");
       //       }
-      closeConnection(stmt, conn);
+      closeStatement(stmt);
+      throw e;
     }
   }
 
   public void doGet(HttpServletRequest request, HttpServletResponse response)
     throws IOException, ServletException
   {
-    Integer page;
-    Integer nbOfItems;
     String value = request.getParameter("category");
     ;
-    Integer categoryId;
-    String categoryName = request.getParameter("categoryName");
+    final Integer categoryId;
+    final String categoryName = request.getParameter("categoryName");
 
-    ServletPrinter sp = null;
-    sp = new ServletPrinter(response, "SearchItemsByCategory");
+    final ServletPrinter sp = new ServletPrinter(response, "SearchItemsByCategory");
 
     if ((value == null) || (value.equals("")))
     {
@@ -217,17 +150,7 @@ public class SearchItemsByCategory extends RubisHttpServlet
     else
       categoryId = new Integer(value);
 
-    value = request.getParameter("page");
-    if ((value == null) || (value.equals("")))
-      page = new Integer(0);
-    else
-      page = new Integer(value);
-
-    value = request.getParameter("nbOfItems");
-    if ((value == null) || (value.equals("")))
-      nbOfItems = new Integer(25);
-    else
-      nbOfItems = new Integer(value);
+    final ItemPage items = new ItemPage(request);
 
     if (categoryName == null)
     {
@@ -240,7 +163,28 @@ public class SearchItemsByCategory extends RubisHttpServlet
       sp.printHTML("<h2>Items in category " + categoryName + "</h2><br><br>");
     }
 
-    itemList(categoryId, categoryName, page.intValue(), nbOfItems.intValue(), sp);
+    final Connection conn = getReadOnlyConnection();
+    try
+    {
+      printCached(conn, sp, "SearchItemsByCategory.itemList", new Object[] {
+          categoryId, categoryName, items.page, items.nbOfItems, items.after,
+          items.afterId, items.before, items.beforeId}, new Cacheable()
+        {
+          public Object call() throws Exception
+          {
+            itemList(conn, categoryId, categoryName, items, sp);
+            return null;
+          }
+        });
+    }
+    catch (Exception e)
+    { // The error has been printed by itemList
+    }
+    finally
+    {
+      if (conn != null)
+        releaseConnection(conn);
+    }
     sp.printHTMLfooter();
   }
 
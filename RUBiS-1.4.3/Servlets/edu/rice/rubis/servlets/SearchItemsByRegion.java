@@ -9,6 +9,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import edu.rice.rubis.txcache.Cacheable;
+
 /**
  * Build the html page with the list of all items for given category and region.
  * @author <a href="mailto:cecchet@rice.edu">Emmanuel Cecchet</a> and <a href="mailto:julie.marguerite@inrialpes.fr">Julie Marguerite</a>
@@ -23,16 +25,14 @@ public class SearchItemsByRegion extends RubisHttpServlet
   }
 
 /**
- * Close both statement and connection.
+ * Close the statement.
  */
-  private void closeConnection(PreparedStatement stmt, Connection conn)
+  private void closeStatement(PreparedStatement stmt)
   {
     try
     {
       if (stmt != null)
         stmt.close(); // close statement
-      if (conn != null)
-        releaseConnection(conn);
     }
     catch (Exception ignore)
     {
@@ -55,43 +55,40 @@ public class SearchItemsByRegion extends RubisHttpServlet
 
   /** List items in the given category for the given region */
   private void itemList(
+    Connection conn,
     Integer categoryId,
     Integer regionId,
-    int page,
-    int nbOfItems,
+    ItemPage items,
     ServletPrinter sp)
+    throws Exception
   {
-    String itemName, endDate;
-    int itemId, nbOfBids = 0;
-    float maxBid;
     ResultSet rs = null;
     PreparedStatement stmt = null;
-    Connection conn = null;
 
     // get the list of items
     try
     {
-      conn = getConnection();
       stmt =
         conn.prepareStatement(
-          "SELECT items.name, items.id, items.end_date, items.max_bid, items.nb_of_bids, items.initial_price FROM items,users WHERE items.category=? AND items.seller=users.id AND users.region=? AND end_date>=NOW() ORDER BY items.end_date ASC LIMIT ?,?");
+          "SELECT " + ItemPage.COLUMNS + " FROM items,users WHERE items.category=? AND items.seller=users.id AND users.region=? AND end_date>=NOW()"
+            + items.seek());
       stmt.setInt(1, categoryId.intValue());
       stmt.setInt(2, regionId.intValue());
-      stmt.setInt(3, page * nbOfItems);
-      stmt.setInt(4, nbOfItems);
+      items.bind(stmt, 3);
       rs = stmt.executeQuery();
     }
     catch (Exception e)
     {
       sp.printHTML("Failed to execute Query for items in region: " + e);
-      closeConnection(stmt, conn);
-      return;
+      closeStatement(stmt);
+      throw e;
     }
     try
     {
-      if (!rs.first())
+      items.read(rs);
+      if (items.count == 0)
       {
-        if (page == 0)
+        if (items.page == 0)
         {
           sp.printHTML(
             "<h3>Sorry, but there is no items in this category for this region.</h3><br>");
@@ -101,78 +98,22 @@ public class SearchItemsByRegion extends RubisHttpServlet
           sp.printHTML(
             "<h3>Sorry, but there is no more items in this category for this region.</h3><br>");
           sp.printItemHeader();
-          sp.printItemFooter(
-            "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByRegion?category="
-              + categoryId
-              + "&region="
-              + regionId
-              + "&page="
-              + (page - 1)
-              + "&nbOfItems="
-              + nbOfItems
-              + "\">Previous page</a>",
-            "");
+          sp.printRegionItemsFooter(categoryId, regionId, items);
         }
-        closeConnection(stmt, conn);
+        closeStatement(stmt);
         return;
       }
 
       sp.printItemHeader();
-      do
-      {
-        itemName = rs.getString("name");
-        itemId = rs.getInt("id");
-        endDate = rs.getString("end_date");
-        maxBid = rs.getFloat("max_bid");
-        nbOfBids = rs.getInt("nb_of_bids");
-        float initialPrice = rs.getFloat("initial_price");
-        if (maxBid < initialPrice)
-          maxBid = initialPrice;
-        sp.printItem(itemName, itemId, maxBid, nbOfBids, endDate);
-      }
-      while (rs.next());
-      if (page == 0)
-      {
-        sp.printItemFooter(
-          "",
-          "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByRegion?category="
-            + categoryId
-            + "&region="
-            + regionId
-            + "&page="
-            + (page + 1)
-            + "&nbOfItems="
-            + nbOfItems
-            + "\">Next page</a>");
-      }
-      else
-      {
-        sp.printItemFooter(
-          "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByRegion?category="
-            + categoryId
-            + "&region="
-            + regionId
-            + "&page="
-            + (page - 1)
-            + "&nbOfItems="
-            + nbOfItems
-            + "\">Previous page</a>",
-          "<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByRegion?category="
-            + categoryId
-            + "&region="
-            + regionId
-            + "&page="
-            + (page + 1)
-            + "&nbOfItems="
-            + nbOfItems
-            + "\">Next page</a>");
-      }
-      closeConnection(stmt, conn);
+      items.print(sp);
+      sp.printRegionItemsFooter(categoryId, regionId, items);
+      closeStatement(stmt);
     }
     catch (Exception e)
     {
       sp.printHTML("Exception getting item list: " + e + "<br>");
-      closeConnection(stmt, conn);
+      closeStatement(stmt);
+      throw e;
     }
   }
 
@@ -181,12 +122,9 @@ public class SearchItemsByRegion extends RubisHttpServlet
   public void doGet(HttpServletRequest request, HttpServletResponse response)
     throws IOException, ServletException
   {
-    Integer categoryId, regionId;
-    Integer page;
-    Integer nbOfItems;
+    final Integer categoryId, regionId;
 
-    ServletPrinter sp = null;
-    sp = new ServletPrinter(response, "SearchItemsByRegion");
+    final ServletPrinter sp = new ServletPrinter(response, "SearchItemsByRegion");
 
     String value = request.getParameter("category");
     if ((value == null) || (value.equals("")))
@@ -206,20 +144,31 @@ public class SearchItemsByRegion extends RubisHttpServlet
     else
       regionId = new Integer(value);
 
-    value = request.getParameter("page");
-    if ((value == null) || (value.equals("")))
-      page = new Integer(0);
-    else
-      page = new Integer(value);
-
-    value = request.getParameter("nbOfItems");
-    if ((value == null) || (value.equals("")))
-      nbOfItems = new Integer(25);
-    else
-      nbOfItems = new Integer(value);
+    final ItemPage items = new ItemPage(request);
 
     sp.printHTMLheader("RUBiS: Search items by region");
-    itemList(categoryId, regionId, page.intValue(), nbOfItems.intValue(), sp);
+    final Connection conn = getReadOnlyConnection();
+    try
+    {
+      printCached(conn, sp, "SearchItemsByRegion.itemList", new Object[] {
+          categoryId, regionId, items.page, items.nbOfItems, items.after,
+          items.afterId, items.before, items.beforeId}, new Cacheable()
+        {
+          public Object call() throws Exception
+          {
+            itemList(conn, categoryId, regionId, items, sp);
+            return null;
+          }
+        });
+    }
+    catch (Exception e)
+    { // The error has been printed by itemList
+    }
+    finally
+    {
+      if (conn != null)
+        releaseConnection(conn);
+    }
     sp.printHTMLfooter();
   }
 
@@ -1,9 +1,11 @@
 package edu.rice.rubis.servlets;
 
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.URLEncoder;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -20,18 +22,119 @@ import javax.servlet.http.HttpServletResponse;
 public class ServletPrinter
 {
   private PrintWriter out;
+  /** Stream <code>out</code> writes to, the response unless capturing */
+  private OutputStream stream;
   private String servletName;
   private GregorianCalendar startDate;
 
+  /** Render buffers, reused by the requests of a thread */
+  private static ThreadLocal<HTMLBuffer> buffers = new ThreadLocal<HTMLBuffer>()
+    {
+      protected HTMLBuffer initialValue()
+      {
+        return new HTMLBuffer();
+      }
+    };
+
+  // Precompiled segments of the rendered HTML
+  private static final byte[] EOL = HTMLBuffer.segment(System
+      .lineSeparator());
+  private static final byte[] A_END = HTMLBuffer.segment("\">");
+  private static final byte[] A_CLOSE_BR = HTMLBuffer.segment("</a><br>");
+  private static final byte[] CATEGORY_NAME = HTMLBuffer
+      .segment("&categoryName=");
+  private static final byte[] SEARCH_BY_CATEGORY = HTMLBuffer
+      .segment("<a href=\"edu.rice.rubis.servlets.SearchItemsByCategory?category=");
+  private static final byte[] SEARCH_BY_REGION = HTMLBuffer
+      .segment("<a href=\"edu.rice.rubis.servlets.SearchItemsByRegion?category=");
+  private static final byte[] REGION = HTMLBuffer.segment("&region=");
+  private static final byte[] SELL_ITEM_FORM = HTMLBuffer
+      .segment("<a href=\"edu.rice.rubis.servlets.SellItemForm?category=");
+  private static final byte[] USER = HTMLBuffer.segment("&user=");
+  private static final byte[] BROWSE_CATEGORIES = HTMLBuffer
+      .segment("<a href=\"edu.rice.rubis.servlets.BrowseCategories?region=");
+  private static final byte[] ITEM_ROW = HTMLBuffer
+      .segment("<TR><TD><a href=\"edu.rice.rubis.servlets.ViewItem?itemId=");
+  private static final byte[] TD = HTMLBuffer.segment("<TD>");
+  private static final byte[] ITEM_ROW_BID = HTMLBuffer
+      .segment("<TD><a href=\"edu.rice.rubis.servlets.PutBidAuth?itemId=");
+  private static final byte[] ITEM_ROW_END = HTMLBuffer
+      .segment("\"><IMG SRC=\"/rubis_servlets/bid_now.jpg\" height=22 width=90></a>");
+  private static final byte[] ITEMS_FOOTER = HTMLBuffer.segment("</TABLE>\n"
+      + System.lineSeparator() + "<p><CENTER>\n");
+  private static final byte[] ITEMS_FOOTER_SEPARATOR = HTMLBuffer
+      .segment("\n&nbsp&nbsp&nbsp");
+  private static final byte[] ITEMS_FOOTER_END = HTMLBuffer
+      .segment("\n</CENTER>\n");
+  private static final byte[] PAGE_BY_CATEGORY = HTMLBuffer
+      .segment("<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByCategory?category=");
+  private static final byte[] PAGE_BY_REGION = HTMLBuffer
+      .segment("<a href=\"/rubis_servlets/servlet/edu.rice.rubis.servlets.SearchItemsByRegion?category=");
+  private static final byte[] PREVIOUS_PAGE = HTMLBuffer
+      .segment("\">Previous page</a>");
+  private static final byte[] NEXT_PAGE = HTMLBuffer
+      .segment("\">Next page</a>");
+
+  /** Output saved by <code>startCapture</code> */
+  static class Capture
+  {
+    PrintWriter           previous;
+    OutputStream          previousStream;
+    ByteArrayOutputStream buffer;
+  }
+
+  /**
+   * Writer encoding in UTF-8 straight to the response stream. It keeps no
+   * buffer of its own, so that it can be mixed with bytes written to the
+   * stream and needs no flush; the servlet container buffers the stream.
+   */
+  private static class UTF8Writer extends Writer
+  {
+    private OutputStream stream;
+
+    UTF8Writer(OutputStream stream)
+    {
+      this.stream = stream;
+    }
+
+    public void write(String str, int off, int len) throws IOException
+    {
+      stream.write(str.substring(off, off + len).getBytes(
+        StandardCharsets.UTF_8));
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+      stream.write(new String(cbuf, off, len).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void write(int c) throws IOException
+    {
+      if (c < 0x80)
+        stream.write(c);
+      else
+        write(new char[] {(char) c}, 0, 1);
+    }
+
+    public void flush()
+    {
+    }
+
+    public void close()
+    {
+    }
+  }
+
   public ServletPrinter(
     HttpServletResponse toWebServer,
     String callingServletName)
   {
     startDate = new GregorianCalendar();
-    toWebServer.setContentType("text/html");
+    toWebServer.setContentType("text/html; charset=UTF-8");
     try
     {
-      out = toWebServer.getWriter();
+      stream = toWebServer.getOutputStream();
+      out = new PrintWriter(new UTF8Writer(stream));
     }
     catch (IOException ioe)
     {
@@ -40,38 +143,56 @@ public class ServletPrinter
     servletName = callingServletName;
   }
 
+  /**
+   * Print a static HTML file, kept in memory by <code>HTMLFileCache</code>.
+   *
+   * @param filename path of the file
+   */
   void printFile(String filename)
   {
-    FileReader fis = null;
+    HTMLFileCache file;
     try
     {
-      fis = new FileReader(filename);
-      char[] data = new char[4 * 1024]; // 4K buffer
-      int bytesRead;
-      bytesRead = fis.read(data);
-      while (/*(bytesRead = fis.read(data))*/
-        bytesRead != -1)
-      {
-        out.write(data, 0, bytesRead);
-        bytesRead = fis.read(data);
-      }
+      file = HTMLFileCache.get(filename);
     }
     catch (Exception e)
     {
       out.println("Unable to read file (exception: " + e + ")<br>");
+      return;
     }
-    finally
+    try
     {
-      if (fis != null)
-        try
-        {
-          fis.close();
-        }
-        catch (Exception ex)
-        {
-          out.println(
-            "Unable to close the file reader (exception: " + ex + ")<br>");
-        }
+      stream.write(file.bytes);
+    }
+    catch (IOException ignore)
+    { // The client went away, as PrintWriter ignores it
+    }
+  }
+
+  /**
+   * Get the render buffer of this thread, emptied.
+   *
+   * @return the buffer
+   */
+  private HTMLBuffer startRender()
+  {
+    return buffers.get().reset();
+  }
+
+  /**
+   * Print what was rendered in a buffer, ending the line.
+   *
+   * @param b the buffer returned by <code>startRender</code>
+   */
+  private void endRender(HTMLBuffer b)
+  {
+    b.append(EOL);
+    try
+    {
+      b.writeTo(stream);
+    }
+    catch (IOException ignore)
+    { // The client went away, as PrintWriter ignores it
     }
   }
 
@@ -100,6 +221,54 @@ public class ServletPrinter
     out.println(msg);
   }
 
+  /**
+   * Send the output to a buffer until <code>endCapture</code> is called, so
+   * that it can be cached. Captures can be nested.
+   *
+   * @return the capture to give to <code>endCapture</code>
+   */
+  Capture startCapture()
+  {
+    Capture c = new Capture();
+    c.previous = out;
+    c.previousStream = stream;
+    c.buffer = new ByteArrayOutputStream();
+    stream = c.buffer;
+    out = new PrintWriter(new UTF8Writer(stream));
+    return c;
+  }
+
+  /**
+   * Stop a capture and send the output back where it went before.
+   *
+   * @param c the capture returned by <code>startCapture</code>
+   * @return the output printed during the capture
+   */
+  byte[] endCapture(Capture c)
+  {
+    out = c.previous;
+    stream = c.previousStream;
+    return c.buffer.toByteArray();
+  }
+
+  /**
+   * Print HTML as is, typically the output of a capture.
+   *
+   * @param html the HTML to print, encoded in UTF-8
+   */
+  void printCaptured(byte[] html)
+  {
+    if (html == null)
+      return;
+    try
+    {
+      stream.write(html);
+    }
+    catch (IOException ignore)
+    { // The client went away, as PrintWriter ignores it
+    }
+  }
+
   void printHTMLHighlighted(String msg)
   {
     out.println("<TABLE width=\"100%\" bgcolor=\"#CCCCFF\">");
@@ -118,14 +287,10 @@ public class ServletPrinter
   {
     try
     {
-      out.println(
-        "<a href=\"edu.rice.rubis.servlets.SearchItemsByCategory?category="
-          + categoryId
-          + "&categoryName="
-          + URLEncoder.encode(categoryName)
-          + "\">"
-          + categoryName
-          + "</a><br>");
+      HTMLBuffer b = startRender();
+      b.append(SEARCH_BY_CATEGORY).append(categoryId).append(CATEGORY_NAME);
+      b.appendURLEncoded(categoryName).append(A_END).append(categoryName);
+      endRender(b.append(A_CLOSE_BR));
     }
     catch (Exception e)
     {
@@ -138,16 +303,11 @@ public class ServletPrinter
   {
     try
     {
-      out.println(
-        "<a href=\"edu.rice.rubis.servlets.SearchItemsByRegion?category="
-          + categoryId
-          + "&categoryName="
-          + URLEncoder.encode(categoryName)
-          + "&region="
-          + regionId
-          + "\">"
-          + categoryName
-          + "</a><br>");
+      HTMLBuffer b = startRender();
+      b.append(SEARCH_BY_REGION).append(categoryId).append(CATEGORY_NAME);
+      b.appendURLEncoded(categoryName).append(REGION).append(regionId);
+      b.append(A_END).append(categoryName);
+      endRender(b.append(A_CLOSE_BR));
     }
     catch (Exception e)
     {
@@ -160,14 +320,10 @@ public class ServletPrinter
   {
     try
     {
-      out.println(
-        "<a href=\"edu.rice.rubis.servlets.SellItemForm?category="
-          + categoryId
-          + "&user="
-          + userId
-          + "\">"
-          + categoryName
-          + "</a><br>");
+      HTMLBuffer b = startRender();
+      b.append(SELL_ITEM_FORM).append(categoryId).append(USER).append(userId);
+      b.append(A_END).append(categoryName);
+      endRender(b.append(A_CLOSE_BR));
     }
     catch (Exception e)
     {
@@ -183,12 +339,9 @@ public class ServletPrinter
   {
     try
     {
-      out.println(
-        "<a href=\"edu.rice.rubis.servlets.BrowseCategories?region="
-          + URLEncoder.encode(regionName)
-          + "\">"
-          + regionName
-          + "</a><br>");
+      HTMLBuffer b = startRender();
+      b.append(BROWSE_CATEGORIES).appendURLEncoded(regionName).append(A_END);
+      endRender(b.append(regionName).append(A_CLOSE_BR));
     }
     catch (Exception e)
     {
@@ -218,20 +371,11 @@ public class ServletPrinter
   {
     try
     {
-      out.println(
-        "<TR><TD><a href=\"edu.rice.rubis.servlets.ViewItem?itemId="
-          + itemId
-          + "\">"
-          + itemName
-          + "<TD>"
-          + maxBid
-          + "<TD>"
-          + nbOfBids
-          + "<TD>"
-          + endDate
-          + "<TD><a href=\"edu.rice.rubis.servlets.PutBidAuth?itemId="
-          + itemId
-          + "\"><IMG SRC=\"/rubis_servlets/bid_now.jpg\" height=22 width=90></a>");
+      HTMLBuffer b = startRender();
+      b.append(ITEM_ROW).append(itemId).append(A_END).append(itemName);
+      b.append(TD).append(maxBid).append(TD).append(nbOfBids);
+      b.append(TD).append(endDate).append(ITEM_ROW_BID).append(itemId);
+      endRender(b.append(ITEM_ROW_END));
     }
     catch (Exception e)
     {
@@ -255,6 +399,59 @@ public class ServletPrinter
         + "\n</CENTER>\n");
   }
 
+  /**
+   * Print the end of a page of the items of a category, with the links to
+   * the previous and next pages.
+   */
+  void printCategoryItemsFooter(
+    int categoryId,
+    String categoryName,
+    ItemPage items)
+  {
+    HTMLBuffer b = startRender().append(ITEMS_FOOTER);
+    if (items.page > 0)
+    {
+      b.append(PAGE_BY_CATEGORY).append(categoryId).append(CATEGORY_NAME);
+      b.appendURLEncoded(categoryName);
+      items.appendPrevious(b);
+      b.append(PREVIOUS_PAGE);
+    }
+    b.append(ITEMS_FOOTER_SEPARATOR);
+    if (items.count > 0)
+    {
+      b.append(PAGE_BY_CATEGORY).append(categoryId).append(CATEGORY_NAME);
+      b.appendURLEncoded(categoryName);
+      items.appendNext(b);
+      b.append(NEXT_PAGE);
+    }
+    endRender(b.append(ITEMS_FOOTER_END));
+  }
+
+  /**
+   * Print the end of a page of the items of a category in a region, with
+   * the links to the previous and next pages.
+   */
+  void printRegionItemsFooter(int categoryId, int regionId, ItemPage items)
+  {
+    HTMLBuffer b = startRender().append(ITEMS_FOOTER);
+    if (items.page > 0)
+    {
+      b.append(PAGE_BY_REGION).append(categoryId).append(REGION);
+      b.append(regionId);
+      items.appendPrevious(b);
+      b.append(PREVIOUS_PAGE);
+    }
+    b.append(ITEMS_FOOTER_SEPARATOR);
+    if (items.count > 0)
+    {
+      b.append(PAGE_BY_REGION).append(categoryId).append(REGION);
+      b.append(regionId);
+      items.appendNext(b);
+      b.append(NEXT_PAGE);
+    }
+    endRender(b.append(ITEMS_FOOTER_END));
+  }
+
   /**
    * Print the full description of an item and the bidding option if userId>0.
    */
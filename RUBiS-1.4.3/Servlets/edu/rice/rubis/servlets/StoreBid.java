@@ -3,7 +3,7 @@ package edu.rice.rubis.servlets;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.sql.SQLException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -35,23 +35,6 @@ public class StoreBid extends RubisHttpServlet
     return Config.StoreBidPoolSize;
   }
 
-/**
- * Close both statement and connection.
- */
-  private void closeConnection(PreparedStatement stmt, Connection conn)
-  {
-    try
-    {
-      if (stmt != null)
-        stmt.close(); // close statement
-      if (conn != null)
-        releaseConnection(conn);
-    }
-    catch (Exception ignore)
-    {
-    }
-  }
-
 /**
  * Display an error message.
  * @param errorMsg the error message value
@@ -65,6 +48,39 @@ public class StoreBid extends RubisHttpServlet
     sp.printHTMLfooter();
   }
 
+  /**
+   * Count a new bid in its item and raise the maximum bid of the item if
+   * the bid is above it. This is a single UPDATE rather than a SELECT
+   * followed by an UPDATE, so concurrent bids on the same item only wait
+   * for the row lock of each other's UPDATE and never overwrite each
+   * other's count, whatever the isolation level.
+   *
+   * @param conn connection of the transaction storing the bid
+   * @param itemId id of the item
+   * @param bid the bid
+   * @param maxBid maximum bid of the user, stored as the new maximum bid
+   * @return false if the item does not exist
+   * @exception SQLException if the update fails
+   */
+  static boolean countBid(Connection conn, int itemId, float bid, float maxBid)
+    throws SQLException
+  {
+    PreparedStatement update =
+      conn.prepareStatement(
+        "UPDATE items SET nb_of_bids=nb_of_bids+1, max_bid=CASE WHEN ?>max_bid THEN ? ELSE max_bid END WHERE id=?");
+    try
+    {
+      update.setFloat(1, bid);
+      update.setFloat(2, maxBid);
+      update.setInt(3, itemId);
+      return update.executeUpdate() > 0;
+    }
+    finally
+    {
+      update.close();
+    }
+  }
+
   /**
    * Call the <code>doPost</code> method.
    *
@@ -98,8 +114,6 @@ public class StoreBid extends RubisHttpServlet
     int maxQty; // maximum quantity available for this item
     int qty; // quantity asked by the user
     ServletPrinter sp = null;
-    PreparedStatement stmt = null;
-    Connection conn = null;
 
     sp = new ServletPrinter(response, "StoreBid");
 
@@ -225,104 +239,56 @@ public class StoreBid extends RubisHttpServlet
           + " !<br></h3>", sp);
       return;
     }
+    final int user = userId.intValue();
+    final int item = itemId.intValue();
+    final int quantity = qty;
+    final float userBid = bid;
+    final float userMaxBid = maxBid;
     try
     {
-      conn = getConnection();
-      conn.setAutoCommit(false);
-      String now = TimeManagement.currentDateToString();
-      stmt =
-        conn.prepareStatement(
-          "INSERT INTO bids VALUES (NULL, \""
-            + userId
-            + "\", \""
-            + itemId
-            + "\", \""
-            + qty
-            + "\", \""
-            + bid
-            + "\", \""
-            + maxBid
-            + "\", \""
-            + now
-            + "\")");
-      stmt.executeUpdate();
-      stmt.close();
-      // update the number of bids and the max bid for the item
-      PreparedStatement update = null;
-      try
-      {
-        stmt =
-          conn.prepareStatement(
-            "SELECT nb_of_bids, max_bid FROM items WHERE id=?");
-        stmt.setInt(1, itemId.intValue());
-        ResultSet rs = stmt.executeQuery();
-        if (rs.first())
+      runTransaction(new WritePipeline.Transaction()
         {
-          
-          int nbOfBids = rs.getInt("nb_of_bids");
-          nbOfBids++;
-          float oldMaxBid = rs.getFloat("max_bid");
-          if (bid > oldMaxBid)
+          public Object run(Connection conn) throws SQLException
           {
-            oldMaxBid = bid;
-            update =
+            String now = TimeManagement.currentDateToString();
+            PreparedStatement stmt =
               conn.prepareStatement(
-                "UPDATE items SET max_bid=?, nb_of_bids=? WHERE id=?");
-            update.setFloat(1, maxBid);
-            update.setInt(2, nbOfBids);
-            update.setInt(3, itemId.intValue());
-            update.executeUpdate();
-            update.close();
-          }
-          else
-          {
-            update =
-              conn.prepareStatement("UPDATE items SET nb_of_bids=? WHERE id=?");
-            update.setInt(1, nbOfBids);
-            update.setInt(2, itemId.intValue());
-            update.executeUpdate();
-            update.close();
+                "INSERT INTO bids VALUES (NULL, ?, ?, ?, ?, ?, ?)");
+            try
+            {
+              stmt.setInt(1, user);
+              stmt.setInt(2, item);
+              stmt.setInt(3, quantity);
+              stmt.setFloat(4, userBid);
+              stmt.setFloat(5, userMaxBid);
+              stmt.setString(6, now);
+              stmt.executeUpdate();
+            }
+            finally
+            {
+              stmt.close();
+            }
+            // update the number of bids and the max bid for the item
+            if (!countBid(conn, item, userBid, userMaxBid))
+              throw new WritePipeline.Abort("Couldn't find the item.");
+            return null;
           }
-
-        }
-        else
-        {
-          conn.rollback();
-          printError("Couldn't find the item.", sp);
-          closeConnection(stmt, conn);
-          return;
-        }
-      }
-      catch (Exception ex)
-      {
-        conn.rollback();
-        printError("Failed to update nb of bids and max bid: " + ex, sp);
-        if (update != null) 
-          update.close();
-        closeConnection(stmt, conn);
-        return;
-      }
-      sp.printHTMLheader("RUBiS: Bidding result");
-      sp.printHTML(
-        "<center><h2>Your bid has been successfully processed.</h2></center>\n");
-      conn.commit();
-      closeConnection(stmt, conn);
+        });
     }
-    catch (Exception e)
+    catch (WritePipeline.Abort a)
+    {
+      printError(a.getMessage(), sp);
+      return;
+    }
+    catch (SQLException e)
     {
       sp.printHTML(
         "Error while storing the bid (got exception: " + e + ")<br>");
-      try
-      {
-        conn.rollback();
-        closeConnection(stmt, conn);
-      }
-      catch (Exception se)
-      {
-        printError("Transaction rollback failed: " + e, sp);
-      }
       return;
     }
+    sp.printHTMLheader("RUBiS: Bidding result");
+    sp.printHTML(
+      "<center><h2>Your bid has been successfully processed.</h2></center>\n");
     sp.printHTMLfooter();
   }
 
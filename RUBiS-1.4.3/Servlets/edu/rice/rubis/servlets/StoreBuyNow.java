@@ -35,23 +35,6 @@ public class StoreBuyNow extends RubisHttpServlet
     return Config.StoreBuyNowPoolSize;
   }
 
-/**
- * Close both statement and connection.
- */
-  private void closeConnection(PreparedStatement stmt, Connection conn)
-  {
-    try
-    {
-      if (stmt != null)
-        stmt.close(); // close statement
-      if (conn != null)
-        releaseConnection(conn);
-    }
-    catch (Exception ignore)
-    {
-    }
-  }
-
 /**
  * Display an error message.
  * @param errorMsg the error message value
@@ -99,8 +82,6 @@ public class StoreBuyNow extends RubisHttpServlet
     int maxQty; // maximum quantity available for this item
     int qty; // quantity asked by the user
     ServletPrinter sp = null;
-    PreparedStatement stmt = null;
-    Connection conn = null;
 
     sp = new ServletPrinter(response, "StoreBuyNow");
 
@@ -159,103 +140,95 @@ public class StoreBuyNow extends RubisHttpServlet
           + " are proposed !<br></h3>", sp);
       return;
     }
-    String now = TimeManagement.currentDateToString();
-    // Try to find the Item corresponding to the Item ID
+    final int user = userId.intValue();
+    final int item = itemId.intValue();
+    final int quantity = qty;
     try
     {
-      int quantity;
-      conn = getConnection();
-      conn.setAutoCommit(false);
-      stmt =
-        conn.prepareStatement(
-          "SELECT quantity, end_date FROM items WHERE id=?");
-      stmt.setInt(1, itemId.intValue());
-      ResultSet irs = stmt.executeQuery();
-      if (!irs.first())
-      {
-        conn.rollback();
-        printError("This item does not exist in the database.", sp);
-        closeConnection(stmt, conn);
-        return;
-      }
-      quantity = irs.getInt("quantity");
-      quantity = quantity - qty;
-      stmt.close();
-      if (quantity == 0)
-      {
-        stmt =
-          conn.prepareStatement(
-            "UPDATE items SET end_date=?, quantity=? WHERE id=?");
-        stmt.setString(1, now);
-        stmt.setInt(2, quantity);
-        stmt.setInt(3, itemId.intValue());
-        stmt.executeUpdate();
-        stmt.close();
-      }
-      else
-      {
-        stmt = conn.prepareStatement("UPDATE items SET quantity=? WHERE id=?");
-        stmt.setInt(1, quantity);
-        stmt.setInt(2, itemId.intValue());
-        stmt.executeUpdate();
-        stmt.close();
-      }
+      runTransaction(new WritePipeline.Transaction()
+        {
+          public Object run(Connection conn) throws SQLException
+          {
+            String now = TimeManagement.currentDateToString();
+            // Try to find the Item corresponding to the Item ID
+            PreparedStatement stmt =
+              conn.prepareStatement(
+                "SELECT quantity, end_date FROM items WHERE id=?");
+            int left;
+            try
+            {
+              stmt.setInt(1, item);
+              ResultSet irs = stmt.executeQuery();
+              if (!irs.first())
+                throw new WritePipeline.Abort(
+                  "This item does not exist in the database.");
+              left = irs.getInt("quantity") - quantity;
+            }
+            finally
+            {
+              stmt.close();
+            }
+            if (left == 0)
+            {
+              stmt =
+                conn.prepareStatement(
+                  "UPDATE items SET end_date=?, quantity=? WHERE id=?");
+              stmt.setString(1, now);
+              stmt.setInt(2, left);
+              stmt.setInt(3, item);
+            }
+            else
+            {
+              stmt =
+                conn.prepareStatement("UPDATE items SET quantity=? WHERE id=?");
+              stmt.setInt(1, left);
+              stmt.setInt(2, item);
+            }
+            try
+            {
+              stmt.executeUpdate();
+            }
+            finally
+            {
+              stmt.close();
+            }
+            stmt =
+              conn.prepareStatement(
+                "INSERT INTO buy_now VALUES (NULL, ?, ?, ?, ?)");
+            try
+            {
+              stmt.setInt(1, user);
+              stmt.setInt(2, item);
+              stmt.setInt(3, quantity);
+              stmt.setString(4, now);
+              stmt.executeUpdate();
+            }
+            finally
+            {
+              stmt.close();
+            }
+            return null;
+          }
+        });
     }
-    catch (SQLException e)
+    catch (WritePipeline.Abort a)
     {
-      sp.printHTML("Failed to execute Query for the item: " + e + "<br>");
-      try
-      {
-        conn.rollback();
-        closeConnection(stmt, conn);
-      }
-      catch (Exception se)
-      {
-        printError("Transaction rollback failed: " + e, sp);
-        closeConnection(stmt, conn);
-      }
+      printError(a.getMessage(), sp);
       return;
     }
-    try
-    {
-      stmt =
-        conn.prepareStatement(
-          "INSERT INTO buy_now VALUES (NULL, \""
-            + userId
-            + "\", \""
-            + itemId
-            + "\", \""
-            + qty
-            + "\", \""
-            + now
-            + "\")");
-      stmt.executeUpdate();
-      
-      conn.commit();
-      sp.printHTMLheader("RUBiS: BuyNow result");
-      if (qty == 1)
-        sp.printHTML(
-          "<center><h2>Your have successfully bought this item.</h2></center>\n");
-      else
-        sp.printHTML(
-          "<center><h2>Your have successfully bought these items.</h2></center>\n");
-    }
-    catch (Exception e)
+    catch (SQLException e)
     {
       sp.printHTML(
         "Error while storing the BuyNow (got exception: " + e + ")<br>");
-      try
-      {
-        conn.rollback();
-        closeConnection(stmt, conn);
-      }
-      catch (Exception se)
-      {
-        printError("Transaction rollback failed: " + e + "<br>", sp);
-      }
       return;
     }
-    closeConnection(stmt, conn);
+    sp.printHTMLheader("RUBiS: BuyNow result");
+    if (qty == 1)
+      sp.printHTML(
+        "<center><h2>Your have successfully bought this item.</h2></center>\n");
+    else
+      sp.printHTML(
+        "<center><h2>Your have successfully bought these items.</h2></center>\n");
     sp.printHTMLfooter();
   }
 
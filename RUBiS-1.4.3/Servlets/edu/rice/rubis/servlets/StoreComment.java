@@ -3,7 +3,6 @@ package edu.rice.rubis.servlets;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import javax.servlet.ServletException;
@@ -36,23 +35,6 @@ public class StoreComment extends RubisHttpServlet
     return Config.StoreCommentPoolSize;
   }
 
-/**
- * Close both statement and connection to the database.
- */
-  private void closeConnection(PreparedStatement stmt, Connection conn)
-  {
-    try
-    {
-      if (stmt != null)
-        stmt.close(); // close statement
-      if (conn != null)
-        releaseConnection(conn);
-    }
-    catch (Exception ignore)
-    {
-    }
-  }
-
 /**
  * Display an error message.
  * @param errorMsg the error message value
@@ -82,8 +64,6 @@ public class StoreComment extends RubisHttpServlet
     String comment; // user comment
     Integer rating; // user rating
     ServletPrinter sp = null;
-    PreparedStatement stmt = null;
-    Connection conn = null;
 
     sp = new ServletPrinter(response, "StoreComment");
 
@@ -132,89 +112,63 @@ public class StoreComment extends RubisHttpServlet
       return;
     }
 
+    final int from = fromId.intValue();
+    final int to = toId.intValue();
+    final int item = itemId.intValue();
+    final int points = rating.intValue();
+    final String text = comment;
     try
     {
-      conn = getConnection();
-      conn.setAutoCommit(false); // faster if made inside a Tx
-      // Try to create a new comment
-      try
-      {
-        String now = TimeManagement.currentDateToString();
-        stmt =
-          conn.prepareStatement(
-            "INSERT INTO comments VALUES (NULL, \""
-              + fromId
-              + "\", \""
-              + toId
-              + "\", \""
-              + itemId
-              + "\", \""
-              + rating
-              + "\", \""
-              + now
-              + "\",\""
-              + comment
-              + "\")");
-
-        stmt.executeUpdate();
-        stmt.close();
-      }
-      catch (SQLException e)
-      {
-        conn.rollback();
-        printError(
-          "Error while storing the comment (got exception: " + e + ")<br>", sp);
-         closeConnection(stmt, conn);
-        return;
-      }
-      // Try to find the user corresponding to the 'to' ID
-      try
-      {
-        ResultSet urs;
-        stmt = conn.prepareStatement("SELECT rating FROM users WHERE id=?");
-        stmt.setInt(1, toId.intValue());
-        urs = stmt.executeQuery();
-        if (urs.first())
+      runTransaction(new WritePipeline.Transaction()
         {
-          int userRating = urs.getInt("rating");
-          userRating = userRating + rating.intValue();
-
-          stmt = conn.prepareStatement("UPDATE users SET rating=? WHERE id=?");
-          stmt.setInt(1, userRating);
-          stmt.setInt(2, toId.intValue());
-          stmt.executeUpdate();
-        }
-      }
-      catch (SQLException e)
-      {
-        conn.rollback();
-        printError(
-          "Error while updating user's rating (got exception: " + e + ")<br>", sp);
-         closeConnection(stmt, conn);
-        return;
-      }
-      sp.printHTMLheader("RUBiS: Comment posting");
-      sp.printHTML(
-        "<center><h2>Your comment has been successfully posted.</h2></center>");
-
-      sp.printHTMLfooter();
-      conn.commit();
-      closeConnection(stmt, conn);
+          public Object run(Connection conn) throws SQLException
+          {
+            // Try to create a new comment
+            String now = TimeManagement.currentDateToString();
+            PreparedStatement stmt =
+              conn.prepareStatement(
+                "INSERT INTO comments VALUES (NULL, ?, ?, ?, ?, ?, ?)");
+            try
+            {
+              stmt.setInt(1, from);
+              stmt.setInt(2, to);
+              stmt.setInt(3, item);
+              stmt.setInt(4, points);
+              stmt.setString(5, now);
+              stmt.setString(6, text);
+              stmt.executeUpdate();
+            }
+            finally
+            {
+              stmt.close();
+            }
+            // Update the rating of the user corresponding to the 'to' ID
+            stmt =
+              conn.prepareStatement("UPDATE users SET rating=rating+? WHERE id=?");
+            try
+            {
+              stmt.setInt(1, points);
+              stmt.setInt(2, to);
+              stmt.executeUpdate();
+            }
+            finally
+            {
+              stmt.close();
+            }
+            return null;
+          }
+        });
     }
-    catch (Exception e)
+    catch (SQLException e)
     {
-      sp.printHTML("Exception getting comment list: " + e + "<br>");
-      try
-      {
-        conn.rollback();
-        closeConnection(stmt, conn);
-      }
-      catch (Exception se)
-      {
-        sp.printHTML("Transaction rollback failed: " + e + "<br>");
-        closeConnection(stmt, conn);
-      }
+      printError(
+        "Error while storing the comment (got exception: " + e + ")<br>", sp);
+      return;
     }
+    sp.printHTMLheader("RUBiS: Comment posting");
+    sp.printHTML(
+      "<center><h2>Your comment has been successfully posted.</h2></center>");
+    sp.printHTMLfooter();
   }
 
   /**
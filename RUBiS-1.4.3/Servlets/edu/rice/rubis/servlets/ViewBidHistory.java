@@ -84,19 +84,15 @@ public class ViewBidHistory extends RubisHttpServlet
         bid = rs.getFloat("bid");
         userId = rs.getInt("user_id");
 
-        ResultSet urs = null;
         try
         {
-          stmt = conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-          stmt.setInt(1, userId);
-          urs = stmt.executeQuery();
-          if (!urs.first())
+          bidderName = getNickname(conn, userId);
+          if (bidderName == null)
           {
             sp.printHTML("This user does not exist in the database.<br>");
             closeConnection(stmt, conn);
             return false;
           }
-          bidderName = urs.getString("nickname");
         }
         catch (SQLException e)
         {
@@ -154,7 +150,7 @@ public class ViewBidHistory extends RubisHttpServlet
     // get the item
     try
     {
-      conn = getConnection();
+      conn = getReadOnlyConnection();
       stmt = conn.prepareStatement("SELECT name FROM items WHERE id=?");
       stmt.setInt(1, itemId.intValue());
       rs = stmt.executeQuery();
@@ -2,9 +2,6 @@ package edu.rice.rubis.servlets;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -29,23 +26,6 @@ public class ViewItem extends RubisHttpServlet
     return Config.ViewItemPoolSize;
   }
 
-/**
- * Close both statement and connection to the database.
- */
-  private void closeConnection(PreparedStatement stmt, Connection conn)
-  {
-    try
-    {
-      if (stmt != null)
-        stmt.close(); // close statement
-      if (conn != null)
-        releaseConnection(conn);
-    }
-    catch (Exception ignore)
-    {
-    }
-  }
-
 /**
  * Display an error message.
  * @param errorMsg the error message value
@@ -64,11 +44,9 @@ public class ViewItem extends RubisHttpServlet
     throws IOException, ServletException
   {
     ServletPrinter sp = null;
-    PreparedStatement stmt = null;
     Connection conn = null;
     
     sp = new ServletPrinter(response, "ViewItem");
-    ResultSet rs = null;
 
     String value = request.getParameter("itemId");
     if ((value == null) || (value.equals("")))
@@ -77,113 +55,87 @@ public class ViewItem extends RubisHttpServlet
       return;
     }
     Integer itemId = new Integer(value);
-    // get the item
+    conn = getReadOnlyConnection();
     try
     {
-      conn = getConnection();
-      stmt = conn.prepareStatement("SELECT * FROM items WHERE id=?");
-      stmt.setInt(1, itemId.intValue());
-      rs = stmt.executeQuery();
-    }
-    catch (Exception e)
-    {
-      sp.printHTML("Failed to execute Query for item: " + e);
-      closeConnection(stmt, conn);
-      return;
-    }
-    /**
-    try
-    {
-      if (!rs.first())
+      // get the item
+      Row item;
+      try
       {
-        stmt.close();
-        stmt = conn.prepareStatement("SELECT * FROM old_items WHERE id=?");
-        stmt.setInt(1, itemId.intValue());
-        rs = stmt.executeQuery();
+        item = getItem(conn, itemId.intValue());
       }
-    }
-    catch (Exception e)
-    {
-      sp.printHTML("Failed to execute Query for item in table old_items: " + e);
-      closeConnection(stmt, conn);
-      return;
-    }
-    */
-    try
-    {
-      if (!rs.first())
+      catch (Exception e)
+      {
+        sp.printHTML("Failed to execute Query for item: " + e);
+        return;
+      }
+      if (item == null)
       {
         sp.printHTML("<h2>This item does not exist!</h2>");
-        closeConnection(stmt, conn);
         return;
       }
-      String itemName, endDate, startDate, description, sellerName;
-      float maxBid, initialPrice, buyNow, reservePrice;
-      int quantity, sellerId, nbOfBids = 0;
-      itemName = rs.getString("name");
-      description = rs.getString("description");
-      endDate = rs.getString("end_date");
-      startDate = rs.getString("start_date");
-      initialPrice = rs.getFloat("initial_price");
-      reservePrice = rs.getFloat("reserve_price");
-      buyNow = rs.getFloat("buy_now");
-      quantity = rs.getInt("quantity");
-      sellerId = rs.getInt("seller");
-
-      maxBid = rs.getFloat("max_bid");
-      nbOfBids = rs.getInt("nb_of_bids");
-      if (maxBid < initialPrice)
-        maxBid = initialPrice;
-
-      PreparedStatement sellerStmt = null;
       try
       {
-        sellerStmt =
-          conn.prepareStatement("SELECT nickname FROM users WHERE id=?");
-        sellerStmt.setInt(1, sellerId);
-        ResultSet sellerResult = sellerStmt.executeQuery();
-        // Get the seller's name		 
-        if (sellerResult.first())
-          sellerName = sellerResult.getString("nickname");
-        else
+        String itemName, endDate, startDate, description, sellerName;
+        float maxBid, initialPrice, buyNow, reservePrice;
+        int quantity, sellerId, nbOfBids = 0;
+        itemName = item.getString("name");
+        description = item.getString("description");
+        endDate = item.getString("end_date");
+        startDate = item.getString("start_date");
+        initialPrice = item.getFloat("initial_price");
+        reservePrice = item.getFloat("reserve_price");
+        buyNow = item.getFloat("buy_now");
+        quantity = item.getInt("quantity");
+        sellerId = item.getInt("seller");
+
+        maxBid = item.getFloat("max_bid");
+        nbOfBids = item.getInt("nb_of_bids");
+        if (maxBid < initialPrice)
+          maxBid = initialPrice;
+
+        // Get the seller's name
+        try
+        {
+          sellerName = getNickname(conn, sellerId);
+          if (sellerName == null)
+          {
+            sp.printHTML("Unknown seller");
+            return;
+          }
+        }
+        catch (Exception e)
         {
-          sp.printHTML("Unknown seller");
-          sellerStmt.close();
-          closeConnection(stmt, conn);
+          sp.printHTML("Failed to executeQuery for seller: " + e);
           return;
         }
-        sellerStmt.close();
-
+        sp.printItemDescription(
+          itemId.intValue(),
+          itemName,
+          description,
+          initialPrice,
+          reservePrice,
+          buyNow,
+          quantity,
+          maxBid,
+          nbOfBids,
+          sellerName,
+          sellerId,
+          startDate,
+          endDate,
+          -1,
+          conn);
       }
-      catch (SQLException e)
+      catch (Exception e)
       {
-        sp.printHTML("Failed to executeQuery for seller: " + e);
-        sellerStmt.close();
-        closeConnection(stmt, conn);
-        return;
+        printError("Exception getting item list: " + e + "<br>", sp);
       }
-      sp.printItemDescription(
-        itemId.intValue(),
-        itemName,
-        description,
-        initialPrice,
-        reservePrice,
-        buyNow,
-        quantity,
-        maxBid,
-        nbOfBids,
-        sellerName,
-        sellerId,
-        startDate,
-        endDate,
-        -1,
-        conn);
     }
-    catch (Exception e)
+    finally
     {
-      printError("Exception getting item list: " + e + "<br>", sp);
+      if (conn != null)
+        releaseConnection(conn);
     }
-    closeConnection(stmt, conn);
     sp.printHTMLfooter();
   }
 
@@ -0,0 +1,415 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.servlets;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit of the small transactions of the servlets that write the
+ * database. Instead of committing on its own connection, a servlet queues
+ * its transaction and waits; a few writer threads, each with a dedicated
+ * connection, run the queued transactions one after the other in a single
+ * database transaction and commit them together, so that one log flush
+ * covers a whole batch. The servlet returns once the batch is committed.
+ * <p>
+ * Each transaction of a batch runs after a savepoint and only its own work
+ * is rolled back if it fails. If the database rolls back the whole
+ * transaction, for example to break a deadlock, the other transactions of
+ * the batch are run again. The following properties of the database
+ * properties file are used:
+ * <pre>
+ * jdbc.writepipeline    : yes to group the commits, no by default
+ * jdbc.writeconnections : number of writer threads and connections
+ * jdbc.writebatchsize   : maximum number of transactions per commit
+ * jdbc.writebatchdelay  : milliseconds a batch waits for more transactions
+ *                         while the queue is empty, 0 to commit at once
+ * </pre>
+ *
+ * @version 1.0
+ */
+public class WritePipeline
+{
+  private static HashMap<String, WritePipeline> pipelines =
+    new HashMap<String, WritePipeline>();
+
+  private String key;
+  private String url;
+  private String username;
+  private String password;
+  private int    batchSize;
+  private long   batchDelay; // ns
+  private int    users = 0;
+  private volatile boolean closed = false;
+
+  private LinkedBlockingQueue<Request> queue =
+    new LinkedBlockingQueue<Request>();
+  private Writer[] writers;
+
+  // Statistics
+  private AtomicLong nbOfTransactions = new AtomicLong();
+  private AtomicLong nbOfCommits = new AtomicLong();
+  private AtomicLong nbOfFailures = new AtomicLong();
+  private AtomicLong nbOfRestarts = new AtomicLong();
+
+  /**
+   * The work of a servlet, run in a transaction it must not commit or roll
+   * back.
+   */
+  public interface Transaction
+  {
+    /**
+     * @param conn connection of the transaction
+     * @return a result for the servlet, or null
+     * @exception SQLException to roll back the work of this transaction
+     */
+    Object run(Connection conn) throws SQLException;
+  }
+
+  /**
+   * Exception thrown by a <code>Transaction</code> to give up, with a
+   * message for the user.
+   */
+  public static class Abort extends SQLException
+  {
+    private static final long serialVersionUID = 1L;
+
+    public Abort(String message)
+    {
+      super(message);
+    }
+  }
+
+  /** A queued transaction and its outcome */
+  private static class Request
+  {
+    Transaction    transaction;
+    Object         result;
+    SQLException   error;
+    CountDownLatch done = new CountDownLatch(1);
+
+    Request(Transaction t)
+    {
+      transaction = t;
+    }
+  }
+
+  private WritePipeline(Properties dbProperties, String pipelineKey)
+  {
+    key = pipelineKey;
+    url = dbProperties.getProperty("datasource.url");
+    username = dbProperties.getProperty("datasource.username");
+    password = dbProperties.getProperty("datasource.password");
+    batchSize = Integer.parseInt(dbProperties.getProperty("jdbc.writebatchsize", "32").trim());
+    batchDelay = TimeUnit.MILLISECONDS.toNanos(
+        Long.parseLong(dbProperties.getProperty("jdbc.writebatchdelay", "2").trim()));
+    int n = Integer.parseInt(dbProperties.getProperty("jdbc.writeconnections", "2").trim());
+    writers = new Writer[Math.max(n, 1)];
+    for (int i = 0; i < writers.length; i++)
+    {
+      writers[i] = new Writer(i);
+      writers[i].start();
+    }
+  }
+
+  /**
+   * Get the write pipeline of the database described by the given
+   * properties. The pipeline is created on the first call and closed when
+   * every caller has released it.
+   *
+   * @param dbProperties database properties
+   * @return the pipeline, or null if <code>jdbc.writepipeline</code> is not
+   *         <code>yes</code>
+   */
+  public static synchronized WritePipeline getPipeline(Properties dbProperties)
+  {
+    if (!"yes".equalsIgnoreCase(dbProperties.getProperty("jdbc.writepipeline", "no").trim()))
+      return null;
+    String key = dbProperties.getProperty("datasource.url") + "|"
+        + dbProperties.getProperty("datasource.username");
+    WritePipeline pipeline = pipelines.get(key);
+    if (pipeline == null)
+    {
+      pipeline = new WritePipeline(dbProperties, key);
+      pipelines.put(key, pipeline);
+    }
+    pipeline.users++;
+    return pipeline;
+  }
+
+  /**
+   * Release the pipeline. The last caller stops the writers once the queue
+   * is empty and prints the statistics.
+   */
+  public void release()
+  {
+    synchronized (WritePipeline.class)
+    {
+      if (--users > 0)
+        return;
+      pipelines.remove(key);
+    }
+    closed = true;
+    for (int i = 0; i < writers.length; i++)
+    {
+      try
+      {
+        writers[i].join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    System.out.println(this);
+  }
+
+  /**
+   * Run a transaction and wait until it is committed.
+   *
+   * @param t the transaction
+   * @return the result of the transaction
+   * @exception SQLException if the transaction or its commit failed
+   */
+  public Object execute(Transaction t) throws SQLException
+  {
+    if (closed)
+      throw new SQLException("The write pipeline is closed");
+    Request r = new Request(t);
+    queue.add(r);
+    // The writers may have found the queue empty and stopped meanwhile
+    if (closed && queue.remove(r))
+      throw new SQLException("The write pipeline is closed");
+    boolean interrupted = false;
+    while (true)
+    {
+      try
+      {
+        r.done.await();
+        break;
+      }
+      catch (InterruptedException e)
+      { // The transaction may already be running, wait for its outcome
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    if (r.error != null)
+      throw r.error;
+    return r.result;
+  }
+
+  /**
+   * Whether the database rolled back the whole transaction, as it does on
+   * a deadlock or a serialization failure, rather than the failed
+   * statement only.
+   */
+  private static boolean isRollback(SQLException e)
+  {
+    String state = e.getSQLState();
+    return (state != null) && state.startsWith("40");
+  }
+
+  /** A writer thread and its connection */
+  private class Writer extends Thread
+  {
+    private Connection conn = null;
+    private ArrayList<Request> batch = new ArrayList<Request>();
+
+    Writer(int i)
+    {
+      super("WritePipeline-" + i);
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while (!closed || !queue.isEmpty())
+      {
+        try
+        {
+          Request r = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (r == null)
+            continue;
+          batch.add(r);
+          long deadline = System.nanoTime() + batchDelay;
+          while (batch.size() < batchSize)
+          {
+            r = queue.poll();
+            if (r == null)
+            {
+              long left = deadline - System.nanoTime();
+              if (left <= 0)
+                break;
+              r = queue.poll(left, TimeUnit.NANOSECONDS);
+              if (r == null)
+                break;
+            }
+            batch.add(r);
+          }
+        }
+        catch (InterruptedException e)
+        {
+          if (batch.isEmpty())
+            continue;
+        }
+        try
+        {
+          commit();
+        }
+        catch (RuntimeException e)
+        { // Keep the writer alive for the next batches
+          fail(new SQLException("Write pipeline failure: " + e, e));
+        }
+        finally
+        {
+          for (int i = 0; i < batch.size(); i++)
+            batch.get(i).done.countDown();
+          batch.clear();
+        }
+      }
+      close();
+    }
+
+    /**
+     * Run the transactions of the batch and commit them, setting their
+     * outcome.
+     */
+    private void commit()
+    {
+      nbOfTransactions.addAndGet(batch.size());
+      try
+      {
+        if (conn == null)
+        {
+          conn = DriverManager.getConnection(url, username, password);
+          conn.setAutoCommit(false);
+        }
+        boolean restart = true;
+        while (restart)
+        {
+          restart = false;
+          for (int i = 0; i < batch.size(); i++)
+          {
+            Request r = batch.get(i);
+            if (r.error != null)
+              continue;
+            Savepoint savepoint = conn.setSavepoint();
+            try
+            {
+              r.result = r.transaction.run(conn);
+            }
+            catch (SQLException e)
+            {
+              r.error = e;
+            }
+            catch (RuntimeException e)
+            {
+              r.error = new SQLException("Transaction failed: " + e, e);
+            }
+            if (r.error == null)
+            {
+              conn.releaseSavepoint(savepoint);
+              continue;
+            }
+            nbOfFailures.incrementAndGet();
+            if (isRollback(r.error))
+            { // Everything before was lost, run it again
+              conn.rollback();
+              nbOfRestarts.incrementAndGet();
+              restart = true;
+              break;
+            }
+            conn.rollback(savepoint);
+            conn.releaseSavepoint(savepoint);
+          }
+        }
+        conn.commit();
+        nbOfCommits.incrementAndGet();
+      }
+      catch (SQLException e)
+      {
+        fail(e);
+      }
+    }
+
+    /**
+     * Fail the transactions of the batch that did not fail on their own:
+     * the connection is in an unknown state and nothing was committed.
+     *
+     * @param e the error
+     */
+    private void fail(SQLException e)
+    {
+      for (int i = 0; i < batch.size(); i++)
+      {
+        Request r = batch.get(i);
+        if (r.error == null)
+          r.error = e;
+      }
+      close();
+    }
+
+    private void close()
+    {
+      if (conn == null)
+        return;
+      try
+      {
+        conn.rollback();
+        conn.close();
+      }
+      catch (Exception ignore)
+      {
+      }
+      conn = null;
+    }
+  }
+
+  /**
+   * Summary of the pipeline statistics.
+   *
+   * @return statistics
+   */
+  public String toString()
+  {
+    long commits = nbOfCommits.get();
+    return "WritePipeline " + url + ": " + nbOfTransactions.get()
+        + " transactions, " + commits + " commits (average batch "
+        + String.format("%.1f", (commits == 0) ? 0.0
+            : (double) nbOfTransactions.get() / commits) + "), "
+        + nbOfFailures.get() + " failed, " + nbOfRestarts.get()
+        + " batches restarted";
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Pool of direct buffers used to send and receive the messages of the
+ * cache nodes, so that sending a request neither allocates a buffer nor
+ * copies it again in the socket layer. Buffers are kept by power-of-two
+ * size classes; buffers larger than the largest class are not pooled.
+ * <p>
+ * The buffers are in the byte order of the cache servers, which write
+ * their integers in host order (see <code>lib/iobuf-getput.h</code>).
+ *
+ * @version 1.0
+ */
+public class BufferPool
+{
+  /** Byte order of the messages */
+  public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private static final int MIN_SHIFT = 9;   // 512 bytes
+  private static final int MAX_SHIFT = 20;  // 1 MB
+
+  private final ArrayList<ArrayDeque<ByteBuffer>> free;
+  private final int maxFreePerClass;
+
+  /**
+   * Creates a new <code>BufferPool</code> instance.
+   *
+   * @param maxFreePerClass number of free buffers kept in each size class
+   */
+  public BufferPool(int maxFreePerClass)
+  {
+    this.maxFreePerClass = maxFreePerClass;
+    free = new ArrayList<ArrayDeque<ByteBuffer>>(MAX_SHIFT - MIN_SHIFT + 1);
+    for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+      free.add(new ArrayDeque<ByteBuffer>());
+  }
+
+  private static int sizeClass(int size)
+  {
+    int shift = MIN_SHIFT;
+    while ((1 << shift) < size)
+      shift++;
+    return shift - MIN_SHIFT;
+  }
+
+  /**
+   * Get a cleared buffer of at least the given size.
+   *
+   * @param size minimum capacity
+   * @return the buffer
+   */
+  public ByteBuffer get(int size)
+  {
+    if (size > (1 << MAX_SHIFT))
+      return ByteBuffer.allocateDirect(size).order(ORDER);
+    int c = sizeClass(size);
+    ArrayDeque<ByteBuffer> buffers = free.get(c);
+    ByteBuffer b;
+    synchronized (buffers)
+    {
+      b = buffers.poll();
+    }
+    if (b == null)
+      return ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT)).order(ORDER);
+    b.clear();
+    return b;
+  }
+
+  /**
+   * Give back a buffer obtained with <code>get</code>. The buffer must not
+   * be used anymore.
+   *
+   * @param b the buffer
+   */
+  public void put(ByteBuffer b)
+  {
+    int capacity = b.capacity();
+    if ((capacity > (1 << MAX_SHIFT)) || (Integer.bitCount(capacity) != 1)
+        || (capacity < (1 << MIN_SHIFT)))
+      return;
+    ArrayDeque<ByteBuffer> buffers = free.get(sizeClass(capacity));
+    synchronized (buffers)
+    {
+      if (buffers.size() < maxFreePerClass)
+        buffers.add(b);
+    }
+  }
+}
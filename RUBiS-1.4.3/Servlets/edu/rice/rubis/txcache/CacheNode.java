@@ -0,0 +1,73 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.io.IOException;
+
+/**
+ * Connection to a cache server node (<code>src/server</code>), as used by
+ * <code>ServerProxy_Lookup</code> and <code>ServerProxy_Put</code>.
+ * Implementations must be safe for use by concurrent clients.
+ *
+ * @version 1.0
+ */
+public interface CacheNode
+{
+  /** Return the latest version valid in the requested interval */
+  public static final int LOOKUP_POLICY_DEFAULT = 0;
+  /** memcached mode: return any version, ignoring consistency */
+  public static final int LOOKUP_POLICY_SCREW_CONSISTENCY = 2;
+
+  /**
+   * Look up a key over an interval of snapshots.
+   *
+   * @param key the key
+   * @param interval snapshots the transaction can still use
+   * @param earliestPin earliest pin of the transaction, for statistics
+   * @param policy lookup policy
+   * @return the entry found, or null on a miss
+   * @exception IOException if the node cannot be reached
+   */
+  public CacheEntry lookup(byte[] key, Interval interval, long earliestPin,
+      int policy) throws IOException;
+
+  /**
+   * Store a value. This does not wait for the node to answer, so the value
+   * is not guaranteed to be stored.
+   *
+   * @param key the key
+   * @param interval validity interval of the value
+   * @param data the value
+   * @param tags invalidation tags, only used if the interval is still valid
+   * @param force replace any existing version (memcached mode)
+   * @exception IOException if the node cannot be reached
+   */
+  public void put(byte[] key, Interval interval, byte[] data, String[] tags,
+      boolean force) throws IOException;
+
+  /**
+   * Close the connections to the node.
+   */
+  public void close();
+}
@@ -0,0 +1,825 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+/**
+ * Read-only transactions and cacheable functions on one database
+ * connection, the Java counterpart of <code>src/client/client.c</code>.
+ * <p>
+ * A transaction starts with <code>beginRO</code> and ends with
+ * <code>commit</code>. In between, the queries must be made through the
+ * connection returned by <code>getConnection</code>: the client starts the
+ * database transaction lazily on the snapshot chosen by the pin policy,
+ * and reads the validity interval and the invalidation tags of each result
+ * from the command status. The transaction statements of the application
+ * (<code>setAutoCommit</code>, <code>commit</code>, <code>rollback</code>)
+ * are ignored while a read-only transaction runs. Outside of read-only
+ * transactions, queries are passed through.
+ * <p>
+ * <code>wrap</code> calls a function through the cache: the result is
+ * looked up under a key made of the function name and its arguments and,
+ * on a miss, the function is run and its result stored with the
+ * intersection of the validity intervals of the queries it made. Cacheable
+ * functions can be nested. A client is used by one thread at a time.
+ *
+ * @version 1.0
+ */
+public class Client implements InvocationHandler
+{
+  private TxCache    cache;
+  private Connection connection;
+  private Connection proxy;
+  private PinCushion pinCushion;
+  private boolean    bypass;
+  private boolean    memcached;
+
+  // Transaction state
+  private PinSet pinSet;
+  private long   activePin = Interval.PIN_INVALID;
+  private long   earliestPin = Interval.PIN_INVALID; // for statistics only
+  private Frame  rootFrame;
+
+  // Cacheable function stack
+  private Frame bottom = null;
+
+  /**
+   * A call of a cacheable function, as <code>ClientCacheableFrame_t</code>.
+   */
+  public static class Frame
+  {
+    byte[]          key;
+    byte[]          data = null;
+    Interval        interval =
+      new Interval(Interval.PIN_NEG_INF, Interval.PIN_INF, true);
+    TreeSet<String> invalTags = new TreeSet<String>();
+    boolean         willingToDealWithInvalidations = false;
+    Frame           parent;
+
+    Frame(byte[] key, Frame parent)
+    {
+      this.key = key;
+      this.parent = parent;
+    }
+
+    /**
+     * @return the cached value if the lookup hit, null otherwise
+     */
+    public byte[] getData()
+    {
+      return data;
+    }
+
+    /**
+     * Allow the result of this call to be stored as still valid, to be
+     * invalidated by its invalidation tags rather than expire at the end
+     * of its validity interval.
+     *
+     * @param willing true to keep the result as still valid
+     */
+    public void setWillingToDealWithInvalidations(boolean willing)
+    {
+      willingToDealWithInvalidations = willing;
+    }
+  }
+
+  Client(TxCache cache, Connection connection, PinCushion pinCushion)
+  {
+    this.cache = cache;
+    this.connection = connection;
+    this.pinCushion = pinCushion;
+    bypass = cache.isBypass() || (pinCushion == null);
+    memcached = cache.isMemcached();
+    proxy = (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+        this);
+  }
+
+  /**
+   * @return the connection through which the queries must be made
+   */
+  public Connection getConnection()
+  {
+    return proxy;
+  }
+
+  /**
+   * @return the connection given to the client
+   */
+  public Connection getRawConnection()
+  {
+    return connection;
+  }
+
+  /**
+   * Get the client owning a connection.
+   *
+   * @param c a connection
+   * @return the client whose <code>getConnection</code> returned c, or null
+   *         if c is not the connection of a client
+   */
+  public static Client getClient(Connection c)
+  {
+    if ((c == null) || !Proxy.isProxyClass(c.getClass()))
+      return null;
+    InvocationHandler h = Proxy.getInvocationHandler(c);
+    return (h instanceof Client) ? (Client) h : null;
+  }
+
+  /**
+   * Start a read-only transaction.
+   *
+   * @param freshness staleness allowed, in seconds
+   * @return false if a transaction is already running or the pin cushion
+   *         cannot be reached
+   */
+  public boolean beginRO(double freshness)
+  {
+    if (bottom != null)
+    {
+      System.err.println("TxCache: transaction already running");
+      return false;
+    }
+
+    try
+    {
+      if (!connection.getAutoCommit())
+        connection.setAutoCommit(true);
+    }
+    catch (SQLException e)
+    {
+      System.err.println("TxCache: failed to enable auto-commit: " + e);
+      return false;
+    }
+
+    if (bypass)
+      pinSet = new PinSet(null, true);
+    else
+    {
+      try
+      {
+        pinSet = new PinSet(pinCushion.request((long) (freshness * 1000000)),
+            true);
+      }
+      catch (IOException e)
+      {
+        System.err.println("TxCache: failed to get pins from the pin cushion: "
+            + e);
+        return false;
+      }
+    }
+
+    activePin = Interval.PIN_INVALID;
+    earliestPin = pinSet.justStar() ? Interval.PIN_INVALID : pinSet.get(0).pin;
+
+    rootFrame = new Frame(null, null);
+    if (memcached)
+    {
+      if (!pinSet.justStar())
+        rootFrame.interval = pinSet.boundsWithoutStar();
+      else
+        rootFrame.interval.upper = Interval.PIN_MIN;
+    }
+    bottom = rootFrame;
+
+    cache.roCacheXactions.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Commit the running read-only transaction.
+   *
+   * @return false if no transaction can be committed or the database
+   *         commit failed
+   */
+  public boolean commit()
+  {
+    if (bottom == null)
+    {
+      System.err.println("TxCache: no read-only transaction running");
+      return false;
+    }
+    if (bottom != rootFrame)
+    {
+      System.err.println("TxCache: attempted to commit from within a "
+          + "cacheable function");
+      return false;
+    }
+
+    bottom = null;
+
+    boolean result = true;
+    if (activePin != Interval.PIN_INVALID)
+    {
+      activePin = Interval.PIN_INVALID;
+      try
+      {
+        execute("COMMIT").close();
+      }
+      catch (SQLException e)
+      {
+        System.err.println("TxCache: commit failed: " + e);
+        result = false;
+      }
+    }
+
+    if (!bypass)
+    {
+      try
+      {
+        pinCushion.release();
+      }
+      catch (IOException e)
+      {
+        System.err.println("TxCache: failed to release pin from pin cushion: "
+            + e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * End the running read-only transaction, if any, aborting the cacheable
+   * functions left running. The connection can then be released.
+   */
+  public void finish()
+  {
+    if (bottom == null)
+      return;
+    while (bottom != rootFrame)
+      exitCacheableAbort(bottom);
+    commit();
+  }
+
+  /**
+   * @return true if a read-only transaction is running, so that calls to
+   *         cacheable functions may be cached
+   */
+  public boolean mightCache()
+  {
+    return bottom != null;
+  }
+
+  /**
+   * Run a statement on the connection, outside of the wrappers.
+   */
+  private Statement execute(String sql) throws SQLException
+  {
+    Statement s = connection.createStatement();
+    try
+    {
+      s.execute(sql);
+    }
+    catch (SQLException e)
+    {
+      s.close();
+      throw e;
+    }
+    return s;
+  }
+
+  /**
+   * Make sure the database transaction runs on the snapshot chosen by the
+   * pin policy before a query, switching snapshot or pinning a new one if
+   * needed.
+   */
+  private void beginQuery() throws SQLException
+  {
+    long pin = cache.getPolicy().choosePin(pinSet);
+    if (pin == activePin)
+      return;
+    if (!pinSet.contains(pin))
+      throw new SQLException("Pin set " + pinSet + " does not contain chosen pin "
+          + Interval.formatPin(pin));
+
+    boolean needNewPin = (pin == Interval.PIN_INF) && !bypass;
+    StringBuffer sql = new StringBuffer();
+    if (activePin != Interval.PIN_INVALID)
+      sql.append("COMMIT; ");
+    if (needNewPin || bypass)
+      sql.append("BEGIN READ ONLY");
+    else
+      sql.append("BEGIN READ ONLY SNAPSHOTID ").append(pin);
+    activePin = Interval.PIN_INVALID;
+    execute(sql.toString()).close();
+    cache.roDBXactions.incrementAndGet();
+
+    if (needNewPin)
+    {
+      Statement s = execute("PIN");
+      String status;
+      try
+      {
+        status = cache.getCommandStatus(s);
+      }
+      finally
+      {
+        s.close();
+      }
+      PinStamp stamp = parsePin(status);
+      if (stamp == null)
+      {
+        execute("ROLLBACK").close();
+        throw new SQLException("PIN gave unexpected status: " + status);
+      }
+      pin = stamp.pin;
+
+      pinSet.reifyStar(stamp);
+      if (earliestPin == Interval.PIN_INVALID)
+        earliestPin = pin;
+      if (memcached && (bottom.interval.upper < pin))
+        bottom.interval.upper = pin;
+
+      // Make the pin available to the other clients
+      try
+      {
+        pinCushion.insert(stamp);
+      }
+      catch (IOException e)
+      {
+        System.err.println("TxCache: failed to insert pin into pin cushion: "
+            + e);
+      }
+    }
+    activePin = pin;
+  }
+
+  /**
+   * Parse the "PIN pin seconds microseconds" status of the PIN command.
+   */
+  private static PinStamp parsePin(String status)
+  {
+    if (status == null)
+      return null;
+    StringTokenizer st = new StringTokenizer(status);
+    try
+    {
+      if ((st.countTokens() != 4) || !st.nextToken().equals("PIN"))
+        return null;
+      long pin = Long.parseLong(st.nextToken());
+      long seconds = Long.parseLong(st.nextToken());
+      long microseconds = Long.parseLong(st.nextToken());
+      return new PinStamp(pin, seconds * 1000000 + microseconds);
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Read the validity interval and the invalidation tags of the result of
+   * a query from the command status, which looks like
+   * "SELECT VALIDITY 2 5" or "SELECT VALIDITY 5 6 TAGS 1 4001:". If the
+   * status cannot be read, the result is only known to be valid on the
+   * snapshot it was read from.
+   */
+  private void endQuery(Statement statement)
+  {
+    if (bypass)
+      return;
+    String status = cache.getCommandStatus(statement);
+    Interval interval = null;
+    if (status != null)
+    {
+      StringTokenizer st = new StringTokenizer(status);
+      try
+      {
+        if (st.nextToken().equals("SELECT") && st.nextToken().equals("VALIDITY"))
+        {
+          interval = new Interval(Long.parseLong(st.nextToken()),
+              Long.parseLong(st.nextToken()), false);
+          if (st.hasMoreTokens() && st.nextToken().equals("TAGS"))
+          {
+            // Tags mean the result is still valid
+            int nTags = Integer.parseInt(st.nextToken());
+            interval.stillValid = true;
+            for (int i = 0; i < nTags; i++)
+              addInvalTag(st.nextToken());
+          }
+        }
+      }
+      catch (RuntimeException e)
+      {
+        interval = null;
+      }
+    }
+    if (interval == null)
+    {
+      System.err.println("TxCache: expected validity interval, got " + status);
+      interval = new Interval(activePin, activePin + 1, false);
+    }
+    updateInterval(interval);
+  }
+
+  private void updateInterval(Interval interval)
+  {
+    if (memcached)
+    {
+      if ((interval.upper > bottom.interval.upper)
+          || (bottom.interval.upper == Interval.PIN_INF))
+        bottom.interval.upper = interval.upper;
+      if (bottom.interval.stillValid)
+        bottom.interval.stillValid = interval.stillValid;
+      return;
+    }
+
+    if (bypass)
+      return;
+
+    bottom.interval = Interval.intersect(bottom.interval, interval,
+      Interval.PIN_NEG_INF);
+    pinSet.intersectWith(interval);
+  }
+
+  private void addInvalTag(String tag)
+  {
+    bottom.invalTags.add(tag);
+  }
+
+  /**
+   * Add an invalidation tag to the result of the running cacheable
+   * function. Nothing is done outside of read-only transactions.
+   *
+   * @param tag the tag, as "table:" or "table:column=value:"
+   */
+  public void addExplicitInvalTag(String tag)
+  {
+    if (bottom == null)
+      return;
+    addInvalTag(tag);
+  }
+
+  /**
+   * Invalidate the cached values depending on a tag. This must be done in
+   * the read/write transaction making the change.
+   *
+   * @param tag the tag
+   * @exception SQLException if the invalidation fails
+   */
+  public void explicitlyInvalidate(String tag) throws SQLException
+  {
+    if (bottom != null)
+      throw new IllegalStateException("Attempted to perform an explicit "
+          + "invalidation in a read-only transaction");
+    cache.rwQueries.incrementAndGet();
+    execute("INVALIDATE \"" + tag + "\";").close();
+  }
+
+  /**
+   * Look up the result of a cacheable function. On a hit the returned
+   * frame holds the value. Otherwise the frame is pushed and the function
+   * must be run, then ended with <code>exitCacheable</code> or
+   * <code>exitCacheableAbort</code>.
+   *
+   * @param key key of the call
+   * @return the frame of the call
+   */
+  public Frame tryEnterCacheable(byte[] key)
+  {
+    if (bottom == null)
+      throw new IllegalStateException("No read-only transaction running");
+
+    Frame frame = new Frame(key, bottom);
+    if (!pinSet.justStar())
+    {
+      try
+      {
+        Interval lookupInterval = pinSet.boundsWithoutStar();
+        CacheEntry entry = cache.getNode(key).lookup(key, lookupInterval,
+          earliestPin, memcached ? CacheNode.LOOKUP_POLICY_SCREW_CONSISTENCY
+              : CacheNode.LOOKUP_POLICY_DEFAULT);
+        if (entry != null)
+        {
+          cache.cacheHits.incrementAndGet();
+          for (int i = 0; i < entry.tags.length; i++)
+            addInvalTag(entry.tags[i]);
+          updateInterval(entry.interval);
+          frame.data = entry.data;
+          return frame;
+        }
+        cache.cacheMisses.incrementAndGet();
+      }
+      catch (IOException e)
+      {
+        System.err.println("TxCache: failed to look up cache node: " + e);
+      }
+    }
+    else
+      cache.cacheSkips.incrementAndGet();
+
+    // Either we missed in the cache, our pin set is {*} so we have to run
+    // in the present, or we couldn't contact the cache. The database
+    // transaction is started lazily by the first query.
+    bottom = frame;
+    return frame;
+  }
+
+  private void pop(Frame frame)
+  {
+    if (bottom != frame)
+      throw new IllegalStateException("Exit frame doesn't match bottom of stack");
+    if (frame.parent == null)
+      throw new IllegalStateException("Already at top of stack");
+    bottom = frame.parent;
+  }
+
+  /**
+   * End a cacheable function, storing its result.
+   *
+   * @param frame frame returned by <code>tryEnterCacheable</code>
+   * @param data result of the function
+   */
+  public void exitCacheable(Frame frame, byte[] data)
+  {
+    pop(frame);
+
+    // The parent depends on everything this call depended on
+    updateInterval(frame.interval);
+    bottom.invalTags.addAll(frame.invalTags);
+
+    if (bypass)
+      return;
+
+    Interval itemInterval = new Interval(frame.interval);
+    String[] tags = new String[0];
+    if (itemInterval.stillValid)
+    {
+      if (!frame.willingToDealWithInvalidations || frame.invalTags.isEmpty())
+        itemInterval.stillValid = false;
+      else
+        tags = frame.invalTags.toArray(tags);
+    }
+
+    try
+    {
+      cache.getNode(frame.key).put(frame.key, itemInterval, data, tags,
+        memcached);
+    }
+    catch (IOException e)
+    {
+      System.err.println("TxCache: failed to store in cache node: " + e);
+    }
+  }
+
+  /**
+   * End a cacheable function that failed, without storing anything.
+   *
+   * @param frame frame returned by <code>tryEnterCacheable</code>
+   */
+  public void exitCacheableAbort(Frame frame)
+  {
+    pop(frame);
+    cache.cacheableAborts.incrementAndGet();
+  }
+
+  /**
+   * Call a function through the cache. Outside of a read-only transaction,
+   * the function is just called.
+   *
+   * @param explicitInvalidations true to store the result as still valid
+   *          when it has invalidation tags
+   * @param name name of the function, unique in the application
+   * @param args arguments of the function: null, <code>String</code>,
+   *          <code>Integer</code>, <code>Long</code>, <code>Float</code>,
+   *          <code>Double</code> or <code>Boolean</code>
+   * @param fn the function
+   * @return the result of the function
+   * @exception Exception if the function fails
+   */
+  public Object wrap(boolean explicitInvalidations, String name, Object[] args,
+      Cacheable fn) throws Exception
+  {
+    if (!mightCache())
+      return fn.call();
+
+    Frame frame = tryEnterCacheable(makeKey(name, args));
+    if (frame.data != null)
+    {
+      try
+      {
+        return new ObjectInputStream(new ByteArrayInputStream(frame.data))
+            .readObject();
+      }
+      catch (Exception e)
+      { // Stale class or corrupted entry: compute it without caching
+        System.err.println("TxCache: failed to unmarshal " + name + ": " + e);
+        return fn.call();
+      }
+    }
+
+    frame.willingToDealWithInvalidations = explicitInvalidations;
+    Object result = null;
+    byte[] data = null;
+    try
+    {
+      result = fn.call();
+      data = marshal(name, result);
+    }
+    finally
+    {
+      if (data != null)
+        exitCacheable(frame, data);
+      else
+        exitCacheableAbort(frame);
+    }
+    return result;
+  }
+
+  /**
+   * Serialize the result of a function.
+   *
+   * @return the serialized result or null if it cannot be serialized
+   */
+  private static byte[] marshal(String name, Object result)
+  {
+    if ((result != null) && !(result instanceof Serializable))
+      return null;
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(result);
+      out.close();
+      return bytes.toByteArray();
+    }
+    catch (IOException e)
+    {
+      System.err.println("TxCache: failed to marshal " + name + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Make the key of a call from the function name and its arguments.
+   */
+  private static byte[] makeKey(String name, Object[] args)
+  {
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(name);
+      for (int i = 0; (args != null) && (i < args.length); i++)
+      {
+        Object a = args[i];
+        if (a == null)
+          out.writeByte('N');
+        else if (a instanceof String)
+        {
+          out.writeByte('s');
+          out.writeUTF((String) a);
+        }
+        else if (a instanceof Integer)
+        {
+          out.writeByte('i');
+          out.writeInt(((Integer) a).intValue());
+        }
+        else if (a instanceof Long)
+        {
+          out.writeByte('l');
+          out.writeLong(((Long) a).longValue());
+        }
+        else if ((a instanceof Float) || (a instanceof Double))
+        {
+          out.writeByte('d');
+          out.writeDouble(((Number) a).doubleValue());
+        }
+        else if (a instanceof Boolean)
+        {
+          out.writeByte('b');
+          out.writeBoolean(((Boolean) a).booleanValue());
+        }
+        else
+          throw new IllegalArgumentException("Cannot marshal argument " + i
+              + " of " + name + ": " + a.getClass().getName());
+      }
+      out.close();
+      return bytes.toByteArray();
+    }
+    catch (IOException e)
+    { // Cannot happen with a ByteArrayOutputStream
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Intercept the calls to the connection: transaction control is ignored
+   * during read-only transactions and statements are wrapped to go through
+   * <code>beginQuery</code> and <code>endQuery</code>.
+   */
+  public Object invoke(Object proxy, Method method, Object[] args)
+    throws Throwable
+  {
+    String name = method.getName();
+    if (name.equals("setAutoCommit") || name.equals("commit")
+        || name.equals("rollback"))
+    {
+      if (bottom != null)
+        return null;
+    }
+    else if (name.equals("close"))
+      finish();
+    else if (name.equals("equals"))
+      return Boolean.valueOf(proxy == args[0]);
+    else if (name.equals("hashCode"))
+      return Integer.valueOf(System.identityHashCode(proxy));
+    Object result = invokePhysical(connection, method, args);
+    if (result instanceof Statement)
+      return new StatementHandler((Statement) result, method.getReturnType())
+          .proxy;
+    return result;
+  }
+
+  /**
+   * Statement created through the connection of the client.
+   */
+  private class StatementHandler implements InvocationHandler
+  {
+    Statement statement;
+    Statement proxy;
+
+    StatementHandler(Statement s, Class<?> type)
+    {
+      statement = s;
+      proxy = (Statement) Proxy.newProxyInstance(type.getClassLoader(),
+          new Class<?>[] {type}, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable
+    {
+      String name = method.getName();
+      if (name.equals("getConnection"))
+        return Client.this.proxy;
+      if (name.equals("equals"))
+        return Boolean.valueOf(proxy == args[0]);
+      if (name.equals("hashCode"))
+        return Integer.valueOf(System.identityHashCode(proxy));
+      if (!name.startsWith("execute"))
+        return invokePhysical(statement, method, args);
+
+      if (bottom == null)
+      {
+        cache.rwQueries.incrementAndGet();
+        return invokePhysical(statement, method, args);
+      }
+      cache.roQueries.incrementAndGet();
+      beginQuery();
+      Object result = invokePhysical(statement, method, args);
+      if (name.equals("executeQuery") || Boolean.TRUE.equals(result))
+        endQuery(statement);
+      return result;
+    }
+  }
+
+  private static Object invokePhysical(Object target, Method method,
+      Object[] args) throws Throwable
+  {
+    try
+    {
+      return method.invoke(target, args);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+}
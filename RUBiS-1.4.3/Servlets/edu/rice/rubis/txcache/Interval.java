@@ -0,0 +1,123 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+/**
+ * Validity interval of a cached value or of a query result, as in
+ * <code>lib/interval.h</code>. The interval covers the snapshots from
+ * <code>lower</code> included to <code>upper</code> excluded. When
+ * <code>stillValid</code> is set, the value was still valid when the
+ * interval was computed and <code>upper</code> is only a lower bound of
+ * the real end of the interval.
+ * <p>
+ * Pins are unsigned 32-bit snapshot identifiers held in a
+ * <code>long</code>.
+ *
+ * @version 1.0
+ */
+public class Interval
+{
+  public static final long PIN_INVALID = 0;
+  public static final long PIN_NEG_INF = 1;
+  public static final long PIN_MIN     = 2;
+  public static final long PIN_INF     = 0xffffffffL;
+
+  public long    lower;
+  public long    upper;
+  public boolean stillValid;
+
+  public Interval(long lower, long upper, boolean stillValid)
+  {
+    this.lower = lower;
+    this.upper = upper;
+    this.stillValid = stillValid;
+  }
+
+  public Interval(Interval i)
+  {
+    this(i.lower, i.upper, i.stillValid);
+  }
+
+  /**
+   * Tell whether two intervals overlap, extending the intervals that are
+   * still valid up to <code>now</code>.
+   *
+   * @param a first interval
+   * @param b second interval
+   * @param now latest known snapshot
+   * @return true if the intervals overlap
+   */
+  public static boolean overlaps(Interval a, Interval b, long now)
+  {
+    if ((a.lower == PIN_NEG_INF) || (a.lower < b.lower))
+    {
+      long aUpper = a.stillValid ? Math.max(a.upper, now) : a.upper;
+      return (a.upper == PIN_INF) || (aUpper > b.lower);
+    }
+    else
+    {
+      long bUpper = b.stillValid ? Math.max(b.upper, now) : b.upper;
+      return (b.upper == PIN_INF) || (bUpper > a.lower);
+    }
+  }
+
+  /**
+   * Intersect two overlapping intervals.
+   *
+   * @param a first interval
+   * @param b second interval
+   * @param now latest known snapshot
+   * @return a new interval, still valid only if both intervals are
+   */
+  public static Interval intersect(Interval a, Interval b, long now)
+  {
+    long aUpper = a.stillValid ? Math.max(a.upper, now) : a.upper;
+    long bUpper = b.stillValid ? Math.max(b.upper, now) : b.upper;
+    return new Interval(Math.max(a.lower, b.lower), Math.min(aUpper, bUpper),
+        a.stillValid && b.stillValid);
+  }
+
+  /**
+   * Format a pin, showing its special values by name.
+   *
+   * @param pin the pin
+   * @return "INV", "-inf", "inf" or the pin number
+   */
+  public static String formatPin(long pin)
+  {
+    if (pin == PIN_INVALID)
+      return "INV";
+    if (pin == PIN_NEG_INF)
+      return "-inf";
+    if (pin == PIN_INF)
+      return "inf";
+    return Long.toString(pin);
+  }
+
+  public String toString()
+  {
+    return "[" + formatPin(lower) + "," + formatPin(upper)
+        + (stillValid ? "+" : "") + ")";
+  }
+}
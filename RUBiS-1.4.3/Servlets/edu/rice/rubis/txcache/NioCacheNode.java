@@ -0,0 +1,636 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of a cache server node speaking the RPC protocol of
+ * <code>src/server/proto.h</code> with Java NIO.
+ * <p>
+ * A message is the request or reply code on one byte followed by the
+ * length of its arguments on 4 bytes and the arguments, framed as by
+ * <code>lib/rpc.c</code>. The server answers the requests of a connection
+ * in order, so requests are pipelined: each connection keeps the queue of
+ * the calls waiting for a reply and the reply read from the socket goes to
+ * the oldest one. Clients share a small number of connections, the
+ * requests about a key always using the same one, and one thread per node
+ * runs the selector reading the replies and sending what the clients could
+ * not write at once. Messages are built in pooled direct buffers.
+ *
+ * @version 1.0
+ */
+public class NioCacheNode implements CacheNode
+{
+  // Requests and replies, from src/server/proto.h
+  private static final byte REQ_LOOKUP = 'L';
+  private static final byte REQ_PUT    = 'P';
+  private static final byte REQ_INVAL  = 'I';
+  private static final byte REQ_STATS  = 'T';
+  private static final byte REP_FOUND  = 'F';
+  private static final byte REP_EMPTY  = 'E';
+  private static final byte REP_STATS  = 'T';
+
+  /** Size of the code and length of a message */
+  private static final int HEADER = 5;
+  /** Initial size of the receive buffers */
+  private static final int IN_SIZE = 16384;
+  /** Time to wait to connect or for a reply, in milliseconds */
+  private static final int TIMEOUT = 5000;
+
+  private final String            name;
+  private final InetSocketAddress address;
+  private final BufferPool        pool;
+  private final Link[]            links;
+  private final AtomicInteger     next = new AtomicInteger();
+  private final ConcurrentLinkedQueue<Link> changes =
+    new ConcurrentLinkedQueue<Link>();
+  private final Selector          selector;
+  private final Thread            thread;
+  private volatile boolean        closed = false;
+
+  /** A connection to the node */
+  private static class Link
+  {
+    /** null when not connected */
+    SocketChannel channel = null;
+    SelectionKey  key = null;
+    ByteBuffer    in = null;
+    /** Messages not written yet */
+    final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+    /** Calls waiting for a reply, oldest first */
+    final ArrayDeque<Call> pending = new ArrayDeque<Call>();
+  }
+
+  /** A request waiting for its reply */
+  private static class Call
+  {
+    final byte    request;
+    Link          link;
+    boolean       done = false;
+    Object        result = null;
+    IOException   error = null;
+
+    Call(byte request)
+    {
+      this.request = request;
+    }
+
+    /**
+     * Decode the reply. Called by the selector thread with the arguments
+     * of the reply, which are only valid during the call.
+     */
+    synchronized void complete(byte reply, ByteBuffer args)
+    {
+      if (done)
+        return;
+      try
+      {
+        if ((request == REQ_LOOKUP) && (reply == REP_FOUND))
+        {
+          byte[] data = getBuf(args);
+          Interval interval = new Interval(args.getInt() & 0xffffffffL,
+              args.getInt() & 0xffffffffL, args.get() != 0);
+          String[] tags = new String[args.getInt()];
+          for (int i = 0; i < tags.length; i++)
+            tags[i] = getString(args);
+          result = new CacheEntry(data, interval, tags);
+        }
+        else if ((request == REQ_STATS) && (reply == REP_STATS))
+          result = getString(args);
+        else if ((request != REQ_LOOKUP) || (reply != REP_EMPTY))
+          error = new IOException("Unexpected reply '" + (char) reply
+              + "' to request '" + (char) request + "'");
+      }
+      catch (RuntimeException e)
+      { // BufferUnderflowException or NegativeArraySizeException
+        error = new IOException("Malformed reply '" + (char) reply + "'");
+      }
+      done = true;
+      notifyAll();
+    }
+
+    synchronized void fail(IOException e)
+    {
+      if (done)
+        return;
+      error = e;
+      done = true;
+      notifyAll();
+    }
+
+    /**
+     * Wait for the reply.
+     *
+     * @return false on timeout
+     */
+    synchronized boolean await(long timeout) throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (!done)
+      {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0)
+          return false;
+        wait(left);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Creates a new <code>NioCacheNode</code> instance. Connections are
+   * opened when first used.
+   *
+   * @param host host of the cache server
+   * @param port port of the cache server
+   * @param connections number of connections to open
+   * @param pool pool of the message buffers
+   * @exception IOException if the selector cannot be opened
+   */
+  public NioCacheNode(String host, int port, int connections, BufferPool pool)
+    throws IOException
+  {
+    name = host + ":" + port;
+    address = new InetSocketAddress(host, port);
+    this.pool = pool;
+    links = new Link[Math.max(1, connections)];
+    for (int i = 0; i < links.length; i++)
+      links[i] = new Link();
+    selector = Selector.open();
+    thread = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          loop();
+        }
+      }, "TxCache node " + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public CacheEntry lookup(byte[] key, Interval interval, long earliestPin,
+      int policy) throws IOException
+  {
+    ByteBuffer msg = start(REQ_LOOKUP, 4 + key.length + 16);
+    msg.putInt(key.length).put(key);
+    msg.putInt((int) interval.lower).putInt((int) interval.upper);
+    msg.putInt((int) earliestPin).putInt(policy);
+    return (CacheEntry) call(linkFor(key), new Call(REQ_LOOKUP), msg);
+  }
+
+  public void put(byte[] key, Interval interval, byte[] data, String[] tags,
+      boolean force) throws IOException
+  {
+    byte[][] t = encode(tags);
+    ByteBuffer msg = start(REQ_PUT, 4 + key.length + 9 + 4 + data.length
+        + size(t) + 1);
+    msg.putInt(key.length).put(key);
+    msg.putInt((int) interval.lower).putInt((int) interval.upper);
+    msg.put((byte) (interval.stillValid ? 1 : 0));
+    msg.putInt(data.length).put(data);
+    put(msg, t);
+    msg.put((byte) (force ? 1 : 0));
+    send(linkFor(key), null, msg);
+  }
+
+  /**
+   * Invalidate the entries depending on some tags, as the invalidation
+   * daemon does. Like <code>put</code>, this does not wait for the node.
+   *
+   * @param pin snapshot of the invalidation
+   * @param tags the tags
+   * @exception IOException if the node cannot be reached
+   */
+  public void invalidate(long pin, String[] tags) throws IOException
+  {
+    byte[][] t = encode(tags);
+    ByteBuffer msg = start(REQ_INVAL, 4 + size(t));
+    msg.putInt((int) pin);
+    put(msg, t);
+    send(nextLink(), null, msg);
+  }
+
+  /**
+   * Get the statistics of the node.
+   *
+   * @param clear reset the statistics
+   * @return the statistics
+   * @exception IOException if the node cannot be reached
+   */
+  public String stats(boolean clear) throws IOException
+  {
+    ByteBuffer msg = start(REQ_STATS, 1);
+    msg.put((byte) (clear ? 1 : 0));
+    return (String) call(nextLink(), new Call(REQ_STATS), msg);
+  }
+
+  /**
+   * Close the connections and stop the selector thread. Pending calls
+   * fail.
+   */
+  public void close()
+  {
+    closed = true;
+    selector.wakeup();
+    try
+    {
+      thread.join(TIMEOUT);
+    }
+    catch (InterruptedException ignore)
+    {
+    }
+    for (int i = 0; i < links.length; i++)
+    {
+      synchronized (links[i])
+      {
+        fail(links[i], new IOException("Cache node " + name + " closed"));
+      }
+    }
+  }
+
+  public String toString()
+  {
+    return name;
+  }
+
+  private ByteBuffer start(byte request, int length)
+  {
+    ByteBuffer msg = pool.get(HEADER + length);
+    msg.put(request).putInt(length);
+    return msg;
+  }
+
+  /** Encode strings as the NUL-terminated buffers of IOBuf_PutString */
+  private static byte[][] encode(String[] strings)
+  {
+    byte[][] res = new byte[(strings == null) ? 0 : strings.length][];
+    for (int i = 0; i < res.length; i++)
+    {
+      byte[] s = strings[i].getBytes(StandardCharsets.UTF_8);
+      res[i] = new byte[s.length + 1];
+      System.arraycopy(s, 0, res[i], 0, s.length);
+    }
+    return res;
+  }
+
+  private static int size(byte[][] strings)
+  {
+    int size = 4;
+    for (int i = 0; i < strings.length; i++)
+      size += 4 + strings[i].length;
+    return size;
+  }
+
+  private static void put(ByteBuffer msg, byte[][] strings)
+  {
+    msg.putInt(strings.length);
+    for (int i = 0; i < strings.length; i++)
+      msg.putInt(strings[i].length).put(strings[i]);
+  }
+
+  private static byte[] getBuf(ByteBuffer args)
+  {
+    int length = args.getInt();
+    if ((length < 0) || (length > args.remaining()))
+      throw new BufferUnderflowException();
+    byte[] b = new byte[length];
+    args.get(b);
+    return b;
+  }
+
+  private static String getString(ByteBuffer args)
+  {
+    byte[] b = getBuf(args);
+    int length = b.length;
+    if ((length > 0) && (b[length - 1] == 0))
+      length--;
+    return new String(b, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the connection used for a key, so that the requests about a key
+   * are handled in order.
+   */
+  private Link linkFor(byte[] key)
+  {
+    return links[(Arrays.hashCode(key) & 0x7fffffff) % links.length];
+  }
+
+  private Link nextLink()
+  {
+    return links[(next.getAndIncrement() & 0x7fffffff) % links.length];
+  }
+
+  /**
+   * Send a request and wait for its reply.
+   *
+   * @return the decoded reply
+   */
+  private Object call(Link link, Call call, ByteBuffer msg) throws IOException
+  {
+    send(link, call, msg);
+    try
+    {
+      if (!call.await(TIMEOUT))
+      {
+        // The replies of this connection can't be matched anymore
+        synchronized (call.link)
+        {
+          fail(call.link, new IOException("No reply from cache node " + name));
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for cache node " + name);
+    }
+    if (call.error != null)
+      throw call.error;
+    return call.result;
+  }
+
+  /**
+   * Send a message on a connection. The message is written at once
+   * if nothing is queued on the connection, otherwise the selector thread
+   * writes it. The buffer of the message goes back to the pool.
+   *
+   * @param link the connection
+   * @param call call waiting for the reply, or null if there is none
+   * @param msg the message, not flipped yet
+   */
+  private void send(Link link, Call call, ByteBuffer msg) throws IOException
+  {
+    msg.flip();
+    if (closed)
+    {
+      pool.put(msg);
+      throw new IOException("Cache node " + name + " closed");
+    }
+    synchronized (link)
+    {
+      boolean queued = false;
+      try
+      {
+        if (link.channel == null)
+          connect(link);
+        if (call != null)
+        {
+          call.link = link;
+          link.pending.add(call);
+        }
+        if (link.out.isEmpty())
+        {
+          link.channel.write(msg);
+          if (!msg.hasRemaining())
+          {
+            pool.put(msg);
+            return;
+          }
+        }
+        link.out.add(msg);
+        queued = true;
+      }
+      catch (IOException e)
+      {
+        if (!queued)
+          pool.put(msg);
+        fail(link, e);
+        throw e;
+      }
+      if (link.out.size() > 1)
+        return; // the selector thread already waits to write
+    }
+    changes.add(link);
+    selector.wakeup();
+  }
+
+  /** Connect a link. Called with the lock of the link. */
+  private void connect(Link link) throws IOException
+  {
+    SocketChannel channel = SocketChannel.open();
+    try
+    {
+      channel.socket().setTcpNoDelay(true);
+      channel.socket().connect(address, TIMEOUT);
+      channel.configureBlocking(false);
+    }
+    catch (IOException e)
+    {
+      channel.close();
+      throw e;
+    }
+    link.channel = channel;
+    link.key = null;
+    link.in = pool.get(IN_SIZE);
+    changes.add(link);
+    selector.wakeup();
+  }
+
+  /**
+   * Close a link and fail its pending calls. Called with the lock of the
+   * link.
+   */
+  private void fail(Link link, IOException e)
+  {
+    if (link.channel != null)
+    {
+      if (!closed)
+        System.err.println("TxCache: lost connection to cache node " + name
+            + ": " + e.getMessage());
+      try
+      {
+        link.channel.close();
+      }
+      catch (IOException ignore)
+      {
+      }
+    }
+    link.channel = null;
+    link.key = null;
+    ByteBuffer b;
+    while ((b = link.out.poll()) != null)
+      pool.put(b);
+    if (link.in != null)
+    {
+      pool.put(link.in);
+      link.in = null;
+    }
+    Call c;
+    while ((c = link.pending.poll()) != null)
+      c.fail(e);
+  }
+
+  /** Main loop of the selector thread */
+  private void loop()
+  {
+    try
+    {
+      while (!closed)
+      {
+        selector.select();
+        Link link;
+        while ((link = changes.poll()) != null)
+          update(link);
+        Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+        while (i.hasNext())
+        {
+          SelectionKey key = i.next();
+          i.remove();
+          link = (Link) key.attachment();
+          if (key.isValid() && key.isReadable())
+            read(link, key);
+          if (key.isValid() && key.isWritable())
+            write(link, key);
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      System.err.println("TxCache: selector of cache node " + name
+          + " failed: " + e);
+      closed = true;
+    }
+    finally
+    {
+      try
+      {
+        selector.close();
+      }
+      catch (IOException ignore)
+      {
+      }
+    }
+  }
+
+  /** Register a link and set its interest in writing */
+  private void update(Link link)
+  {
+    synchronized (link)
+    {
+      if (link.channel == null)
+        return;
+      try
+      {
+        if (link.key == null)
+          link.key = link.channel.register(selector, 0, link);
+        link.key.interestOps(SelectionKey.OP_READ
+            | (link.out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+      }
+      catch (IOException e)
+      {
+        fail(link, e);
+      }
+    }
+  }
+
+  /** Write the queued messages of a link with one gathering write */
+  private void write(Link link, SelectionKey key)
+  {
+    synchronized (link)
+    {
+      if (key != link.key)
+        return;
+      try
+      {
+        ByteBuffer[] out = link.out.toArray(new ByteBuffer[link.out.size()]);
+        link.channel.write(out);
+        for (int i = 0; i < out.length; i++)
+        {
+          if (out[i].hasRemaining())
+            return;
+          pool.put(link.out.poll());
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+      catch (IOException e)
+      {
+        fail(link, e);
+      }
+    }
+  }
+
+  /** Read from a link and complete the calls whose reply is in */
+  private void read(Link link, SelectionKey key)
+  {
+    synchronized (link)
+    {
+      if (key != link.key)
+        return;
+      try
+      {
+        if (link.channel.read(link.in) < 0)
+          throw new IOException("Connection closed by cache node " + name);
+        ByteBuffer in = link.in;
+        in.flip();
+        int needed = 0;
+        while (in.remaining() >= HEADER)
+        {
+          int start = in.position();
+          int length = in.getInt(start + 1);
+          if (length < 0)
+            throw new IOException("Malformed message from cache node " + name);
+          if (in.remaining() < HEADER + length)
+          {
+            needed = HEADER + length;
+            break;
+          }
+          ByteBuffer args = in.duplicate().order(BufferPool.ORDER);
+          args.limit(start + HEADER + length).position(start + HEADER);
+          in.position(start + HEADER + length);
+          Call call = link.pending.poll();
+          if (call == null)
+            throw new IOException("Unexpected message from cache node " + name);
+          call.complete(in.get(start), args);
+        }
+        in.compact();
+        if (needed > in.capacity())
+        {
+          ByteBuffer bigger = pool.get(needed);
+          in.flip();
+          bigger.put(in);
+          pool.put(in);
+          link.in = bigger;
+        }
+      }
+      catch (IOException e)
+      {
+        fail(link, e);
+      }
+    }
+  }
+}
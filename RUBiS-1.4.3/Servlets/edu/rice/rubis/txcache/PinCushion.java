@@ -0,0 +1,62 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.io.IOException;
+
+/**
+ * Session with the pin cushion (<code>src/pincushion</code>), which tracks
+ * the pinned snapshots. The pin cushion keeps a reference on the earliest
+ * pin it returned to a session, or on the first pin the session inserted,
+ * until the session releases it. A session is used by one client at a
+ * time.
+ *
+ * @version 1.0
+ */
+public interface PinCushion
+{
+  /**
+   * Get the pinned snapshots fresh enough for a new transaction.
+   *
+   * @param freshness maximum age of the snapshots in microseconds
+   * @return the pins in increasing order, possibly none
+   * @exception IOException if the pin cushion cannot be reached
+   */
+  public PinStamp[] request(long freshness) throws IOException;
+
+  /**
+   * Make a snapshot pinned by this client available to the others.
+   *
+   * @param pin the new pinned snapshot
+   * @exception IOException if the pin cushion cannot be reached
+   */
+  public void insert(PinStamp pin) throws IOException;
+
+  /**
+   * Release the pin referenced by this session.
+   *
+   * @exception IOException if the pin cushion cannot be reached
+   */
+  public void release() throws IOException;
+}
@@ -0,0 +1,188 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Session with the pin cushion over its own connection, speaking the RPC
+ * protocol of <code>src/pincushion/proto.h</code> like
+ * <code>src/pincushion/proxy.c</code>. The pin cushion ties the pin
+ * reference of a session to its connection, and drops it if the
+ * connection is closed.
+ *
+ * @version 1.0
+ */
+public class PinCushionProxy implements PinCushion
+{
+  // Requests and replies, from src/pincushion/proto.h
+  private static final byte REQ_REQUEST = 'R';
+  private static final byte REQ_INSERT  = 'I';
+  private static final byte REQ_RELEASE = 'D';
+  private static final byte REP_FOUND   = 'F';
+  private static final byte REP_EMPTY   = 'E';
+
+  /** Time to wait to connect or for a reply, in milliseconds */
+  private static final int TIMEOUT = 5000;
+
+  private final String    name;
+  private Socket          socket;
+  private OutputStream    out;
+  private DataInputStream in;
+
+  /**
+   * Creates a new <code>PinCushionProxy</code> instance connected to the
+   * pin cushion.
+   *
+   * @param host host of the pin cushion
+   * @param port port of the pin cushion
+   * @exception IOException if the connection fails
+   */
+  public PinCushionProxy(String host, int port) throws IOException
+  {
+    name = host + ":" + port;
+    socket = new Socket();
+    try
+    {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+      socket.setSoTimeout(TIMEOUT);
+      out = new BufferedOutputStream(socket.getOutputStream());
+      in = new DataInputStream(socket.getInputStream());
+    }
+    catch (IOException e)
+    {
+      socket.close();
+      throw e;
+    }
+  }
+
+  public PinStamp[] request(long freshness) throws IOException
+  {
+    ByteBuffer args = args(16);
+    args.putLong(freshness / 1000000).putLong(freshness % 1000000);
+    send(REQ_REQUEST, args);
+    try
+    {
+      byte reply = in.readByte();
+      byte[] b = new byte[Integer.reverseBytes(in.readInt())];
+      in.readFully(b);
+      args = ByteBuffer.wrap(b).order(BufferPool.ORDER);
+      PinStamp[] pins;
+      if (reply == REP_EMPTY)
+        pins = new PinStamp[0];
+      else if (reply == REP_FOUND)
+      {
+        pins = new PinStamp[args.getInt()];
+        for (int i = 0; i < pins.length; i++)
+        {
+          long time = args.getLong() * 1000000 + args.getLong();
+          pins[i] = new PinStamp(args.getInt() & 0xffffffffL, time);
+        }
+      }
+      else
+        throw new IOException("Unexpected reply '" + (char) reply
+            + "' from pin cushion " + name);
+      if (args.hasRemaining())
+        throw new IOException("Malformed reply from pin cushion " + name);
+      return pins;
+    }
+    catch (RuntimeException e)
+    { // BufferUnderflowException or NegativeArraySizeException
+      close();
+      throw new IOException("Malformed reply from pin cushion " + name);
+    }
+    catch (IOException e)
+    {
+      close();
+      throw e;
+    }
+  }
+
+  public void insert(PinStamp pin) throws IOException
+  {
+    ByteBuffer args = args(20);
+    args.putLong(pin.time / 1000000).putLong(pin.time % 1000000);
+    args.putInt((int) pin.pin);
+    send(REQ_INSERT, args);
+  }
+
+  public void release() throws IOException
+  {
+    send(REQ_RELEASE, args(0));
+  }
+
+  /**
+   * Close the connection, which releases the pin referenced by the
+   * session.
+   */
+  public void close()
+  {
+    if (socket == null)
+      return;
+    try
+    {
+      socket.close();
+    }
+    catch (IOException ignore)
+    {
+    }
+    socket = null;
+  }
+
+  public String toString()
+  {
+    return name;
+  }
+
+  private static ByteBuffer args(int length)
+  {
+    return ByteBuffer.allocate(length).order(BufferPool.ORDER);
+  }
+
+  private void send(byte request, ByteBuffer args) throws IOException
+  {
+    if (socket == null)
+      throw new IOException("Connection to pin cushion " + name + " closed");
+    try
+    {
+      out.write(request);
+      out.write(ByteBuffer.allocate(4).order(BufferPool.ORDER).putInt(
+        args.position()).array());
+      out.write(args.array(), 0, args.position());
+      out.flush();
+    }
+    catch (IOException e)
+    {
+      close();
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Policy choosing the snapshot on which a read-only transaction runs its
+ * next query, as in <code>src/client/policy.c</code>. Policies are looked
+ * up by the name given on the first line of the nodes file.
+ *
+ * @version 1.0
+ */
+public abstract class PinPolicy
+{
+  private static LinkedHashMap<String, PinPolicy> policies =
+    new LinkedHashMap<String, PinPolicy>();
+
+  /** Run on the latest pinned snapshot, on a new one if there is none */
+  public static final PinPolicy LARGEST_BOUNDED_PIN = register(new PinPolicy(
+      "largest bounded pin")
+    {
+      public long choosePin(PinSet ps)
+      {
+        if (ps.justStar())
+          return Interval.PIN_INF;
+        return ps.boundsWithoutStar().upper - 1;
+      }
+    });
+
+  /** Run on a new snapshot whenever the present is still possible */
+  public static final PinPolicy LARGEST_PIN = register(new PinPolicy(
+      "largest pin")
+    {
+      public long choosePin(PinSet ps)
+      {
+        if (ps.hasStar())
+          return Interval.PIN_INF;
+        return ps.boundsWithoutStar().upper - 1;
+      }
+    });
+
+  /**
+   * Run on the middle pin, or on a new snapshot if the latest pin is more
+   * than 5 seconds old
+   */
+  public static final PinPolicy MIDDLE_PIN_WITH_VARIETY_5 =
+    register(new PinPolicy("middle pin with variety (5 secs)")
+    {
+      public long choosePin(PinSet ps)
+      {
+        long variety = chooseVariety(ps, 5, 5);
+        if (variety != Interval.PIN_INVALID)
+          return variety;
+        return ps.get(ps.size() / 2).pin;
+      }
+    });
+
+  /**
+   * Run on the latest pin, or on a new snapshot if it is more than 5
+   * seconds old
+   */
+  public static final PinPolicy LATEST_BOUNDED_PIN_WITH_VARIETY_5 =
+    register(new PinPolicy("latest bounded pin with variety (5 secs)")
+    {
+      public long choosePin(PinSet ps)
+      {
+        long variety = chooseVariety(ps, 5, 5);
+        if (variety != Interval.PIN_INVALID)
+          return variety;
+        return ps.get(ps.size() - 1).pin;
+      }
+    });
+
+  /**
+   * Run on the latest pin, or on a new snapshot if it is more than 5 to 20
+   * seconds old. The jitter makes it less likely for clients to race and
+   * create several pins every 5 seconds.
+   */
+  public static final PinPolicy LATEST_BOUNDED_PIN_WITH_VARIETY_5_TO_20 =
+    register(new PinPolicy("latest bounded pin with variety (5 to 20 secs)")
+    {
+      public long choosePin(PinSet ps)
+      {
+        long variety = chooseVariety(ps, 5, 20);
+        if (variety != Interval.PIN_INVALID)
+          return variety;
+        return ps.get(ps.size() - 1).pin;
+      }
+    });
+
+  private static Random random = new Random();
+
+  private String name;
+
+  protected PinPolicy(String name)
+  {
+    this.name = name;
+  }
+
+  /**
+   * Choose a snapshot of a pin set.
+   *
+   * @param ps the pin set of the transaction, which is not empty
+   * @return a pin of the set, <code>PIN_INF</code> for a new snapshot
+   */
+  public abstract long choosePin(PinSet ps);
+
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * Choose a new snapshot if the latest pin of a set is older than a random
+   * number of seconds in [secsMin, secsMax]. This is only done when
+   * <code>*</code> is in the set, that is before the transaction ran
+   * anything.
+   *
+   * @param ps the pin set
+   * @param secsMin minimum age of the latest pin
+   * @param secsMax maximum age of the latest pin
+   * @return <code>PIN_INF</code> to choose a new snapshot,
+   *         <code>PIN_INVALID</code> to let the policy choose a pin
+   */
+  protected static long chooseVariety(PinSet ps, int secsMin, int secsMax)
+  {
+    if (ps.justStar())
+      return Interval.PIN_INF;
+    if (ps.hasStar())
+    {
+      int secs = secsMin;
+      if (secsMax > secsMin)
+        secs += random.nextInt(secsMax - secsMin + 1);
+      long bound = (System.currentTimeMillis() - secs * 1000L) * 1000;
+      if (ps.get(ps.size() - 1).time < bound)
+        return Interval.PIN_INF;
+    }
+    return Interval.PIN_INVALID;
+  }
+
+  /**
+   * Make a policy available to <code>lookup</code>.
+   *
+   * @param policy the policy
+   * @return the policy
+   */
+  public static synchronized PinPolicy register(PinPolicy policy)
+  {
+    if (policies.containsKey(policy.name))
+      throw new IllegalArgumentException("Choose-pin policy '" + policy.name
+          + "' registered twice");
+    policies.put(policy.name, policy);
+    return policy;
+  }
+
+  /**
+   * Find a policy by name.
+   *
+   * @param name name of the policy
+   * @return the policy or null if there is none with this name
+   */
+  public static synchronized PinPolicy lookup(String name)
+  {
+    return policies.get(name);
+  }
+
+  public String toString()
+  {
+    return name;
+  }
+}
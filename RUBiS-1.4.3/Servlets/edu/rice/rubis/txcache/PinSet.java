@@ -0,0 +1,164 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+/**
+ * Set of snapshots a read-only transaction may still run on, as in
+ * <code>lib/pinset.c</code>. The set holds the pinned snapshots given by
+ * the pin cushion, in increasing order, and possibly <code>*</code>, a
+ * new snapshot of the present state of the database that has not been
+ * pinned yet.
+ *
+ * @version 1.0
+ */
+public class PinSet
+{
+  private PinStamp[] pins;
+  private int        first;
+  private int        nPins;
+  private boolean    andStar;
+
+  /**
+   * Create a pin set.
+   *
+   * @param pins pinned snapshots in increasing order, or null
+   * @param andStar whether the present is also in the set
+   */
+  public PinSet(PinStamp[] pins, boolean andStar)
+  {
+    this.pins = (pins == null) ? new PinStamp[0] : pins;
+    this.first = 0;
+    this.nPins = this.pins.length;
+    this.andStar = andStar;
+  }
+
+  /**
+   * Remove the snapshots outside an interval. <code>*</code> stays in the
+   * set only if the interval is unbounded.
+   *
+   * @param interval validity interval of a result
+   */
+  public void intersectWith(Interval interval)
+  {
+    int last = first + nPins - 1;
+    while ((first <= last) && (pins[last].pin >= interval.upper))
+      last--;
+    while ((first <= last) && (pins[first].pin < interval.lower))
+      first++;
+    nPins = last - first + 1;
+    andStar = andStar && (interval.upper == Interval.PIN_INF);
+  }
+
+  /**
+   * Tell whether a snapshot is in the set.
+   *
+   * @param pin the snapshot, <code>PIN_INF</code> for <code>*</code>
+   * @return true if the snapshot is in the set
+   */
+  public boolean contains(long pin)
+  {
+    if (pin == Interval.PIN_INF)
+      return andStar;
+    if (pin == Interval.PIN_INVALID)
+      return false;
+    int i = first;
+    int end = first + nPins;
+    while ((i < end) && (pins[i].pin < pin))
+      i++;
+    return (i < end) && (pins[i].pin == pin);
+  }
+
+  /**
+   * Replace <code>*</code> by the snapshot that was pinned for it. The set
+   * then holds this snapshot only.
+   *
+   * @param real the new pinned snapshot
+   */
+  public void reifyStar(PinStamp real)
+  {
+    pins = new PinStamp[] {real};
+    first = 0;
+    nPins = 1;
+    andStar = false;
+  }
+
+  /**
+   * @return true if the set is only <code>*</code>
+   */
+  public boolean justStar()
+  {
+    return (nPins == 0) && andStar;
+  }
+
+  /**
+   * @return true if <code>*</code> is in the set
+   */
+  public boolean hasStar()
+  {
+    return andStar;
+  }
+
+  /**
+   * @return the number of pinned snapshots in the set
+   */
+  public int size()
+  {
+    return nPins;
+  }
+
+  /**
+   * @param i index of a pinned snapshot, from 0 to <code>size()-1</code>
+   * @return the i-th pinned snapshot in increasing order
+   */
+  public PinStamp get(int i)
+  {
+    return pins[first + i];
+  }
+
+  /**
+   * Get the interval covering the pinned snapshots of a non-empty set,
+   * ignoring <code>*</code>.
+   *
+   * @return the interval from the first pin to just after the last one
+   */
+  public Interval boundsWithoutStar()
+  {
+    return new Interval(pins[first].pin, pins[first + nPins - 1].pin + 1,
+        false);
+  }
+
+  public String toString()
+  {
+    StringBuffer sb = new StringBuffer("{");
+    int lim = (nPins == 4) ? 4 : 3;
+    int i;
+    for (i = 0; (i < nPins) && (i < lim); i++)
+      sb.append(i == 0 ? "" : ", ").append(Interval.formatPin(get(i).pin));
+    if (i < nPins)
+      sb.append(", ..., ").append(Interval.formatPin(get(nPins - 1).pin));
+    if (andStar)
+      sb.append(i == 0 ? "*" : ", *");
+    return sb.append("}").toString();
+  }
+}
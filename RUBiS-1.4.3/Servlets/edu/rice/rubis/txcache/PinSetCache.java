@@ -0,0 +1,255 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Pin cushion sessions sharing a recently fetched pin set, so that
+ * read-only transactions usually start without a round trip to the pin
+ * cushion.
+ * <p>
+ * The pin set is fetched at most once per time-to-live, by a session of
+ * its own that keeps the pin cushion reference on its earliest pin. The
+ * pin cushion keeps the pins newer than a referenced pin, so all the pins
+ * of the set stay available while a transaction may use them. A set
+ * replaced by a newer one releases its reference when the last
+ * transaction that got it is done. The set is fetched with the largest
+ * staleness requested so far, and each transaction drops the pins older
+ * than its own. The sessions holding no reference are
+ * kept for the next fetches.
+ *
+ * @version 1.0
+ */
+public class PinSetCache
+{
+  private final String host;
+  private final int    port;
+  private final long   ttl;
+  private final ArrayList<PinCushionProxy> idle =
+    new ArrayList<PinCushionProxy>();
+  private PinCushionProxy inserter = null;
+  private Generation      current = null;
+  private long            maxFreshness = 0;
+
+  /** A fetched pin set */
+  private static class Generation
+  {
+    /** Replaced, never modified, when a pin is inserted */
+    PinStamp[]            pins;
+    final long            fetched;
+    final PinCushionProxy session;
+    int                   users = 0;
+    boolean               retired = false;
+
+    Generation(PinStamp[] pins, long fetched, PinCushionProxy session)
+    {
+      this.pins = pins;
+      this.fetched = fetched;
+      this.session = session;
+    }
+  }
+
+  /** The session of a client, which only holds a pin set */
+  private class Session implements PinCushion
+  {
+    private Generation held = null;
+
+    public PinStamp[] request(long freshness) throws IOException
+    {
+      release();
+      long now = System.currentTimeMillis() * 1000;
+      held = acquire(freshness, now);
+      // Drop the pins that got too old since the set was fetched
+      PinStamp[] pins;
+      synchronized (PinSetCache.this)
+      {
+        pins = held.pins;
+      }
+      int first = 0;
+      while ((first < pins.length) && (pins[first].time < now - freshness))
+        first++;
+      if (first == 0)
+        return pins;
+      PinStamp[] res = new PinStamp[pins.length - first];
+      System.arraycopy(pins, first, res, 0, res.length);
+      return res;
+    }
+
+    public void insert(PinStamp pin) throws IOException
+    {
+      PinSetCache.this.insert(pin);
+    }
+
+    public void release()
+    {
+      if (held != null)
+      {
+        PinSetCache.this.release(held);
+        held = null;
+      }
+    }
+  }
+
+  /**
+   * Creates a new <code>PinSetCache</code> instance.
+   *
+   * @param host host of the pin cushion
+   * @param port port of the pin cushion
+   * @param ttl time a pin set is used for, in milliseconds; 0 to fetch it
+   *          for each transaction
+   */
+  public PinSetCache(String host, int port, long ttl)
+  {
+    this.host = host;
+    this.port = port;
+    this.ttl = ttl * 1000;
+  }
+
+  /**
+   * Create a session for a client.
+   *
+   * @return the session
+   */
+  public PinCushion newSession()
+  {
+    return new Session();
+  }
+
+  /**
+   * Close the sessions with the pin cushion.
+   */
+  public synchronized void close()
+  {
+    retire(current);
+    current = null;
+    for (int i = 0; i < idle.size(); i++)
+      idle.get(i).close();
+    idle.clear();
+    if (inserter != null)
+    {
+      inserter.close();
+      inserter = null;
+    }
+  }
+
+  private synchronized Generation acquire(long freshness, long now)
+    throws IOException
+  {
+    maxFreshness = Math.max(maxFreshness, freshness);
+    if ((current == null) || (now - current.fetched >= ttl))
+    {
+      PinCushionProxy session = idle.isEmpty() ? new PinCushionProxy(host,
+          port) : idle.remove(idle.size() - 1);
+      PinStamp[] pins;
+      try
+      {
+        pins = session.request(maxFreshness);
+      }
+      catch (IOException e)
+      {
+        session.close();
+        throw e;
+      }
+      retire(current);
+      current = new Generation(pins, now, session);
+    }
+    current.users++;
+    return current;
+  }
+
+  private synchronized void release(Generation g)
+  {
+    g.users--;
+    if (g.retired && (g.users == 0))
+      free(g);
+  }
+
+  private void retire(Generation g)
+  {
+    if (g == null)
+      return;
+    g.retired = true;
+    if (g.users == 0)
+      free(g);
+  }
+
+  /** Release the reference of a set and keep its session */
+  private void free(Generation g)
+  {
+    try
+    {
+      if (g.pins.length > 0)
+        g.session.release();
+      idle.add(g.session);
+    }
+    catch (IOException e)
+    {
+      g.session.close();
+    }
+  }
+
+  /**
+   * Insert a new pin, and add it to the current set if the reference of
+   * the set keeps it.
+   */
+  private synchronized void insert(PinStamp pin) throws IOException
+  {
+    if (inserter == null)
+      inserter = new PinCushionProxy(host, port);
+    try
+    {
+      inserter.insert(pin);
+      // The inserter must not hold a reference
+      inserter.release();
+    }
+    catch (IOException e)
+    {
+      inserter.close();
+      inserter = null;
+      throw e;
+    }
+    if (current == null)
+      return;
+    PinStamp[] pins = current.pins;
+    if ((pins.length == 0) || (pin.time < pins[0].time))
+    {
+      // Not kept by the reference of the set, fetch a new one
+      retire(current);
+      current = null;
+      return;
+    }
+    int i = pins.length;
+    while ((i > 0) && (pins[i - 1].time > pin.time))
+      i--;
+    if ((i > 0) && (pins[i - 1].pin == pin.pin))
+      return;
+    PinStamp[] res = new PinStamp[pins.length + 1];
+    System.arraycopy(pins, 0, res, 0, i);
+    res[i] = pin;
+    System.arraycopy(pins, i, res, i + 1, pins.length - i);
+    current.pins = res;
+  }
+}
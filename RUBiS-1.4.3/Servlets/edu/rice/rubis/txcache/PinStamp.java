@@ -0,0 +1,50 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+/**
+ * A pinned snapshot and the wall-clock time at which the database pinned
+ * it, as in <code>lib/pinset.h</code>.
+ *
+ * @version 1.0
+ */
+public class PinStamp
+{
+  /** Snapshot identifier */
+  public final long pin;
+  /** Time of the snapshot in microseconds since the epoch */
+  public final long time;
+
+  public PinStamp(long pin, long time)
+  {
+    this.pin = pin;
+    this.time = time;
+  }
+
+  public String toString()
+  {
+    return Interval.formatPin(pin) + "@" + (time / 1000000) + "."
+        + String.format("%06d", time % 1000000);
+  }
+}
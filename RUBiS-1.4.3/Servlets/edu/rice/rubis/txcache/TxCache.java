@@ -0,0 +1,391 @@
+/*
+ * RUBiS
+ * Copyright (C) 2002, 2003, 2004 French National Institute For Research In Computer
+ * Science And Control (INRIA).
+ * Contact: jmob@objectweb.org
+ * 
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation; either version 2.1 of the License, or any later
+ * version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * Initial developer(s): Emmanuel Cecchet, Julie Marguerite
+ * Contributor(s):
+ */
+package edu.rice.rubis.txcache;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Configuration and statistics of the TxCache clients of an application,
+ * the Java counterpart of <code>Client_Init</code> in
+ * <code>src/client/client.c</code>. One instance is shared by all the
+ * clients reading the same nodes file; each read-only transaction uses its
+ * own <code>Client</code>, obtained with <code>newClient</code>.
+ * <p>
+ * The following properties are used:
+ * <pre>
+ * txcache.nodes        : nodes file, whose first line is the name of the
+ *                        pin policy, the second the host:port of the pin
+ *                        cushion and the others the host:port of the cache
+ *                        nodes ('#' starts a comment)
+ * txcache.bypass       : yes to run the read-only transactions on the
+ *                        database only, without pins or cache
+ * txcache.memcached    : yes to ignore consistency, like memcached
+ * txcache.freshness    : staleness allowed to read-only transactions, in
+ *                        seconds
+ * txcache.freshness.X  : staleness allowed to the transactions of page X,
+ *                        instead of txcache.freshness
+ * txcache.freshnessfactor : if lower than 1, the staleness of each
+ *                        transaction is drawn between factor * freshness
+ *                        and freshness, like RANDOMIZE_FRESHNESS in the
+ *                        PHP version
+ * txcache.statusmethod : name of the public no-argument method of the JDBC
+ *                        driver statements returning the command status of
+ *                        the last query (PQcmdStatus), which carries the
+ *                        pins and validity intervals
+ * txcache.connections  : number of connections to each cache node, shared
+ *                        by all the clients
+ * txcache.pinsetttl    : time the clients share the pin set fetched from the
+ *                        pin cushion, in milliseconds (0 to fetch it for
+ *                        each transaction)
+ * </pre>
+ *
+ * @version 1.0
+ */
+public class TxCache
+{
+  private static HashMap<String, TxCache> instances =
+    new HashMap<String, TxCache>();
+
+  private String    nodesFile;
+  private int       users = 0;
+  private boolean   bypass;
+  private boolean   memcached;
+  private double    freshness;
+  private double    freshnessFactor;
+  private HashMap<String, Double> pageFreshness =
+    new HashMap<String, Double>();
+  private String    statusMethod;
+  private PinPolicy policy;
+  private String    pinCushionHost = null;
+  private String[]  cacheHosts;
+  private CacheNode[] nodes = new CacheNode[0];
+  private BufferPool  buffers = new BufferPool(64);
+  private PinSetCache pinSets = null;
+  private HashMap<Class<?>, Method> statusMethods =
+    new HashMap<Class<?>, Method>();
+
+  // Statistics, as in CLIENT_STATS_LL_FIELDS
+  final AtomicLong roQueries = new AtomicLong();
+  final AtomicLong rwQueries = new AtomicLong();
+  final AtomicLong roCacheXactions = new AtomicLong();
+  final AtomicLong roDBXactions = new AtomicLong();
+  final AtomicLong cacheHits = new AtomicLong();
+  final AtomicLong cacheMisses = new AtomicLong();
+  final AtomicLong cacheSkips = new AtomicLong();
+  final AtomicLong cacheableAborts = new AtomicLong();
+
+  /**
+   * Get the instance configured by the given properties, creating it the
+   * first time. Each call must be matched by a call to
+   * <code>release</code>.
+   *
+   * @param properties the txcache.* properties
+   * @return the shared instance
+   * @exception IOException if the nodes file cannot be read
+   */
+  public static synchronized TxCache getInstance(Properties properties)
+    throws IOException
+  {
+    String file = properties.getProperty("txcache.nodes", "nodes.txt").trim();
+    TxCache cache = instances.get(file);
+    if (cache == null)
+    {
+      cache = new TxCache(file, properties);
+      instances.put(file, cache);
+    }
+    cache.users++;
+    return cache;
+  }
+
+  private TxCache(String file, Properties properties) throws IOException
+  {
+    nodesFile = file;
+    bypass = !"no".equalsIgnoreCase(properties.getProperty("txcache.bypass",
+      "yes").trim());
+    memcached = "yes".equalsIgnoreCase(properties.getProperty(
+      "txcache.memcached", "no").trim());
+    freshness = Double.parseDouble(properties.getProperty(
+      "txcache.freshness", "30").trim());
+    freshnessFactor = Double.parseDouble(properties.getProperty(
+      "txcache.freshnessfactor", "1").trim());
+    for (String name : properties.stringPropertyNames())
+      if (name.startsWith("txcache.freshness."))
+        pageFreshness.put(name.substring("txcache.freshness.".length()),
+          Double.valueOf(properties.getProperty(name).trim()));
+    statusMethod = properties.getProperty("txcache.statusmethod",
+      "getCommandStatus").trim();
+    readNodes();
+    if (!bypass)
+    {
+      if (pinCushionHost == null)
+        throw new IOException("No pin cushion in " + nodesFile);
+      if (cacheHosts.length == 0)
+        throw new IOException("No cache node in " + nodesFile);
+      int connections = Integer.parseInt(properties.getProperty(
+        "txcache.connections", "2").trim());
+      nodes = new CacheNode[cacheHosts.length];
+      for (int i = 0; i < nodes.length; i++)
+        nodes[i] = new NioCacheNode(hostOf(cacheHosts[i]),
+            portOf(cacheHosts[i]), connections, buffers);
+      pinSets = new PinSetCache(hostOf(pinCushionHost),
+          portOf(pinCushionHost), Long.parseLong(properties.getProperty(
+            "txcache.pinsetttl", "500").trim()));
+    }
+  }
+
+  private static String hostOf(String hostPort)
+  {
+    return hostPort.substring(0, hostPort.lastIndexOf(':'));
+  }
+
+  private int portOf(String hostPort) throws IOException
+  {
+    try
+    {
+      return Integer.parseInt(hostPort.substring(hostPort.lastIndexOf(':') + 1));
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IOException("Malformed host:port " + hostPort + " in "
+          + nodesFile);
+    }
+  }
+
+  /**
+   * Read the pin policy, the pin cushion and the cache nodes from the nodes
+   * file.
+   */
+  private void readNodes() throws IOException
+  {
+    ArrayList<String> hosts = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(nodesFile));
+    try
+    {
+      String line;
+      int lineno = 0;
+      while ((line = in.readLine()) != null)
+      {
+        lineno++;
+        int comment = line.indexOf('#');
+        if (comment >= 0)
+          line = line.substring(0, comment);
+        line = line.trim();
+        if (line.length() == 0)
+          continue;
+        if (policy == null)
+        {
+          policy = PinPolicy.lookup(line);
+          if (policy == null)
+            throw new IOException("Unknown pin policy '" + line + "'");
+          continue;
+        }
+        int colon = line.lastIndexOf(':');
+        if ((colon <= 0) || (colon == line.length() - 1))
+          throw new IOException("Malformed " + nodesFile + " (line " + lineno
+              + ")");
+        if (pinCushionHost == null)
+          pinCushionHost = line;
+        else
+          hosts.add(line);
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    if (policy == null)
+      throw new IOException("No pin policy in " + nodesFile);
+    cacheHosts = hosts.toArray(new String[hosts.size()]);
+  }
+
+  /**
+   * Create a client to run read-only transactions on a connection. The
+   * connection must not be used by anything else until the client is done
+   * with it.
+   *
+   * @param connection connection to the database
+   * @return a new client
+   */
+  public Client newClient(Connection connection)
+  {
+    return new Client(this, connection, bypass ? null : pinSets.newSession());
+  }
+
+  /**
+   * Get the cache node storing a key.
+   *
+   * @param key the key
+   * @return the node
+   */
+  CacheNode getNode(byte[] key)
+  {
+    return nodes[(Arrays.hashCode(key) & 0x7fffffff) % nodes.length];
+  }
+
+  /**
+   * Get the command status of the last query run by a statement, using the
+   * method of the driver given by txcache.statusmethod.
+   *
+   * @param statement statement of the driver, or a wrapper of one
+   * @return the command status or null if the driver does not give it
+   */
+  String getCommandStatus(Statement statement)
+  {
+    Statement physical = statement;
+    try
+    {
+      physical = statement.unwrap(Statement.class);
+    }
+    catch (Throwable ignore)
+    { // JDBC 3 driver
+    }
+    Class<?> c = physical.getClass();
+    Method m;
+    synchronized (statusMethods)
+    {
+      if (statusMethods.containsKey(c))
+        m = statusMethods.get(c);
+      else
+      {
+        try
+        {
+          m = c.getMethod(statusMethod);
+          if (m.getReturnType() != String.class)
+            m = null;
+        }
+        catch (NoSuchMethodException e)
+        {
+          m = null;
+        }
+        if (m == null)
+          System.err.println("TxCache: " + c.getName() + " has no method "
+              + statusMethod + "() giving the command status");
+        statusMethods.put(c, m);
+      }
+    }
+    if (m == null)
+      return null;
+    try
+    {
+      return (String) m.invoke(physical);
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  public boolean isBypass()
+  {
+    return bypass;
+  }
+
+  public boolean isMemcached()
+  {
+    return memcached;
+  }
+
+  /**
+   * @return the staleness allowed to read-only transactions, in seconds
+   */
+  public double getFreshness()
+  {
+    return freshness;
+  }
+
+  /**
+   * @param page name of the page
+   * @return the staleness allowed to the read-only transactions of the
+   *         page, in seconds
+   */
+  public double getFreshness(String page)
+  {
+    Double f = pageFreshness.get(page);
+    return (f == null) ? freshness : f.doubleValue();
+  }
+
+  /**
+   * Draw the staleness of a read-only transaction between
+   * <code>txcache.freshnessfactor</code> times the given staleness and the
+   * given staleness, so that the transactions of a page do not all ask for
+   * the same snapshots.
+   *
+   * @param freshness staleness allowed to the page, in seconds
+   * @return staleness allowed to the transaction, in seconds
+   */
+  public double randomizeFreshness(double freshness)
+  {
+    if (freshnessFactor >= 1)
+      return freshness;
+    double low = freshness * Math.max(freshnessFactor, 0);
+    return low + (freshness - low) * ThreadLocalRandom.current().nextDouble();
+  }
+
+  public PinPolicy getPolicy()
+  {
+    return policy;
+  }
+
+  /**
+   * Stop using this instance. The statistics are printed when the last
+   * user releases it.
+   */
+  public void release()
+  {
+    synchronized (TxCache.class)
+    {
+      if (--users > 0)
+        return;
+      instances.remove(nodesFile);
+    }
+    for (int i = 0; i < nodes.length; i++)
+      nodes[i].close();
+    if (pinSets != null)
+      pinSets.close();
+    System.out.println(this);
+  }
+
+  public String toString()
+  {
+    return "TxCache " + nodesFile + " (" + policy + (bypass ? ", bypass" : "")
+        + (memcached ? ", memcached" : "") + "): " + roQueries.get()
+        + " RO queries, " + rwQueries.get() + " RW queries, "
+        + roCacheXactions.get() + " RO cache transactions, "
+        + roDBXactions.get() + " RO database transactions, "
+        + cacheHits.get() + " hits, " + cacheMisses.get() + " misses, "
+        + cacheSkips.get() + " skips, " + cacheableAborts.get()
+        + " cacheable aborts";
+  }
+}
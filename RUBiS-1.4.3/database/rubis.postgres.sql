@@ -49,7 +49,7 @@ CREATE TABLE items (
 );
 
 CREATE INDEX seller_id ON items (seller);
-CREATE INDEX category_id ON items (category);
+CREATE INDEX category_id ON items (category, end_date, id);
 
 
 CREATE TABLE old_items (
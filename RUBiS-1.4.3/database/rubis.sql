@@ -45,7 +45,7 @@ CREATE TABLE items (
    category      INTEGER UNSIGNED NOT NULL,
    PRIMARY KEY(id),
    INDEX seller_id (seller),
-   INDEX category_id (category)
+   INDEX category_id (category, end_date, id)
 );
 
 CREATE TABLE old_items (